@@ -4,4 +4,14 @@ if exist "J:/PROV/TECHNOLOGY MANAGEMENT/Application Development/VERS/VERSCode" (
 ) else (
 	set code="C:/Users/Andrew/Documents/Work/VERSCode"
 )
+rem use the class data sharing archive (built by 'ant cds') if present to start faster. The
+rem JVM ignores the archive unless the class path is exactly the one it was built with, so
+rem use the class path 'ant cds' recorded beside it. If start up is no faster, add
+rem -Xlog:class+path=info to see why the archive was not used (e.g. the jar or JDK changed)
+if not exist %code%/V2MetaAnalysis/dist/V2MetaAnalysis.jsa goto nocds
+if not exist %code%/V2MetaAnalysis/dist/V2MetaAnalysis.jsa.classpath goto nocds
+set /p cdscp=<%code%/V2MetaAnalysis/dist/V2MetaAnalysis.jsa.classpath
+java -XX:SharedArchiveFile=%code%/V2MetaAnalysis/dist/V2MetaAnalysis.jsa -Xshare:auto -classpath "%cdscp%" V2MetaAnalysis.V2MetaAnalysis %*
+goto :eof
+:nocds
 java -classpath %code%/V2MetaAnalysis/dist/* V2MetaAnalysis.V2MetaAnalysis %*
@@ -0,0 +1,39 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ExecutorFactory creates the executor used to run one virtual thread per
+ * VEO. This is the Java 21 version of the class, placed in
+ * META-INF/versions/21 of the multi-release jar.
+ *
+ * @author Andrew
+ */
+public class ExecutorFactory {
+
+    /**
+     * Are virtual threads available?
+     *
+     * @return true
+     */
+    public static boolean hasVirtualThreads() {
+        return true;
+    }
+
+    /**
+     * Create an executor that runs each task in a new virtual thread.
+     *
+     * @return the executor
+     * @throws AppFatal never
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() throws AppFatal {
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An AsyncByteSink is a ByteSink that is double buffered. The output for the
+ * VEOs is serialised into one buffer while a dedicated writer thread drains the
+ * other buffer to the channel. Parsing therefore only stops for output if the
+ * writer thread has not finished with the other buffer by the time the current
+ * one is full. More than two buffers can be used, in which case the full
+ * buffers queue for the writer thread; parsing stops only when all of them
+ * are waiting to be written. This bounds how far a slow output (e.g. one of
+ * several outputs from a run) can fall behind before it holds up the parser.
+ *
+ * A buffer is handed to the writer thread when it is full, or at the end of a
+ * VEO if output has been waiting in the buffer for longer than a given time.
+ * The time is only checked at the end of each VEO (the buffer belongs to the
+ * producing thread until it is handed over, so the writer thread cannot take
+ * it), so output can wait for longer while a slow VEO is being parsed.
+ * If durable output is requested, the channel is forced to the storage device
+ * after each buffer is written (this only has an effect on files).
+ *
+ * @author Andrew
+ */
+public class AsyncByteSink extends ByteSink {
+
+    BlockingQueue<ByteBuffer> full;     // buffers waiting to be written
+    BlockingQueue<ByteBuffer> empty;    // buffers that have been written
+    int buffers;        // number of buffers
+    Thread writer;                      // thread writing the buffers
+    long flushNanos;    // maximum time output may wait in the buffer
+    long started;       // time the current buffer first held a complete VEO (0 if none)
+    boolean durable;    // true if force the output to disk after each write
+    volatile IOException failure; // the error that stopped the writer thread (if any)
+
+    static final ByteBuffer STOP = ByteBuffer.allocate(0); // tells the writer thread to exit
+
+    /**
+     * Construct a new double buffered AsyncByteSink and start its writer
+     * thread.
+     *
+     * @param ch the channel to write to
+     * @param closeChannel true if the channel should be closed when the sink is
+     * closed (false for standard out)
+     * @param size size of each of the two buffers in bytes
+     * @param flushMillis maximum time (in milliseconds) output may wait in a
+     * buffer before being handed to the writer at the end of a VEO
+     * @param durable true if the output is to be forced to disk after each
+     * buffer is written
+     */
+    public AsyncByteSink(WritableByteChannel ch, boolean closeChannel, int size, long flushMillis, boolean durable) {
+        this(ch, closeChannel, size, 2, flushMillis, durable);
+    }
+
+    /**
+     * Construct a new AsyncByteSink and start its writer thread.
+     *
+     * @param ch the channel to write to
+     * @param closeChannel true if the channel should be closed when the sink is
+     * closed (false for standard out)
+     * @param size size of each buffer in bytes
+     * @param buffers number of buffers (at least two)
+     * @param flushMillis maximum time (in milliseconds) output may wait in a
+     * buffer before being handed to the writer at the end of a VEO
+     * @param durable true if the output is to be forced to disk after each
+     * buffer is written
+     */
+    public AsyncByteSink(WritableByteChannel ch, boolean closeChannel, int size, int buffers, long flushMillis, boolean durable) {
+        super(ch, closeChannel, size);
+        int i;
+
+        this.flushNanos = flushMillis * 1000000L;
+        this.durable = durable;
+        this.buffers = buffers;
+        started = 0;
+        failure = null;
+        full = new ArrayBlockingQueue<>(buffers);
+        empty = new ArrayBlockingQueue<>(buffers);
+        for (i = 1; i < buffers; i++) {
+            empty.add(ByteBuffer.allocateDirect(size));
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBuffers();
+            }
+        }, "V2MetaAnalysis output writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * The writer thread. Take each full buffer, write it to the channel, and
+     * return it. If a write fails, the error is remembered and reported to the
+     * producing thread on its next hand over.
+     */
+    private void writeBuffers() {
+        ByteBuffer b;
+
+        while (true) {
+            try {
+                b = full.take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (b == STOP) {
+                return;
+            }
+            if (failure == null) {
+                try {
+                    while (b.hasRemaining()) {
+                        ch.write(b);
+                    }
+                    if (durable && ch instanceof FileChannel) {
+                        ((FileChannel) ch).force(false);
+                    }
+                } catch (IOException ioe) {
+                    failure = ioe;
+                }
+            }
+            b.clear();
+            try {
+                empty.put(b);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hand the current buffer to the writer thread and start filling the other
+     * one (waiting, if necessary, for the writer thread to finish with it).
+     *
+     * @throws IOException if the writer thread failed
+     */
+    @Override
+    void drain() throws IOException {
+        checkFailure();
+        if (buf.position() == 0) {
+            return;
+        }
+        buf.flip();
+        try {
+            full.put(buf);
+            buf = empty.take();
+        } catch (InterruptedException ie) {
+            throw new IOException("Interrupted waiting for output writer");
+        }
+        started = 0;
+        checkFailure();
+    }
+
+    /**
+     * At the end of each VEO, hand the buffer to the writer thread if output
+     * has been waiting in it for too long.
+     *
+     * @throws IOException if the writer thread failed
+     */
+    @Override
+    public void endRecord() throws IOException {
+        long now;
+
+        if (buf.position() == 0) {
+            return;
+        }
+        now = System.nanoTime();
+        if (started == 0) {
+            started = now;
+        } else if (now - started >= flushNanos) {
+            drain();
+        }
+    }
+
+    /**
+     * Hand the current buffer to the writer thread and wait until it (and
+     * every buffer queued before it) has been written.
+     *
+     * @throws IOException if the writer thread failed
+     */
+    @Override
+    public void flush() throws IOException {
+        ByteBuffer[] b;
+        int i;
+
+        drain();
+        b = new ByteBuffer[buffers - 1];
+        try {
+            for (i = 0; i < b.length; i++) {
+                b[i] = empty.take();
+            }
+            for (i = 0; i < b.length; i++) {
+                empty.put(b[i]);
+            }
+        } catch (InterruptedException ie) {
+            throw new IOException("Interrupted waiting for output writer");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Write any remaining output, stop the writer thread, and close the
+     * channel (if requested).
+     *
+     * @throws IOException if the writer thread failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            if (durable && ch instanceof FileChannel) {
+                ((FileChannel) ch).force(true);
+            }
+        } finally {
+            try {
+                full.put(STOP);
+                writer.join();
+            } catch (InterruptedException ie) {
+                /* ignore */
+            }
+            if (closeChannel) {
+                ch.close();
+            }
+        }
+    }
+
+    /**
+     * Throw the error (if any) that stopped the writer thread.
+     *
+     * @throws IOException the error
+     */
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Output writer failed: " + failure.getMessage(), failure);
+        }
+    }
+}
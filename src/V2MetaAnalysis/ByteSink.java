@@ -0,0 +1,261 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A ByteSink is where the output is written. It is a byte buffer that is
+ * drained to a channel (a FileChannel for an output file, or a channel
+ * wrapping standard out) when it fills, or when it is flushed.
+ *
+ * The harvested values are held as UTF-8, and all the constant text (tags,
+ * punctuation) is ASCII or pre-encoded, so no character set encoding happens
+ * on output. The bytes written are identical to those that would be produced
+ * by writing the same text through an OutputStreamWriter using UTF-8.
+ *
+ * @author Andrew
+ */
+public class ByteSink {
+
+    ByteBuffer buf;         // buffer holding output not yet written
+    WritableByteChannel ch; // channel the output is written to
+    boolean closeChannel;   // true if the channel is to be closed with the sink
+
+    static final int BUFFER_SIZE = 65536; // default size of the output buffer
+
+    /**
+     * Construct a new ByteSink writing to a channel.
+     *
+     * @param ch the channel to write to
+     * @param closeChannel true if the channel should be closed when the sink is
+     * closed (false for standard out)
+     */
+    public ByteSink(WritableByteChannel ch, boolean closeChannel) {
+        this(ch, closeChannel, BUFFER_SIZE);
+    }
+
+    /**
+     * Construct a new ByteSink writing to a channel with a given buffer size.
+     *
+     * @param ch the channel to write to
+     * @param closeChannel true if the channel should be closed when the sink is
+     * closed (false for standard out)
+     * @param size size of the output buffer in bytes
+     */
+    public ByteSink(WritableByteChannel ch, boolean closeChannel, int size) {
+        this.ch = ch;
+        this.closeChannel = closeChannel;
+        buf = ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Write a single byte.
+     *
+     * @param b the byte
+     * @throws IOException if the channel failed
+     */
+    public void write(int b) throws IOException {
+        if (!buf.hasRemaining()) {
+            drain();
+        }
+        buf.put((byte) b);
+    }
+
+    /**
+     * Write an array of bytes.
+     *
+     * @param b the bytes
+     * @throws IOException if the channel failed
+     */
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    /**
+     * Write a slice of an array of bytes.
+     *
+     * @param b the array
+     * @param off offset of the first byte to write
+     * @param len number of bytes to write
+     * @throws IOException if the channel failed
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        int n;
+
+        while (len > 0) {
+            if (!buf.hasRemaining()) {
+                drain();
+            }
+            n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Write a string. This is intended for the (short) constant pieces of the
+     * output; the string is encoded as UTF-8.
+     *
+     * @param s the string
+     * @throws IOException if the channel failed
+     */
+    public void write(String s) throws IOException {
+        int i;
+        char c;
+
+        for (i = 0; i < s.length(); i++) {
+            c = s.charAt(i);
+            if (c >= 0x80) {
+                write(utf8(s));
+                return;
+            }
+        }
+        for (i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    /**
+     * Write the contents of the buffer to the channel.
+     *
+     * @throws IOException if the channel failed
+     */
+    void drain() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Write any buffered output to the channel.
+     *
+     * @throws IOException if the channel failed
+     */
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Called at the end of the output for each VEO. A plain ByteSink leaves
+     * the output in the buffer until it fills or the sink is flushed or
+     * closed.
+     *
+     * @throws IOException if the channel failed
+     */
+    public void endRecord() throws IOException {
+    }
+
+    /**
+     * Flush the buffered output and (if requested when the sink was created)
+     * close the channel.
+     *
+     * @throws IOException if the channel failed
+     */
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            if (closeChannel) {
+                ch.close();
+            }
+        }
+    }
+
+    /**
+     * Encode a string as UTF-8. An unpaired surrogate is encoded as '?', which
+     * is what the standard UTF-8 encoder does.
+     *
+     * @param s the string
+     * @return the UTF-8 encoding
+     */
+    public static byte[] utf8(String s) {
+        byte[] b;
+        int n;
+
+        b = new byte[utf8Length(s, 0, s.length())];
+        n = utf8(s, 0, s.length(), b, 0);
+        assert n == b.length;
+        return b;
+    }
+
+    /**
+     * Calculate how many bytes are needed to encode part of a character
+     * sequence in UTF-8.
+     *
+     * @param s the character sequence
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return number of bytes
+     */
+    public static int utf8Length(CharSequence s, int start, int end) {
+        int i, n;
+        char c;
+
+        n = 0;
+        for (i = start; i < end; i++) {
+            c = s.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                n++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Encode part of a character sequence as UTF-8 into a byte array. The
+     * array must be large enough (see utf8Length()).
+     *
+     * @param s the character sequence
+     * @param start index of the first character
+     * @param end index after the last character
+     * @param b the array to encode into
+     * @param off where in the array to start
+     * @return the offset after the last byte written
+     */
+    public static int utf8(CharSequence s, int start, int end, byte[] b, int off) {
+        int i, cp;
+        char c;
+
+        for (i = start; i < end; i++) {
+            c = s.charAt(i);
+            if (c < 0x80) {
+                b[off++] = (byte) c;
+            } else if (c < 0x800) {
+                b[off++] = (byte) (0xc0 | (c >> 6));
+                b[off++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                cp = Character.toCodePoint(c, s.charAt(i + 1));
+                i++;
+                b[off++] = (byte) (0xf0 | (cp >> 18));
+                b[off++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                b[off++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                b[off++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                b[off++] = '?';
+            } else {
+                b[off++] = (byte) (0xe0 | (c >> 12));
+                b[off++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[off++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return off;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A ControlFileCache keeps a binary copy of each control file that has been
+ * read (after the prefixes have been expanded, the virtual targets recognised
+ * and the filters attached to their targets) in a cache directory. The copy
+ * is named by the SHA-256 of the control file's contents, so an edited
+ * control file is simply a new entry.
+ * Loading the binary copy avoids parsing the control file again.
+ *
+ * The cache is an optimisation only; any problem reading or writing it is
+ * logged and the control file is read as normal.
+ *
+ * @author Andrew
+ */
+public class ControlFileCache {
+
+    Path dir;           // the cache directory
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    static final int MAGIC = 0x56324d43; // 'V2MC'
+    static final int VERSION = 4; // 4: revision layer of each target
+
+    /**
+     * Construct a new ControlFileCache.
+     *
+     * @param dir the cache directory (created if necessary)
+     * @throws AppFatal if the cache directory could not be created
+     */
+    public ControlFileCache(Path dir) throws AppFatal {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException ioe) {
+            throw new AppFatal("ControlFileCache", 1, "Could not create control file cache directory '" + dir.toString() + "': " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Work out the name of the cache entry for a control file.
+     *
+     * @param controlFile the control file
+     * @return the cache entry
+     * @throws IOException if the control file could not be read
+     */
+    Path entry(Path controlFile) throws IOException {
+        MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae.getMessage());
+        }
+        return dir.resolve(Digester.toHex(md.digest(Files.readAllBytes(controlFile))) + ".v2mc");
+    }
+
+    /**
+     * Load the targets for a control file from the cache.
+     *
+     * @param controlFile the control file
+     * @return the targets (null if the control file is not in the cache)
+     */
+    public Target load(Path controlFile) {
+        Path p;
+        Target targets, t;
+        ArrayList<String> elemPath;
+        String deflt, tag, op;
+        int i, j, n, m, virtual;
+
+        try {
+            p = entry(controlFile);
+            if (!Files.exists(p)) {
+                return null;
+            }
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+                if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                    return null;
+                }
+                targets = null;
+                n = dis.readInt();
+                for (i = 0; i < n; i++) {
+                    m = dis.readInt();
+                    elemPath = new ArrayList<>(m);
+                    for (j = 0; j < m; j++) {
+                        elemPath.add(dis.readUTF());
+                    }
+                    deflt = dis.readBoolean() ? dis.readUTF() : null;
+                    tag = dis.readUTF();
+                    virtual = dis.readInt();
+                    t = new Target(elemPath, deflt, tag, virtual);
+                    t.layer = dis.readInt();
+                    m = dis.readInt();
+                    for (j = 0; j < m; j++) {
+                        op = dis.readUTF();
+                        t.addFilter(new Filter(op, dis.readBoolean() ? dis.readUTF() : null));
+                    }
+                    if (targets == null) {
+                        targets = t;
+                    } else {
+                        targets.add(t);
+                    }
+                }
+            }
+        } catch (IOException | AppFatal e) {
+            LOG.log(Level.WARNING, "Ignoring control file cache: {0}", e.getMessage());
+            return null;
+        }
+        LOG.log(Level.INFO, "Loaded control file ''{0}'' from cache ''{1}''", new Object[]{controlFile.toString(), p.toString()});
+        return targets;
+    }
+
+    /**
+     * Save the targets read from a control file in the cache. The entry is
+     * written to a temporary file and moved into place, so that concurrent
+     * runs never see a partial entry.
+     *
+     * @param controlFile the control file
+     * @param targets the targets read from it
+     */
+    public void save(Path controlFile, Target targets) {
+        Path p, tmp;
+        Target t;
+        Filter f;
+        int i, n;
+
+        tmp = null;
+        try {
+            p = entry(controlFile);
+            tmp = Files.createTempFile(dir, "entry", ".tmp");
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(targets.size());
+                for (t = targets; t != null; t = t.next) {
+                    dos.writeInt(t.elemPath.size());
+                    for (i = 0; i < t.elemPath.size(); i++) {
+                        dos.writeUTF(t.elemPath.get(i));
+                    }
+                    dos.writeBoolean(t.deflt != null);
+                    if (t.deflt != null) {
+                        dos.writeUTF(t.deflt);
+                    }
+                    dos.writeUTF(t.tag);
+                    dos.writeInt(t.virtual);
+                    dos.writeInt(t.layer);
+                    n = 0;
+                    for (f = t.filter; f != null; f = f.next) {
+                        n++;
+                    }
+                    dos.writeInt(n);
+                    for (f = t.filter; f != null; f = f.next) {
+                        dos.writeUTF(f.opName());
+                        dos.writeBoolean(f.value != null);
+                        if (f.value != null) {
+                            dos.writeUTF(f.value);
+                        }
+                    }
+                }
+            }
+            Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Could not save control file in cache: {0}", ioe.getMessage());
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ioe) {
+                    /* ignore */
+                }
+            }
+        }
+    }
+}
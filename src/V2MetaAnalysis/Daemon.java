@@ -0,0 +1,373 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The Daemon keeps V2MetaAnalysis resident, so that a workflow that runs many
+ * small jobs does not pay for starting a JVM (and warming up the parser) for
+ * each one. Jobs are submitted over a socket on the loopback interface, so
+ * only local processes can submit jobs. Several jobs may run at once, and
+ * control files are read once and reused by later jobs.
+ *
+ * Any local user can connect to the socket, so each request must also carry
+ * a secret token. When the daemon starts, it generates a random token and
+ * writes it to the file '.v2metaanalysis/daemon-port.token' in the home
+ * directory of the user running it. The directory and file can only be read
+ * by their owner (on file systems with POSIX permissions; elsewhere, e.g. on
+ * Windows, they are protected by the home directory's permissions), so only
+ * the same user can submit jobs. The file is deleted when the daemon stops.
+ *
+ * The protocol is line based (UTF-8). A job is submitted as:
+ * <pre>
+ * token&lt;tab&gt;the token
+ * job
+ * cwd&lt;tab&gt;directory the job was submitted from
+ * arg&lt;tab&gt;first command line argument
+ * arg&lt;tab&gt;second command line argument
+ * ...
+ * (empty line)
+ * </pre> The arguments are exactly those of the command line (except that
+ * '-stdout' is not allowed). When the job is complete, the daemon replies
+ * with a single line: 'ok&lt;tab&gt;' followed by the statistics for the job
+ * (including how long it waited to start, how long it ran, and its
+ * throughput), or 'error&lt;tab&gt;' followed by the reason the job failed.
+ * The request 'stop' (after the token, and followed by an empty line) stops
+ * the daemon. A request without the right token is rejected with an
+ * 'error' reply.
+ *
+ * Logging options given in a job (e.g. '-v') apply to the daemon as a whole.
+ *
+ * @author Andrew
+ */
+public class Daemon {
+
+    int port;           // port to listen on
+    int jobs;           // maximum number of jobs running at once
+    Semaphore running;  // limits the number of jobs running
+    ServerSocket server;// socket accepting jobs
+    byte[] token;       // secret a request must carry (as hex characters)
+    Path tokenFile;     // file holding the token
+    volatile boolean stopping; // true if the daemon has been asked to stop
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    /**
+     * Construct a new Daemon from the command line '-daemon port [-jobs n]'.
+     *
+     * @param args the command line arguments
+     * @throws AppFatal if the arguments are invalid
+     */
+    public Daemon(String args[]) throws AppFatal {
+        int i;
+        String usage = "V2MetaAnalysis -daemon port [-jobs n]";
+
+        jobs = 2;
+        try {
+            port = Integer.parseInt(args[1]);
+            i = 2;
+            while (i < args.length) {
+                switch (args[i].toLowerCase()) {
+                    case "-jobs":
+                        i++;
+                        jobs = Integer.parseInt(args[i]);
+                        if (jobs < 1) {
+                            throw new AppFatal("Daemon", 1, "Number of jobs (-jobs) must be at least 1. Usage: " + usage);
+                        }
+                        i++;
+                        break;
+                    default:
+                        throw new AppFatal("Daemon", 2, "Unrecognised argument '" + args[i] + "'. Usage: " + usage);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException ae) {
+            throw new AppFatal("Daemon", 3, "Missing argument. Usage: " + usage);
+        } catch (NumberFormatException nfe) {
+            throw new AppFatal("Daemon", 3, "Invalid number: " + nfe.getMessage() + ". Usage: " + usage);
+        }
+        running = new Semaphore(jobs, true);
+        stopping = false;
+    }
+
+    /**
+     * Accept jobs until asked to stop. Each connection is handled by its own
+     * thread.
+     *
+     * @throws AppFatal if the socket could not be opened
+     */
+    public void serve() throws AppFatal {
+        Socket s;
+        Thread t;
+        int n;
+
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%4$s: %5$s%n");
+        LOG.getParent().setLevel(Level.WARNING);
+        LOG.setLevel(null);
+        try {
+            server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException ioe) {
+            throw new AppFatal("Daemon", 4, "Could not listen on port " + port + ": " + ioe.getMessage());
+        }
+        try {
+            writeToken();
+        } catch (AppFatal af) {
+            try {
+                server.close();
+            } catch (IOException ioe) {
+                /* ignore */
+            }
+            throw af;
+        }
+        LOG.log(Level.WARNING, "V2MetaAnalysis daemon listening on {0}:{1} (running up to {2} jobs at once)", new Object[]{server.getInetAddress().getHostAddress(), Integer.toString(server.getLocalPort()), jobs});
+        n = 0;
+        while (!stopping) {
+            try {
+                s = server.accept();
+            } catch (IOException ioe) {
+                if (!stopping) {
+                    LOG.log(Level.WARNING, "Failed accepting a job: {0}", ioe.getMessage());
+                }
+                continue;
+            }
+            n++;
+            final Socket client = s;
+            t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handle(client);
+                }
+            }, "V2MetaAnalysis job " + n);
+            t.start();
+        }
+        try {
+            Files.deleteIfExists(tokenFile);
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Could not delete the token file ''{0}'': {1}", new Object[]{tokenFile.toString(), ioe.getMessage()});
+        }
+    }
+
+    /**
+     * The file holding the token of the daemon listening on a port.
+     *
+     * @param port the port
+     * @return the file
+     */
+    static Path tokenFile(int port) {
+        return Paths.get(System.getProperty("user.home"), ".v2metaanalysis", "daemon-" + port + ".token");
+    }
+
+    /**
+     * Generate a random token and write it to a file that only the user
+     * running the daemon can read.
+     *
+     * @throws AppFatal if the file could not be written
+     */
+    private void writeToken() throws AppFatal {
+        byte[] b;
+        Path dir;
+        boolean posix;
+
+        b = new byte[32];
+        new SecureRandom().nextBytes(b);
+        token = Digester.toHex(b).getBytes(StandardCharsets.US_ASCII);
+        tokenFile = tokenFile(server.getLocalPort());
+        dir = tokenFile.getParent();
+        posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        try {
+            if (posix) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+            } else {
+                Files.createDirectories(dir);
+            }
+
+            // create the file afresh, so that it cannot have been opened by
+            // anyone else before the token is written
+            Files.deleteIfExists(tokenFile);
+            if (posix) {
+                Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(tokenFile);
+            }
+            Files.write(tokenFile, token);
+        } catch (IOException | UnsupportedOperationException e) {
+            throw new AppFatal("Daemon", 9, "Could not write the token file '" + tokenFile.toString() + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handle one connection: read the request, run the job, and reply.
+     *
+     * @param s the connection
+     */
+    private void handle(Socket s) {
+        BufferedReader r;
+        Writer w;
+        String line, reply;
+        Path cwd;
+        ArrayList<String> args;
+
+        try (Socket client = s) {
+            r = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            w = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8);
+            line = r.readLine();
+            if (line == null || !line.startsWith("token\t") || !MessageDigest.isEqual(line.substring(6).getBytes(StandardCharsets.UTF_8), token)) {
+                LOG.log(Level.WARNING, "Rejected a request without the daemon's token");
+                w.write("error\tNot authorised (the request did not carry the daemon's token)\n");
+                w.flush();
+                return;
+            }
+            line = r.readLine();
+            if ("stop".equals(line)) {
+                stopping = true;
+                w.write("ok\tstopping\n");
+                w.flush();
+                server.close();
+                return;
+            }
+            if (!"job".equals(line)) {
+                w.write("error\tExpected 'job' or 'stop'\n");
+                w.flush();
+                return;
+            }
+            cwd = null;
+            args = new ArrayList<>();
+            while ((line = r.readLine()) != null && !line.isEmpty()) {
+                if (line.startsWith("cwd\t")) {
+                    cwd = Paths.get(line.substring(4));
+                } else if (line.startsWith("arg\t")) {
+                    args.add(line.substring(4));
+                }
+            }
+            if (cwd == null || !cwd.isAbsolute()) {
+                reply = "error\tThe job did not give the (absolute) directory it was submitted from";
+            } else {
+                reply = run(args.toArray(new String[args.size()]), cwd);
+            }
+            w.write(reply);
+            w.write('\n');
+            w.flush();
+        } catch (IOException | InvalidPathException e) {
+            LOG.log(Level.WARNING, "Failed handling a job: {0}", e.getMessage());
+        }
+    }
+
+    /**
+     * Run one job, waiting for a free job slot first.
+     *
+     * @param args the arguments describing the job
+     * @param cwd the directory the job was submitted from
+     * @return the reply to send
+     */
+    private String run(String args[], Path cwd) {
+        V2MetaAnalysis job;
+        long queued, started;
+
+        queued = System.nanoTime();
+        try {
+            running.acquire();
+        } catch (InterruptedException ie) {
+            return "error\tInterrupted waiting to start the job";
+        }
+        started = System.nanoTime();
+        try {
+            job = new V2MetaAnalysis(args, cwd);
+            job.processVEOs();
+            return "ok\t" + job.stats.toString() + "; waited " + RunStats.millis(started - queued) + "ms to start, ran " + RunStats.millis(System.nanoTime() - started) + "ms (" + job.stats.throughput() + ")";
+        } catch (AppFatal af) {
+            return "error\t" + af.getMessage();
+        } catch (RuntimeException re) {
+            LOG.log(Level.WARNING, "Job failed", re);
+            return "error\t" + re.toString();
+        } finally {
+            running.release();
+        }
+    }
+
+    /**
+     * Submit a job to a daemon from the command line '-submit port ...' and
+     * wait for the reply. The rest of the command line is the job (or
+     * '-stopdaemon' to stop the daemon).
+     *
+     * @param args the command line arguments
+     * @throws AppFatal if the job could not be submitted, or failed
+     */
+    public static void submit(String args[]) throws AppFatal {
+        int port, i;
+        String reply, token;
+        StringBuilder sb;
+        Path tf;
+
+        if (args.length < 2) {
+            throw new AppFatal("Daemon", 5, "Missing port. Usage: V2MetaAnalysis -submit port [-stopdaemon | arguments]");
+        }
+        try {
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException nfe) {
+            throw new AppFatal("Daemon", 5, "Invalid port: " + nfe.getMessage());
+        }
+        tf = tokenFile(port);
+        try {
+            token = new String(Files.readAllBytes(tf), StandardCharsets.US_ASCII).trim();
+        } catch (IOException ioe) {
+            throw new AppFatal("Daemon", 10, "Could not read the daemon's token file '" + tf.toString() + "' (is a daemon running on port " + port + " as this user?): " + ioe.getMessage());
+        }
+        sb = new StringBuilder();
+        sb.append("token\t");
+        sb.append(token);
+        sb.append('\n');
+        if (args.length == 3 && args[2].equalsIgnoreCase("-stopdaemon")) {
+            sb.append("stop\n\n");
+        } else {
+            sb.append("job\n");
+            sb.append("cwd\t");
+            sb.append(Paths.get("").toAbsolutePath().toString());
+            sb.append('\n');
+            for (i = 2; i < args.length; i++) {
+                sb.append("arg\t");
+                sb.append(args[i]);
+                sb.append('\n');
+            }
+            sb.append('\n');
+        }
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            s.getOutputStream().write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            s.getOutputStream().flush();
+            reply = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8)).readLine();
+        } catch (IOException ioe) {
+            throw new AppFatal("Daemon", 6, "Could not submit job to daemon on port " + port + ": " + ioe.getMessage());
+        }
+        if (reply == null) {
+            throw new AppFatal("Daemon", 7, "Daemon closed the connection without replying");
+        }
+        if (reply.startsWith("ok\t")) {
+            System.out.println(reply.substring(3));
+        } else {
+            throw new AppFatal("Daemon", 8, "Job failed: " + reply.substring(reply.indexOf('\t') + 1));
+        }
+    }
+}
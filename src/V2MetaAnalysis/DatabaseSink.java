@@ -0,0 +1,384 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A DatabaseSink writes the values harvested from each VEO straight into a
+ * SQL database through JDBC, rather than into a file that is later loaded into
+ * the database. It is intended for an embedded, file based database (e.g.
+ * 'jdbc:h2:file:/data/veos', 'jdbc:sqlite:/data/veos.db' or
+ * 'jdbc:derby:/data/veos;create=true'); the JDBC driver must be on the class
+ * path.
+ * <p>
+ * Each control file has its own table, named after the control file (e.g.
+ * 'agency.txt' is loaded into table 'agency'). The table has a column
+ * 'veo_id' (a number allocated to each VEO loaded), and a column for each
+ * target, named after the target's tag, holding the first value harvested (or
+ * the default value if none was harvested). If more than one value is
+ * harvested for a target, all the values are also put in the child table
+ * (e.g. 'agency_values'), which has the columns 'veo_id', 'tag', 'seq' (the
+ * position of the value, starting at 0) and 'value'. As with CSV output,
+ * attributes are not loaded.
+ * <p>
+ * The tables are created if they do not exist, and a column is added for any
+ * target that is new since the table was created, so the database follows
+ * the control file. The rows are inserted in batches using prepared
+ * statements that are reused, and are committed every 'commitEvery' VEOs (and
+ * when the sink is closed), so a failed run leaves the database as at the last
+ * commit.
+ *
+ * @author Andrew
+ */
+public class DatabaseSink {
+
+    Connection conn;            // connection to the database
+    Target targets;             // the targets harvested
+    String table;               // table holding one row per VEO
+    String child;               // table holding repeated values
+    String[] columns;           // column holding each target
+    PreparedStatement insertVEO;    // inserts a row into the table
+    PreparedStatement insertValue;  // inserts a row into the child table
+    long nextId;                // veo_id of the next VEO loaded
+    int commitEvery;            // number of VEOs between commits
+    int uncommitted;            // number of VEOs loaded since the last commit
+    int loaded;                 // number of VEOs loaded
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    static final String TEXT = "CLOB"; // SQL type of the values
+
+    /**
+     * Open the database, creating or extending the tables for the control
+     * file as necessary.
+     *
+     * @param url JDBC URL of the database
+     * @param controlFile the control file (names the table)
+     * @param targets the targets read from the control file
+     * @param commitEvery number of VEOs to load between commits
+     * @throws AppFatal if the database could not be opened or set up
+     */
+    public DatabaseSink(String url, Path controlFile, Target targets, int commitEvery) throws AppFatal {
+        String s;
+        int i;
+
+        this.targets = targets;
+        this.commitEvery = commitEvery;
+        uncommitted = 0;
+        loaded = 0;
+
+        // name the table after the control file, and the columns after the tags
+        s = controlFile.getFileName().toString();
+        i = s.lastIndexOf('.');
+        if (i > 0) {
+            s = s.substring(0, i);
+        }
+        table = identifier(s);
+        child = table + "_values";
+        columns = new String[targets.size()];
+        for (i = 0; i < columns.length; i++) {
+            s = identifier(targets.get(i).tag);
+            if (s.equalsIgnoreCase("veo_id") || contains(columns, i, s)) {
+                s = s + "_" + (i + 1);
+            }
+            columns[i] = s;
+        }
+
+        try {
+            conn = DriverManager.getConnection(url);
+        } catch (SQLException sqle) {
+            throw new AppFatal("DatabaseSink", 1, "Could not open database '" + url + "': " + sqle.getMessage() + " (is the JDBC driver on the class path?)");
+        }
+        try {
+            conn.setAutoCommit(false);
+            migrate();
+            conn.commit();
+            insertVEO = conn.prepareStatement(insertSQL());
+            insertValue = conn.prepareStatement("INSERT INTO " + quote(child) + " (\"veo_id\", \"tag\", \"seq\", \"value\") VALUES (?, ?, ?, ?)");
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT MAX(\"veo_id\") FROM " + quote(table))) {
+                nextId = rs.next() ? rs.getLong(1) + 1 : 1;
+            }
+        } catch (SQLException sqle) {
+            close(conn);
+            throw new AppFatal("DatabaseSink", 2, "Could not set up table '" + table + "' in database '" + url + "': " + sqle.getMessage());
+        }
+        LOG.log(Level.INFO, "Loading VEOs into table ''{0}'' of database ''{1}''", new Object[]{table, url});
+    }
+
+    /**
+     * Create the tables if they do not exist, and add a column for each
+     * target that does not have one.
+     *
+     * @throws SQLException if the database failed
+     */
+    private void migrate() throws SQLException {
+        DatabaseMetaData md;
+        HashSet<String> existing;
+        StringBuilder sb;
+        int i;
+
+        md = conn.getMetaData();
+        existing = new HashSet<>();
+        try (ResultSet rs = md.getColumns(null, null, pattern(md, table), null)) {
+            while (rs.next()) {
+                existing.add(rs.getString("COLUMN_NAME").toLowerCase());
+            }
+        }
+        try (Statement st = conn.createStatement()) {
+            if (existing.isEmpty()) {
+                sb = new StringBuilder();
+                sb.append("CREATE TABLE ");
+                sb.append(quote(table));
+                sb.append(" (\"veo_id\" BIGINT NOT NULL PRIMARY KEY");
+                for (i = 0; i < columns.length; i++) {
+                    sb.append(", ");
+                    sb.append(quote(columns[i]));
+                    sb.append(" ");
+                    sb.append(TEXT);
+                }
+                sb.append(")");
+                st.executeUpdate(sb.toString());
+                LOG.log(Level.INFO, "Created table ''{0}''", table);
+            } else {
+                for (i = 0; i < columns.length; i++) {
+                    if (!existing.contains(columns[i].toLowerCase())) {
+                        st.executeUpdate("ALTER TABLE " + quote(table) + " ADD COLUMN " + quote(columns[i]) + " " + TEXT);
+                        LOG.log(Level.INFO, "Added column ''{0}'' to table ''{1}''", new Object[]{columns[i], table});
+                    }
+                }
+            }
+            try (ResultSet rs = md.getTables(null, null, pattern(md, child), null)) {
+                if (!rs.next()) {
+                    st.executeUpdate("CREATE TABLE " + quote(child) + " (\"veo_id\" BIGINT NOT NULL, \"tag\" VARCHAR(256) NOT NULL, \"seq\" INTEGER NOT NULL, \"value\" " + TEXT + ")");
+                    LOG.log(Level.INFO, "Created table ''{0}''", child);
+                }
+            }
+        }
+    }
+
+    /**
+     * The metadata lookups take patterns, in which '_' matches any character;
+     * escape it so that only the table itself matches.
+     *
+     * @param md the database metadata
+     * @param s the table name
+     * @return the pattern
+     * @throws SQLException if the database failed
+     */
+    private static String pattern(DatabaseMetaData md, String s) throws SQLException {
+        String esc;
+
+        esc = md.getSearchStringEscape();
+        if (esc == null || esc.isEmpty()) {
+            return s;
+        }
+        return s.replace(esc, esc + esc).replace("_", esc + "_").replace("%", esc + "%");
+    }
+
+    /**
+     * Build the statement that inserts a row for a VEO.
+     *
+     * @return the SQL
+     */
+    private String insertSQL() {
+        StringBuilder sb;
+        int i;
+
+        sb = new StringBuilder();
+        sb.append("INSERT INTO ");
+        sb.append(quote(table));
+        sb.append(" (\"veo_id\"");
+        for (i = 0; i < columns.length; i++) {
+            sb.append(", ");
+            sb.append(quote(columns[i]));
+        }
+        sb.append(") VALUES (?");
+        for (i = 0; i < columns.length; i++) {
+            sb.append(", ?");
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    /**
+     * Load the values harvested from a VEO. The rows are added to the current
+     * batch, which is sent to the database (and committed) every
+     * 'commitEvery' VEOs. May be called from several threads.
+     *
+     * @param h the values harvested from the VEO
+     * @throws AppFatal if the database failed
+     */
+    public synchronized void add(Harvest h) throws AppFatal {
+        Target t;
+        int i, j, n;
+        int[] v;
+        long id;
+
+        id = nextId++;
+        try {
+            insertVEO.setLong(1, id);
+            for (i = 0; i < columns.length; i++) {
+                t = targets.get(i);
+                n = h.valueCount[i];
+                v = h.values[i];
+                if (n > 0) {
+                    insertVEO.setString(i + 2, new String(h.arena, v[0], v[1], StandardCharsets.UTF_8));
+                } else if (t.deflt != null) {
+                    insertVEO.setString(i + 2, t.deflt);
+                } else {
+                    insertVEO.setNull(i + 2, Types.CLOB);
+                }
+                if (n > 1) {
+                    for (j = 0; j < n; j++) {
+                        insertValue.setLong(1, id);
+                        insertValue.setString(2, columns[i]);
+                        insertValue.setInt(3, j);
+                        insertValue.setString(4, new String(h.arena, v[j * 2], v[j * 2 + 1], StandardCharsets.UTF_8));
+                        insertValue.addBatch();
+                    }
+                }
+            }
+            insertVEO.addBatch();
+            uncommitted++;
+            loaded++;
+            if (uncommitted >= commitEvery) {
+                commit();
+            }
+        } catch (SQLException sqle) {
+            throw new AppFatal("DatabaseSink", 3, "Failed loading VEO into table '" + table + "': " + sqle.getMessage());
+        }
+    }
+
+    /**
+     * Send the current batch to the database and commit it.
+     *
+     * @throws AppFatal if the database failed
+     */
+    public synchronized void commit() throws AppFatal {
+        if (uncommitted == 0) {
+            return;
+        }
+        try {
+            insertVEO.executeBatch();
+            insertValue.executeBatch();
+            conn.commit();
+        } catch (SQLException sqle) {
+            throw new AppFatal("DatabaseSink", 4, "Failed committing VEOs to table '" + table + "': " + sqle.getMessage());
+        }
+        LOG.log(Level.FINE, "Committed {0} VEOs", uncommitted);
+        uncommitted = 0;
+    }
+
+    /**
+     * Commit any remaining VEOs and close the database.
+     *
+     * @throws AppFatal if the database failed
+     */
+    public synchronized void close() throws AppFatal {
+        try {
+            commit();
+        } finally {
+            close(conn);
+        }
+        LOG.log(Level.INFO, "Loaded {0} VEOs into table ''{1}''", new Object[]{loaded, table});
+    }
+
+    /**
+     * Abandon loading (e.g. because the run failed): discard the VEOs not yet
+     * committed and close the database.
+     */
+    public synchronized void abort() {
+        try {
+            conn.rollback();
+        } catch (SQLException sqle) {
+            /* ignore */
+        }
+        close(conn);
+    }
+
+    /**
+     * Close a connection, ignoring any error (uncommitted changes are lost).
+     *
+     * @param c the connection
+     */
+    private static void close(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException sqle) {
+            /* ignore */
+        }
+    }
+
+    /**
+     * Turn a name into an SQL identifier: letters, digits and underscores,
+     * not starting with a digit, in lower case.
+     *
+     * @param s the name
+     * @return the identifier
+     */
+    static String identifier(String s) {
+        StringBuilder sb;
+        int i;
+        char c;
+
+        sb = new StringBuilder();
+        for (i = 0; i < s.length(); i++) {
+            c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                sb.append(Character.toLowerCase(c));
+            } else {
+                sb.append('_');
+            }
+        }
+        if (sb.length() == 0 || (sb.charAt(0) >= '0' && sb.charAt(0) <= '9')) {
+            sb.insert(0, '_');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Quote an identifier, so that it can be any word (including an SQL
+     * keyword such as 'date').
+     *
+     * @param s the identifier
+     * @return the quoted identifier
+     */
+    static String quote(String s) {
+        return "\"" + s + "\"";
+    }
+
+    /**
+     * Is a column name already in use (ignoring case)?
+     *
+     * @param columns the columns named so far
+     * @param n the number of columns named so far
+     * @param s the name
+     * @return true if the name is in use
+     */
+    private static boolean contains(String[] columns, int n, String s) {
+        int i;
+
+        for (i = 0; i < n; i++) {
+            if (columns[i].equalsIgnoreCase(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A Digester calculates the digest (e.g. SHA-256) of base64 encoded content
+ * (e.g. vers:DocumentData) as the parser passes it through. The content is
+ * decoded on the parser's thread into a small set of reusable chunks; the
+ * chunks are hashed on a separate thread. The decoded content is never held
+ * in memory as a whole, and the parser only waits if the hashing thread falls
+ * more than a few chunks behind.
+ *
+ * Each piece of content is a stream: start() begins the stream, decode() is
+ * called with the characters as they are parsed, and end() finishes it. The
+ * digests are collected (in the order the streams ended) at the end of the
+ * VEO by collect(). When the Digester is no longer needed, close() stops the
+ * hashing thread and releases the chunks.
+ *
+ * @author Andrew
+ */
+public class Digester {
+
+    BlockingQueue<Chunk> free;      // chunks available to be filled
+    BlockingQueue<Chunk> work;      // chunks waiting to be hashed
+    BlockingQueue<String> results;  // digests of the streams that have ended
+    ArrayList<int[]> pending;       // targets for each stream that has ended
+    Chunk current;                  // chunk being filled (null if no stream)
+    int acc;                        // base64 bits not yet decoded
+    int bits;                       // number of bits in acc
+    MessageDigest md;               // digest being calculated (hashing thread)
+    Thread hasher;                  // thread doing the hashing
+
+    static final int CHUNK_SIZE = 65536; // size of a chunk of decoded content
+    static final int CHUNKS = 4;    // number of chunks
+    static final int DATA = 0;      // chunk contains decoded content
+    static final int END = 1;       // end of a stream; produce the digest
+    static final int RESET = 2;     // stream abandoned; discard the digest
+    static final byte[] DECODE = new byte[128]; // value of each base64 character (-1 if not base64)
+    static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static {
+        int i;
+        String s;
+
+        s = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (i = 0; i < DECODE.length; i++) {
+            DECODE[i] = -1;
+        }
+        for (i = 0; i < s.length(); i++) {
+            DECODE[s.charAt(i)] = (byte) i;
+        }
+    }
+
+    /**
+     * A chunk of decoded content (or an instruction) for the hashing thread.
+     */
+    static class Chunk {
+
+        byte[] b;   // the content
+        int len;    // number of bytes of content
+        int op;     // DATA, END, or RESET
+
+        Chunk() {
+            b = new byte[CHUNK_SIZE];
+            len = 0;
+            op = DATA;
+        }
+    }
+
+    /**
+     * Construct a new Digester and start its hashing thread.
+     *
+     * @param algorithm the digest algorithm (e.g. 'SHA-256')
+     * @throws AppFatal if the digest algorithm is not supported
+     */
+    public Digester(String algorithm) throws AppFatal {
+        int i;
+
+        try {
+            md = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AppFatal("Digest algorithm '" + algorithm + "' is not supported: " + nsae.getMessage());
+        }
+        free = new ArrayBlockingQueue<>(CHUNKS);
+        work = new ArrayBlockingQueue<>(CHUNKS);
+        for (i = 0; i < CHUNKS; i++) {
+            free.add(new Chunk());
+        }
+        results = new LinkedBlockingQueue<>();
+        pending = new ArrayList<>();
+        current = null;
+        hasher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                hash();
+            }
+        }, "V2MetaAnalysis digester");
+        hasher.setDaemon(true);
+        hasher.start();
+    }
+
+    /**
+     * The hashing thread. Hash each chunk as it arrives, and return it to be
+     * filled again.
+     */
+    private void hash() {
+        Chunk c;
+
+        while (true) {
+            try {
+                c = work.take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            switch (c.op) {
+                case DATA:
+                    md.update(c.b, 0, c.len);
+                    break;
+                case END:
+                    results.add(toHex(md.digest()));
+                    break;
+                default:
+                    md.reset();
+                    break;
+            }
+            free.add(c);
+        }
+    }
+
+    /**
+     * Start a new stream.
+     *
+     * @throws InterruptedException if interrupted waiting for a free chunk
+     */
+    public void start() throws InterruptedException {
+        acc = 0;
+        bits = 0;
+        current = free.take();
+        current.len = 0;
+        current.op = DATA;
+    }
+
+    /**
+     * Decode some base64 characters from the stream. Characters that are not
+     * base64 (e.g. white space and padding) are ignored.
+     *
+     * @param ch the characters
+     * @param start the start of the characters
+     * @param length the number of characters
+     * @throws InterruptedException if interrupted waiting for a free chunk
+     */
+    public void decode(char[] ch, int start, int length) throws InterruptedException {
+        int i, v;
+        char c;
+
+        for (i = start; i < start + length; i++) {
+            c = ch[i];
+            if (c >= 128 || (v = DECODE[c]) < 0) {
+                continue;
+            }
+            acc = (acc << 6) | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                if (current.len == CHUNK_SIZE) {
+                    work.put(current);
+                    current = free.take();
+                    current.len = 0;
+                    current.op = DATA;
+                }
+                current.b[current.len++] = (byte) (acc >> bits);
+            }
+        }
+    }
+
+    /**
+     * End the stream. The digest will be added to each of the given targets
+     * when the results are collected.
+     *
+     * @param targets the indexes of the targets to receive the digest
+     * @param n the number of targets
+     * @throws InterruptedException if interrupted waiting for a free chunk
+     */
+    public void end(int[] targets, int n) throws InterruptedException {
+        Chunk c;
+        int[] t;
+
+        work.put(current);
+        current = null;
+        c = free.take();
+        c.len = 0;
+        c.op = END;
+        work.put(c);
+        t = new int[n];
+        System.arraycopy(targets, 0, t, 0, n);
+        pending.add(t);
+    }
+
+    /**
+     * Wait for the digests of the streams that have ended, and add them to
+     * the harvest.
+     *
+     * @param h the harvest for the VEO
+     * @throws InterruptedException if interrupted waiting for a digest
+     */
+    public void collect(Harvest h) throws InterruptedException {
+        int i, j;
+        String s;
+
+        for (i = 0; i < pending.size(); i++) {
+            s = results.take();
+            for (j = 0; j < pending.get(i).length; j++) {
+                h.addValue(pending.get(i)[j], s);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Abandon any stream in progress (e.g. because the parse failed) and
+     * discard the digests not yet collected.
+     */
+    public void abort() {
+        int i;
+
+        try {
+            if (current != null) {
+                current.op = RESET;
+                work.put(current);
+                current = null;
+            }
+            for (i = 0; i < pending.size(); i++) {
+                results.take();
+            }
+        } catch (InterruptedException ie) {
+            /* ignore */
+        }
+        pending.clear();
+    }
+
+    /**
+     * Stop the hashing thread and release the chunks. The Digester cannot be
+     * used afterwards.
+     */
+    public void close() {
+        hasher.interrupt();
+        try {
+            hasher.join();
+        } catch (InterruptedException ie) {
+            /* ignore */
+        }
+        free.clear();
+        work.clear();
+        results.clear();
+        pending.clear();
+        current = null;
+    }
+
+    /**
+     * Express a digest in hexadecimal.
+     *
+     * @param b the digest
+     * @return the hexadecimal string
+     */
+    static String toHex(byte[] b) {
+        char[] c;
+        int i;
+
+        c = new char[b.length * 2];
+        for (i = 0; i < b.length; i++) {
+            c[i * 2] = HEX[(b[i] >> 4) & 0xf];
+            c[i * 2 + 1] = HEX[b[i] & 0xf];
+        }
+        return new String(c);
+    }
+}
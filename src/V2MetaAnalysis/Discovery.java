@@ -0,0 +1,77 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Discovery walks the files and directories to be processed, finding the
+ * VEOs. The attributes of each entry are read once, which gives both its type
+ * and its size, so the size of each VEO is known without a further look at
+ * the file system.
+ *
+ * @author Andrew
+ */
+public class Discovery {
+
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    /**
+     * Told about each VEO found.
+     */
+    public interface Found {
+
+        /**
+         * A VEO has been found.
+         *
+         * @param veo the VEO
+         * @param size its size in bytes
+         * @throws InterruptedException if the walk is to stop
+         */
+        void found(Path veo, long size) throws InterruptedException;
+    }
+
+    /**
+     * Recurse through any directory structure, reporting each VEO found.
+     *
+     * @param file file to be processed (could be a directory)
+     * @param f told about each VEO found
+     * @throws InterruptedException if the walk is to stop
+     */
+    public static void find(Path file, Found f) throws InterruptedException {
+        BasicFileAttributes attrs;
+        String s;
+
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            LOG.log(Level.INFO, ("Did not process file '" + file.toString() + "' as it could not be read: " + e.getMessage()));
+            return;
+        }
+        if (attrs.isDirectory()) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(file)) {
+                for (Path p : ds) {
+                    find(p, f);
+                }
+            } catch (IOException e) {
+                LOG.log(Level.INFO, ("Failed to process directory '" + file.toString() + "': " + e.getMessage()));
+            }
+        } else {
+            s = file.toString().toLowerCase();
+            if (attrs.isRegularFile() && (s.endsWith(".veo") || s.endsWith(".xml"))) {
+                f.found(file, attrs.size());
+            } else {
+                LOG.log(Level.INFO, ("Did not process file '" + file.toString() + "' as it was not a V2 VEO or an XML"));
+            }
+        }
+    }
+}
@@ -0,0 +1,667 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A DuplicateSet remembers the contents (the SHA-256) of every VEO processed,
+ * so that a VEO whose bytes are identical to one already processed (e.g. in a
+ * transfer that was submitted twice) is recognised, and not parsed again.
+ * Before a VEO is parsed, its content is claimed (claim()). While one copy is
+ * being processed, a thread claiming another copy waits for it to finish, so
+ * copies processed at the same time (which, as the VEOs are processed largest
+ * first, are usually next to each other) are not both parsed. The VEO is only
+ * added to the set (add()) once it has been harvested and has passed the
+ * filters; otherwise the claim is released (release()) and the next copy is
+ * processed instead. So a copy that failed, was abandoned, or was filtered
+ * out does not stop a later copy from being processed, in this run or a later
+ * one.
+ *
+ * The set is kept in a directory, and persists from run to run:
+ * <ul>
+ * <li>'table': an open addressing hash table. Each slot holds the first 16
+ * bytes of a SHA-256, and the offset in 'names' of the path of the first VEO
+ * seen with that content. The table is kept at most half full; when it fills,
+ * it is rebuilt twice the size.</li>
+ * <li>'names': the paths of the first copies, each preceded by its
+ * length.</li>
+ * <li>'duplicates.tsv': the duplicates found, one per line: the path of the
+ * duplicate and the path of the first copy (whose output it would have
+ * repeated), tab separated.</li>
+ * </ul>
+ * Only a Bloom filter is kept in memory (BLOOM_BITS bits for each VEO the
+ * table can hold, so tens of millions of VEOs take tens of megabytes), built
+ * from the table when the set is opened, along with the VEOs added since the
+ * table was last written (at most PENDING). Most VEOs are not duplicates: the
+ * Bloom filter says so without the table being read, and the new VEOs are
+ * written to the table in batches. Only a VEO the Bloom filter may have seen
+ * is looked up in the table.
+ *
+ * A file seen again at the same path (e.g. in a later run over the same
+ * directories) is not a duplicate of itself. A set should only be used by one
+ * run at a time; the VEOs added since the last batch was written are lost if
+ * the run does not finish normally (they are just not recognised as
+ * duplicates later).
+ *
+ * @author Andrew
+ */
+public class DuplicateSet {
+
+    Path dir;                   // the directory holding the set
+    FileChannel table;          // the slots
+    FileChannel names;          // the paths of the first copies
+    BufferedWriter duplicates;  // list of the duplicates found
+    long slots;                 // number of slots in the table (a power of 2)
+    long count;                 // number of VEOs in the table
+    long[] bloom;               // bits of the Bloom filter
+    long bloomMask;             // number of bits in the Bloom filter, less 1
+    HashMap<String, String> pending; // path of each VEO not yet in the table, by hash (in hex)
+    HashMap<String, String> claimed; // path of each VEO being processed, by hash (in hex)
+    ByteBuffer slot;            // buffer for reading and writing one slot
+    long found;                 // contents of the slot found by probe() (0 if empty)
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    static final int HASH = 16;         // bytes of each SHA-256 kept
+    static final int SLOT = HASH + 8;   // the hash, and 1 + the offset of the path in names (0 if empty)
+    static final long MIN_SLOTS = 1L << 16; // size of a new table
+    static final int PROBES = 7;        // bits set in the Bloom filter for each VEO
+    static final int BLOOM_BITS = 10;   // bits of Bloom filter for each VEO the table can hold
+    static final int PENDING = 16384;   // VEOs added before they are written to the table
+
+    /**
+     * Open a DuplicateSet, creating it if necessary.
+     *
+     * @param dir the directory holding the set (created if necessary)
+     * @throws AppFatal if the set could not be opened
+     */
+    public DuplicateSet(Path dir) throws AppFatal {
+        this.dir = dir;
+        pending = new HashMap<>();
+        claimed = new HashMap<>();
+        slot = ByteBuffer.allocate(SLOT);
+        try {
+            Files.createDirectories(dir);
+            table = FileChannel.open(dir.resolve("table"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            names = FileChannel.open(dir.resolve("names"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (table.size() == 0) {
+                extend(table, MIN_SLOTS);
+            }
+            slots = table.size() / SLOT;
+            if (slots * SLOT != table.size() || Long.bitCount(slots) != 1) {
+                throw new AppFatal("DuplicateSet", 1, "Duplicate set table in '" + dir.toString() + "' is damaged (size " + table.size() + ")");
+            }
+            load();
+            duplicates = Files.newBufferedWriter(dir.resolve("duplicates.tsv"), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException ioe) {
+            throw new AppFatal("DuplicateSet", 2, "Could not open duplicate set in '" + dir.toString() + "': " + ioe.getMessage());
+        }
+        LOG.log(Level.INFO, "Duplicate set in ''{0}'' holds {1} VEOs", new Object[]{dir.toString(), count});
+    }
+
+    /**
+     * Get a new SHA-256 message digest.
+     *
+     * @return the message digest
+     * @throws IOException if SHA-256 is not available
+     */
+    static MessageDigest digest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae.getMessage());
+        }
+    }
+
+    /**
+     * Hash the contents of a VEO: from memory if it has been read ahead,
+     * otherwise by reading the file. Reading the file stops if it takes too
+     * long.
+     *
+     * @param veo the VEO
+     * @param deadline time (System.nanoTime()) the VEO must be read by (0 if
+     * none)
+     * @return the SHA-256 of its contents, or null if the deadline passed
+     * @throws IOException if the VEO could not be read
+     */
+    public static byte[] hash(VEOFile veo, long deadline) throws IOException {
+        MessageDigest md;
+        byte[] b;
+        int n;
+
+        md = digest();
+        if (veo.data != null) {
+            md.update(veo.data, 0, veo.length);
+            return md.digest();
+        }
+        b = new byte[65536];
+        try (InputStream is = Files.newInputStream(veo.file)) {
+            while ((n = is.read(b)) != -1) {
+                md.update(b, 0, n);
+                if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                    return null;
+                }
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Claim the content of a VEO before processing it. If a VEO with this
+     * content has been processed before, the VEO is listed as a duplicate and
+     * not claimed. If another VEO with this content is being processed, wait
+     * until it has been added (this VEO is then a duplicate) or its claim has
+     * been released (this VEO is then processed in its place). A VEO that is
+     * claimed must be passed to add() or release() when it has been processed.
+     *
+     * @param hash the SHA-256 of the VEO
+     * @param file the VEO
+     * @return the first VEO processed with the same content, or null if this
+     * VEO is to be processed (or the set could not be read)
+     * @throws InterruptedException if interrupted while waiting for another
+     * copy to be processed
+     */
+    public synchronized Path claim(byte[] hash, Path file) throws InterruptedException {
+        String p, first, key;
+
+        p = file.toAbsolutePath().normalize().toString();
+        key = Digester.toHex(Arrays.copyOf(hash, HASH));
+        try {
+            while (true) {
+                first = lookup(hash);
+                if (first != null) {
+                    break;
+                }
+                if (!claimed.containsKey(key)) {
+                    claimed.put(key, p);
+                    return null;
+                }
+                wait();
+            }
+            if (first.equals(p)) {
+                return null;
+            }
+            duplicates.write(p);
+            duplicates.write('\t');
+            duplicates.write(first);
+            duplicates.newLine();
+            return Paths.get(first);
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Could not look up ''{0}'' in the duplicate set: {1}", new Object[]{p, ioe.getMessage()});
+            return null;
+        }
+    }
+
+    /**
+     * Add a VEO that has been processed (i.e. harvested, and passed the
+     * filters) to the set, unless a VEO with the same content is already
+     * there, and release its claim.
+     *
+     * @param hash the SHA-256 of the VEO
+     * @param file the VEO
+     */
+    public synchronized void add(byte[] hash, Path file) {
+        String p;
+
+        p = file.toAbsolutePath().normalize().toString();
+        try {
+            if (lookup(hash) != null) {
+                return;
+            }
+            pending.put(Digester.toHex(Arrays.copyOf(hash, HASH)), p);
+            remember(hash, 0);
+            if (pending.size() >= PENDING) {
+                flush();
+            }
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Could not add ''{0}'' to the duplicate set: {1}", new Object[]{p, ioe.getMessage()});
+        } finally {
+            release(hash, file);
+        }
+    }
+
+    /**
+     * Release the claim on the content of a VEO that was not added to the set
+     * (because it failed, was abandoned, or was filtered out), so that a copy
+     * waiting for it is processed instead. Nothing is done if the VEO holds no
+     * claim.
+     *
+     * @param hash the SHA-256 of the VEO
+     * @param file the VEO
+     */
+    public synchronized void release(byte[] hash, Path file) {
+        String key;
+
+        key = Digester.toHex(Arrays.copyOf(hash, HASH));
+        if (file.toAbsolutePath().normalize().toString().equals(claimed.get(key))) {
+            claimed.remove(key);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Find the first VEO added with this content.
+     *
+     * @param hash the SHA-256 of the VEO
+     * @return the path of the first VEO, or null if there is none
+     * @throws IOException if the set could not be read
+     */
+    private String lookup(byte[] hash) throws IOException {
+        String first;
+
+        if (!mayHave(hash, 0)) {
+            return null;
+        }
+        first = pending.get(Digester.toHex(Arrays.copyOf(hash, HASH)));
+        if (first == null) {
+            probe(table, slots, hash, 0);
+            if (found != 0) {
+                first = name(found - 1);
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Write the VEOs added to the table, and close the set.
+     */
+    public synchronized void close() {
+        try {
+            flush();
+            duplicates.close();
+            table.close();
+            names.close();
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Could not close the duplicate set in ''{0}'': {1}", new Object[]{dir.toString(), ioe.getMessage()});
+        }
+    }
+
+    /**
+     * Build the Bloom filter from the table.
+     *
+     * @throws IOException if the table could not be read
+     */
+    private void load() throws IOException {
+        ByteBuffer b;
+        long pos;
+        int i;
+
+        newBloom();
+        count = 0;
+        b = ByteBuffer.allocate(SLOT * 4096);
+        for (pos = 0; pos < slots * SLOT; pos += b.limit()) {
+            b.clear();
+            read(table, b, pos);
+            if (b.position() == 0) {
+                break;
+            }
+            for (i = 0; i + SLOT <= b.position(); i += SLOT) {
+                if (b.getLong(i + HASH) != 0) {
+                    remember(b.array(), i);
+                    count++;
+                }
+            }
+            b.flip();
+        }
+    }
+
+    /**
+     * Write the VEOs added to the table (growing it if necessary). The paths
+     * are written before the slots pointing to them.
+     *
+     * @throws IOException if the set could not be written
+     */
+    private void flush() throws IOException {
+        ByteArrayOutputStream baos;
+        DataOutputStream dos;
+        byte[][] keys;
+        long[] at;
+        byte[] b;
+        long base;
+        int i;
+
+        if (pending.isEmpty()) {
+            return;
+        }
+        if ((count + pending.size()) * 2 > slots) {
+            grow(count + pending.size());
+        }
+
+        // the VEOs in the order of their slots, so the table is written in
+        // order
+        keys = new byte[pending.size()][];
+        i = 0;
+        for (Map.Entry<String, String> e : pending.entrySet()) {
+            keys[i++] = fromHex(e.getKey());
+        }
+        Arrays.sort(keys, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] x, byte[] y) {
+                return Long.compare(home(x, 0, slots), home(y, 0, slots));
+            }
+        });
+
+        // append the paths to names
+        base = names.size();
+        baos = new ByteArrayOutputStream();
+        dos = new DataOutputStream(baos);
+        at = new long[keys.length];
+        for (i = 0; i < keys.length; i++) {
+            at[i] = base + dos.size();
+            b = pending.get(Digester.toHex(keys[i])).getBytes(StandardCharsets.UTF_8);
+            dos.writeInt(b.length);
+            dos.write(b);
+        }
+        dos.flush();
+        write(names, ByteBuffer.wrap(baos.toByteArray()), base);
+
+        // then fill in the slots
+        for (i = 0; i < keys.length; i++) {
+            put(table, probe(table, slots, keys[i], 0), keys[i], 0, at[i] + 1);
+            count++;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Rebuild the table (and the Bloom filter) big enough to hold a number of
+     * VEOs at most half full. The new table is built beside the old one and
+     * then moved into place.
+     *
+     * @param needed the number of VEOs to hold
+     * @throws IOException if the table could not be rebuilt
+     */
+    private void grow(long needed) throws IOException {
+        FileChannel t;
+        Path tmp;
+        ByteBuffer b;
+        long n, pos;
+        int i;
+
+        n = slots;
+        while (needed * 2 > n) {
+            n *= 2;
+        }
+        LOG.log(Level.INFO, "Growing duplicate set table to {0} slots", n);
+        tmp = dir.resolve("table.tmp");
+        t = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            extend(t, n);
+            slots = n;
+            newBloom();
+            b = ByteBuffer.allocate(SLOT * 4096);
+            for (pos = 0; pos < table.size(); pos += b.limit()) {
+                b.clear();
+                read(table, b, pos);
+                if (b.position() == 0) {
+                    break;
+                }
+                for (i = 0; i + SLOT <= b.position(); i += SLOT) {
+                    if (b.getLong(i + HASH) != 0) {
+                        put(t, probe(t, n, b.array(), i), b.array(), i, b.getLong(i + HASH));
+                        remember(b.array(), i);
+                    }
+                }
+                b.flip();
+            }
+        } finally {
+            t.close();
+        }
+        for (Map.Entry<String, String> e : pending.entrySet()) {
+            remember(fromHex(e.getKey()), 0);
+        }
+        table.close();
+        Files.move(tmp, dir.resolve("table"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        table = FileChannel.open(dir.resolve("table"), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Find the slot of a hash in a table: the slot holding it, or the empty
+     * slot where it would go. The contents of the slot are left in found.
+     *
+     * @param fc the table
+     * @param n the number of slots in the table
+     * @param h the bytes holding the hash
+     * @param off the offset of the hash
+     * @return the slot
+     * @throws IOException if the table could not be read
+     */
+    private long probe(FileChannel fc, long n, byte[] h, int off) throws IOException {
+        long i;
+
+        i = home(h, off, n);
+        while (true) {
+            slot.clear();
+            read(fc, slot, i * SLOT);
+            found = slot.getLong(HASH);
+            if (found == 0 || same(slot.array(), h, off)) {
+                return i;
+            }
+            i = (i + 1) & (n - 1);
+        }
+    }
+
+    /**
+     * Fill in a slot.
+     *
+     * @param fc the table
+     * @param i the slot
+     * @param h the bytes holding the hash
+     * @param off the offset of the hash
+     * @param value 1 + the offset of the path in names
+     * @throws IOException if the table could not be written
+     */
+    private void put(FileChannel fc, long i, byte[] h, int off, long value) throws IOException {
+        slot.clear();
+        slot.put(h, off, HASH);
+        slot.putLong(value);
+        slot.flip();
+        write(fc, slot, i * SLOT);
+    }
+
+    /**
+     * Read a path from names.
+     *
+     * @param at the offset of the path
+     * @return the path
+     * @throws IOException if names could not be read
+     */
+    private String name(long at) throws IOException {
+        ByteBuffer b;
+
+        b = ByteBuffer.allocate(4);
+        read(names, b, at);
+        b = ByteBuffer.allocate(b.getInt(0));
+        read(names, b, at + 4);
+        return new String(b.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Start a new (empty) Bloom filter sized for the table.
+     */
+    private void newBloom() {
+        long bits;
+
+        bits = 64;
+        while (bits < slots / 2 * BLOOM_BITS) {
+            bits *= 2;
+        }
+        bloom = new long[(int) (bits / 64)];
+        bloomMask = bits - 1;
+    }
+
+    /**
+     * Add a hash to the Bloom filter.
+     *
+     * @param h the bytes holding the hash
+     * @param off the offset of the hash
+     */
+    private void remember(byte[] h, int off) {
+        long a, b, bit;
+        int i;
+
+        a = word(h, off);
+        b = word(h, off + 8) | 1;
+        for (i = 0; i < PROBES; i++) {
+            bit = (a + i * b) & bloomMask;
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Might a hash have been added to the Bloom filter?
+     *
+     * @param h the bytes holding the hash
+     * @param off the offset of the hash
+     * @return false if it certainly has not
+     */
+    private boolean mayHave(byte[] h, int off) {
+        long a, b, bit;
+        int i;
+
+        a = word(h, off);
+        b = word(h, off + 8) | 1;
+        for (i = 0; i < PROBES; i++) {
+            bit = (a + i * b) & bloomMask;
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The slot a hash would occupy if there were no collisions.
+     *
+     * @param h the bytes holding the hash
+     * @param off the offset of the hash
+     * @param n the number of slots in the table
+     * @return the slot
+     */
+    private static long home(byte[] h, int off, long n) {
+        return word(h, off + 8) & (n - 1);
+    }
+
+    /**
+     * Do two hashes match?
+     *
+     * @param a the bytes holding the first hash (at offset 0)
+     * @param h the bytes holding the second hash
+     * @param off the offset of the second hash
+     * @return true if the HASH bytes match
+     */
+    private static boolean same(byte[] a, byte[] h, int off) {
+        int i;
+
+        for (i = 0; i < HASH; i++) {
+            if (a[i] != h[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get eight bytes of a hash as a long.
+     *
+     * @param h the bytes
+     * @param off the offset of the eight bytes
+     * @return the long
+     */
+    private static long word(byte[] h, int off) {
+        long v;
+        int i;
+
+        v = 0;
+        for (i = 0; i < 8; i++) {
+            v = (v << 8) | (h[off + i] & 0xff);
+        }
+        return v;
+    }
+
+    /**
+     * Convert a hash in hex back to bytes.
+     *
+     * @param s the hash in hex
+     * @return the bytes
+     */
+    private static byte[] fromHex(String s) {
+        byte[] b;
+        int i;
+
+        b = new byte[s.length() / 2];
+        for (i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return b;
+    }
+
+    /**
+     * Extend a new table to a number of (empty) slots.
+     *
+     * @param fc the table
+     * @param n the number of slots
+     * @throws IOException if the table could not be written
+     */
+    private static void extend(FileChannel fc, long n) throws IOException {
+        write(fc, ByteBuffer.allocate(1), n * SLOT - 1);
+    }
+
+    /**
+     * Fill a buffer from a file (as far as the end of the file).
+     *
+     * @param fc the file
+     * @param b the buffer
+     * @param pos where to start reading
+     * @throws IOException if the file could not be read
+     */
+    private static void read(FileChannel fc, ByteBuffer b, long pos) throws IOException {
+        int n;
+
+        while (b.hasRemaining()) {
+            n = fc.read(b, pos);
+            if (n < 0) {
+                break;
+            }
+            pos += n;
+        }
+    }
+
+    /**
+     * Write all of a buffer to a file.
+     *
+     * @param fc the file
+     * @param b the buffer
+     * @param pos where to start writing
+     * @throws IOException if the file could not be written
+     */
+    private static void write(FileChannel fc, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            pos += fc.write(b, pos);
+        }
+    }
+}
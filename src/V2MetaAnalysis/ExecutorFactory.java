@@ -0,0 +1,40 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * ExecutorFactory creates the executor used to run one virtual thread per
+ * VEO. Virtual threads are only available in Java 21 and later, so this
+ * (Java 8) version reports that they are not available. The jar is a
+ * multi-release jar; on Java 21 and later the version of this class in
+ * META-INF/versions/21 (built from src-java21) is used instead.
+ *
+ * @author Andrew
+ */
+public class ExecutorFactory {
+
+    /**
+     * Are virtual threads available?
+     *
+     * @return false, as this is not Java 21 or later
+     */
+    public static boolean hasVirtualThreads() {
+        return false;
+    }
+
+    /**
+     * Create an executor that runs each task in a new virtual thread.
+     *
+     * @return never returns
+     * @throws AppFatal always, as virtual threads are not available
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() throws AppFatal {
+        throw new AppFatal("Virtual threads (-virtual) require Java 21 or later; this is Java " + System.getProperty("java.version"));
+    }
+}
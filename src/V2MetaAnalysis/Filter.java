@@ -0,0 +1,156 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A Filter is a predicate on the values harvested for a Target. A VEO is only
+ * output if every filter in the control file is satisfied. A filter is
+ * satisfied if any value harvested for its target passes the test:
+ * <ul>
+ * <li>'equals value': the value is the given value.</li>
+ * <li>'prefix value': the value starts with the given value.</li>
+ * <li>'regex expression': the whole value matches the regular expression.</li>
+ * <li>'exists': the target's element is present (even if it is empty).</li>
+ * </ul>
+ * Leading and trailing white space is ignored when testing a value. The
+ * filters on a target are linked together as a list, with a null value at the
+ * end. When the targets of several control files are harvested together, each
+ * filter belongs to the group of the control file it came from.
+ *
+ * @author Andrew
+ */
+public class Filter {
+
+    int op;             // EQUALS, PREFIX, REGEX or EXISTS
+    String value;       // the value tested for (null for EXISTS)
+    Pattern pattern;    // the compiled regular expression (REGEX only)
+    int group;          // the control file the filter came from (see Report)
+    Filter next;        // next Filter on the same target
+
+    static final int EQUALS = 1;
+    static final int PREFIX = 2;
+    static final int REGEX = 3;
+    static final int EXISTS = 4;
+
+    /**
+     * Construct a new Filter.
+     *
+     * @param op the name of the test ('equals', 'prefix', 'regex' or 'exists')
+     * @param value the value tested for (ignored for 'exists')
+     * @throws AppFatal if the test is unknown, or the value is missing or not a
+     * valid regular expression
+     */
+    public Filter(String op, String value) throws AppFatal {
+        switch (op.toLowerCase()) {
+            case "equals":
+                this.op = EQUALS;
+                break;
+            case "prefix":
+                this.op = PREFIX;
+                break;
+            case "regex":
+                this.op = REGEX;
+                break;
+            case "exists":
+                this.op = EXISTS;
+                break;
+            default:
+                throw new AppFatal("Creating a Filter: unknown test '" + op + "' (must be equals, prefix, regex or exists)");
+        }
+        if (this.op == EXISTS) {
+            this.value = null;
+        } else if (value == null) {
+            throw new AppFatal("Creating a Filter: test '" + op + "' must be followed by a value");
+        } else {
+            this.value = value;
+        }
+        pattern = null;
+        if (this.op == REGEX) {
+            try {
+                pattern = Pattern.compile(value);
+            } catch (PatternSyntaxException pse) {
+                throw new AppFatal("Creating a Filter: invalid regular expression '" + value + "': " + pse.getDescription());
+            }
+        }
+        group = 0;
+        next = null;
+    }
+
+    /**
+     * Construct a copy of a Filter belonging to a group.
+     *
+     * @param f the filter to copy
+     * @param group the group the copy belongs to
+     */
+    public Filter(Filter f, int group) {
+        op = f.op;
+        value = f.value;
+        pattern = f.pattern;
+        this.group = group;
+        next = null;
+    }
+
+    /**
+     * The name of the test.
+     *
+     * @return the name
+     */
+    public String opName() {
+        switch (op) {
+            case EQUALS:
+                return "equals";
+            case PREFIX:
+                return "prefix";
+            case REGEX:
+                return "regex";
+            default:
+                return "exists";
+        }
+    }
+
+    /**
+     * Does a value harvested for the target pass the test?
+     *
+     * @param v the value (null if the element was empty)
+     * @return true if it passes
+     */
+    public boolean test(String v) {
+        if (op == EXISTS) {
+            return true;
+        }
+        if (v == null) {
+            return false;
+        }
+        v = v.trim();
+        switch (op) {
+            case EQUALS:
+                return v.equals(value);
+            case PREFIX:
+                return v.startsWith(value);
+            case REGEX:
+                return pattern.matcher(v).matches();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Add a Filter to the end of this list.
+     *
+     * @param f the filter to add
+     */
+    public void add(Filter f) {
+        if (next == null) {
+            next = f;
+        } else {
+            next.add(f);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A FormatIdentifier identifies the file format (e.g. PDF, TIFF, DOCX) and the
+ * decoded size of base64 encoded content (e.g. vers:DocumentData) as the
+ * parser passes it through. Only the first HEAD_SIZE bytes are decoded; they
+ * are compared against a table of magic numbers. The rest of the content is
+ * not decoded at all: the base64 characters are only counted, and the decoded
+ * size is worked out from the count (each character holds 6 bits; padding is
+ * not counted). So the format and size of a document cost about the same as
+ * reading its header, however large the document is.
+ *
+ * Like a Digester, each piece of content is a stream: start() begins it,
+ * decode() is called with the characters as they are parsed, and format() and
+ * size() give the results once the stream has ended.
+ *
+ * @author Andrew
+ */
+public class FormatIdentifier {
+
+    byte[] head;        // the first bytes of the decoded content
+    int headLen;        // number of bytes in head
+    long chars;         // number of base64 characters in the content
+    int acc;            // base64 bits not yet decoded
+    int bits;           // number of bits in acc
+
+    static final int HEAD_SIZE = 1024; // number of bytes decoded
+
+    // magic numbers: the bytes (as ISO-8859-1 characters) at the offset, and
+    // the format they identify
+    static final Object[][] MAGIC = {
+        {0, "%PDF-", "PDF"},
+        {0, "II*\u0000", "TIFF"},
+        {0, "MM\u0000*", "TIFF"},
+        {0, "\u0089PNG\r\n\u001a\n", "PNG"},
+        {0, "\u00ff\u00d8\u00ff", "JPEG"},
+        {0, "GIF87a", "GIF"},
+        {0, "GIF89a", "GIF"},
+        {0, "\u0000\u0000\u0000\u000cjP  \r\n\u0087\n", "JPEG2000"},
+        {0, "\u00d0\u00cf\u0011\u00e0\u00a1\u00b1\u001a\u00e1", "OLE2"},
+        {0, "PK\u0003\u0004", "ZIP"},
+        {0, "{\\rtf", "RTF"},
+        {0, "%!PS", "PostScript"},
+        {0, "\u001f\u008b", "GZIP"},
+        {0, "Rar!\u001a\u0007", "RAR"},
+        {0, "7z\u00bc\u00af'\u001c", "7Z"},
+        {8, "WAVE", "WAV"},
+        {8, "AVI ", "AVI"},
+        {8, "WEBP", "WEBP"},
+        {4, "ftypqt", "QuickTime"},
+        {4, "ftyp", "MP4"},
+        {0, "ID3", "MP3"},
+        {0, "\u00ff\u00fb", "MP3"},
+        {0, "OggS", "OGG"},
+        {0, "fLaC", "FLAC"},
+        {0, "BM", "BMP"},
+        {0, "MZ", "EXE"},
+        {0, "\u00ef\u00bb\u00bf<?xml", "XML"},
+        {0, "<?xml", "XML"}
+    };
+
+    // names in a ZIP's first entries that identify the kind of ZIP
+    static final String[][] ZIP_KINDS = {
+        {"word/", "DOCX"},
+        {"xl/", "XLSX"},
+        {"ppt/", "PPTX"},
+        {"application/vnd.oasis.opendocument.text", "ODT"},
+        {"application/vnd.oasis.opendocument.spreadsheet", "ODS"},
+        {"application/vnd.oasis.opendocument.presentation", "ODP"},
+        {"application/epub+zip", "EPUB"},
+        {"[Content_Types].xml", "OOXML"}
+    };
+
+    /**
+     * Construct a new FormatIdentifier.
+     */
+    public FormatIdentifier() {
+        head = new byte[HEAD_SIZE];
+        headLen = 0;
+        chars = 0;
+    }
+
+    /**
+     * Start a new stream.
+     */
+    public void start() {
+        headLen = 0;
+        chars = 0;
+        acc = 0;
+        bits = 0;
+    }
+
+    /**
+     * Take some base64 characters from the stream. Characters that are not
+     * base64 (e.g. white space and padding) are ignored. Once the head has
+     * been filled, the characters are only counted.
+     *
+     * @param ch the characters
+     * @param start the start of the characters
+     * @param length the number of characters
+     */
+    public void decode(char[] ch, int start, int length) {
+        int i, v;
+        char c;
+
+        for (i = start; i < start + length; i++) {
+            c = ch[i];
+            if (c >= 128 || (v = Digester.DECODE[c]) < 0) {
+                continue;
+            }
+            chars++;
+            if (headLen == HEAD_SIZE) {
+                continue;
+            }
+            acc = (acc << 6) | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                head[headLen++] = (byte) (acc >> bits);
+            }
+        }
+    }
+
+    /**
+     * The decoded size of the content of the stream.
+     *
+     * @return the size in bytes
+     */
+    public long size() {
+        return chars * 6 / 8;
+    }
+
+    /**
+     * The format of the content of the stream, from its first bytes.
+     *
+     * @return the name of the format ('empty' if there is no content, 'text'
+     * if it appears to be plain text, or 'unknown')
+     */
+    public String format() {
+        String magic, s;
+        int i, j, at;
+
+        if (headLen == 0) {
+            return "empty";
+        }
+        for (i = 0; i < MAGIC.length; i++) {
+            at = (Integer) MAGIC[i][0];
+            magic = (String) MAGIC[i][1];
+            if (matches(at, magic)) {
+                if (!MAGIC[i][2].equals("ZIP")) {
+                    return (String) MAGIC[i][2];
+                }
+
+                // the names of the first entries in a ZIP tell what it holds
+                s = new String(head, 0, headLen, StandardCharsets.ISO_8859_1);
+                for (j = 0; j < ZIP_KINDS.length; j++) {
+                    if (s.contains(ZIP_KINDS[j][0])) {
+                        return ZIP_KINDS[j][1];
+                    }
+                }
+                return "ZIP";
+            }
+        }
+        s = new String(head, 0, Math.min(headLen, 64), StandardCharsets.ISO_8859_1).trim().toLowerCase();
+        if (s.startsWith("<!doctype html") || s.startsWith("<html")) {
+            return "HTML";
+        }
+        return isText() ? "text" : "unknown";
+    }
+
+    /**
+     * Do the first bytes contain a magic number?
+     *
+     * @param at the offset of the magic number
+     * @param magic the magic number (as ISO-8859-1 characters)
+     * @return true if it is there
+     */
+    private boolean matches(int at, String magic) {
+        int i;
+
+        if (at + magic.length() > headLen) {
+            return false;
+        }
+        for (i = 0; i < magic.length(); i++) {
+            if ((head[at + i] & 0xff) != magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Do the first bytes look like text (no control characters other than
+     * white space)?
+     *
+     * @return true if they do
+     */
+    private boolean isText() {
+        int i, c;
+
+        for (i = 0; i < headLen; i++) {
+            c = head[i] & 0xff;
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' && c != '\f') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
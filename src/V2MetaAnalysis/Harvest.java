@@ -0,0 +1,259 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.nio.charset.StandardCharsets;
+import org.xml.sax.Attributes;
+
+/**
+ * A Harvest is the result of processing one VEO: the values and attributes
+ * found for each Target. The Targets themselves only describe what is to be
+ * harvested; what was actually found lives here.
+ *
+ * To avoid allocating a String for every value and attribute, all the
+ * characters harvested from a VEO are copied into a single arena, encoded as
+ * UTF-8 (the form in which they will be output). Each value is remembered as a
+ * slice (offset and length in bytes) into the arena, and each attribute as two
+ * slices (the qualified name and the trimmed value).
+ * Clearing the Harvest simply resets the counts, so the arena and the slice
+ * arrays are recycled from one VEO to the next and only grow when a VEO
+ * contains more than any previous VEO.
+ *
+ * A Harvest can also be a view of another Harvest, presenting the values
+ * harvested for some of its targets (in a different order) as if they had
+ * been harvested for a list of targets of its own. This is used when the
+ * targets of several control files are harvested in one parse.
+ *
+ * @author Andrew
+ */
+public class Harvest {
+
+    byte[] arena;       // UTF-8 encoding of all values and attributes harvested
+    int used;           // number of bytes used in the arena
+    int[][] values;     // per target: (offset, length) of each value
+    int[] valueCount;   // per target: number of values harvested
+    int[][] attrs;      // per target: (name offset, name length, value offset, value length) of each attribute
+    int[] attrCount;    // per target: number of attributes harvested
+    Harvest shared;     // the harvest this is a view of (null if not a view)
+    int[] map;          // per target: index of the target in the shared harvest (view only)
+
+    /**
+     * Construct a new Harvest able to hold the results for the given list of
+     * targets.
+     *
+     * @param targets the list of targets to be harvested
+     */
+    public Harvest(Target targets) {
+        int i, n;
+
+        n = targets.size();
+        arena = new byte[4096];
+        used = 0;
+        values = new int[n][];
+        valueCount = new int[n];
+        attrs = new int[n][];
+        attrCount = new int[n];
+        for (i = 0; i < n; i++) {
+            values[i] = new int[4];
+            attrs[i] = new int[8];
+        }
+        shared = null;
+        map = null;
+    }
+
+    /**
+     * Construct a view of another Harvest.
+     *
+     * @param shared the harvest to view
+     * @param map for each target of the view, the index of the target in the
+     * shared harvest
+     */
+    public Harvest(Harvest shared, int[] map) {
+        this.shared = shared;
+        this.map = map;
+        values = new int[map.length][];
+        valueCount = new int[map.length];
+        attrs = new int[map.length][];
+        attrCount = new int[map.length];
+        refresh();
+    }
+
+    /**
+     * Update a view after the shared harvest has been filled from another
+     * VEO. Nothing is copied except the references to the values.
+     */
+    public void refresh() {
+        int i, j;
+
+        arena = shared.arena;
+        used = shared.used;
+        for (i = 0; i < map.length; i++) {
+            j = map[i];
+            values[i] = shared.values[j];
+            valueCount[i] = shared.valueCount[j];
+            attrs[i] = shared.attrs[j];
+            attrCount[i] = shared.attrCount[j];
+        }
+    }
+
+    /**
+     * Reset this harvest for another VEO. The storage is kept for reuse.
+     */
+    public void clear() {
+        int i;
+
+        used = 0;
+        for (i = 0; i < valueCount.length; i++) {
+            valueCount[i] = 0;
+            attrCount[i] = 0;
+        }
+    }
+
+    /**
+     * Remember a value harvested for a target.
+     *
+     * @param target index of the target in the target list
+     * @param s the value
+     */
+    public void addValue(int target, String s) {
+        addValue(target, s, 0, s.length());
+    }
+
+    /**
+     * Remember a value harvested for a target, encoding it straight from part
+     * of a character sequence (typically the parser's text buffer) so that no
+     * String is created for it.
+     *
+     * @param target index of the target in the target list
+     * @param cs the characters containing the value
+     * @param start index of the first character of the value
+     * @param end index after the last character of the value
+     */
+    public void addValue(int target, CharSequence cs, int start, int end) {
+        int off, n;
+
+        off = copy(cs, start, end);
+        n = valueCount[target] * 2;
+        if (n + 2 > values[target].length) {
+            values[target] = grow(values[target], n + 2);
+        }
+        values[target][n] = off;
+        values[target][n + 1] = used - off;
+        valueCount[target]++;
+    }
+
+    /**
+     * Get a value harvested for a target as a String.
+     *
+     * @param target index of the target in the target list
+     * @param i which value (from 0)
+     * @return the value
+     */
+    public String value(int target, int i) {
+        return new String(arena, values[target][i * 2], values[target][i * 2 + 1], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Remember the attributes associated with a target. Note that if multiple
+     * instances of the target are found in the XML document, all of the
+     * attributes will be collected together. The attribute values are trimmed
+     * of leading and trailing white space.
+     *
+     * @param target index of the target in the target list
+     * @param a attributes found in the parse
+     */
+    public void addAttributes(int target, Attributes a) {
+        int i, n, start, end;
+        String name, value;
+
+        if (a == null) {
+            return;
+        }
+        for (i = 0; i < a.getLength(); i++) {
+            name = a.getQName(i);
+            value = a.getValue(i);
+
+            // trim the value without creating a new string
+            start = 0;
+            end = value.length();
+            while (start < end && value.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && value.charAt(end - 1) <= ' ') {
+                end--;
+            }
+
+            n = attrCount[target] * 4;
+            if (n + 4 > attrs[target].length) {
+                attrs[target] = grow(attrs[target], n + 4);
+            }
+            attrs[target][n] = copy(name, 0, name.length());
+            attrs[target][n + 1] = used - attrs[target][n];
+            attrs[target][n + 2] = copy(value, start, end);
+            attrs[target][n + 3] = used - attrs[target][n + 2];
+            attrCount[target]++;
+        }
+    }
+
+    /**
+     * Copy part of a character sequence into the arena as UTF-8, growing the
+     * arena if necessary. Almost all metadata is ASCII, so the characters are
+     * copied directly until a non-ASCII character is found.
+     *
+     * @param s the character sequence
+     * @param start index of the first character to copy
+     * @param end index after the last character to copy
+     * @return the offset in the arena of the copied bytes
+     */
+    private int copy(CharSequence s, int start, int end) {
+        int off, i;
+        char c;
+
+        off = used;
+        ensure(end - start);
+        for (i = start; i < end; i++) {
+            c = s.charAt(i);
+            if (c >= 0x80) {
+                ensure(ByteSink.utf8Length(s, i, end));
+                used = ByteSink.utf8(s, i, end, arena, used);
+                return off;
+            }
+            arena[used++] = (byte) c;
+        }
+        return off;
+    }
+
+    /**
+     * Make sure there is room for the given number of bytes in the arena.
+     *
+     * @param n the number of bytes needed
+     */
+    private void ensure(int n) {
+        byte[] b;
+
+        if (used + n > arena.length) {
+            b = new byte[Math.max(arena.length * 2, used + n)];
+            System.arraycopy(arena, 0, b, 0, used);
+            arena = b;
+        }
+    }
+
+    /**
+     * Grow a slice array so that it can hold at least the given number of
+     * entries.
+     *
+     * @param a the current array
+     * @param min the minimum size needed
+     * @return the new array
+     */
+    private static int[] grow(int[] a, int min) {
+        int[] b;
+
+        b = new int[Math.max(a.length * 2, min)];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+}
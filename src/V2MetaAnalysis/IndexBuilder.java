@@ -0,0 +1,585 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An IndexBuilder builds an inverted index from harvested values to the VEOs
+ * they came from, so that questions such as 'which VEOs carry this
+ * identifier?' can be answered (by IndexQuery) without searching the whole
+ * harvest.
+ * <p>
+ * Each VEO is given a number (its position in the index). For each value
+ * harvested for an indexed target, the whole value is indexed as a term, as is
+ * each word in it. Terms are normalised: lower case, with runs of white space
+ * collapsed to one space (whole values) or split at anything that is not a
+ * letter or digit (words). The key of each term is the term, a zero byte, and
+ * the tag of the target it came from; so all the keys for a term are
+ * together, whatever the tag, and keys sharing a prefix are together.
+ * <p>
+ * The index is built like an external sort, so that its size is not limited
+ * by memory. The keys and VEO numbers are collected in memory; when this
+ * reaches the memory budget, the keys are sorted and written with their lists
+ * of VEO numbers (postings) as a run. At the end the runs are merged. As VEOs
+ * are numbered in the order they are added, the postings of a key in a later
+ * run always follow those in an earlier run, so merging simply concatenates
+ * them.
+ * <p>
+ * The index directory contains:
+ * <ul>
+ * <li>'index.v2mi': a header (magic, version, number of VEOs, number of
+ * keys).</li>
+ * <li>'terms.dat': the keys in order (unsigned byte order). Each is the
+ * length of the key (int), the key (UTF-8), the offset of its postings
+ * (long), and the number of VEOs in its postings (int).</li>
+ * <li>'terms.off': the offset in terms.dat of each key (long), so that a key
+ * can be found by binary search.</li>
+ * <li>'postings.dat': the postings of each key; the VEO numbers in increasing
+ * order, each stored as the difference from the previous one as a variable
+ * length integer (7 bits per byte, high bit set if more bytes follow).</li>
+ * <li>'veos.dat' and 'veos.off': the path of each VEO (UTF-8), and the offset
+ * of each path in veos.dat (long, plus one for the end).</li>
+ * </ul>
+ * All numbers are big endian.
+ *
+ * @author Andrew
+ */
+public class IndexBuilder {
+
+    Path dir;               // directory holding the index
+    Target targets;         // the targets harvested
+    boolean[] indexed;      // true if the target is to be indexed
+    long budget;            // memory to use for keys before writing a run
+    HashMap<String, Postings> keys; // keys and postings collected since the last run
+    long used;              // estimate of memory used by keys
+    ArrayList<Path> runs;   // runs written so far
+    DataOutputStream veos;  // path of each VEO
+    DataOutputStream veoOffsets; // offset of each path
+    long veoBytes;          // bytes written to veos.dat
+    int veoCount;           // number of VEOs added
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    static final int MAGIC = 0x56324d49; // 'V2MI'
+    static final int VERSION = 1;
+
+    /**
+     * The VEO numbers collected for a key.
+     */
+    private static class Postings {
+
+        int[] veos;     // VEO numbers in increasing order
+        int count;      // number of VEO numbers
+        byte[] key;     // the key as UTF-8 (set when writing a run)
+
+        Postings() {
+            veos = new int[2];
+            count = 0;
+        }
+
+        /**
+         * Add a VEO (once, however many times the key appears in it).
+         *
+         * @param veo the VEO number
+         * @return true if the VEO was added
+         */
+        boolean add(int veo) {
+            if (count > 0 && veos[count - 1] == veo) {
+                return false;
+            }
+            if (count == veos.length) {
+                veos = Arrays.copyOf(veos, count * 2);
+            }
+            veos[count++] = veo;
+            return true;
+        }
+    }
+
+    /**
+     * Start building a new index, replacing any index already in the
+     * directory. The header is written last, so an index that was not
+     * finished cannot be queried.
+     *
+     * @param dir the directory to hold the index (created if necessary)
+     * @param targets the targets harvested
+     * @param tags the tags of the targets to index (null to index all but the
+     * filename and filepath targets)
+     * @param budget memory (in bytes) to use for keys before writing a run
+     * @throws AppFatal if the index could not be started
+     */
+    public IndexBuilder(Path dir, Target targets, ArrayList<String> tags, long budget) throws AppFatal {
+        Target t;
+        int i;
+
+        this.dir = dir;
+        this.targets = targets;
+        this.budget = budget;
+        indexed = new boolean[targets.size()];
+        for (i = 0; i < indexed.length; i++) {
+            t = targets.get(i);
+            if (tags == null) {
+                indexed[i] = (t.fileTag == Target.FILE_NONE);
+            } else {
+                indexed[i] = tags.contains(t.tag);
+            }
+        }
+        if (tags != null) {
+            for (i = 0; i < tags.size(); i++) {
+                for (t = targets; t != null && !t.tag.equals(tags.get(i)); t = t.next) {
+                    /* find the target */
+                }
+                if (t == null) {
+                    throw new AppFatal("IndexBuilder", 1, "Cannot index '" + tags.get(i) + "' as it is not a tag in the control file");
+                }
+            }
+        }
+        keys = new HashMap<>();
+        used = 0;
+        runs = new ArrayList<>();
+        veoBytes = 0;
+        veoCount = 0;
+        try {
+            Files.createDirectories(dir);
+            Files.deleteIfExists(dir.resolve("index.v2mi"));
+            veos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve("veos.dat")), 65536));
+            veoOffsets = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve("veos.off")), 65536));
+            veoOffsets.writeLong(0);
+        } catch (IOException ioe) {
+            throw new AppFatal("IndexBuilder", 2, "Could not create index in '" + dir.toString() + "': " + ioe.getMessage());
+        }
+        LOG.log(Level.INFO, "Building index in ''{0}''", dir.toString());
+    }
+
+    /**
+     * Index the values harvested from a VEO. May be called from several
+     * threads.
+     *
+     * @param veo the VEO
+     * @param h the values harvested from it
+     * @throws AppFatal if the index could not be written
+     */
+    public synchronized void add(Path veo, Harvest h) throws AppFatal {
+        byte[] b;
+        int i, j, n, veoNo;
+        int[] v;
+        String tag, value;
+
+        veoNo = veoCount++;
+        try {
+            b = ByteSink.utf8(veo.toAbsolutePath().normalize().toString());
+            veos.write(b);
+            veoBytes += b.length;
+            veoOffsets.writeLong(veoBytes);
+        } catch (IOException ioe) {
+            throw new AppFatal("IndexBuilder", 3, "Failed writing index: " + ioe.getMessage());
+        }
+        for (i = 0; i < indexed.length; i++) {
+            if (!indexed[i]) {
+                continue;
+            }
+            tag = targets.get(i).tag;
+            n = h.valueCount[i];
+            v = h.values[i];
+            for (j = 0; j < n; j++) {
+                value = new String(h.arena, v[j * 2], v[j * 2 + 1], StandardCharsets.UTF_8);
+                index(veoNo, tag, value);
+            }
+        }
+        if (used >= budget) {
+            writeRun();
+        }
+    }
+
+    /**
+     * Index a value: the whole value, and each word in it.
+     *
+     * @param veoNo the VEO number
+     * @param tag the tag of the target
+     * @param value the value
+     */
+    private void index(int veoNo, String tag, String value) {
+        String whole;
+        int i, start, c;
+
+        whole = normalise(value);
+        if (whole.isEmpty()) {
+            return;
+        }
+        addKey(whole, tag, veoNo);
+        start = -1;
+        for (i = 0; i <= whole.length(); i += (c > 0xffff) ? 2 : 1) {
+            c = (i < whole.length()) ? whole.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (start == -1) {
+                    start = i;
+                }
+            } else if (start != -1) {
+                if (start > 0 || i < whole.length()) {
+                    addKey(whole.substring(start, i), tag, veoNo);
+                }
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Add a key to the keys collected in memory.
+     *
+     * @param term the term
+     * @param tag the tag it came from
+     * @param veoNo the VEO number
+     */
+    private void addKey(String term, String tag, int veoNo) {
+        String key;
+        Postings p;
+
+        key = term + '\u0000' + tag;
+        p = keys.get(key);
+        if (p == null) {
+            p = new Postings();
+            keys.put(key, p);
+            used += 64 + key.length() * 2;
+        }
+        if (p.add(veoNo)) {
+            used += 4;
+        }
+    }
+
+    /**
+     * Normalise a value (or query) into a term: trim it, collapse runs of
+     * white space to one space, and convert it to lower case.
+     *
+     * @param s the value
+     * @return the term
+     */
+    static String normalise(String s) {
+        StringBuilder sb;
+        int i;
+        char c;
+        boolean space;
+
+        sb = new StringBuilder(s.length());
+        space = false;
+        for (i = 0; i < s.length(); i++) {
+            c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Sort the keys collected in memory and write them as a run.
+     *
+     * @throws AppFatal if the run could not be written
+     */
+    private void writeRun() throws AppFatal {
+        ArrayList<Postings> sorted;
+        Postings p;
+        Path run;
+        int i;
+
+        if (keys.isEmpty()) {
+            return;
+        }
+        sorted = new ArrayList<>(keys.size());
+        for (Map.Entry<String, Postings> e : keys.entrySet()) {
+            p = e.getValue();
+            p.key = ByteSink.utf8(e.getKey());
+            sorted.add(p);
+        }
+        sorted.sort(new Comparator<Postings>() {
+            @Override
+            public int compare(Postings a, Postings b) {
+                return UNSIGNED.compare(a.key, b.key);
+            }
+        });
+        run = dir.resolve("run" + runs.size() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 65536))) {
+            for (i = 0; i < sorted.size(); i++) {
+                p = sorted.get(i);
+                dos.writeInt(p.key.length);
+                dos.write(p.key);
+                writePostings(dos, p.veos, p.count);
+            }
+        } catch (IOException ioe) {
+            throw new AppFatal("IndexBuilder", 4, "Failed writing index run: " + ioe.getMessage());
+        }
+        runs.add(run);
+        LOG.log(Level.FINE, "Wrote index run ''{0}'' ({1} keys)", new Object[]{run.toString(), sorted.size()});
+        keys.clear();
+        used = 0;
+    }
+
+    /**
+     * Write a list of VEO numbers in a run: the number of VEOs, then the
+     * differences as variable length integers.
+     *
+     * @param os where to write the list
+     * @param veos the VEO numbers
+     * @param count the number of VEO numbers
+     * @throws IOException if the write failed
+     */
+    private static void writePostings(DataOutputStream os, int[] veos, int count) throws IOException {
+        int i, last;
+
+        os.writeInt(count);
+        last = -1;
+        for (i = 0; i < count; i++) {
+            writeVarint(os, veos[i] - last - 1);
+            last = veos[i];
+        }
+    }
+
+    /**
+     * Write a variable length integer: 7 bits per byte, least significant
+     * first, high bit set if more bytes follow.
+     *
+     * @param os where to write it
+     * @param v the value (not negative)
+     * @return the number of bytes written
+     * @throws IOException if the write failed
+     */
+    static int writeVarint(OutputStream os, int v) throws IOException {
+        int n;
+
+        n = 1;
+        while ((v & ~0x7f) != 0) {
+            os.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+            n++;
+        }
+        os.write(v);
+        return n;
+    }
+
+    /**
+     * Read a variable length integer.
+     *
+     * @param is where to read it from
+     * @return the value
+     * @throws IOException if the read failed
+     */
+    static int readVarint(InputStream is) throws IOException {
+        int v, b, shift;
+
+        v = 0;
+        shift = 0;
+        do {
+            b = is.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    /**
+     * A run being merged, positioned at its next key.
+     */
+    private static class Run {
+
+        DataInputStream dis;    // the run
+        byte[] key;             // the current key (null at the end)
+        int count;              // number of VEO numbers for the current key
+        int order;              // position of the run (earlier runs hold lower VEO numbers)
+
+        Run(Path p, int order) throws IOException {
+            dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(p), 65536));
+            this.order = order;
+            advance();
+        }
+
+        final void advance() throws IOException {
+            int len;
+
+            try {
+                len = dis.readInt();
+            } catch (EOFException eofe) {
+                key = null;
+                return;
+            }
+            key = new byte[len];
+            dis.readFully(key);
+            count = dis.readInt();
+        }
+    }
+
+    /**
+     * Finish the index: write the last run, and merge the runs into the term
+     * dictionary and postings.
+     *
+     * @throws AppFatal if the index could not be written
+     */
+    public synchronized void finish() throws AppFatal {
+        PriorityQueue<Run> pq;
+        ArrayList<Run> same;
+        Run r;
+        byte[] key;
+        long offset, termOffset, keyCount;
+        int i, j, count, last, veo;
+
+        writeRun();
+        pq = new PriorityQueue<>(Math.max(runs.size(), 1), new Comparator<Run>() {
+            @Override
+            public int compare(Run a, Run b) {
+                int c;
+
+                c = UNSIGNED.compare(a.key, b.key);
+                return (c != 0) ? c : Integer.compare(a.order, b.order);
+            }
+        });
+        same = new ArrayList<>();
+        keyCount = 0;
+        try {
+            veos.close();
+            veoOffsets.close();
+            for (i = 0; i < runs.size(); i++) {
+                r = new Run(runs.get(i), i);
+                if (r.key != null) {
+                    pq.add(r);
+                } else {
+                    r.dis.close();
+                }
+            }
+            try (DataOutputStream terms = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve("terms.dat")), 65536));
+                    DataOutputStream termOffsets = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve("terms.off")), 65536));
+                    DataOutputStream postings = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve("postings.dat")), 65536))) {
+                offset = 0;
+                termOffset = 0;
+                while (!pq.isEmpty()) {
+
+                    // collect the runs holding the smallest key (in run order)
+                    same.clear();
+                    r = pq.poll();
+                    key = r.key;
+                    same.add(r);
+                    while (!pq.isEmpty() && UNSIGNED.compare(pq.peek().key, key) == 0) {
+                        same.add(pq.poll());
+                    }
+                    count = 0;
+                    for (i = 0; i < same.size(); i++) {
+                        count += same.get(i).count;
+                    }
+
+                    // write the key, then concatenate the postings from each run
+                    termOffsets.writeLong(termOffset);
+                    terms.writeInt(key.length);
+                    terms.write(key);
+                    terms.writeLong(offset);
+                    terms.writeInt(count);
+                    termOffset += 4 + key.length + 8 + 4;
+                    last = -1;
+                    for (i = 0; i < same.size(); i++) {
+                        r = same.get(i);
+                        veo = -1;
+                        for (j = 0; j < r.count; j++) {
+                            veo += readVarint(r.dis) + 1;
+                            offset += writeVarint(postings, veo - last - 1);
+                            last = veo;
+                        }
+                        r.advance();
+                        if (r.key != null) {
+                            pq.add(r);
+                        } else {
+                            r.dis.close();
+                        }
+                    }
+                    keyCount++;
+                }
+            }
+            try (DataOutputStream hdr = new DataOutputStream(Files.newOutputStream(dir.resolve("index.v2mi")))) {
+                hdr.writeInt(MAGIC);
+                hdr.writeInt(VERSION);
+                hdr.writeInt(veoCount);
+                hdr.writeLong(keyCount);
+            }
+            for (i = 0; i < runs.size(); i++) {
+                Files.deleteIfExists(runs.get(i));
+            }
+        } catch (IOException ioe) {
+            throw new AppFatal("IndexBuilder", 5, "Failed writing index: " + ioe.getMessage());
+        }
+        LOG.log(Level.INFO, "Indexed {0} VEOs ({1} keys) in ''{2}''", new Object[]{veoCount, keyCount, dir.toString()});
+    }
+
+    /**
+     * Abandon the index (e.g. because the run failed): close the files being
+     * written and delete the runs. The header is not written, so the index
+     * cannot be queried.
+     */
+    public synchronized void abort() {
+        int i;
+
+        try {
+            veos.close();
+        } catch (IOException ioe) {
+            /* ignore */
+        }
+        try {
+            veoOffsets.close();
+        } catch (IOException ioe) {
+            /* ignore */
+        }
+        for (i = 0; i < runs.size(); i++) {
+            try {
+                Files.deleteIfExists(runs.get(i));
+            } catch (IOException ioe) {
+                /* ignore */
+            }
+        }
+        keys.clear();
+        LOG.log(Level.WARNING, "Abandoned the index in ''{0}''", dir.toString());
+    }
+
+    /**
+     * Compare byte arrays as unsigned bytes (the order of the keys).
+     */
+    static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            int i, n, c;
+
+            n = Math.min(a.length, b.length);
+            for (i = 0; i < n; i++) {
+                c = (a[i] & 0xff) - (b[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+}
@@ -0,0 +1,457 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * An IndexQuery answers questions from an index built by IndexBuilder: which
+ * VEOs have a given value (or a word in a value), optionally for a given tag.
+ * <p>
+ * The term dictionary and the offsets of the VEO paths are memory mapped, so
+ * a term is found by binary search without reading the dictionary, and only
+ * the postings of the matching terms are read. A file larger than a single
+ * mapping can hold (2GB) is mapped in segments (see Mapped). A query is one
+ * or more terms; the VEOs matching all of the terms are reported. Each term
+ * is:
+ * <ul>
+ * <li>'value': VEOs with this value, or a value containing this word, for any
+ * tag.</li>
+ * <li>'tag=value': the same, for the given tag only.</li>
+ * <li>'value*' or 'tag=value*': VEOs with a value (or word) starting with
+ * 'value'.</li>
+ * </ul>
+ * Terms are normalised as they were when indexed (e.g. case is ignored).
+ * <p>
+ * The query command is 'V2MetaAnalysis -query indexDir [-count] term...'. The
+ * path of each matching VEO is written to standard out (or just the number of
+ * matching VEOs, if '-count' is given), and the time taken to standard error.
+ *
+ * @author Andrew
+ */
+public class IndexQuery {
+
+    Path dir;               // directory holding the index
+    int veoCount;           // number of VEOs in the index
+    int keyCount;           // number of keys in the index
+    Mapped terms;           // the keys
+    Mapped termOffsets;     // offset of each key in terms
+    FileChannel postings;   // the postings
+    long postingsSize;      // size of the postings
+    FileChannel veos;       // the paths of the VEOs
+    Mapped veoOffsets;      // offset of each path in veos
+
+    static final int SEGMENT_SHIFT = 30; // files are mapped in segments of 1GB
+
+    /**
+     * A file of the index, memory mapped. A MappedByteBuffer can hold at most
+     * 2GB, so the file is mapped as a series of segments. Each segment also
+     * maps the first 8 bytes of the next, so a number starting in a segment
+     * can always be read from that segment whole.
+     */
+    static class Mapped {
+
+        MappedByteBuffer[] segments; // the segments, in order
+        int shift;          // log2 of the size of a segment
+        long mask;          // offset within a segment
+
+        /**
+         * Map a file.
+         *
+         * @param p the file
+         * @param shift log2 of the size of a segment (at most 30)
+         * @throws IOException if the file could not be mapped
+         */
+        Mapped(Path p, int shift) throws IOException {
+            long size, start;
+            int i;
+
+            this.shift = shift;
+            mask = (1L << shift) - 1;
+            try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+                size = fc.size();
+                segments = new MappedByteBuffer[(int) ((size + mask) >>> shift)];
+                for (i = 0; i < segments.length; i++) {
+                    start = (long) i << shift;
+                    segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, mask + 1 + 8));
+                }
+            }
+        }
+
+        /**
+         * Get a byte.
+         *
+         * @param pos the position of the byte in the file
+         * @return the byte
+         */
+        byte get(long pos) {
+            return segments[(int) (pos >>> shift)].get((int) (pos & mask));
+        }
+
+        /**
+         * Get an int.
+         *
+         * @param pos the position of the int in the file
+         * @return the int
+         */
+        int getInt(long pos) {
+            return segments[(int) (pos >>> shift)].getInt((int) (pos & mask));
+        }
+
+        /**
+         * Get a long.
+         *
+         * @param pos the position of the long in the file
+         * @return the long
+         */
+        long getLong(long pos) {
+            return segments[(int) (pos >>> shift)].getLong((int) (pos & mask));
+        }
+    }
+
+    /**
+     * Open an index.
+     *
+     * @param dir the directory holding the index
+     * @throws AppFatal if the index could not be opened
+     */
+    public IndexQuery(Path dir) throws AppFatal {
+        long n;
+
+        this.dir = dir;
+        try (DataInputStream hdr = new DataInputStream(Files.newInputStream(dir.resolve("index.v2mi")))) {
+            if (hdr.readInt() != IndexBuilder.MAGIC || hdr.readInt() != IndexBuilder.VERSION) {
+                throw new AppFatal("IndexQuery", 1, "'" + dir.toString() + "' does not contain an index built by this version of V2MetaAnalysis");
+            }
+            veoCount = hdr.readInt();
+            n = hdr.readLong();
+        } catch (IOException ioe) {
+            throw new AppFatal("IndexQuery", 2, "Could not open index in '" + dir.toString() + "' (has it been finished?): " + ioe.getMessage());
+        }
+        if (n > Integer.MAX_VALUE) {
+            throw new AppFatal("IndexQuery", 3, "Index in '" + dir.toString() + "' has too many keys");
+        }
+        keyCount = (int) n;
+        try {
+            terms = new Mapped(dir.resolve("terms.dat"), SEGMENT_SHIFT);
+            termOffsets = new Mapped(dir.resolve("terms.off"), SEGMENT_SHIFT);
+            veoOffsets = new Mapped(dir.resolve("veos.off"), SEGMENT_SHIFT);
+            postings = FileChannel.open(dir.resolve("postings.dat"), StandardOpenOption.READ);
+            postingsSize = postings.size();
+            veos = FileChannel.open(dir.resolve("veos.dat"), StandardOpenOption.READ);
+        } catch (IOException ioe) {
+            close();
+            throw new AppFatal("IndexQuery", 4, "Could not open index in '" + dir.toString() + "': " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Find the VEOs matching a term.
+     *
+     * @param query the term ('[tag=]value[*]')
+     * @return the VEOs matching
+     * @throws AppFatal if the index could not be read
+     */
+    public BitSet lookup(String query) throws AppFatal {
+        BitSet found;
+        String tag, value;
+        byte[] prefix, suffix;
+        boolean isPrefix;
+        int i, k;
+
+        i = query.indexOf('=');
+        if (i != -1) {
+            tag = query.substring(0, i);
+            value = query.substring(i + 1);
+        } else {
+            tag = null;
+            value = query;
+        }
+        isPrefix = value.endsWith("*");
+        if (isPrefix) {
+            value = value.substring(0, value.length() - 1);
+        }
+        value = IndexBuilder.normalise(value);
+
+        // keys are 'value\0tag'; an exact lookup matches 'value\0' (and the
+        // tag), a prefix lookup matches 'value' (and the tag)
+        if (isPrefix) {
+            prefix = ByteSink.utf8(value);
+        } else if (tag != null) {
+            prefix = ByteSink.utf8(value + '\u0000' + tag);
+        } else {
+            prefix = ByteSink.utf8(value + '\u0000');
+        }
+        suffix = (tag != null) ? ByteSink.utf8('\u0000' + tag) : null;
+
+        found = new BitSet(veoCount);
+        try {
+            for (k = first(prefix); k < keyCount; k++) {
+                if (!startsWith(k, prefix)) {
+                    break;
+                }
+                if (suffix == null || endsWith(k, suffix)) {
+                    readPostings(k, found);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new AppFatal("IndexQuery", 5, "Failed reading index: " + ioe.getMessage());
+        }
+        return found;
+    }
+
+    /**
+     * Binary search for the first key not less than the given bytes.
+     *
+     * @param b the bytes
+     * @return the index of the key (keyCount if none)
+     */
+    private int first(byte[] b) {
+        int lo, hi, mid;
+
+        lo = 0;
+        hi = keyCount;
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (compare(mid, b) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Compare a key with some bytes (as unsigned bytes).
+     *
+     * @param k the index of the key
+     * @param b the bytes
+     * @return less than, equal to or greater than zero as the key is less
+     * than, equal to or greater than the bytes
+     */
+    private int compare(int k, byte[] b) {
+        long off;
+        int len, i, n, c;
+
+        off = termOffsets.getLong(k * 8L);
+        len = terms.getInt(off);
+        off += 4;
+        n = Math.min(len, b.length);
+        for (i = 0; i < n; i++) {
+            c = (terms.get(off + i) & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return len - b.length;
+    }
+
+    /**
+     * Does a key start with the given bytes?
+     *
+     * @param k the index of the key
+     * @param b the bytes
+     * @return true if it does
+     */
+    private boolean startsWith(int k, byte[] b) {
+        long off;
+        int len, i;
+
+        off = termOffsets.getLong(k * 8L);
+        len = terms.getInt(off);
+        if (len < b.length) {
+            return false;
+        }
+        for (i = 0; i < b.length; i++) {
+            if (terms.get(off + 4 + i) != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Does a key end with the given bytes?
+     *
+     * @param k the index of the key
+     * @param b the bytes
+     * @return true if it does
+     */
+    private boolean endsWith(int k, byte[] b) {
+        long off;
+        int len, i;
+
+        off = termOffsets.getLong(k * 8L);
+        len = terms.getInt(off);
+        if (len < b.length) {
+            return false;
+        }
+        off += 4 + len - b.length;
+        for (i = 0; i < b.length; i++) {
+            if (terms.get(off + i) != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the postings of a key, adding the VEOs to a set. The postings of
+     * the keys are stored in key order, so the postings of a key end where
+     * those of the next key start.
+     *
+     * @param k the index of the key
+     * @param found the set of VEOs
+     * @throws IOException if the postings could not be read
+     */
+    private void readPostings(int k, BitSet found) throws IOException {
+        ByteBuffer bb;
+        ByteArrayInputStream bais;
+        long start, end, off;
+        int count, i, veo;
+
+        off = termOffsets.getLong(k * 8L);
+        off += 4 + terms.getInt(off);
+        start = terms.getLong(off);
+        count = terms.getInt(off + 8);
+        if (k + 1 < keyCount) {
+            off = termOffsets.getLong((k + 1) * 8L);
+            end = terms.getLong(off + 4 + terms.getInt(off));
+        } else {
+            end = postingsSize;
+        }
+        bb = ByteBuffer.allocate((int) (end - start));
+        while (bb.hasRemaining()) {
+            if (postings.read(bb, start + bb.position()) < 0) {
+                throw new IOException("Postings truncated");
+            }
+        }
+        bais = new ByteArrayInputStream(bb.array());
+        veo = -1;
+        for (i = 0; i < count; i++) {
+            veo += IndexBuilder.readVarint(bais) + 1;
+            found.set(veo);
+        }
+    }
+
+    /**
+     * Get the path of a VEO in the index.
+     *
+     * @param veo the VEO number
+     * @return the path
+     * @throws AppFatal if the index could not be read
+     */
+    public String path(int veo) throws AppFatal {
+        ByteBuffer bb;
+        long start, end;
+
+        start = veoOffsets.getLong(veo * 8L);
+        end = veoOffsets.getLong((veo + 1) * 8L);
+        bb = ByteBuffer.allocate((int) (end - start));
+        try {
+            while (bb.hasRemaining()) {
+                if (veos.read(bb, start + bb.position()) < 0) {
+                    throw new IOException("VEO paths truncated");
+                }
+            }
+        } catch (IOException ioe) {
+            throw new AppFatal("IndexQuery", 6, "Failed reading index: " + ioe.getMessage());
+        }
+        return new String(bb.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Close the index.
+     */
+    public final void close() {
+        try {
+            if (postings != null) {
+                postings.close();
+            }
+            if (veos != null) {
+                veos.close();
+            }
+        } catch (IOException ioe) {
+            /* ignore */
+        }
+    }
+
+    /**
+     * Run the query command: '-query indexDir [-count] term...'.
+     *
+     * @param args the command line arguments
+     * @throws AppFatal if the query could not be run
+     */
+    public static void query(String[] args) throws AppFatal {
+        String usage = "V2MetaAnalysis -query indexDir [-count] term...";
+        IndexQuery iq;
+        ArrayList<String> queries;
+        BitSet result, found;
+        StringBuilder sb;
+        boolean count;
+        long start;
+        int i;
+
+        if (args.length < 3) {
+            throw new AppFatal("IndexQuery", 7, "Missing argument. Usage: " + usage);
+        }
+        count = false;
+        queries = new ArrayList<>();
+        for (i = 2; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("-count")) {
+                count = true;
+            } else {
+                queries.add(args[i]);
+            }
+        }
+        if (queries.isEmpty()) {
+            throw new AppFatal("IndexQuery", 7, "No terms to look up. Usage: " + usage);
+        }
+
+        start = System.nanoTime();
+        iq = new IndexQuery(Paths.get(args[1]));
+        try {
+            result = null;
+            for (i = 0; i < queries.size(); i++) {
+                found = iq.lookup(queries.get(i));
+                if (result == null) {
+                    result = found;
+                } else {
+                    result.and(found);
+                }
+            }
+            sb = new StringBuilder();
+            if (count) {
+                sb.append(result.cardinality());
+                sb.append('\n');
+            } else {
+                for (i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+                    sb.append(iq.path(i));
+                    sb.append('\n');
+                }
+            }
+            System.out.print(sb);
+            System.out.flush();
+            System.err.println(result.cardinality() + " of " + iq.veoCount + " VEOs matched in " + RunStats.millis(System.nanoTime() - start) + "ms");
+        } finally {
+            iq.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+/**
+ * The limits on the resources the parser may use on any one VEO, so that a
+ * malformed or malicious VEO (e.g. with absurdly deep nesting, or an enormous
+ * text node) cannot hold up or exhaust the memory of a whole run. A VEO that
+ * exceeds a limit is abandoned (see V2Parser), counted as failed with the
+ * limit it exceeded, and processing moves on to the next VEO.
+ *
+ * Each limit is 0 if there is no limit:
+ * <ul>
+ * <li>maxMillis: the time (wall clock) spent parsing the VEO.</li>
+ * <li>maxDepth: the depth to which elements are nested.</li>
+ * <li>maxElements: the number of elements in the VEO.</li>
+ * <li>maxBytes: the size of the VEO (and the number of bytes read from
+ * it).</li>
+ * <li>maxValue: the number of characters of text held while harvesting (i.e.
+ * the size of a value, or of the values of nested elements being harvested
+ * at once).</li>
+ * </ul>
+ *
+ * @author Andrew
+ */
+public class Limits {
+
+    long maxMillis;     // time to parse a VEO (0 if no limit)
+    int maxDepth;       // depth of elements (0 if no limit)
+    long maxElements;   // number of elements (0 if no limit)
+    long maxBytes;      // size of a VEO (0 if no limit)
+    int maxValue;       // characters of text being harvested (0 if no limit)
+
+    // the limits a VEO may exceed (the reasons it was abandoned)
+    static final String TIME = "time";
+    static final String DEPTH = "depth";
+    static final String ELEMENTS = "elements";
+    static final String BYTES = "bytes";
+    static final String VALUE = "value size";
+
+    /**
+     * Construct a new set of limits, with nothing limited.
+     */
+    public Limits() {
+        maxMillis = 0;
+        maxDepth = 0;
+        maxElements = 0;
+        maxBytes = 0;
+        maxValue = 0;
+    }
+
+    /**
+     * Is anything limited?
+     *
+     * @return true if any limit has been set
+     */
+    public boolean any() {
+        return maxMillis > 0 || maxDepth > 0 || maxElements > 0 || maxBytes > 0 || maxValue > 0;
+    }
+
+    /**
+     * Describe the limits.
+     *
+     * @return a description
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb;
+
+        sb = new StringBuilder();
+        append(sb, TIME, maxMillis, "ms");
+        append(sb, DEPTH, maxDepth, " elements");
+        append(sb, ELEMENTS, maxElements, "");
+        append(sb, BYTES, maxBytes, "");
+        append(sb, VALUE, maxValue, " characters");
+        return sb.toString();
+    }
+
+    /**
+     * Add a limit to a description (if it is set).
+     *
+     * @param sb the description
+     * @param name the name of the limit
+     * @param limit the limit (0 if no limit)
+     * @param units the units of the limit
+     */
+    private static void append(StringBuilder sb, String name, long limit, String units) {
+        if (limit <= 0) {
+            return;
+        }
+        if (sb.length() > 0) {
+            sb.append(", ");
+        }
+        sb.append(name);
+        sb.append(' ');
+        sb.append(limit);
+        sb.append(units);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A MemorySink is a ByteSink that is not connected to a channel. The output
+ * accumulates in its (direct) buffer; if the buffer fills, it is replaced by
+ * a larger one. The sink can be reset and reused.
+ *
+ * @author Andrew
+ */
+public class MemorySink extends ByteSink {
+
+    /**
+     * Construct a new MemorySink.
+     *
+     * @param size the initial size of the buffer
+     */
+    public MemorySink(int size) {
+        super(null, false, size);
+    }
+
+    /**
+     * Discard the contents, ready for reuse.
+     */
+    public void reset() {
+        buf.clear();
+    }
+
+    /**
+     * The number of bytes held.
+     *
+     * @return the number of bytes
+     */
+    public int size() {
+        return buf.position();
+    }
+
+    /**
+     * Copy the contents to another sink.
+     *
+     * @param w the other sink
+     * @throws IOException if the other sink failed
+     */
+    public void copyTo(ByteSink w) throws IOException {
+        ByteBuffer b;
+
+        b = buf.duplicate();
+        b.flip();
+        while (b.hasRemaining()) {
+            if (!w.buf.hasRemaining()) {
+                w.drain();
+            }
+            if (b.remaining() <= w.buf.remaining()) {
+                w.buf.put(b);
+            } else {
+                b.limit(b.position() + w.buf.remaining());
+                w.buf.put(b);
+                b.limit(buf.position());
+            }
+        }
+    }
+
+    /**
+     * Copy the contents into a new byte array.
+     *
+     * @return the array
+     */
+    public byte[] toByteArray() {
+        ByteBuffer b;
+        byte[] a;
+
+        b = buf.duplicate();
+        b.flip();
+        a = new byte[b.remaining()];
+        b.get(a);
+        return a;
+    }
+
+    /**
+     * The buffer is full, so grow it.
+     */
+    @Override
+    void drain() {
+        ByteBuffer b;
+
+        b = ByteBuffer.allocateDirect(Math.max(buf.capacity() * 2, 4096));
+        buf.flip();
+        b.put(buf);
+        buf = b;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A PathMatcher matches the path of each element in a VEO against the element
+ * paths of all the targets at once. An element path is a list of element
+ * names separated by '/', and may contain two wildcards:
+ * <ul>
+ * <li>'*' matches any one element (e.g. 'a/&#42;/c').</li>
+ * <li>'//' matches any number (including none) of elements (e.g. 'a//c'
+ * matches 'a/c', 'a/b/c', 'a/b/b/c' and so on). A leading '//' matches at any
+ * depth.</li>
+ * </ul>
+ * The element paths are compiled into a deterministic finite automaton over
+ * the element names. The parser keeps the automaton's state for each open
+ * element; the state of a new element is found from its parent's state and
+ * its name by a single table lookup, so the cost per element does not depend
+ * on the number of targets or element paths. Element names that appear in no
+ * element path are all treated as one symbol.
+ *
+ * Element names are matched by namespace, not by the prefix the creator of
+ * the VEO happened to use. A name in an element path with a prefix the
+ * PathMatcher knows (e.g. 'vers', the VERS namespace) stands for that
+ * namespace and local name, so it matches an element in the VEO with the same
+ * local name and a prefix (or default namespace) bound to the same namespace.
+ * The parser resolves each element name to a symbol (see symbol()); a name
+ * with any other prefix is matched literally.
+ *
+ * The automaton is built lazily: each state is a set of positions in the
+ * element paths, and a transition is only worked out the first time it is
+ * needed, and then remembered. Only the states reached by the VEOs actually
+ * parsed are ever built. A PathMatcher is not thread safe; each parser has
+ * its own.
+ *
+ * @author Andrew
+ */
+public class PathMatcher {
+
+    HashMap<String, Integer> symbols; // symbol of each element name (by key()) in an element path (0 is any other name)
+    int[] stepName;         // per position: symbol the step matches (ANY for '*'), or MATCHED at the end of a path
+    boolean[] stepDeep;     // per position: true if any number of elements may come before the step ('//')
+    int[] stepTarget;       // per position: the target whose element path it is in
+    ArrayList<int[]> states; // per state: the positions it is made of
+    ArrayList<int[]> next;  // per state: the next state for each symbol (-1 if not yet worked out)
+    ArrayList<int[]> matched; // per state: the targets whose element paths are matched
+    HashMap<String, Integer> known; // state of each set of positions built so far
+    int startState;         // the state before the root element
+
+    static final int ANY = -1;      // a step matching any element
+    static final int MATCHED = -2;  // the end of an element path
+    static final int DEAD = 0;      // the state in which nothing more can match
+    static final String VERS_NS = "http://www.prov.vic.gov.au/gservice/standard/pros99007.htm";
+
+    // the namespace of each prefix that may be used in an element path
+    static final String[][] BOUND = {
+        {"vers", VERS_NS}
+    };
+
+    /**
+     * Construct a new PathMatcher for the element paths of a list of targets.
+     *
+     * @param targets the list of targets
+     */
+    public PathMatcher(Target targets) {
+        this(targets, new String[0]);
+    }
+
+    /**
+     * Construct a new PathMatcher for the element paths of a list of targets,
+     * also giving symbols to some other element names (so the parser can
+     * recognise them by symbol).
+     *
+     * @param targets the list of targets
+     * @param names the other element names
+     */
+    public PathMatcher(Target targets, String[] names) {
+        ArrayList<Integer> name, target, begin;
+        ArrayList<Boolean> deep;
+        Target t;
+        String[] steps;
+        boolean d;
+        int i, j, k;
+
+        symbols = new HashMap<>();
+        name = new ArrayList<>();
+        deep = new ArrayList<>();
+        target = new ArrayList<>();
+        begin = new ArrayList<>();
+
+        // each step of each element path is a position; an extra position
+        // after the last step marks the end of the element path
+        for (t = targets; t != null; t = t.next) {
+            for (i = 0; i < t.elemPath.size(); i++) {
+                steps = t.elemPath.get(i).split("/", -1);
+                begin.add(name.size());
+                d = false;
+                for (j = 0; j < steps.length; j++) {
+                    if (steps[j].equals("")) {
+                        d = (j > 0);
+                        continue;
+                    }
+                    if (steps[j].equals("*")) {
+                        k = ANY;
+                    } else {
+                        k = intern(steps[j]);
+                    }
+                    name.add(k);
+                    deep.add(d);
+                    target.add(t.index);
+                    d = false;
+                }
+                name.add(MATCHED);
+                deep.add(false);
+                target.add(t.index);
+            }
+        }
+        for (i = 0; i < names.length; i++) {
+            intern(names[i]);
+        }
+        stepName = new int[name.size()];
+        stepDeep = new boolean[name.size()];
+        stepTarget = new int[name.size()];
+        for (i = 0; i < stepName.length; i++) {
+            stepName[i] = name.get(i);
+            stepDeep[i] = deep.get(i);
+            stepTarget[i] = target.get(i);
+        }
+
+        // state 0 is dead (no positions)
+        states = new ArrayList<>();
+        next = new ArrayList<>();
+        matched = new ArrayList<>();
+        known = new HashMap<>();
+        state(new int[0]);
+        startState = state(toArray(begin));
+    }
+
+    /**
+     * Does an element path contain a wildcard?
+     *
+     * @param path the element path
+     * @return true if it contains '*' or '//'
+     */
+    public static boolean isPattern(String path) {
+        return path.contains("*") || path.contains("//");
+    }
+
+    /**
+     * The state before the root element.
+     *
+     * @return the state
+     */
+    public int start() {
+        return startState;
+    }
+
+    /**
+     * Give an element name in an element path a symbol.
+     *
+     * @param name the name
+     * @return its symbol
+     */
+    private int intern(String name) {
+        Integer sym;
+        String k;
+
+        k = keyOf(name);
+        sym = symbols.get(k);
+        if (sym == null) {
+            sym = symbols.size() + 1;
+            symbols.put(k, sym);
+        }
+        return sym;
+    }
+
+    /**
+     * The key of a namespace and local name in the symbol table.
+     *
+     * @param uri the namespace
+     * @param local the local name
+     * @return the key
+     */
+    private static String key(String uri, String local) {
+        return "{" + uri + "}" + local;
+    }
+
+    /**
+     * The key of an element name in the symbol table: its namespace and local
+     * name if it has a prefix in BOUND, otherwise the name itself.
+     *
+     * @param name the element name
+     * @return the key
+     */
+    private static String keyOf(String name) {
+        String prefix;
+        int i;
+
+        i = name.indexOf(':');
+        if (i == -1) {
+            return name;
+        }
+        prefix = name.substring(0, i);
+        for (i = 0; i < BOUND.length; i++) {
+            if (BOUND[i][0].equals(prefix)) {
+                return key(BOUND[i][1], name.substring(prefix.length() + 1));
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Is an element name's prefix one in BOUND?
+     *
+     * @param name the element name
+     * @return true if it has a prefix bound to a known namespace
+     */
+    private static boolean isBound(String name) {
+        int i;
+
+        for (i = 0; i < BOUND.length; i++) {
+            if (name.length() > BOUND[i][0].length() && name.charAt(BOUND[i][0].length()) == ':' && name.startsWith(BOUND[i][0])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The symbol of an element name written as in an element path (i.e. a
+     * prefix in BOUND stands for its namespace).
+     *
+     * @param name the element name
+     * @return its symbol (0 if it is in no element path)
+     */
+    public int symbol(String name) {
+        Integer sym;
+
+        sym = symbols.get(keyOf(name));
+        return (sym == null) ? 0 : sym;
+    }
+
+    /**
+     * The symbol of an element in a VEO, given the namespace its prefix is
+     * bound to. If the namespace and local name are in no element path, the
+     * qualified name is looked up as if written in an element path, so a VEO
+     * that binds the 'vers' prefix to some other namespace is still matched as
+     * before, as are element paths using prefixes not in BOUND.
+     *
+     * @param uri the namespace of the element
+     * @param local the local name of the element
+     * @param qName the qualified name of the element
+     * @return its symbol (0 if it is in no element path)
+     */
+    public int symbol(String uri, String local, String qName) {
+        Integer sym;
+
+        sym = symbols.get(key(uri, local));
+        if (sym == null) {
+            sym = symbols.get(keyOf(qName));
+        }
+        return (sym == null) ? 0 : sym;
+    }
+
+    /**
+     * The state of an element, given the state of its parent.
+     *
+     * @param state the state of the parent (or start() for the root element)
+     * @param sym the symbol of the element's name
+     * @return the state of the element
+     */
+    public int step(int state, int sym) {
+        int[] n;
+
+        if (state == DEAD) {
+            return DEAD;
+        }
+        n = next.get(state);
+        if (n[sym] == -1) {
+            n[sym] = transition(state, sym);
+        }
+        return n[sym];
+    }
+
+    /**
+     * The targets whose element paths match an element in a state.
+     *
+     * @param state the state of the element
+     * @return the indexes of the targets, in ascending order (empty if none)
+     */
+    public int[] matches(int state) {
+        return matched.get(state);
+    }
+
+    /**
+     * Could an element with the given path, or any element within it, match
+     * an element path? The path is of names as they appear in the VEO, so
+     * the namespaces are not known; a name without a prefix in BOUND is
+     * assumed to possibly match anything.
+     *
+     * @param path the path of the element (names separated by '/')
+     * @return true if the element, an element containing it, or an element
+     * it contains could match
+     */
+    public boolean mayMatch(String path) {
+        String[] names;
+        int i, s;
+
+        names = path.split("/");
+        s = start();
+        for (i = 0; i < names.length; i++) {
+            if (!isBound(names[i])) {
+                return true;
+            }
+            s = step(s, symbol(names[i]));
+            if (matched.get(s).length > 0) {
+                return true;
+            }
+        }
+        return s != DEAD;
+    }
+
+    /**
+     * Work out a transition of the automaton: the positions reached from the
+     * positions of the state by an element with the given symbol.
+     *
+     * @param state the state
+     * @param sym the symbol of the element's name
+     * @return the next state
+     */
+    private int transition(int state, int sym) {
+        ArrayList<Integer> to;
+        int[] from;
+        int i, p;
+
+        to = new ArrayList<>();
+        from = states.get(state);
+        for (i = 0; i < from.length; i++) {
+            p = from[i];
+            if (stepName[p] == MATCHED) {
+                continue;
+            }
+            if (stepDeep[p] && !to.contains(p)) {
+                to.add(p);
+            }
+            if ((stepName[p] == ANY || stepName[p] == sym) && !to.contains(p + 1)) {
+                to.add(p + 1);
+            }
+        }
+        return state(toArray(to));
+    }
+
+    /**
+     * Find the state made of a set of positions, building it if it is new.
+     *
+     * @param positions the positions
+     * @return the state
+     */
+    private int state(int[] positions) {
+        Integer s;
+        String key;
+        int[] n, m;
+        int i, j;
+
+        Arrays.sort(positions);
+        key = Arrays.toString(positions);
+        s = known.get(key);
+        if (s != null) {
+            return s;
+        }
+        s = states.size();
+        states.add(positions);
+        n = new int[symbols.size() + 1];
+        Arrays.fill(n, -1);
+        next.add(n);
+
+        // the targets matched, in order and without repeats
+        m = new int[positions.length];
+        j = 0;
+        for (i = 0; i < positions.length; i++) {
+            if (stepName[positions[i]] == MATCHED) {
+                m[j++] = stepTarget[positions[i]];
+            }
+        }
+        m = Arrays.copyOf(m, j);
+        Arrays.sort(m);
+        j = 0;
+        for (i = 0; i < m.length; i++) {
+            if (j == 0 || m[i] != m[j - 1]) {
+                m[j++] = m[i];
+            }
+        }
+        matched.add(Arrays.copyOf(m, j));
+        known.put(key, s);
+        return s;
+    }
+
+    /**
+     * Convert a list of positions to an array.
+     *
+     * @param l the list
+     * @return the array
+     */
+    private static int[] toArray(ArrayList<Integer> l) {
+        int[] a;
+        int i;
+
+        a = new int[l.size()];
+        for (i = 0; i < a.length; i++) {
+            a[i] = l.get(i);
+        }
+        return a;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PerFileOutput produces one output file per VEO. Rather than constructing a
+ * new stream and buffer for each VEO, the complete output for a VEO (preamble,
+ * values, and postamble) is serialised into a pooled direct buffer. The filled
+ * buffers are passed to a background thread that creates the output files in
+ * batches and then returns the buffers to the pool for reuse.
+ *
+ * The pool is bounded, so if the file system cannot keep up, the parsing
+ * thread waits for a buffer to be returned. A buffer grows to hold the output
+ * of a large VEO; if it has grown beyond MAX_POOLED bytes it is replaced by a
+ * buffer of the normal size before it is returned, so the pool holds at most
+ * POOL_SIZE * MAX_POOLED bytes however large the VEOs are. Output may be
+ * produced by several threads at once.
+ *
+ * @author Andrew
+ */
+public class PerFileOutput {
+
+    BlockingQueue<FileImage> pool;      // buffers available to be filled
+    BlockingQueue<FileImage> toWrite;   // buffers waiting to be written
+    int created;                        // number of buffers created so far
+    Thread creator;                     // thread creating the files
+    volatile int failures;              // number of files that could not be written
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    static final int POOL_SIZE = 64;    // maximum number of buffers
+    static final int BATCH_SIZE = 32;   // maximum number of files created in one batch
+    static final int MAX_POOLED = 4 * ByteSink.BUFFER_SIZE; // largest buffer kept in the pool
+    static final FileImage STOP = new FileImage(0); // tells the creator thread to exit
+
+    /**
+     * The output for one VEO, together with the file to be created from it.
+     */
+    static class FileImage extends MemorySink {
+
+        Path file;  // the file to be created
+
+        FileImage(int size) {
+            super(size);
+        }
+    }
+
+    /**
+     * Construct a new PerFileOutput and start its background thread.
+     */
+    public PerFileOutput() {
+        pool = new ArrayBlockingQueue<>(POOL_SIZE);
+        toWrite = new ArrayBlockingQueue<>(POOL_SIZE + 1);
+        created = 0;
+        failures = 0;
+        creator = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                createFiles();
+            }
+        }, "V2MetaAnalysis file creator");
+        creator.setDaemon(true);
+        creator.start();
+    }
+
+    /**
+     * Get a sink in which to serialise the output for a VEO.
+     *
+     * @param file the output file that will be created from the sink
+     * @return the sink
+     * @throws IOException if interrupted while waiting for a free buffer
+     */
+    public ByteSink open(Path file) throws IOException {
+        FileImage fi;
+
+        // several threads may be producing output, so only the decision to
+        // create a new buffer need be synchronised
+        fi = pool.poll();
+        if (fi == null) {
+            synchronized (this) {
+                if (created < POOL_SIZE) {
+                    fi = new FileImage(ByteSink.BUFFER_SIZE);
+                    created++;
+                }
+            }
+            if (fi == null) {
+                try {
+                    fi = pool.take();
+                } catch (InterruptedException ie) {
+                    throw new IOException("Interrupted waiting for an output buffer");
+                }
+            }
+        }
+        fi.reset();
+        fi.file = file;
+        return fi;
+    }
+
+    /**
+     * The output for the VEO is complete; queue it to be written.
+     *
+     * @param sink the sink returned by open()
+     * @throws IOException if interrupted
+     */
+    public void close(ByteSink sink) throws IOException {
+        try {
+            toWrite.put((FileImage) sink);
+        } catch (InterruptedException ie) {
+            throw new IOException("Interrupted waiting to write output");
+        }
+    }
+
+    /**
+     * Abandon the output for a VEO (e.g. because the VEO failed) and return
+     * the buffer to the pool.
+     *
+     * @param sink the sink returned by open()
+     */
+    public void abandon(ByteSink sink) {
+        release((FileImage) sink);
+    }
+
+    /**
+     * Return a buffer to the pool, first replacing it with one of the normal
+     * size if it has grown too large to keep.
+     *
+     * @param fi the buffer
+     */
+    private void release(FileImage fi) {
+        if (fi.buf.capacity() > MAX_POOLED) {
+            fi.buf = ByteBuffer.allocateDirect(ByteSink.BUFFER_SIZE);
+        }
+        pool.offer(fi);
+    }
+
+    /**
+     * Wait until all the queued output files have been created, and stop the
+     * background thread.
+     *
+     * @return the number of output files that could not be created
+     */
+    public int finish() {
+        try {
+            toWrite.put(STOP);
+            creator.join();
+        } catch (InterruptedException ie) {
+            /* ignore */
+        }
+        return failures;
+    }
+
+    /**
+     * The background thread. Take whatever output is waiting (up to a batch),
+     * create the files, and return the buffers to the pool.
+     */
+    private void createFiles() {
+        ArrayList<FileImage> batch;
+        FileImage fi;
+        int i;
+        boolean stop;
+
+        batch = new ArrayList<>(BATCH_SIZE);
+        stop = false;
+        while (!stop) {
+            try {
+                batch.add(toWrite.take());
+            } catch (InterruptedException ie) {
+                return;
+            }
+            toWrite.drainTo(batch, BATCH_SIZE - 1);
+            for (i = 0; i < batch.size(); i++) {
+                fi = batch.get(i);
+                if (fi == STOP) {
+                    stop = true;
+                    continue;
+                }
+                write(fi);
+                release(fi);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Create one output file from its buffer.
+     *
+     * @param fi the output for the file
+     */
+    private void write(FileImage fi) {
+        fi.buf.flip();
+        try (FileChannel fc = FileChannel.open(fi.file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (fi.buf.hasRemaining()) {
+                fc.write(fi.buf);
+            }
+            LOG.log(Level.INFO, ("New file " + fi.file.toString()));
+        } catch (IOException ioe) {
+            failures++;
+            LOG.log(Level.WARNING, "Couldn''t create output file ''{0}'': {1}", new Object[]{fi.file.toString(), ioe.toString()});
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/**
+ * The Prefetcher finds the VEOs to be processed and reads them ahead of the
+ * parser, so that disk (or network) I/O overlaps with parsing.
+ *
+ * A background thread walks the files and directories to be processed (in the
+ * same order as they would be processed without read ahead). Each VEO found is
+ * read into one of a set of reusable buffers and queued for the parser. At
+ * most 'depth' VEOs are queued ahead of the parser at any time, and each
+ * buffer may grow to at most (memory budget / depth) bytes. VEOs larger than
+ * this are not read ahead; they are queued in order and the parser reads them
+ * directly from the file. A depth of 0 turns off read ahead, although the
+ * VEOs are still found by the background thread.
+ *
+ * Alternatively, the Prefetcher can be given a schedule: a list of VEOs that
+ * have already been found, to be read in the order given. In this case more
+ * VEOs may be outstanding (queued or being parsed) than there are buffers, as
+ * several parsers may be at work; a VEO read when no buffer is free is
+ * streamed.
+ *
+ * If asked, the background thread also hashes each VEO it reads ahead (for a
+ * DuplicateSet), so the hashing overlaps with parsing too.
+ *
+ * If the background thread fails (e.g. a directory cannot be walked), the
+ * VEOs already queued are processed and then the failure is reported by
+ * next().
+ *
+ * The time the parser spends waiting for the next VEO is recorded in the run
+ * statistics.
+ *
+ * @author Andrew
+ */
+public class Prefetcher {
+
+    ArrayList<Path> roots;          // files and directories to process
+    ArrayList<VEOFile> schedule;    // VEOs already found (null if walking the roots)
+    int depth;                      // maximum number of VEOs queued ahead of the parser
+    long slotSize;                  // maximum size of a VEO that will be read ahead
+    Semaphore ahead;                // limits the number of VEOs queued
+    BlockingQueue<byte[]> buffers;  // buffers available for reading ahead
+    BlockingQueue<VEOFile> ready;   // VEOs waiting for the parser
+    Thread reader;                  // thread finding and reading the VEOs
+    RunStats stats;                 // where to record statistics
+    MessageDigest md;               // hashes the VEOs read ahead (null if not hashing)
+    volatile Throwable failure;     // the error that stopped the background thread (if any)
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    static final VEOFile END = new VEOFile(null, -1); // no more VEOs
+
+    /**
+     * Construct a new Prefetcher.
+     *
+     * @param roots the files and directories to process
+     * @param depth the maximum number of VEOs to read ahead (0 for none)
+     * @param budget the maximum amount of memory (in bytes) to use for buffers
+     * @param stats where to record statistics
+     */
+    public Prefetcher(ArrayList<Path> roots, int depth, long budget, RunStats stats) {
+        int i;
+
+        this.roots = roots;
+        schedule = null;
+        this.depth = depth;
+        this.stats = stats;
+        if (depth > 0) {
+            slotSize = Math.min(budget / depth, Integer.MAX_VALUE - 8);
+            ahead = new Semaphore(depth);
+            buffers = new ArrayBlockingQueue<>(depth);
+            for (i = 0; i < depth; i++) {
+                buffers.add(new byte[0]);
+            }
+        } else {
+            slotSize = 0;
+            ahead = new Semaphore(1);
+            buffers = null;
+        }
+        ready = new LinkedBlockingQueue<>();
+        reader = null;
+        md = null;
+        failure = null;
+    }
+
+    /**
+     * Construct a new Prefetcher that reads VEOs that have already been found.
+     *
+     * @param schedule the VEOs to read, in the order they are to be processed
+     * @param depth the maximum number of VEOs to read ahead (0 for none)
+     * @param budget the maximum amount of memory (in bytes) to use for buffers
+     * @param outstanding the maximum number of VEOs queued or being parsed
+     * @param stats where to record statistics
+     * @return the Prefetcher
+     */
+    public static Prefetcher scheduled(ArrayList<VEOFile> schedule, int depth, long budget, int outstanding, RunStats stats) {
+        Prefetcher pf;
+
+        pf = new Prefetcher(null, depth, budget, stats);
+        pf.schedule = schedule;
+        pf.ahead = new Semaphore(Math.max(outstanding, 1));
+        return pf;
+    }
+
+    /**
+     * Hash the contents of each VEO read ahead (the VEOs that are not read
+     * ahead are hashed by the parser).
+     */
+    public void hashContents() {
+        try {
+            md = DuplicateSet.digest();
+        } catch (IOException ioe) {
+            md = null;
+        }
+    }
+
+    /**
+     * Start finding and reading the VEOs.
+     */
+    public void start() {
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                VEOFile vf;
+
+                try {
+                    if (schedule != null) {
+                        for (i = 0; i < schedule.size(); i++) {
+                            vf = schedule.get(i);
+                            ahead.acquire();
+                            ready.add(read(vf));
+                        }
+                    } else {
+                        for (i = 0; i < roots.size(); i++) {
+                            Discovery.find(roots.get(i), new Discovery.Found() {
+                                @Override
+                                public void found(Path veo, long size) throws InterruptedException {
+                                    ahead.acquire();
+                                    ready.add(read(new VEOFile(veo, size)));
+                                }
+                            });
+                        }
+                    }
+                } catch (InterruptedException ie) {
+                    /* stopped */
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+
+                    // always tell the parser there are no more VEOs, or it
+                    // would wait forever
+                    ready.add(END);
+                }
+            }
+        }, "V2MetaAnalysis read ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Read a VEO into a buffer, if it is small enough.
+     *
+     * @param vf the VEO
+     * @return the VEO (with its contents if they were read)
+     * @throws InterruptedException if the Prefetcher was stopped
+     */
+    private VEOFile read(VEOFile vf) throws InterruptedException {
+        byte[] b;
+        int n, len;
+
+        if (buffers == null || vf.size > slotSize) {
+            return vf;
+        }
+
+        // read the file into a buffer, growing the buffer if necessary. The
+        // buffer is kept one byte larger than the file so that the end of the
+        // file is seen without the buffer filling. If the file has grown
+        // beyond the maximum size, give up. A buffer is always free when
+        // walking the roots; if not when following a schedule, stream the VEO
+        b = buffers.poll();
+        if (b == null) {
+            return vf;
+        }
+        if (b.length <= vf.size) {
+            b = new byte[(int) Math.min(slotSize + 1, Math.max(vf.size + 1, b.length * 2L))];
+        }
+        len = 0;
+        try (InputStream is = Files.newInputStream(vf.file)) {
+            while (true) {
+                if (len == b.length) {
+                    if (len > slotSize) {
+                        buffers.add(b);
+                        return vf;
+                    }
+                    b = Arrays.copyOf(b, (int) Math.min(slotSize + 1, Math.max(4096L, len * 2L)));
+                }
+                n = is.read(b, len, b.length - len);
+                if (n < 0) {
+                    break;
+                }
+                len += n;
+            }
+        } catch (IOException ioe) {
+            buffers.add(b);
+            return vf;
+        }
+        vf.data = b;
+        vf.length = len;
+        if (md != null) {
+            md.update(b, 0, len);
+            vf.hash = md.digest();
+        }
+        return vf;
+    }
+
+    /**
+     * Get the next VEO to process, waiting if necessary. The VEO must be
+     * released when the parser has finished with it.
+     *
+     * @return the next VEO, or null if there are no more VEOs
+     * @throws InterruptedException if interrupted while waiting
+     * @throws AppFatal if the VEOs could not be found or read
+     */
+    public VEOFile next() throws InterruptedException, AppFatal {
+        VEOFile vf;
+        long t;
+
+        t = System.nanoTime();
+        vf = ready.take();
+        if (vf == END) {
+            ready.add(END);
+            if (failure != null) {
+                throw new AppFatal("Failed finding or reading VEOs: " + failure.toString());
+            }
+            return null;
+        }
+        stats.waited(System.nanoTime() - t, vf.data != null);
+        return vf;
+    }
+
+    /**
+     * The parser has finished with a VEO; reuse its buffer.
+     *
+     * @param vf the VEO returned by next()
+     */
+    public void release(VEOFile vf) {
+        if (vf.data != null) {
+            buffers.add(vf.data);
+            vf.data = null;
+        }
+        ahead.release();
+    }
+
+    /**
+     * Stop finding and reading VEOs (e.g. because processing has been
+     * abandoned).
+     */
+    public void stop() {
+        if (reader != null) {
+            reader.interrupt();
+        }
+    }
+}
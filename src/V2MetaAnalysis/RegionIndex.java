@@ -0,0 +1,327 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A RegionIndex records, for each VEO processed, the byte offsets of the large
+ * elements in the VEO (e.g. the metadata of each revision layer, and the
+ * document data), so that later runs can skip over the elements that none of
+ * the targets need without reading or parsing them.
+ *
+ * The index is kept in a directory, with one entry per VEO (named by the
+ * SHA-256 of the VEO's absolute path, and spread over subdirectories named by
+ * the first two hex digits). Each entry records the size and modification
+ * time of the VEO when it was scanned; if either has changed, the entry is
+ * ignored and rebuilt the next time the VEO is parsed. The entries are built
+ * by a RegionScanner as the VEO is parsed in full.
+ *
+ * Using an entry, the VEO is read with the unwanted elements spliced out. The
+ * splice removes whole elements (start tag to end tag), so the parser sees a
+ * well formed VEO, and sees all of the elements that are, contain, or are
+ * within a target. When the VEO is read from the file, the bytes removed are
+ * not read at all.
+ *
+ * The index is an optimisation only; any problem reading or writing it is
+ * logged and the VEO is parsed in full.
+ *
+ * @author Andrew
+ */
+public class RegionIndex {
+
+    Path dir;           // the index directory
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    static final int MAGIC = 0x56324d52; // 'V2MR'
+    static final int VERSION = 1;
+
+    /**
+     * The large elements found in a VEO.
+     */
+    static class Regions {
+
+        String[] paths;     // path of each element
+        long[] start;       // offset of the start of each element
+        long[] end;         // offset just after the end of each element
+        int count;          // number of elements
+    }
+
+    /**
+     * Construct a new RegionIndex.
+     *
+     * @param dir the index directory (created if necessary)
+     * @throws AppFatal if the index directory could not be created
+     */
+    public RegionIndex(Path dir) throws AppFatal {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException ioe) {
+            throw new AppFatal("RegionIndex", 1, "Could not create region index directory '" + dir.toString() + "': " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Work out the name of the index entry for a VEO.
+     *
+     * @param veo the VEO
+     * @return the index entry
+     * @throws IOException if the name could not be calculated
+     */
+    Path entry(Path veo) throws IOException {
+        MessageDigest md;
+        String s;
+
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae.getMessage());
+        }
+        s = Digester.toHex(md.digest(ByteSink.utf8(key(veo))));
+        return dir.resolve(s.substring(0, 2)).resolve(s + ".v2mr");
+    }
+
+    /**
+     * The key of a VEO in the index: its absolute path.
+     *
+     * @param veo the VEO
+     * @return the key
+     */
+    private static String key(Path veo) {
+        return veo.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Load the entry for a VEO.
+     *
+     * @param veo the VEO
+     * @param attrs the size and modification time of the VEO now
+     * @return the large elements in the VEO (null if the VEO has no entry, or
+     * has changed since the entry was built)
+     */
+    public Regions load(Path veo, BasicFileAttributes attrs) {
+        Regions r;
+        int i;
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry(veo))))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION
+                    || !dis.readUTF().equals(key(veo))
+                    || dis.readLong() != attrs.size()
+                    || dis.readLong() != attrs.lastModifiedTime().toMillis()) {
+                return null;
+            }
+            r = new Regions();
+            r.count = dis.readInt();
+            r.paths = new String[r.count];
+            r.start = new long[r.count];
+            r.end = new long[r.count];
+            for (i = 0; i < r.count; i++) {
+                r.paths[i] = dis.readUTF();
+                r.start[i] = dis.readLong();
+                r.end[i] = dis.readLong();
+            }
+        } catch (NoSuchFileException nsfe) {
+            return null;
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Ignoring region index entry for ''{0}'': {1}", new Object[]{veo.toString(), ioe.getMessage()});
+            return null;
+        }
+        return r;
+    }
+
+    /**
+     * Save the large elements found in a VEO by a scanner. The elements are
+     * saved in the order they start (outer elements before inner elements).
+     * The entry is written to a temporary file and moved into place, so that
+     * concurrent runs never see a partial entry.
+     *
+     * @param veo the VEO
+     * @param attrs the size and modification time of the VEO when scanned
+     * @param rs the scanner that read the VEO
+     */
+    public void save(Path veo, BasicFileAttributes attrs, final RegionScanner rs) {
+        Path p, tmp;
+        Integer[] order;
+        int i, j;
+
+        order = new Integer[rs.count];
+        for (i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c;
+
+                c = Long.compare(rs.regionStart[a], rs.regionStart[b]);
+                return (c != 0) ? c : Long.compare(rs.regionEnd[b], rs.regionEnd[a]);
+            }
+        });
+
+        tmp = null;
+        try {
+            p = entry(veo);
+            Files.createDirectories(p.getParent());
+            tmp = Files.createTempFile(p.getParent(), "entry", ".tmp");
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeUTF(key(veo));
+                dos.writeLong(attrs.size());
+                dos.writeLong(attrs.lastModifiedTime().toMillis());
+                dos.writeInt(rs.count);
+                for (i = 0; i < order.length; i++) {
+                    j = order[i];
+                    dos.writeUTF(rs.regionPaths.get(j));
+                    dos.writeLong(rs.regionStart[j]);
+                    dos.writeLong(rs.regionEnd[j]);
+                }
+            }
+            Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Could not save region index entry for ''{0}'': {1}", new Object[]{veo.toString(), ioe.getMessage()});
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ioe) {
+                    /* ignore */
+                }
+            }
+        }
+    }
+
+    /**
+     * Open a VEO with some regions spliced out.
+     *
+     * @param veo the VEO
+     * @param skip the regions to splice out (pairs of start and end offsets,
+     * in order, not overlapping)
+     * @param n the number of regions
+     * @return a stream of the VEO without the regions
+     * @throws IOException if the VEO could not be opened
+     */
+    public static InputStream open(VEOFile veo, long[] skip, int n) throws IOException {
+        if (veo.data != null) {
+            return new Spliced(veo.data, veo.length, null, skip, n);
+        }
+        return new Spliced(null, 0, FileChannel.open(veo.file, StandardOpenOption.READ), skip, n);
+    }
+
+    /**
+     * A stream of a VEO (in memory, or read from a file) with some regions
+     * spliced out. A file is read by position, so the regions spliced out are
+     * never read.
+     */
+    private static class Spliced extends InputStream {
+
+        byte[] data;        // the VEO in memory (null if read from the file)
+        int length;         // length of the VEO in memory
+        FileChannel fc;     // the VEO file (null if in memory)
+        ByteBuffer buf;     // bytes read from the file
+        long bufStart;      // offset in the file of the start of buf
+        long pos;           // offset of the next byte to return
+        long[] skip;        // the regions to splice out
+        int n;              // the number of regions
+        int next;           // the next region to splice out
+        byte[] one;         // buffer for read()
+
+        Spliced(byte[] data, int length, FileChannel fc, long[] skip, int n) {
+            this.data = data;
+            this.length = length;
+            this.fc = fc;
+            if (fc != null) {
+                buf = ByteBuffer.allocate(65536);
+                buf.flip();
+            }
+            bufStart = 0;
+            pos = 0;
+            this.skip = skip;
+            this.n = n;
+            next = 0;
+            one = new byte[1];
+        }
+
+        @Override
+        public int read() throws IOException {
+            return (read(one, 0, 1) == 1) ? (one[0] & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long limit;
+            int i;
+
+            if (len == 0) {
+                return 0;
+            }
+
+            // jump over any region starting here
+            while (next < n && pos >= skip[next * 2]) {
+                pos = Math.max(pos, skip[next * 2 + 1]);
+                next++;
+            }
+            limit = (next < n) ? skip[next * 2] : Long.MAX_VALUE;
+            len = (int) Math.min(len, limit - pos);
+
+            // in memory
+            if (data != null) {
+                if (pos >= length) {
+                    return -1;
+                }
+                len = (int) Math.min(len, length - pos);
+                System.arraycopy(data, (int) pos, b, off, len);
+                pos += len;
+                return len;
+            }
+
+            // from the file; refill the buffer if pos is not in it
+            if (pos < bufStart || pos >= bufStart + buf.limit()) {
+                buf.clear();
+                bufStart = pos;
+                if (fc.read(buf, pos) <= 0) {
+                    buf.flip();
+                    return -1;
+                }
+                buf.flip();
+            }
+            i = (int) (pos - bufStart);
+            len = Math.min(len, buf.limit() - i);
+            System.arraycopy(buf.array(), i, b, off, len);
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fc != null) {
+                fc.close();
+            }
+        }
+    }
+}
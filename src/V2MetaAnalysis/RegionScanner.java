@@ -0,0 +1,345 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A RegionScanner finds the byte offsets of the large elements in a VEO as
+ * the VEO is read by the parser, so that they can be recorded in a
+ * RegionIndex.
+ *
+ * The VEO is read through a tee that scans the raw bytes with a small state
+ * machine that recognises start tags, end tags and empty element tags (and
+ * skips over comments, CDATA sections, processing instructions and the
+ * document type declaration, in which '&lt;' and '&gt;' do not mark tags).
+ * Each element whose start and end tags are at least MIN_REGION bytes apart
+ * is recorded with its path (the qualified names from the root, separated by
+ * '/', as used by the parser) and its offsets, from the '&lt;' of the start
+ * tag to just after the '&gt;' of the end tag. The scanner does not check
+ * that the VEO is well formed; the parser does that, and the regions are only
+ * recorded if the parse succeeds.
+ *
+ * @author Andrew
+ */
+public class RegionScanner {
+
+    long pos;               // offset of the next byte
+    int state;              // where the scanner is in the XML syntax
+    int match;              // number of bytes of a terminator matched
+    byte quote;             // quote character of the current attribute value
+    int bracket;            // nesting of '[' in the document type declaration
+    byte[] name;            // name of the tag being scanned
+    int nameLen;            // length of the name
+    long tagStart;          // offset of the '<' of the tag being scanned
+    StringBuilder path;     // path of the current element
+    int[] pathLen;          // length of the path before each open element
+    long[] starts;          // offset of the start tag of each open element
+    int depth;              // number of open elements
+    ArrayList<String> regionPaths; // path of each large element found
+    long[] regionStart;     // start of each large element
+    long[] regionEnd;       // end of each large element
+    int count;              // number of large elements found
+
+    static final int MIN_REGION = 2048; // smallest element worth recording
+
+    static final int TEXT = 0;          // character data
+    static final int LT = 1;            // just seen '<'
+    static final int STAG_NAME = 2;     // in the name of a start tag
+    static final int STAG = 3;          // in the attributes of a start tag
+    static final int STAG_QUOTE = 4;    // in an attribute value
+    static final int STAG_SLASH = 5;    // seen '/' in a start tag
+    static final int ETAG_NAME = 6;     // in an end tag
+    static final int BANG = 7;          // just seen '<!'
+    static final int COMMENT = 8;       // in a comment (looking for '-->')
+    static final int CDATA = 9;         // in a CDATA section (looking for ']]>')
+    static final int DECL = 10;         // in a declaration (looking for '>')
+    static final int PI = 11;           // in a processing instruction (looking for '?>')
+
+    static final byte[] END_COMMENT = "-->".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] END_CDATA = "]]>".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Construct a new RegionScanner.
+     */
+    public RegionScanner() {
+        name = new byte[64];
+        path = new StringBuilder();
+        pathLen = new int[32];
+        starts = new long[32];
+        regionPaths = new ArrayList<>();
+        regionStart = new long[16];
+        regionEnd = new long[16];
+        reset();
+    }
+
+    /**
+     * Reset the scanner for a new VEO.
+     */
+    public final void reset() {
+        pos = 0;
+        state = TEXT;
+        match = 0;
+        nameLen = 0;
+        path.setLength(0);
+        depth = 0;
+        regionPaths.clear();
+        count = 0;
+    }
+
+    /**
+     * Wrap the stream the parser reads the VEO from, so that the bytes pass
+     * through the scanner.
+     *
+     * @param is the stream
+     * @return the wrapped stream
+     */
+    public InputStream wrap(InputStream is) {
+        return new FilterInputStream(is) {
+            @Override
+            public int read() throws IOException {
+                int b;
+
+                b = in.read();
+                if (b >= 0) {
+                    scan(b);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int i, n;
+
+                n = in.read(b, off, len);
+                for (i = 0; i < n; i++) {
+                    scan(b[off + i]);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                byte[] b;
+                int r;
+                long skipped;
+
+                // the bytes must still be scanned
+                b = new byte[(int) Math.min(n, 8192)];
+                skipped = 0;
+                while (skipped < n && (r = read(b, 0, (int) Math.min(n - skipped, b.length))) > 0) {
+                    skipped += r;
+                }
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Scan one byte of the VEO.
+     *
+     * @param i the byte
+     */
+    private void scan(int i) {
+        byte b;
+
+        b = (byte) i;
+        switch (state) {
+            case TEXT:
+                if (b == '<') {
+                    tagStart = pos;
+                    state = LT;
+                }
+                break;
+            case LT:
+                if (b == '/') {
+                    nameLen = 0;
+                    state = ETAG_NAME;
+                } else if (b == '!') {
+                    state = BANG;
+                } else if (b == '?') {
+                    match = 0;
+                    state = PI;
+                } else {
+                    nameLen = 0;
+                    addName(b);
+                    state = STAG_NAME;
+                }
+                break;
+            case STAG_NAME:
+                if (b == '>') {
+                    open();
+                    state = TEXT;
+                } else if (b == '/') {
+                    open();
+                    state = STAG_SLASH;
+                } else if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    open();
+                    state = STAG;
+                } else {
+                    addName(b);
+                }
+                break;
+            case STAG:
+                if (b == '>') {
+                    state = TEXT;
+                } else if (b == '/') {
+                    state = STAG_SLASH;
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                    state = STAG_QUOTE;
+                }
+                break;
+            case STAG_QUOTE:
+                if (b == quote) {
+                    state = STAG;
+                }
+                break;
+            case STAG_SLASH:
+                if (b == '>') {
+                    close();
+                    state = TEXT;
+                } else {
+                    state = STAG;
+                }
+                break;
+            case ETAG_NAME:
+                if (b == '>') {
+                    close();
+                    state = TEXT;
+                }
+                break;
+            case BANG:
+                match = 0;
+                if (b == '-') {
+                    state = COMMENT;
+                } else if (b == '[') {
+                    state = CDATA;
+                } else {
+                    bracket = 0;
+                    quote = 0;
+                    state = DECL;
+                }
+                break;
+            case COMMENT:
+                state = terminated(b, END_COMMENT, COMMENT);
+                break;
+            case CDATA:
+                state = terminated(b, END_CDATA, CDATA);
+                break;
+            case DECL:
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '[') {
+                    bracket++;
+                } else if (b == ']') {
+                    bracket--;
+                } else if (b == '>' && bracket <= 0) {
+                    state = TEXT;
+                }
+                break;
+            case PI:
+                if (b == '>' && match == 1) {
+                    state = TEXT;
+                } else {
+                    match = (b == '?') ? 1 : 0;
+                }
+                break;
+            default:
+                break;
+        }
+        pos++;
+    }
+
+    /**
+     * Look for the terminator of a comment or CDATA section.
+     *
+     * @param b the byte
+     * @param term the terminator
+     * @param inside the state while inside the comment or CDATA section
+     * @return the next state
+     */
+    private int terminated(byte b, byte[] term, int inside) {
+        if (b == term[match]) {
+            match++;
+            if (match == term.length) {
+                return TEXT;
+            }
+        } else if (b == term[0]) {
+
+            // e.g. '--->' or ']]]>': stay part way through the terminator
+            if (match < 2) {
+                match = 1;
+            }
+        } else {
+            match = 0;
+        }
+        return inside;
+    }
+
+    /**
+     * Add a byte to the name of the current tag.
+     *
+     * @param b the byte
+     */
+    private void addName(byte b) {
+        if (nameLen == name.length) {
+            name = Arrays.copyOf(name, nameLen * 2);
+        }
+        name[nameLen++] = b;
+    }
+
+    /**
+     * The name of a start tag is complete; open the element.
+     */
+    private void open() {
+        if (depth == starts.length) {
+            starts = Arrays.copyOf(starts, depth * 2);
+            pathLen = Arrays.copyOf(pathLen, depth * 2);
+        }
+        pathLen[depth] = path.length();
+        starts[depth] = tagStart;
+        if (depth > 0) {
+            path.append('/');
+        }
+        path.append(new String(name, 0, nameLen, StandardCharsets.UTF_8));
+        depth++;
+    }
+
+    /**
+     * An element has ended (the current byte is the '&gt;' of its end tag or
+     * empty element tag); record it if it is large.
+     */
+    private void close() {
+        long end;
+
+        if (depth == 0) {
+            return;
+        }
+        depth--;
+        end = pos + 1;
+        if (end - starts[depth] >= MIN_REGION) {
+            if (count == regionStart.length) {
+                regionStart = Arrays.copyOf(regionStart, count * 2);
+                regionEnd = Arrays.copyOf(regionEnd, count * 2);
+            }
+            regionPaths.add(path.toString());
+            regionStart[count] = starts[depth];
+            regionEnd[count] = end;
+            count++;
+        }
+        path.setLength(pathLen[depth]);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * When VEOs are processed in parallel, and not in the order they were found,
+ * the output for each VEO must still appear in the group output in the order
+ * the VEOs were found. The ReorderBuffer holds the output of each VEO that
+ * finishes early until the output of all the VEOs found before it has been
+ * written.
+ *
+ * The output for a VEO is normally small (a few hundred bytes), but the
+ * number of VEOs held must still be bounded, as the VEOs are processed
+ * largest first and a small VEO found early may otherwise be parsed only at
+ * the end of the run. So only the large VEOs (at least LARGE bytes) are
+ * started first, largest first. The other VEOs follow, sorted largest first
+ * only within windows of WINDOW VEOs (by the order found), and such a VEO is
+ * not started until it is fewer than AHEAD (two windows) VEOs ahead of the
+ * next VEO to be written (see awaitTurn()). The ReorderBuffer therefore never
+ * holds the output of more than AHEAD VEOs plus the large VEOs, and there
+ * can only be a few of those (each is at least LARGE bytes). The VEO to be
+ * written next is either large or in an earlier window than any VEO that
+ * must wait, so it has always been started, and waiting cannot deadlock.
+ *
+ * @author Andrew
+ */
+public class ReorderBuffer {
+
+    ByteSink out;               // the group output
+    int nextSeq;                // sequence number of the next VEO to be written
+    boolean first;              // true if no VEO has been written yet
+    byte[] separator;           // written between the output of each VEO
+    HashMap<Integer, byte[]> waiting; // output of VEOs that finished early
+    boolean aborted;            // true if processing has been abandoned
+
+    static final byte[] FAILED = new byte[0]; // marks a VEO that produced no output
+    static final int WINDOW = 4096; // number of VEOs within which they are sorted largest first
+    static final int AHEAD = 2 * WINDOW; // how far ahead of the next VEO to be written a VEO may start
+    static final long LARGE = 8L * 1024 * 1024; // size of a VEO started first, before any window
+
+    /**
+     * Construct a new ReorderBuffer.
+     *
+     * @param out the group output
+     * @param separator bytes to write between the output of each VEO
+     */
+    public ReorderBuffer(ByteSink out, byte[] separator) {
+        this.out = out;
+        this.separator = separator;
+        nextSeq = 0;
+        first = true;
+        waiting = new HashMap<>();
+        aborted = false;
+    }
+
+    /**
+     * Wait until a VEO may be started, i.e. until it is fewer than AHEAD VEOs
+     * ahead of the next VEO to be written.
+     *
+     * @param seq the sequence number of the VEO
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void awaitTurn(int seq) throws InterruptedException {
+        while (!aborted && seq >= nextSeq + AHEAD) {
+            wait();
+        }
+    }
+
+    /**
+     * Processing has been abandoned; stop anything waiting for its turn.
+     */
+    public synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    /**
+     * The output for a VEO is complete. If it is the next VEO in order, write
+     * it (and any VEOs waiting behind it), otherwise keep a copy until its turn
+     * comes.
+     *
+     * @param seq the sequence number of the VEO
+     * @param record the output for the VEO
+     * @throws IOException if the output could not be written
+     */
+    public synchronized void put(int seq, MemorySink record) throws IOException {
+        if (seq != nextSeq) {
+            waiting.put(seq, record.toByteArray());
+            return;
+        }
+        writeSeparator();
+        record.copyTo(out);
+        nextSeq++;
+        drainWaiting();
+    }
+
+    /**
+     * A VEO failed and will produce no output.
+     *
+     * @param seq the sequence number of the VEO
+     * @throws IOException if the output of a waiting VEO could not be written
+     */
+    public synchronized void failed(int seq) throws IOException {
+        if (seq != nextSeq) {
+            waiting.put(seq, FAILED);
+            return;
+        }
+        nextSeq++;
+        drainWaiting();
+    }
+
+    /**
+     * Write the output of any VEOs whose turn has come.
+     *
+     * @throws IOException if the output could not be written
+     */
+    private void drainWaiting() throws IOException {
+        byte[] b;
+
+        while ((b = waiting.remove(nextSeq)) != null) {
+            if (b != FAILED) {
+                writeSeparator();
+                out.write(b);
+            }
+            nextSeq++;
+        }
+        notifyAll();
+        out.endRecord();
+    }
+
+    /**
+     * Write the separator if this is not the first VEO written.
+     *
+     * @throws IOException if the output could not be written
+     */
+    private void writeSeparator() throws IOException {
+        if (!first) {
+            out.write(separator);
+        }
+        first = false;
+    }
+}
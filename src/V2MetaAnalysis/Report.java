@@ -0,0 +1,234 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppError;
+import VERSCommon.AppFatal;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A Report is the output produced from one control file: the targets read
+ * from the control file, the format of the output, and where the output goes
+ * (a group output file, standard out, or an output file per VEO).
+ *
+ * Several reports can be produced in one run. The targets of all the reports
+ * are merged into one shared list (a target wanted by several reports appears
+ * in it once), so each VEO is parsed once, and each report is then written
+ * from a view of the shared Harvest that presents the values in the order of
+ * its own targets. The filters of each report form a group in the parser, so
+ * a VEO can be output in one report and filtered out of another.
+ *
+ * @author Andrew
+ */
+public class Report {
+
+    Path controlFile;   // file that controls processing of the VEOs
+    Target targets;     // the targets read from the control file
+    int group;          // number of this report (the group of its filters)
+    int[] map;          // per target: index in the shared target list (null if the shared list is this report's)
+    V2MetaAnalysis.OutputType outputType; // how the output is to be expressed
+    boolean groupOutput;// true if all output is to go to one file
+    boolean stdout;     // write output to standard out
+    Path outputFile;    // file in which the output is to go
+    String suffix;      // added to the names of the output files per VEO
+    Path groupFile;     // the group output file (null if standard out or an output file per VEO)
+    ByteSink output;    // the group output (null if an output file per VEO)
+    ReorderBuffer reorder; // orders the group output when processing in parallel (null if not)
+    byte[] separator;   // written between the output of each VEO in the group output
+    boolean firstVEO;   // true if no VEO has been written to the group output
+
+    /**
+     * Construct a new Report.
+     */
+    public Report() {
+        controlFile = null;
+        targets = null;
+        group = 0;
+        map = null;
+        outputType = V2MetaAnalysis.OutputType.UNDEFINED;
+        groupOutput = false;
+        stdout = false;
+        outputFile = null;
+        suffix = "";
+        groupFile = null;
+        output = null;
+        reorder = null;
+        separator = null;
+        firstVEO = true;
+    }
+
+    /**
+     * Merge the targets of the reports into one list to be harvested. A
+     * target is shared by the reports that want the same element paths (of
+     * the same kind, in the same revision layer); the filters of each report's targets are copied into
+     * the shared target in the report's group. If there is only one report,
+     * its own target list is used.
+     *
+     * @param reports the reports
+     * @return the shared target list
+     * @throws AppFatal if a target could not be created
+     */
+    public static Target share(ArrayList<Report> reports) throws AppFatal {
+        HashMap<String, Integer> found;
+        Target shared, t, s;
+        Report r;
+        Filter f;
+        Integer k;
+        String key;
+        int i, j, n;
+
+        if (reports.size() == 1) {
+            r = reports.get(0);
+            r.group = 0;
+            r.map = null;
+            return r.targets;
+        }
+        found = new HashMap<>();
+        shared = null;
+        n = 0;
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            r.group = i;
+            r.map = new int[r.targets.size()];
+            for (j = 0, t = r.targets; t != null; j++, t = t.next) {
+                key = t.virtual + "\t" + t.fileTag + "\t" + t.layer + "\t" + t.elemPath.toString();
+                k = found.get(key);
+                if (k == null) {
+                    s = new Target(t.elemPath, t.deflt, t.tag, t.virtual);
+                    s.layer = t.layer;
+                    if (shared == null) {
+                        shared = s;
+                    } else {
+                        shared.add(s);
+                    }
+                    k = n++;
+                    found.put(key, k);
+                } else {
+                    s = shared.get(k);
+                }
+                r.map[j] = k;
+                for (f = t.filter; f != null; f = f.next) {
+                    s.addFilter(new Filter(f, i));
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Get the harvest this report is written from.
+     *
+     * @param h the harvest of the shared target list
+     * @return a view of the harvest (or the harvest itself if the shared
+     * target list is this report's)
+     */
+    public Harvest view(Harvest h) {
+        return (map == null) ? h : new Harvest(h, map);
+    }
+
+    /**
+     * The file extension of the output files.
+     *
+     * @return the extension (without the '.')
+     * @throws AppFatal if no output type has been specified
+     */
+    public String extension() throws AppFatal {
+        switch (outputType) {
+            case XML:
+                return "xml";
+            case JSON:
+                return "json";
+            case TSV:
+                return "tsv";
+            case CSV:
+                return "csv";
+            default:
+                throw new AppFatal("An output type must be specified.");
+        }
+    }
+
+    /**
+     * Write the values harvested from a VEO in the output format.
+     *
+     * @param w where to write the values
+     * @param h the values harvested from the VEO (a view for this report)
+     * @throws AppFatal if no output type has been specified
+     * @throws AppError if the values could not be expressed
+     * @throws IOException if the output could not be written
+     */
+    public void writeRecord(ByteSink w, Harvest h) throws AppFatal, AppError, IOException {
+        switch (outputType) {
+            case XML:
+                targets.toXML(w, h);
+                break;
+            case JSON:
+                targets.toJSON(w, h);
+                break;
+            case TSV:
+                targets.toTSV(w, h);
+                break;
+            case CSV:
+                targets.toCSV(w, h);
+                break;
+            default:
+                throw new AppFatal("An output type must be specified.");
+        }
+    }
+
+    /**
+     * Write the preamble for the output type.
+     *
+     * @param output the output sink
+     * @throws AppFatal shouldn't happen, but something really bad occurred
+     * @throws AppError if the preamble could not be written
+     */
+    public void writePreamble(ByteSink output) throws AppFatal, AppError {
+        switch (outputType) {
+            case XML:
+                Target.XMLpreamble(output);
+                break;
+            case JSON:
+                Target.JSONpreamble(output);
+                break;
+            case TSV:
+                Target.TSVpreamble(output, targets);
+                break;
+            case CSV:
+                Target.CSVpreamble(output, targets);
+                break;
+            default:
+                throw new AppFatal("An output type must be specified.");
+        }
+    }
+
+    /**
+     * Write the postamble for the output type.
+     *
+     * @param output the output sink
+     * @throws AppError if the postamble could not be written
+     */
+    public void writePostamble(ByteSink output) throws AppError {
+        switch (outputType) {
+            case XML:
+                Target.XMLpostamble(output);
+                break;
+            case JSON:
+                Target.JSONpostamble(output);
+                break;
+            case TSV:
+                Target.TSVpostamble(output);
+                break;
+            case CSV:
+                Target.CSVpostamble(output);
+                break;
+            default:
+                throw new AppError("An output type must be specified.");
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Statistics collected during a run, reported at the end of the run (and in
+ * verbose mode). As VEOs may be processed by several threads at once, the
+ * statistics are updated through synchronised methods.
+ *
+ * @author Andrew
+ */
+public class RunStats {
+
+    long started;       // time the run started (System.nanoTime())
+    int veos;           // number of VEOs processed successfully
+    int failed;         // number of VEOs that failed
+    int filtered;       // number of VEOs that did not pass the filters
+    int duplicates;     // number of VEOs that duplicated a VEO already processed
+    TreeMap<String, Integer> skipped; // number of files that were not VEOs, by reason
+    TreeMap<String, Integer> abandoned; // number of VEOs that failed as they exceeded a limit, by limit
+    long bytes;         // number of bytes of VEO processed
+    int prefetched;     // number of VEOs read ahead into memory
+    int streamed;       // number of VEOs parsed directly from the file
+    long starvedNanos;  // time the parser spent waiting for input
+    long firstVEO;      // time the first VEO was finished (System.currentTimeMillis(), 0 if none)
+
+    /**
+     * Construct a new set of statistics, starting now.
+     */
+    public RunStats() {
+        started = System.nanoTime();
+        veos = 0;
+        failed = 0;
+        filtered = 0;
+        duplicates = 0;
+        skipped = new TreeMap<>();
+        abandoned = new TreeMap<>();
+        bytes = 0;
+        prefetched = 0;
+        streamed = 0;
+        starvedNanos = 0;
+        firstVEO = 0;
+    }
+
+    /**
+     * A VEO has been processed successfully.
+     *
+     * @param size the size of the VEO in bytes
+     */
+    public synchronized void processed(long size) {
+        finished();
+        veos++;
+        if (size > 0) {
+            bytes += size;
+        }
+    }
+
+    /**
+     * A VEO failed.
+     */
+    public synchronized void failed() {
+        finished();
+        failed++;
+    }
+
+    /**
+     * A VEO did not pass the filters (it is not counted as processed).
+     */
+    public synchronized void filtered() {
+        filtered++;
+    }
+
+    /**
+     * A VEO had the same contents as one already processed, and was not
+     * parsed (it is not counted as processed).
+     */
+    public synchronized void duplicate() {
+        duplicates++;
+    }
+
+    /**
+     * A file was found not to be a VEO without being parsed (it is not
+     * counted as processed).
+     *
+     * @param reason why it is not a VEO (see Sniffer)
+     */
+    public synchronized void skipped(String reason) {
+        count(skipped, reason);
+    }
+
+    /**
+     * A VEO was abandoned as it exceeded a limit (it is still counted as
+     * failed).
+     *
+     * @param limit the limit it exceeded (see Limits)
+     */
+    public synchronized void abandoned(String limit) {
+        count(abandoned, limit);
+    }
+
+    /**
+     * Add one to a count in a breakdown.
+     *
+     * @param counts the breakdown
+     * @param key what is being counted
+     */
+    private static void count(TreeMap<String, Integer> counts, String key) {
+        Integer n;
+
+        n = counts.get(key);
+        counts.put(key, (n == null) ? 1 : n + 1);
+    }
+
+    /**
+     * Note when the first VEO was finished (whether or not it failed).
+     */
+    private void finished() {
+        if (veos == 0 && failed == 0) {
+            firstVEO = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * How long after the JVM started was the first VEO finished? This is the
+     * time to first VEO measured by the startup benchmark, and includes the
+     * time taken to start the JVM and load the classes.
+     *
+     * @param jvmStart the time the JVM started (System.currentTimeMillis())
+     * @return the time in milliseconds (-1 if no VEO has been finished)
+     */
+    public synchronized long timeToFirstVEO(long jvmStart) {
+        if (firstVEO == 0) {
+            return -1;
+        }
+        return firstVEO - jvmStart;
+    }
+
+    /**
+     * A parser has obtained its next VEO.
+     *
+     * @param nanos how long the parser waited for it
+     * @param prefetched true if the VEO had been read ahead
+     */
+    public synchronized void waited(long nanos, boolean prefetched) {
+        starvedNanos += nanos;
+        if (prefetched) {
+            this.prefetched++;
+        } else {
+            streamed++;
+        }
+    }
+
+    /**
+     * Describe the statistics.
+     *
+     * @return a description
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb;
+        long elapsed;
+
+        elapsed = System.nanoTime() - started;
+        sb = new StringBuilder();
+        sb.append("Processed ");
+        sb.append(veos);
+        sb.append(" VEOs (");
+        sb.append(failed);
+        sb.append(" failed, ");
+        if (!abandoned.isEmpty()) {
+            sb.append(total(abandoned));
+            sb.append(" abandoned at limits (");
+            breakdown(sb, abandoned);
+            sb.append("), ");
+        }
+        if (filtered > 0) {
+            sb.append(filtered);
+            sb.append(" filtered out, ");
+        }
+        if (duplicates > 0) {
+            sb.append(duplicates);
+            sb.append(" skipped as duplicates, ");
+        }
+        if (!skipped.isEmpty()) {
+            sb.append(total(skipped));
+            sb.append(" skipped as not VEOs (");
+            breakdown(sb, skipped);
+            sb.append("), ");
+        }
+        sb.append(bytes);
+        sb.append(" bytes) in ");
+        sb.append(millis(elapsed));
+        sb.append("ms");
+        if (prefetched > 0 || starvedNanos > 0) {
+            sb.append(". Read ahead ");
+            sb.append(prefetched);
+            sb.append(" VEOs, streamed ");
+            sb.append(streamed);
+            sb.append("; parser waited ");
+            sb.append(millis(starvedNanos));
+            sb.append("ms for input");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The total of the counts in a breakdown.
+     *
+     * @param counts the breakdown
+     * @return the total
+     */
+    private static int total(TreeMap<String, Integer> counts) {
+        int n;
+
+        n = 0;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            n += e.getValue();
+        }
+        return n;
+    }
+
+    /**
+     * Describe a breakdown (e.g. 'empty: 2; not XML: 1').
+     *
+     * @param sb where to put the description
+     * @param counts the breakdown
+     */
+    private static void breakdown(StringBuilder sb, TreeMap<String, Integer> counts) {
+        boolean first;
+
+        first = true;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            if (!first) {
+                sb.append("; ");
+            }
+            sb.append(e.getKey());
+            sb.append(": ");
+            sb.append(e.getValue());
+            first = false;
+        }
+    }
+
+    /**
+     * Describe the throughput of the run so far.
+     *
+     * @return a description
+     */
+    public synchronized String throughput() {
+        double secs;
+
+        secs = Math.max(System.nanoTime() - started, 1) / 1e9;
+        return String.format("%.1f VEOs/s, %.2f MB/s", (veos + failed) / secs, bytes / secs / (1024 * 1024));
+    }
+
+    /**
+     * Convert nanoseconds to milliseconds.
+     *
+     * @param nanos time in nanoseconds
+     * @return time in milliseconds
+     */
+    static long millis(long nanos) {
+        return nanos / 1000000L;
+    }
+}
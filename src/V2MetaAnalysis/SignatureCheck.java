@@ -0,0 +1,384 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Base64;
+
+/**
+ * A SignatureCheck verifies the signatures of a V2 VEO in the same pass as the
+ * metadata is harvested.
+ *
+ * A V2 signature is calculated over the bytes of the vers:SignedObject element
+ * exactly as they appear in the file, from the '&lt;' of the start tag to the
+ * '&gt;' of the end tag. The VEO is read through a tee that scans the raw bytes
+ * for the outermost vers:SignedObject and digests it (with both SHA-1 and
+ * SHA-256, as the algorithm is not known until the signature blocks, which
+ * follow the signed object, are parsed). The parser passes the contents of
+ * the outer vers:SignatureBlocks to the SignatureCheck and, at the end of the
+ * VEO, each signature is verified against the digest using the public key in
+ * the first certificate of its vers:CertificateBlock.
+ *
+ * Signatures within a vers:RevisedVEO (which sign the revised signed object)
+ * are not checked.
+ *
+ * @author Andrew
+ */
+public class SignatureCheck {
+
+    MessageDigest sha1;         // SHA-1 of the signed object
+    MessageDigest sha256;       // SHA-256 of the signed object
+    int state;                  // BEFORE, INSIDE, or AFTER the signed object
+    int depth;                  // nesting of vers:SignedObjects
+    int startMatch;             // number of bytes of START matched
+    int endMatch;               // number of bytes of END matched
+    ArrayList<Block> blocks;    // signature blocks found
+    Block current;              // signature block being parsed (null if none)
+    int capture;                // what text is being captured (NONE if nothing)
+    StringBuilder text;         // text being captured
+
+    static final int BEFORE = 0;
+    static final int INSIDE = 1;
+    static final int AFTER = 2;
+    static final int NONE = 0;
+    static final int ALGORITHM = 1;
+    static final int SIGNATURE = 2;
+    static final int CERTIFICATE = 3;
+    static final byte[] START = "<vers:SignedObject".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] END = "</vers:SignedObject>".getBytes(StandardCharsets.US_ASCII);
+    static final String BLOCK = "vers:VERSEncapsulatedObject/vers:SignatureBlock";
+    static final String ALGORITHM_PATH = BLOCK + "/vers:SignatureAlgorithm/vers:SignatureAlgorithmIdentifier";
+    static final String SIGNATURE_PATH = BLOCK + "/vers:Signature";
+    static final String CERTIFICATE_PATH = BLOCK + "/vers:CertificateBlock/vers:Certificate";
+
+    // DER encoding of the DigestInfo that precedes the digest in an RSA signature
+    static final byte[] SHA1_DIGEST_INFO = {0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00, 0x04, 0x14};
+    static final byte[] SHA256_DIGEST_INFO = {0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20};
+
+    /**
+     * The contents of one vers:SignatureBlock.
+     */
+    static class Block {
+
+        String algorithm;   // the signature algorithm identifier
+        String signature;   // the signature (base64)
+        String certificate; // the signer's certificate (base64)
+    }
+
+    /**
+     * Construct a new SignatureCheck.
+     *
+     * @throws AppFatal if the digest algorithms are not supported
+     */
+    public SignatureCheck() throws AppFatal {
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AppFatal("Digest algorithm is not supported: " + nsae.getMessage());
+        }
+        blocks = new ArrayList<>();
+        text = new StringBuilder();
+        reset();
+    }
+
+    /**
+     * Prepare to check another VEO.
+     */
+    public final void reset() {
+        sha1.reset();
+        sha256.reset();
+        state = BEFORE;
+        depth = 0;
+        startMatch = 0;
+        endMatch = 0;
+        blocks.clear();
+        current = null;
+        capture = NONE;
+        text.setLength(0);
+    }
+
+    /**
+     * Wrap the stream from which the VEO is parsed, so that the bytes of the
+     * signed object are digested as they are read.
+     *
+     * @param is the stream
+     * @return the wrapped stream
+     */
+    public InputStream wrap(InputStream is) {
+        return new Tee(is);
+    }
+
+    /**
+     * A stream that passes the bytes read to scan().
+     */
+    private class Tee extends FilterInputStream {
+
+        Tee(InputStream is) {
+            super(is);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c;
+
+            c = in.read();
+            if (c != -1) {
+                scan(new byte[]{(byte) c}, 0, 1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+
+            n = in.read(b, off, len);
+            if (n > 0) {
+                scan(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] b;
+            int i;
+
+            b = new byte[(int) Math.min(n, 8192)];
+            i = read(b, 0, b.length);
+            return i < 0 ? 0 : i;
+        }
+    }
+
+    /**
+     * Scan bytes read from the VEO, digesting those that are part of the
+     * outermost signed object. The start and end tags may be split across
+     * calls. The patterns both start with '&lt;', which occurs nowhere else in
+     * them, so a mismatch need only restart the match.
+     *
+     * @param b the bytes
+     * @param off the start of the bytes
+     * @param len the number of bytes
+     */
+    void scan(byte[] b, int off, int len) {
+        int i, from, end;
+        byte c;
+
+        if (state == AFTER) {
+            return;
+        }
+        end = off + len;
+        from = off;
+        for (i = off; i < end; i++) {
+            c = b[i];
+
+            // a start tag has been matched; is the name complete?
+            if (startMatch == START.length) {
+                startMatch = 0;
+                if (c == ' ' || c == '>' || c == '\t' || c == '\n' || c == '\r') {
+                    if (state == BEFORE) {
+                        state = INSIDE;
+                        sha1.update(START);
+                        sha256.update(START);
+                        from = i;
+                    }
+                    depth++;
+                }
+            }
+            if (c == START[startMatch]) {
+                startMatch++;
+            } else {
+                startMatch = (c == '<') ? 1 : 0;
+            }
+
+            // look for the end tag that closes the outermost signed object
+            if (state == INSIDE) {
+                if (c == END[endMatch]) {
+                    endMatch++;
+                    if (endMatch == END.length) {
+                        endMatch = 0;
+                        depth--;
+                        if (depth == 0) {
+                            sha1.update(b, from, i + 1 - from);
+                            sha256.update(b, from, i + 1 - from);
+                            state = AFTER;
+                            return;
+                        }
+                    }
+                } else {
+                    endMatch = (c == '<') ? 1 : 0;
+                }
+            }
+        }
+        if (state == INSIDE) {
+            sha1.update(b, from, end - from);
+            sha256.update(b, from, end - from);
+        }
+    }
+
+    /**
+     * The parser has found the start of an element. Note the parts of the
+     * outer signature blocks that are needed.
+     *
+     * @param path the path of the element
+     */
+    public void startElement(String path) {
+        if (!path.startsWith(BLOCK)) {
+            return;
+        }
+        if (path.length() == BLOCK.length()) {
+            current = new Block();
+            blocks.add(current);
+        } else if (current == null) {
+            return;
+        } else if (path.equals(ALGORITHM_PATH)) {
+            capture = ALGORITHM;
+        } else if (path.equals(SIGNATURE_PATH)) {
+            capture = SIGNATURE;
+        } else if (path.equals(CERTIFICATE_PATH) && current.certificate == null) {
+            capture = CERTIFICATE;
+        }
+        text.setLength(0);
+    }
+
+    /**
+     * The parser has found some text.
+     *
+     * @param ch the characters
+     * @param start start of the text
+     * @param length length of the text
+     */
+    public void characters(char[] ch, int start, int length) {
+        if (capture != NONE) {
+            text.append(ch, start, length);
+        }
+    }
+
+    /**
+     * The parser has found the end of an element.
+     */
+    public void endElement() {
+        switch (capture) {
+            case ALGORITHM:
+                current.algorithm = text.toString().trim();
+                break;
+            case SIGNATURE:
+                current.signature = text.toString();
+                break;
+            case CERTIFICATE:
+                current.certificate = text.toString();
+                break;
+            default:
+                return;
+        }
+        capture = NONE;
+    }
+
+    /**
+     * Verify each signature block found, and add the result ('valid',
+     * 'invalid', or 'unverifiable' with the reason) to the harvest.
+     *
+     * @param h the harvest for the VEO
+     * @param target the index of the target to receive the results
+     */
+    public void verify(Harvest h, int target) {
+        byte[] d1, d256;
+        int i;
+
+        if (blocks.isEmpty()) {
+            return;
+        }
+        if (state != AFTER) {
+            for (i = 0; i < blocks.size(); i++) {
+                h.addValue(target, "unverifiable (no complete vers:SignedObject)");
+            }
+            return;
+        }
+        d1 = sha1.digest();
+        d256 = sha256.digest();
+        for (i = 0; i < blocks.size(); i++) {
+            h.addValue(target, verify(blocks.get(i), d1, d256));
+        }
+    }
+
+    /**
+     * Verify one signature block.
+     *
+     * @param b the signature block
+     * @param d1 the SHA-1 digest of the signed object
+     * @param d256 the SHA-256 digest of the signed object
+     * @return the result
+     */
+    private String verify(Block b, byte[] d1, byte[] d256) {
+        Signature s;
+        Certificate cert;
+        byte[] data;
+
+        if (b.algorithm == null || b.signature == null || b.certificate == null) {
+            return "unverifiable (incomplete vers:SignatureBlock)";
+        }
+        try {
+            switch (b.algorithm) {
+                case "1.2.840.113549.1.1.5": // sha1WithRSAEncryption
+                case "SHA1withRSA":
+                    s = Signature.getInstance("NONEwithRSA");
+                    data = concat(SHA1_DIGEST_INFO, d1);
+                    break;
+                case "1.2.840.113549.1.1.11": // sha256WithRSAEncryption
+                case "SHA256withRSA":
+                    s = Signature.getInstance("NONEwithRSA");
+                    data = concat(SHA256_DIGEST_INFO, d256);
+                    break;
+                case "1.2.840.10040.4.3": // dsaWithSHA1
+                case "SHA1withDSA":
+                    s = Signature.getInstance("NONEwithDSA");
+                    data = d1;
+                    break;
+                default:
+                    return "unverifiable (unsupported algorithm '" + b.algorithm + "')";
+            }
+            cert = CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(Base64.getMimeDecoder().decode(b.certificate)));
+            s.initVerify(cert.getPublicKey());
+            s.update(data);
+            if (s.verify(Base64.getMimeDecoder().decode(b.signature))) {
+                return "valid";
+            } else {
+                return "invalid";
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return "unverifiable (" + e.getMessage() + ")";
+        }
+    }
+
+    /**
+     * Concatenate two byte arrays.
+     *
+     * @param a the first array
+     * @param b the second array
+     * @return the concatenation
+     */
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c;
+
+        c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * A Sniffer looks at the first few KB of a file (ending in '.veo' or '.xml')
+ * to decide whether it is a V2 VEO before it is parsed in full. A transfer
+ * area may also hold XML manifests, schemas and logs, which would be parsed
+ * to the end without producing anything useful.
+ *
+ * The bytes are scanned past any byte order mark, XML declaration, processing
+ * instructions, comments and document type declaration to the start tag of
+ * the root element. The file is a VEO if the root element is
+ * VERSEncapsulatedObject, and either has the prefix 'vers' (as used in the
+ * control files, however it is bound) or is in the VERS namespace. A file is
+ * only rejected if it is certainly not a VEO; if the sniffer cannot tell (e.g.
+ * the root element does not start within the first few KB, the file is not
+ * UTF-8, or it cannot be read) the file is parsed as normal, and the parser
+ * reports any problem.
+ *
+ * @author Andrew
+ */
+public class Sniffer {
+
+    static final int SNIFF_BYTES = 4096; // number of bytes looked at
+
+    // the reasons a file is not a VEO
+    static final String EMPTY = "empty";
+    static final String NOT_XML = "not XML";
+    static final String ROOT = "root element not VERSEncapsulatedObject";
+    static final String NAMESPACE = "root element not in the VERS namespace";
+
+    /**
+     * Is a file a V2 VEO? If it has been read ahead, the bytes in memory are
+     * looked at; otherwise the first SNIFF_BYTES of the file are read.
+     *
+     * @param veo the file (and its contents, if they have been read ahead)
+     * @return null if the file may be a VEO, otherwise why it is not
+     */
+    public static String sniff(VEOFile veo) {
+        byte[] b;
+        boolean whole;
+        int n, r;
+
+        if (veo.data != null) {
+            return sniff(veo.data, Math.min(veo.length, SNIFF_BYTES), veo.length <= SNIFF_BYTES);
+        }
+        b = new byte[SNIFF_BYTES];
+        n = 0;
+        try (InputStream is = Files.newInputStream(veo.file)) {
+            while (n < b.length && (r = is.read(b, n, b.length - n)) != -1) {
+                n += r;
+            }
+            whole = n < b.length || is.read() == -1;
+        } catch (IOException ioe) {
+            return null;
+        }
+        return sniff(b, n, whole);
+    }
+
+    /**
+     * Is the start of a file a V2 VEO?
+     *
+     * @param b the bytes at the start of the file
+     * @param n the number of bytes
+     * @param whole true if the bytes are the whole file
+     * @return null if the file may be a VEO, otherwise why it is not
+     */
+    static String sniff(byte[] b, int n, boolean whole) {
+        String name, prefix, attr, uri;
+        int i, j, s;
+
+        if (n == 0) {
+            return whole ? EMPTY : null;
+        }
+
+        // a UTF-8 byte order mark is skipped; in any other encoding leave it
+        // to the parser
+        i = 0;
+        if (n >= 3 && (b[0] & 0xff) == 0xef && (b[1] & 0xff) == 0xbb && (b[2] & 0xff) == 0xbf) {
+            i = 3;
+        } else if (n >= 2 && (((b[0] & 0xff) == 0xfe && (b[1] & 0xff) == 0xff) || ((b[0] & 0xff) == 0xff && (b[1] & 0xff) == 0xfe))) {
+            return null;
+        }
+
+        // skip the XML declaration, processing instructions, comments and
+        // document type declaration before the root element
+        while (true) {
+            i = skipSpace(b, i, n);
+            if (i >= n) {
+                return whole ? NOT_XML : null;
+            }
+            if (b[i] != '<') {
+                return NOT_XML;
+            }
+            if (startsWith(b, i, n, "<?")) {
+                i = find(b, i + 2, n, "?>");
+            } else if (startsWith(b, i, n, "<!--")) {
+                i = find(b, i + 4, n, "-->");
+            } else if (startsWith(b, i, n, "<!")) {
+                i = skipDoctype(b, i + 2, n);
+            } else {
+                break;
+            }
+            if (i == -1) {
+                return whole ? NOT_XML : null;
+            }
+        }
+
+        // the name of the root element
+        s = i + 1;
+        for (j = s; j < n && !isSpace(b[j]) && b[j] != '/' && b[j] != '>'; j++) {
+        }
+        if (j == n) {
+            return whole ? NOT_XML : null;
+        }
+        if (j == s) {
+            return NOT_XML;
+        }
+        name = new String(b, s, j - s, StandardCharsets.UTF_8);
+        i = name.indexOf(':');
+        prefix = (i == -1) ? "" : name.substring(0, i);
+        if (!name.substring(i + 1).equals("VERSEncapsulatedObject")) {
+            return ROOT;
+        }
+        if (prefix.equals("vers")) {
+            return null;
+        }
+
+        // find the namespace of the root element among its attributes
+        attr = prefix.equals("") ? "xmlns" : "xmlns:" + prefix;
+        uri = null;
+        i = j;
+        while (true) {
+            i = skipSpace(b, i, n);
+            if (i >= n) {
+                return null;
+            }
+            if (b[i] == '>' || b[i] == '/') {
+                break;
+            }
+            for (s = i; i < n && b[i] != '=' && !isSpace(b[i]); i++) {
+            }
+            name = new String(b, s, i - s, StandardCharsets.UTF_8);
+            i = skipSpace(b, i, n);
+            if (i >= n || b[i] != '=') {
+                return null;
+            }
+            i = skipSpace(b, i + 1, n);
+            if (i >= n || (b[i] != '"' && b[i] != '\'')) {
+                return null;
+            }
+            for (s = i + 1, i = s; i < n && b[i] != b[s - 1]; i++) {
+            }
+            if (i == n) {
+                return null;
+            }
+            if (name.equals(attr)) {
+                uri = new String(b, s, i - s, StandardCharsets.UTF_8);
+            }
+            i++;
+        }
+        if (uri == null || !uri.equals(PathMatcher.VERS_NS)) {
+            return NAMESPACE;
+        }
+        return null;
+    }
+
+    /**
+     * Skip over a document type declaration (including any internal subset,
+     * in which quoted strings and comments may contain '&gt;' and ']').
+     *
+     * @param b the bytes
+     * @param i the offset just after the '&lt;!'
+     * @param n the number of bytes
+     * @return the offset just after the declaration (-1 if it does not end)
+     */
+    private static int skipDoctype(byte[] b, int i, int n) {
+        int bracket;
+        byte q;
+
+        bracket = 0;
+        while (i < n) {
+            if (b[i] == '"' || b[i] == '\'') {
+                q = b[i];
+                for (i++; i < n && b[i] != q; i++) {
+                }
+                if (i == n) {
+                    return -1;
+                }
+            } else if (startsWith(b, i, n, "<!--")) {
+                i = find(b, i + 4, n, "-->");
+                if (i == -1) {
+                    return -1;
+                }
+                continue;
+            } else if (b[i] == '[') {
+                bracket++;
+            } else if (b[i] == ']') {
+                bracket--;
+            } else if (b[i] == '>' && bracket <= 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the end of a terminator.
+     *
+     * @param b the bytes
+     * @param i where to start looking
+     * @param n the number of bytes
+     * @param s the terminator
+     * @return the offset just after the terminator (-1 if not found)
+     */
+    private static int find(byte[] b, int i, int n, String s) {
+        for (; i < n; i++) {
+            if (startsWith(b, i, n, s)) {
+                return i + s.length();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Do the bytes at an offset match a string (of ASCII characters)?
+     *
+     * @param b the bytes
+     * @param i the offset
+     * @param n the number of bytes
+     * @param s the string
+     * @return true if they match
+     */
+    private static boolean startsWith(byte[] b, int i, int n, String s) {
+        int j;
+
+        if (i + s.length() > n) {
+            return false;
+        }
+        for (j = 0; j < s.length(); j++) {
+            if (b[i + j] != s.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip over white space.
+     *
+     * @param b the bytes
+     * @param i where to start
+     * @param n the number of bytes
+     * @return the offset of the first byte that is not white space (n if none)
+     */
+    private static int skipSpace(byte[] b, int i, int n) {
+        while (i < n && isSpace(b[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Is a byte XML white space?
+     *
+     * @param c the byte
+     * @return true if it is a space, tab, carriage return or line feed
+     */
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+}
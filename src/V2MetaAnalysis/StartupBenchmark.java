@@ -0,0 +1,278 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The StartupBenchmark measures how long V2MetaAnalysis takes to start. For a
+ * one off run over a handful of VEOs, most of the time is spent starting the
+ * JVM and loading the classes (V2MetaAnalysis, VERSCommon and the XML
+ * parser), so the measure is the time from the JVM starting to the first VEO
+ * being finished (the time to first VEO).
+ * <p>
+ * A sample VEO and control file are created in a temporary directory, and
+ * V2MetaAnalysis is run over them a number of times in new JVMs, each with
+ * the same class path as the benchmark. The JVMs are run without class data
+ * sharing, with the JDK's default class data sharing, and (if an archive is
+ * given) with the V2MetaAnalysis class data sharing archive. The median time
+ * to first VEO and the median elapsed time of each are reported.
+ * <p>
+ * The command line arguments are:
+ * <ul>
+ * <li>'-runs n': the number of runs of each JVM configuration (default 5).
+ * <li>'-archive file': the class data sharing archive built by 'ant cds'.
+ * <li>'-train': instead of running the benchmark, run V2MetaAnalysis over the
+ * sample in this JVM, producing each type of output. This is the training run
+ * used to build the class data sharing archive, as it loads the classes used
+ * by a typical run.
+ * </ul>
+ *
+ * @author Andrew
+ */
+public class StartupBenchmark {
+
+    Path dir;           // temporary directory holding the sample
+    Path controlFile;   // the sample control file
+    Path veo;           // the sample VEO
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    /**
+     * Create the sample VEO and control file in a temporary directory.
+     *
+     * @throws IOException if the sample could not be created
+     */
+    public StartupBenchmark() throws IOException {
+        StringBuilder sb;
+
+        dir = Files.createTempDirectory("V2MetaAnalysisBenchmark");
+        controlFile = dir.resolve("control.txt");
+        sb = new StringBuilder();
+        sb.append("! control file for the startup benchmark\n");
+        sb.append("VEOMetadata/vers:Title/vers:TitleWords\tnone\ttitle\n");
+        sb.append("VEOMetadata/vers:Agency/vers:AgencyIdentifier\t\tagency\n");
+        sb.append("VEOMetadata/vers:Date/vers:DateTimeCreated\tunknown\n");
+        sb.append("x\t\tfilename\n");
+        Files.write(controlFile, sb.toString().getBytes(StandardCharsets.UTF_8));
+        veo = dir.resolve("sample.veo");
+        sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<vers:VERSEncapsulatedObject xmlns:vers=\"http://www.prov.vic.gov.au/gservice/standard/pros99007.htm\">\n");
+        sb.append(" <vers:VEOFormatDescription>Startup benchmark</vers:VEOFormatDescription>\n");
+        sb.append(" <vers:SignedObject vers:VEOVersion=\"2.0\" vers:VEOType=\"Record\">\n");
+        sb.append("  <vers:ObjectContent>\n");
+        sb.append("   <vers:Record>\n");
+        sb.append("    <vers:RecordMetadata>\n");
+        sb.append("     <vers:Title><vers:TitleWords>Startup benchmark</vers:TitleWords></vers:Title>\n");
+        sb.append("     <vers:Agency><vers:AgencyIdentifier>VA 1234</vers:AgencyIdentifier></vers:Agency>\n");
+        sb.append("     <vers:Date><vers:DateTimeCreated>2001-01-01</vers:DateTimeCreated></vers:Date>\n");
+        sb.append("    </vers:RecordMetadata>\n");
+        sb.append("    <vers:Document><vers:Encoding><vers:DocumentData>SGVsbG8sIHdvcmxk</vers:DocumentData></vers:Encoding></vers:Document>\n");
+        sb.append("   </vers:Record>\n");
+        sb.append("  </vers:ObjectContent>\n");
+        sb.append(" </vers:SignedObject>\n");
+        sb.append("</vers:VERSEncapsulatedObject>\n");
+        Files.write(veo, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Training run: process the sample with each type of output, as a group
+     * output and as per VEO output files.
+     *
+     * @throws AppFatal if V2MetaAnalysis failed
+     * @throws IOException if the output directory could not be created
+     */
+    public void train() throws AppFatal, IOException {
+        String[] types = {"-xml", "-json", "-csv", "-tsv"};
+        Path out;
+        int i;
+
+        out = Files.createDirectories(dir.resolve("out"));
+        for (i = 0; i < types.length; i++) {
+            new V2MetaAnalysis(new String[]{"-cf", controlFile.toString(), "-cfcache", dir.resolve("cache").toString(), "-od", out.toString(), types[i], "-o", "group" + i, veo.toString()}).processVEOs();
+            new V2MetaAnalysis(new String[]{"-cf", controlFile.toString(), "-od", out.toString(), types[i], veo.toString()}).processVEOs();
+        }
+    }
+
+    /**
+     * Run V2MetaAnalysis over the sample in a new JVM a number of times, and
+     * report the median time to first VEO and elapsed time.
+     *
+     * @param name a description of the JVM configuration
+     * @param jvmArgs arguments to pass to the JVM
+     * @param runs the number of runs
+     * @throws AppFatal if a run failed
+     */
+    public void measure(String name, String[] jvmArgs, int runs) throws AppFatal {
+        ArrayList<String> cmd;
+        ProcessBuilder pb;
+        Process p;
+        String line;
+        long[] firstVEO, elapsed;
+        long start;
+        int i;
+
+        cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.addAll(Arrays.asList(jvmArgs));
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("V2MetaAnalysis.V2MetaAnalysis");
+        cmd.add("-v");
+        cmd.add("-cf");
+        cmd.add(controlFile.toString());
+        cmd.add("-od");
+        cmd.add(dir.toString());
+        cmd.add("-csv");
+        cmd.add("-o");
+        cmd.add("benchmark.csv");
+        cmd.add(veo.toString());
+        pb = new ProcessBuilder(cmd);
+        pb.redirectErrorStream(true);
+
+        firstVEO = new long[runs];
+        elapsed = new long[runs];
+        for (i = 0; i < runs; i++) {
+            firstVEO[i] = -1;
+            start = System.nanoTime();
+            try {
+                p = pb.start();
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                    while ((line = br.readLine()) != null) {
+                        if (line.startsWith("INFO: Time to first VEO: ")) {
+                            firstVEO[i] = Long.parseLong(line.substring(25, line.indexOf("ms")));
+                        } else if (line.startsWith("SEVERE: ") || line.startsWith("Error")) {
+                            LOG.log(Level.WARNING, "{0}: {1}", new Object[]{name, line});
+                        }
+                    }
+                }
+                if (p.waitFor() != 0) {
+                    throw new AppFatal("StartupBenchmark", 1, name + ": V2MetaAnalysis exited with status " + p.exitValue());
+                }
+            } catch (IOException | InterruptedException | NumberFormatException e) {
+                throw new AppFatal("StartupBenchmark", 2, name + ": failed running V2MetaAnalysis: " + e.getMessage());
+            }
+            elapsed[i] = RunStats.millis(System.nanoTime() - start);
+            if (firstVEO[i] == -1) {
+                throw new AppFatal("StartupBenchmark", 3, name + ": V2MetaAnalysis did not report the time to first VEO");
+            }
+        }
+        System.out.println(String.format("%-32s time to first VEO %5dms, elapsed %5dms (median of %d runs)", name, median(firstVEO), median(elapsed), runs));
+    }
+
+    /**
+     * Find the median of a set of times.
+     *
+     * @param times the times (sorted by this call)
+     * @return the median
+     */
+    static long median(long[] times) {
+        Arrays.sort(times);
+        return times[times.length / 2];
+    }
+
+    /**
+     * Remove the sample and anything produced from it.
+     */
+    public void cleanup() {
+        delete(dir);
+    }
+
+    /**
+     * Delete a file, or a directory and everything in it.
+     *
+     * @param p the file or directory
+     */
+    private static void delete(Path p) {
+        if (Files.isDirectory(p)) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(p)) {
+                for (Path entry : ds) {
+                    delete(entry);
+                }
+            } catch (IOException ioe) {
+                /* ignore */
+            }
+        }
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException ioe) {
+            /* ignore */
+        }
+    }
+
+    /**
+     * Main program.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        StartupBenchmark sb;
+        boolean train;
+        int runs, i;
+        Path archive;
+
+        train = false;
+        runs = 5;
+        archive = null;
+        sb = null;
+        try {
+            for (i = 0; i < args.length; i++) {
+                switch (args[i].toLowerCase()) {
+                    case "-train":
+                        train = true;
+                        break;
+                    case "-runs":
+                        i++;
+                        runs = Integer.parseInt(args[i]);
+                        if (runs < 1) {
+                            throw new AppFatal("StartupBenchmark", 4, "Number of runs (-runs) must be at least 1");
+                        }
+                        break;
+                    case "-archive":
+                        i++;
+                        archive = Paths.get(args[i]);
+                        break;
+                    default:
+                        throw new AppFatal("StartupBenchmark", 5, "Unrecognised argument '" + args[i] + "'. Usage: StartupBenchmark [-train] [-runs n] [-archive file]");
+                }
+            }
+            sb = new StartupBenchmark();
+            if (train) {
+                sb.train();
+                return;
+            }
+            sb.measure("No class data sharing", new String[]{"-Xshare:off"}, runs);
+            sb.measure("JDK class data sharing", new String[0], runs);
+            if (archive != null) {
+                if (Files.exists(archive)) {
+                    sb.measure("V2MetaAnalysis archive", new String[]{"-XX:SharedArchiveFile=" + archive.toAbsolutePath().toString()}, runs);
+                } else {
+                    LOG.log(Level.WARNING, "Class data sharing archive ''{0}'' does not exist (run ''ant cds'')", archive.toString());
+                }
+            }
+        } catch (AppFatal | IOException e) {
+            LOG.log(Level.SEVERE, e.getMessage());
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            LOG.log(Level.SEVERE, "Missing or invalid argument. Usage: StartupBenchmark [-train] [-runs n] [-archive file]");
+        } finally {
+            if (sb != null) {
+                sb.cleanup();
+            }
+        }
+    }
+}
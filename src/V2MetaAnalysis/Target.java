@@ -8,17 +8,17 @@ package V2MetaAnalysis;
 import VERSCommon.AppError;
 import VERSCommon.AppFatal;
 import java.io.IOException;
-import java.io.Writer;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import org.xml.sax.Attributes;
 
 /**
  * A Target is a XML tag to be harvested from a VEO. A target has element paths
- * (where to find it in the VEO), a tag (what to label it on output), an
- * optional default (what to output if it is not found), and a set of current
- * values and set of attributes (what has been found in the current VEO).
- * Targets are linked together as a linked list, with a null value at the end.
+ * (where to find it in the VEO), a tag (what to label it on output), and an
+ * optional default (what to output if it is not found). What has been found in
+ * the current VEO (the values and attributes) is held in a Harvest, indexed by
+ * the position of the target in the list. Targets are linked together as a
+ * linked list, with a null value at the end.
  *
  * Important: targets are leaf XML entities; non-leaf entities cannot be
  * harvested with this tool. The values of the XML entities are harvested as
@@ -26,11 +26,29 @@ import org.xml.sax.Attributes;
  *
  * An elempath is a string representation of the path from the root of the XML
  * document tree to an element tag. It consists of the concatenation of the
- * elements tags separated by '/'.
+ * elements tags separated by '/'. It may contain the wildcards '*' (any one
+ * element) and '//' (any number of elements); see PathMatcher.
  *
  * Targets may have multiple elempaths (e.g. a title may be in a FileVEO or a
  * RecordVEO with different elempaths, but will still match the one target).
  *
+ * A virtual target is not copied from the VEO but computed from the element
+ * it matches. A digest target (VIRTUAL_DIGEST) is the SHA-256 of the base64
+ * decoded content of the element (e.g. vers:DocumentData), with one value for
+ * each element matched. A format target (VIRTUAL_FORMAT) is the file format
+ * (e.g. PDF) of the decoded content, identified from its first bytes, and a
+ * size target (VIRTUAL_SIZE) is the size of the decoded content in bytes (see
+ * FormatIdentifier). A signatures target (VIRTUAL_SIGNATURES) matches no
+ * element; its values are the results of verifying each outer
+ * vers:SignatureBlock of the VEO.
+ *
+ * The elements of a modified VEO are in revision layers: the current version
+ * is layer 0, the version it revised (within its vers:RevisedVEO) is layer 1,
+ * and so on. A target may harvest every layer (the default), or only one.
+ *
+ * A target may have filters (see Filter), predicates on its values that
+ * decide whether the VEO is output at all.
+ *
  * Methods are provided to express the targeted information as an XML document,
  * a JSON structure, or a CSV/TSV file.
  *
@@ -40,12 +58,27 @@ public class Target {
 
     ArrayList<String> elemPath; // the element paths of the XML tag to harvest
     String tag;                 // the tag to label this targe
-    ArrayList<String> attributes; // any attributes associated with element
     String deflt;               // a default value to use if it is not found
-    ArrayList<String> value;    // the value from the current VEO
+    byte[] tagBytes;            // the tag encoded as UTF-8
+    byte[] defltBytes;          // the default value encoded as UTF-8 (null if no default)
+    int index;                  // position of this Target in the list (and in a Harvest)
+    int fileTag;                // FILE_NONE, FILE_PATH or FILE_NAME
+    int virtual;                // VIRTUAL_NONE, or the kind of virtual target
+    int layer;                  // the revision layer harvested (ALL_LAYERS if every layer)
+    Filter filter;              // predicates on the values of this target (null if none)
     Target next;                // next Target in list
     static boolean firstValue;  // true if outputing the first value in a list of targets
 
+    static final int FILE_NONE = 0; // an ordinary target
+    static final int FILE_PATH = 1; // the magic 'filepath' target
+    static final int FILE_NAME = 2; // the magic 'filename' target
+    static final int VIRTUAL_NONE = 0; // the value is copied from the VEO
+    static final int VIRTUAL_DIGEST = 1; // the value is the digest of the decoded content
+    static final int VIRTUAL_SIGNATURES = 2; // the values are the results of verifying the signatures
+    static final int VIRTUAL_FORMAT = 3; // the value is the file format of the decoded content
+    static final int VIRTUAL_SIZE = 4; // the value is the size of the decoded content
+    static final int ALL_LAYERS = -1; // values are harvested from every revision layer
+
     /**
      * Construct a new Target.
      *
@@ -56,6 +89,20 @@ public class Target {
      * @throws AppFatal if an error occurs that means the program must exit
      */
     public Target(ArrayList<String> elemPath, String deflt, String tag) throws AppFatal {
+        this(elemPath, deflt, tag, VIRTUAL_NONE);
+    }
+
+    /**
+     * Construct a new Target, which may be virtual.
+     *
+     * @param elemPath the full path of this tag in the VEO
+     * @param deflt a default value to use if none are found in the VEO
+     * @param tag a handle used to label this Target in the output. If the tag
+     * is null, the final element of the elemPath is used.
+     * @param virtual VIRTUAL_NONE, or the kind of virtual target
+     * @throws AppFatal if an error occurs that means the program must exit
+     */
+    public Target(ArrayList<String> elemPath, String deflt, String tag, int virtual) throws AppFatal {
 
         // sanity check
         if (elemPath == null) {
@@ -76,25 +123,99 @@ public class Target {
             }
         }
         this.deflt = deflt;
-        value = new ArrayList<>();
-        attributes = new ArrayList<>();
+        tagBytes = ByteSink.utf8(this.tag);
+        defltBytes = (deflt != null) ? ByteSink.utf8(deflt) : null;
+        index = 0;
+        this.virtual = virtual;
+        layer = ALL_LAYERS;
+        filter = null;
+        switch (this.tag.toLowerCase()) {
+            case "filepath":
+                fileTag = FILE_PATH;
+                break;
+            case "filename":
+                fileTag = FILE_NAME;
+                break;
+            default:
+                fileTag = FILE_NONE;
+                break;
+        }
     }
 
     /**
-     * Is the given elemPath one of the elemPaths for this target?
+     * Find the first virtual target of the given kind in the target list.
      *
-     * @param givenElemPath the elempath to check
-     * @return return true if the elempath is one of the target's elemPaths.
+     * @param kind the kind of virtual target
+     * @return the index of the target (-1 if there is none)
      */
-    public boolean matchElemPath(String givenElemPath) {
-        int i;
+    public int findVirtual(int kind) {
+        if (virtual == kind) {
+            return index;
+        } else if (next == null) {
+            return -1;
+        } else {
+            return next.findVirtual(kind);
+        }
+    }
 
-        for (i = 0; i < elemPath.size(); i++) {
-            if (givenElemPath.equals(elemPath.get(i))) {
-                return true;
-            }
+    /**
+     * Find the first target with the given tag in the target list.
+     *
+     * @param tag the tag
+     * @return the index of the target (-1 if there is none)
+     */
+    public int findTag(String tag) {
+        if (this.tag.equals(tag)) {
+            return index;
+        } else if (next == null) {
+            return -1;
+        } else {
+            return next.findTag(tag);
+        }
+    }
+
+    /**
+     * Add a predicate on the values of this target.
+     *
+     * @param f the filter
+     */
+    public void addFilter(Filter f) {
+        if (filter == null) {
+            filter = f;
+        } else {
+            filter.add(f);
+        }
+    }
+
+    /**
+     * Does the target list contain any filters?
+     *
+     * @return true if a target in the list has a filter
+     */
+    public boolean hasFilters() {
+        if (filter != null) {
+            return true;
+        } else if (next == null) {
+            return false;
+        } else {
+            return next.hasFilters();
+        }
+    }
+
+    /**
+     * Does the target list contain a virtual target of the given kind?
+     *
+     * @param kind the kind of virtual target
+     * @return true if a target of that kind is in the list
+     */
+    public boolean hasVirtual(int kind) {
+        if (virtual == kind) {
+            return true;
+        } else if (next == null) {
+            return false;
+        } else {
+            return next.hasVirtual(kind);
         }
-        return false;
     }
 
     /**
@@ -104,6 +225,7 @@ public class Target {
      */
     public void add(Target t) {
         if (next == null) {
+            t.index = index + 1;
             next = t;
         } else {
             next.add(t);
@@ -143,27 +265,22 @@ public class Target {
      * Two magic tag names are 'filename' and 'filepath'. These output the
      * filename or filepath of the VEO being processed.
      *
+     * @param h the harvest for the XML file being processed
      * @param p the XML file being processed
      */
-    public void setFile(Path p) {
-        if (tag.toLowerCase().equals("filepath")) {
-            value.add(p.toString());
-        } else if (tag.toLowerCase().equals("filename")) {
-            value.add(p.getFileName().toString());
-        }
-        if (next != null) {
-            next.setFile(p);
+    public void setFile(Harvest h, Path p) {
+        switch (fileTag) {
+            case FILE_PATH:
+                h.addValue(index, p.toString());
+                break;
+            case FILE_NAME:
+                h.addValue(index, p.getFileName().toString());
+                break;
+            default:
+                break;
         }
-    }
-
-    /**
-     * Reset this target for another XML document
-     */
-    public void clear() {
-        value.clear();
-        attributes.clear();
         if (next != null) {
-            next.clear();
+            next.setFile(h, p);
         }
     }
 
@@ -172,14 +289,11 @@ public class Target {
      * instances of the target are found in the XML document, all of the
      * attributes will be collected together higgldy piggldy.
      *
+     * @param h the harvest for the XML file being processed
      * @param attributes attributes found in the parse
      */
-    public void addAttributes(Attributes attributes) {
-        if (attributes != null) {
-            for (int i = 0; i < attributes.getLength(); i++) {
-                this.attributes.add(attributes.getQName(i) + "=\"" + attributes.getValue(i).trim() + "\"");
-            }
-        }
+    public void addAttributes(Harvest h, Attributes attributes) {
+        h.addAttributes(index, attributes);
     }
 
     /**
@@ -189,59 +303,74 @@ public class Target {
      * attributes are ignored.
      *
      * @param w the writer to output the information object
+     * @param h the values harvested from the VEO
      * @throws java.io.IOException if the writer fails
      */
-    public void toCSV(Writer w) throws IOException {
-        toXSV(w, ',', true);
+    public void toCSV(ByteSink w, Harvest h) throws IOException {
+        toXSV(w, h, ',', true);
     }
 
-    public void toTSV(Writer w) throws IOException {
-        toXSV(w, '\t', true);
+    public void toTSV(ByteSink w, Harvest h) throws IOException {
+        toXSV(w, h, '\t', true);
     }
 
-    private void toXSV(Writer w, char separator, boolean firstValue) throws IOException {
-        int i;
-        String s;
+    private void toXSV(ByteSink w, Harvest h, char separator, boolean firstValue) throws IOException {
+        int i, n;
+        int[] v;
 
         if (!firstValue) {
-            w.append(separator);
+            w.write(separator);
         }
-        if (value.isEmpty()) {
-            if (deflt != null) {
-                w.append(escapeSeparators(deflt, separator));
+        n = h.valueCount[index];
+        if (n == 0) {
+            if (defltBytes != null) {
+                escapeSeparators(w, defltBytes, 0, defltBytes.length, separator);
             }
         } else {
-            for (i = 0; i < value.size(); i++) {
-                s = value.get(i);
-                if (s != null) {
-                    w.append(escapeSeparators(s, separator));
-                }
-                if (i < value.size() - 1) {
-                    w.append("$$");
+            v = h.values[index];
+            for (i = 0; i < n; i++) {
+                escapeSeparators(w, h.arena, v[i * 2], v[i * 2 + 1], separator);
+                if (i < n - 1) {
+                    w.write("$$");
                 }
             }
         }
         if (next != null) {
-            next.toXSV(w, separator, false);
+            next.toXSV(w, h, separator, false);
         }
     }
 
     /**
      * Strings may contain the separator. If so, wrap the string with double
-     * quotes (but escape any double quotes *in* this string).
+     * quotes. (Historically this also attempted to escape any double quotes
+     * *in* the string, but the replacement never inserted anything, so double
+     * quotes are written unchanged.)
      *
-     * @param in the string to check
+     * @param w the sink to output the string
+     * @param c array containing the string (as UTF-8)
+     * @param off offset of the string in the array
+     * @param len length of the string
      * @param separator the intended separator (comma or tab)
-     * @return a safe string
+     * @throws IOException if the writer fails
      */
-    private String escapeSeparators(String in, char separator) {
-        if ((separator == ',' && in.contains(",")) || (separator == '\t' && in.contains("\t"))) {
-            if (in.contains("\"")) {
-                in = in.replaceAll("\"", "\\\"");
+    private void escapeSeparators(ByteSink w, byte[] c, int off, int len, char separator) throws IOException {
+        int i;
+        boolean quote;
+
+        quote = false;
+        for (i = off; i < off + len; i++) {
+            if (c[i] == separator) {
+                quote = true;
+                break;
             }
-            in = "\"" + in + "\"";
         }
-        return in;
+        if (quote) {
+            w.write('"');
+        }
+        w.write(c, off, len);
+        if (quote) {
+            w.write('"');
+        }
     }
 
     /**
@@ -252,7 +381,7 @@ public class Target {
      * @param t list of targets
      * @throws AppFatal if we cannot continue processing
      */
-    static public void TSVpreamble(Writer w, Target t) throws AppFatal {
+    static public void TSVpreamble(ByteSink w, Target t) throws AppFatal {
         outputTags(w, t, "\t");
     }
 
@@ -262,7 +391,7 @@ public class Target {
      * @param w output writer
      * @throws AppError if we cannot continue processing
      */
-    static public void TSVpostamble(Writer w) throws AppError {
+    static public void TSVpostamble(ByteSink w) throws AppError {
     }
 
     /**
@@ -273,7 +402,7 @@ public class Target {
      * @param t list of targets
      * @throws AppFatal if we cannot continue processing
      */
-    static public void CSVpreamble(Writer w, Target t) throws AppFatal {
+    static public void CSVpreamble(ByteSink w, Target t) throws AppFatal {
         outputTags(w, t, ",");
     }
 
@@ -283,7 +412,7 @@ public class Target {
      * @param w output writer
      * @throws AppError if we cannot continue processing
      */
-    static public void CSVpostamble(Writer w) throws AppError {
+    static public void CSVpostamble(ByteSink w) throws AppError {
     }
 
     /**
@@ -294,7 +423,7 @@ public class Target {
      * @param sep separator to use (tab or comma)
      * @throws AppFatal if we cannot continue processing
      */
-    static public void outputTags(Writer w, Target t, String sep) throws AppFatal {
+    static public void outputTags(ByteSink w, Target t, String sep) throws AppFatal {
         boolean first = true;
         try {
             while (t != null) {
@@ -325,58 +454,53 @@ public class Target {
      * processes the list of targeted elements and actually does the work.
      *
      * @param w the writer to output the information object
+     * @param h the values harvested from the VEO
      * @throws java.io.IOException if the writer fails
      */
-    public void toJSON(Writer w) throws IOException {
+    public void toJSON(ByteSink w, Harvest h) throws IOException {
         w.write("{\n");
-        toJSONRest(w, true);
+        toJSONRest(w, h, true);
         w.write("}");
     }
 
-    private void toJSONRest(Writer w, boolean firstValue) throws IOException {
-        int i;
-        String s;
+    private void toJSONRest(ByteSink w, Harvest h, boolean firstValue) throws IOException {
+        int i, n;
+        int[] v;
 
         if (!firstValue) {
-            w.append(",\n");
-        }
-        w.append(" \"");
-        w.append(tag);
-        w.append("\": ");
-        if (value.isEmpty()) {
-            if (deflt != null) {
-                w.append("\"" + deflt + "\"");
-            } else {
-                w.append("\"null\"");
-            }
-        } else if (value.size() == 1) {
-            w.append("\"");
-            s = value.get(0);
-            if (s != null) {
-                w.append(s);
+            w.write(",\n");
+        }
+        w.write(" \"");
+        w.write(tagBytes);
+        w.write("\": ");
+        n = h.valueCount[index];
+        v = h.values[index];
+        if (n == 0) {
+            if (defltBytes != null) {
+                w.write('"');
+                w.write(defltBytes);
+                w.write('"');
             } else {
-                w.append("null");
+                w.write("\"null\"");
             }
-            w.append("\"");
+        } else if (n == 1) {
+            w.write('"');
+            w.write(h.arena, v[0], v[1]);
+            w.write('"');
         } else {
-            w.append("[\n");
-            for (i = 0; i < value.size(); i++) {
-                w.append("  {\"");
-                s = value.get(i);
-                if (s != null) {
-                    w.append(s);
-                } else {
-                    w.append("null");
-                }
-                w.append("\"}");
-                if (i < value.size() - 1) {
-                    w.append(",\n");
+            w.write("[\n");
+            for (i = 0; i < n; i++) {
+                w.write("  {\"");
+                w.write(h.arena, v[i * 2], v[i * 2 + 1]);
+                w.write("\"}");
+                if (i < n - 1) {
+                    w.write(",\n");
                 }
             }
-            w.append("]");
+            w.write("]");
         }
         if (next != null) {
-            next.toJSONRest(w, false);
+            next.toJSONRest(w, h, false);
         }
     }
 
@@ -387,9 +511,9 @@ public class Target {
      * @param w output writer
      * @throws AppError if this VEO has to be abandoned
      */
-    static public void JSONpreamble(Writer w) throws AppError {
+    static public void JSONpreamble(ByteSink w) throws AppError {
         try {
-            w.append("{\"report\":[");
+            w.write("{\"report\":[");
         } catch (IOException ioe) {
             throw new AppError("Failed writing JSON output");
         }
@@ -402,9 +526,9 @@ public class Target {
      * @param w output writer
      * @throws AppError if this VEO has to be abandoned
      */
-    static public void JSONpostamble(Writer w) throws AppError {
+    static public void JSONpostamble(ByteSink w) throws AppError {
         try {
-            w.append("]}");
+            w.write("]}");
         } catch (IOException ioe) {
             throw new AppError("Failed writing JSON output");
         }
@@ -414,64 +538,75 @@ public class Target {
      * Convert this information object into XML on the output writer
      *
      * @param w the writer to output the information object
+     * @param h the values harvested from the VEO
      * @throws java.io.IOException if the writer fails
      */
-    public void toXML(Writer w) throws IOException, AppError {
+    public void toXML(ByteSink w, Harvest h) throws IOException, AppError {
         w.write("<Report>\n");
-        toXMLRest(w, true);
+        toXMLRest(w, h, true);
         w.write("\n</Report>");
     }
 
-    public void toXMLRest(Writer w, boolean firstValue) throws IOException, AppError {
-        int i;
+    public void toXMLRest(ByteSink w, Harvest h, boolean firstValue) throws IOException, AppError {
+        int i, n;
+        int[] v;
 
         if (!firstValue) {
-            w.append("\n");
+            w.write("\n");
         }
 
         // if value is empty, write the default if present. Otherwise, write
         // the list of values as a sequence of values.
-        if (value.isEmpty()) {
-            outputElement(w, tag, deflt);
+        n = h.valueCount[index];
+        if (n == 0) {
+            if (defltBytes != null) {
+                outputElement(w, h, defltBytes, 0, defltBytes.length);
+            } else {
+                outputElement(w, h, null, 0, 0);
+            }
         } else {
-            for (i = 0; i < value.size(); i++) {
-                outputElement(w, tag, value.get(i));
-                if (i < value.size() - 1) {
-                    w.append("\n");
+            v = h.values[index];
+            for (i = 0; i < n; i++) {
+                outputElement(w, h, h.arena, v[i * 2], v[i * 2 + 1]);
+                if (i < n - 1) {
+                    w.write("\n");
                 }
             }
         }
-        
+
         // recurse
         if (next != null) {
-            next.toXMLRest(w, false);
+            next.toXMLRest(w, h, false);
         }
     }
 
     /**
      * Output a target as an XML element.
-     * 
+     *
      * @param w output writer
-     * @param tag tag of XML element
-     * @param value value of XML element (may be null)
+     * @param h the values harvested from the VEO
+     * @param c array containing the value of the XML element as UTF-8 (null if
+     * none)
+     * @param off offset of the value in the array
+     * @param len length of the value
      * @throws IOException
      */
-    private void outputElement(Writer w, String tag, String value) throws IOException {
-        
+    private void outputElement(ByteSink w, Harvest h, byte[] c, int off, int len) throws IOException {
+
         // start tag
-        w.append(" <");
-        w.append(tag);
+        w.write(" <");
+        w.write(tagBytes);
 
         // include attributes (if any)
-        outputAttrs(w);
-        if (value != null) {
-            w.append(">");
-            w.append(xmlEncode(value));
-            w.append("</");
-            w.append(tag);
-            w.append(">");
+        outputAttrs(w, h);
+        if (c != null) {
+            w.write(">");
+            xmlEncode(w, c, off, len);
+            w.write("</");
+            w.write(tagBytes);
+            w.write(">");
         } else {
-            w.append("/>");
+            w.write("/>");
         }
     }
 
@@ -479,82 +614,118 @@ public class Target {
      * Output the attributes as XML
      *
      * @param w output writer
+     * @param h the values harvested from the VEO
      * @throws IOException the writing failied
      */
-    private void outputAttrs(Writer w) throws IOException {
+    private void outputAttrs(ByteSink w, Harvest h) throws IOException {
         int i;
-
-        if (attributes != null) {
-            for (i = 0; i < attributes.size(); i++) {
-                w.append(" ");
-                w.append(attributes.get(i));
-            }
+        int[] a;
+
+        a = h.attrs[index];
+        for (i = 0; i < h.attrCount[index]; i++) {
+            w.write(" ");
+            w.write(h.arena, a[i * 4], a[i * 4 + 1]);
+            w.write("=\"");
+            w.write(h.arena, a[i * 4 + 2], a[i * 4 + 3]);
+            w.write("\"");
         }
     }
 
-    static public void XMLpreamble(Writer w) throws AppError {
+    static public void XMLpreamble(ByteSink w) throws AppError {
         try {
-            w.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\" ?>\n");
-            w.append("<report>\n");
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\" ?>\n");
+            w.write("<report>\n");
         } catch (IOException ioe) {
             throw new AppError("Failed writing JSON output");
         }
     }
 
-    static public void XMLpostamble(Writer w) throws AppError {
+    static public void XMLpostamble(ByteSink w) throws AppError {
         try {
-            w.append("</report>\n");
+            w.write("</report>\n");
         } catch (IOException ioe) {
             throw new AppError("Failed writing JSON output");
         }
     }
 
     /**
-     * XML encode string
+     * XML encode a slice of a UTF-8 byte array directly onto a sink. This
+     * performs the same encoding as Information.xmlEncode() without creating
+     * any intermediate strings. The bytes of a multi-byte UTF-8 character are
+     * never ASCII, so the special characters can be found byte by byte.
      *
-     * Make sure any XML special characters in a string are encoded
-     *
-     * @param in the String to encode
-     * @return the encoded string
+     * @param w the sink
+     * @param c the array containing the UTF-8 to encode
+     * @param off offset of the first byte
+     * @param len number of bytes
+     * @throws IOException if the sink fails
      */
-    public String xmlEncode(String in) {
-        StringBuffer out;
-        int i;
-        char c;
+    private static void xmlEncode(ByteSink w, byte[] c, int off, int len) throws IOException {
+        int i, start, end;
 
-        if (in == null) {
-            return null;
-        }
-        out = new StringBuffer();
-        for (i = 0; i < in.length(); i++) {
-            c = in.charAt(i);
-            switch (c) {
+        start = off;
+        end = off + len;
+        for (i = off; i < end; i++) {
+            switch (c[i]) {
                 case '&':
-                    if (!in.regionMatches(true, i, "&amp;", 0, 5)
-                            && !in.regionMatches(true, i, "&lt;", 0, 4)
-                            && !in.regionMatches(true, i, "&gt;", 0, 4)
-                            && !in.regionMatches(true, i, "&quot;", 0, 6)
-                            && !in.regionMatches(true, i, "&apos;", 0, 6)) {
-                        out.append("&amp;");
+                    w.write(c, start, i - start);
+                    start = i + 1;
+                    if (!regionMatches(c, i, end, "&amp;")
+                            && !regionMatches(c, i, end, "&lt;")
+                            && !regionMatches(c, i, end, "&gt;")
+                            && !regionMatches(c, i, end, "&quot;")
+                            && !regionMatches(c, i, end, "&apos;")) {
+                        w.write("&amp;");
                     }
                     break;
                 case '<':
-                    out.append("&lt;");
+                    w.write(c, start, i - start);
+                    start = i + 1;
+                    w.write("&lt;");
                     break;
                 case '>':
-                    out.append("&gt;");
+                    w.write(c, start, i - start);
+                    start = i + 1;
+                    w.write("&gt;");
                     break;
                 case '"':
-                    out.append("&quot;");
+                    w.write(c, start, i - start);
+                    start = i + 1;
+                    w.write("&quot;");
                     break;
                 case '\'':
-                    out.append("&apos;");
+                    w.write(c, start, i - start);
+                    start = i + 1;
+                    w.write("&apos;");
                     break;
                 default:
-                    out.append(c);
                     break;
             }
         }
-        return (out.toString());
+        w.write(c, start, end - start);
+    }
+
+    /**
+     * Does the byte array at position i start with the given ASCII string
+     * (ignoring case)?
+     *
+     * @param c the byte array
+     * @param i the position to check
+     * @param end the end of the valid characters in the array
+     * @param s the string to look for
+     * @return true if the string is present
+     */
+    private static boolean regionMatches(byte[] c, int i, int end, String s) {
+        int j;
+
+        if (end - i < s.length()) {
+            return false;
+        }
+        for (j = 0; j < s.length(); j++) {
+            if (Character.toLowerCase((char) c[i + j]) != Character.toLowerCase(s.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
     }
 }
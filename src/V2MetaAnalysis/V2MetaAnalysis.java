@@ -8,21 +8,29 @@ package V2MetaAnalysis;
 import VERSCommon.AppError;
 import VERSCommon.AppFatal;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.nio.file.DirectoryStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,6 +47,12 @@ import java.util.logging.Logger;
  * <li> list of VEOs (or directories of VEOs) to process.</li>
  * </ul>
  * <p>
+ * Every file ending in '.veo' or '.xml' is a candidate VEO, but the first few
+ * KB of each are looked at before it is parsed (see Sniffer), and files whose
+ * root element is not a vers:VERSEncapsulatedObject (e.g. manifests, schemas
+ * and logs) are skipped without being parsed. The number of files skipped,
+ * by reason, is reported at the end of the run.
+ * <p>
  * The information extracted can be expressed as XML, JSON, tab separated
  * variables (TSV) or comma separated variables (CSV). The following command
  * line arguments are used to select the output format:
@@ -82,6 +96,22 @@ import java.util.logging.Logger;
  * directory specified by the '-od' command (if present), or in the current
  * working directory (if not).
  * <p>
+ * Several control files can be given, each with its own output (e.g. '-cf
+ * a.txt -o a.json -cf b.txt -csv -stdout'). The output type and output file
+ * arguments apply to the control file named before them (arguments before
+ * the first '-cf' apply to the first). The targets of all the control files
+ * are merged, so each VEO is parsed only once (see Report), and the filters
+ * in each control file only decide what is output for that control file.
+ * Only one control file can write to standard out. When producing output files
+ * per VEO for several control files, the name of each output file has the
+ * name of the control file added (e.g. 'test-b.json'). A database or index
+ * can only be built from one control file.
+ * <p>
+ * A control file can also have several outputs (e.g. '-cf a.txt -o a.csv -o
+ * a.json'). Each '-o' (or '-stdout') after the first for a control file adds
+ * another output; its output type is inferred from the file name, or given by
+ * a type argument following it. The VEOs are parsed once for all the outputs.
+ * <p>
  * The other optional command line arguments are:
  * <ul>
  * <li>'-c': chatty mode. Report on stderr when a new VEO is commenced.
@@ -90,13 +120,165 @@ import java.util.logging.Logger;
  * <li>'-d': debug output. Include lots more detail - mainly intended to debug
  * problems with the program.</li>
  * </ul>
+ * <p>
+ * When all the output goes to one file (or standard out), the output is
+ * written by a separate thread so that parsing continues while the output is
+ * being written. The following optional arguments control this:
+ * <ul>
+ * <li>'-flushbytes n': the size of each output buffer. Output is
+ * handed to the writer thread when a buffer holds this many bytes (default
+ * 1MB).</li>
+ * <li>'-outbuffers n': the number of output buffers (default 2). Each group
+ * output has its own buffers and writer thread; with more buffers, full
+ * buffers queue for the writer, so a slow output falls further behind before
+ * holding up parsing (and the other outputs).</li>
+ * <li>'-flushms n': output is also handed to the writer thread at the end of a
+ * VEO if it has been waiting for more than this many milliseconds (default
+ * 1000). The time is only checked between VEOs, so output from a VEO that
+ * takes a long time to parse can wait for longer than this.</li>
+ * <li>'-sync': force the output to the storage device after each buffer is
+ * written, and when the output file is closed.</li>
+ * </ul>
+ * <p>
+ * VEOs are read ahead of the parser by a separate thread so that reading
+ * overlaps with parsing. The following optional arguments control this:
+ * <ul>
+ * <li>'-prefetch n': the number of VEOs to read ahead (default 4). 0 turns
+ * off read ahead.</li>
+ * <li>'-prefetchmem n': the memory (in megabytes) to use for VEOs that have
+ * been read ahead (default 64). VEOs larger than this divided by the number
+ * read ahead are read by the parser directly from the file.</li>
+ * </ul>
+ * <p>
+ * VEOs can be processed by several threads at once:
+ * <ul>
+ * <li>'-threads n': the number of threads parsing VEOs (default 1). If more
+ * than one, all the VEOs are found (and their sizes noted) before processing
+ * starts, and the VEOs are processed largest first so that a large VEO found
+ * late does not hold up the end of the run. The group output still contains
+ * the VEOs in the order they were found; to bound the output held until it
+ * can be written, only the VEOs of 8MB or more are then processed first, and
+ * the others largest first within windows of 4096 VEOs in the order
+ * found.</li>
+ * <li>'-virtual': (Java 21 or later) process each VEO in its own virtual
+ * thread. Each thread reads its VEO into memory and then waits its turn to
+ * parse it; '-threads n' limits the number of VEOs being parsed at once
+ * (default, the number of processors) and '-prefetchmem n' limits the memory
+ * used to hold VEOs that have been read but not parsed. At most 16 times as
+ * many VEOs as are parsed at once are started (being read, or waiting for a
+ * parser) at any time. This suits VEOs on high latency (e.g. network)
+ * storage, where many reads need to be outstanding to keep the parsers
+ * busy.</li>
+ * </ul>
+ * <p>
+ * The control file may also contain filters, so that only the VEOs of
+ * interest are output (e.g. those from one agency). A filter is a line
+ * '@filter tag test value' (tab separated) following the line defining the
+ * target with the tag. The test is 'equals', 'prefix', 'regex' (the whole
+ * value must match) or 'exists' (no value). A VEO is output if, for every
+ * filter, some value of the target passes the test. Parsing of a VEO stops as
+ * soon as a filter is known to have failed (see V2Parser), so VEOs that are
+ * filtered out cost little.
+ * <p>
+ * '-cfcache dir': keep a binary copy of each control file read in the given
+ * directory (see ControlFileCache). A later run with an unchanged control
+ * file loads the copy rather than parsing the control file.
+ * <p>
+ * '-regions dir': keep an index of the byte offsets of the large elements in
+ * each VEO (e.g. revision layers and document data) in the given directory
+ * (see RegionIndex). The first run builds the index as the VEOs are parsed;
+ * later runs (with any control file) skip over the elements that no target
+ * needs, without reading them. The entry for a VEO is rebuilt if the VEO's
+ * size or modification time changes. Nothing is skipped when verifying
+ * signatures.
+ * <p>
+ * '-dedup dir': skip the VEOs whose contents (SHA-256) are identical to a VEO
+ * already processed (in this run or an earlier run using the same directory),
+ * e.g. in a transfer that was submitted twice. A VEO only counts as processed
+ * if it was harvested and passed the filters, so a later copy of a VEO that
+ * failed is still processed. While one copy is being processed, the threads
+ * given other copies wait for it rather than parsing them too. The set of
+ * contents seen is kept in the given directory (see DuplicateSet), which
+ * also lists each duplicate found with the path of the first copy (whose
+ * output it would have repeated) in 'duplicates.tsv'. The VEOs read ahead are
+ * hashed as they are read; others (e.g. those too big to read ahead) are
+ * read twice, once to be hashed and again to be parsed. The limits on the
+ * size of a VEO and the time taken (below) also apply to reading a VEO to
+ * hash it.
+ * <p>
+ * A malformed or malicious VEO can be stopped from holding up or exhausting
+ * the memory of a run by limiting the resources used on each VEO (see
+ * Limits). A VEO that exceeds a limit is abandoned, and counted as failed
+ * with the limit it exceeded; processing moves on to the next VEO. By
+ * default, nothing is limited:
+ * <ul>
+ * <li>'-maxtime n': parsing a VEO may take at most n milliseconds (as may
+ * reading it to be hashed, with '-dedup').</li>
+ * <li>'-maxdepth n': elements may be nested at most n deep.</li>
+ * <li>'-maxelements n': a VEO may contain at most n elements.</li>
+ * <li>'-maxbytes n': a VEO may be at most n bytes long.</li>
+ * <li>'-maxvalue n': at most n characters of text may be held while
+ * harvesting (i.e. the largest value harvested).</li>
+ * </ul>
+ * <p>
+ * Rather than producing output files, the information extracted can be
+ * loaded straight into a SQL database (see DatabaseSink):
+ * <ul>
+ * <li>'-db url': load the VEOs into the database with the given JDBC URL
+ * (e.g. 'jdbc:h2:file:/data/veos'). The JDBC driver must be on the class
+ * path. The tables are created (or extended) from the control file. The
+ * output type and output file arguments are not used.</li>
+ * <li>'-dbcommit n': commit every n VEOs (default 1000).</li>
+ * </ul>
+ * <p>
+ * Alternatively, an index can be built from the values harvested to the VEOs
+ * they came from (see IndexBuilder and IndexQuery):
+ * <ul>
+ * <li>'-index dir': build an index in the given directory, replacing any
+ * index already there. The output type and output file arguments are not
+ * used.</li>
+ * <li>'-indexon tag,...': index the values of these targets only (default,
+ * all the targets except filename and filepath).</li>
+ * <li>'-query dir [-count] term...': (must be the first argument) list the
+ * VEOs in the index in the given directory that match all the terms. A term
+ * is 'value', 'tag=value', or either ending in '*' to match values starting
+ * with 'value'.</li>
+ * </ul>
+ * <p>
+ * VEOs can be processed as they arrive (e.g. in a directory that transfers
+ * are dropped into):
+ * <ul>
+ * <li>'-watch': process the VEOs in the listed directories, then keep
+ * watching the directories (and their subdirectories), processing each new
+ * or rewritten VEO as it arrives. The directories are not rescanned; the
+ * file system reports the changes. Records are added to the group output as
+ * VEOs are processed (or output files are created for each VEO). VEOs are
+ * processed one at a time. Stop the program (e.g. control-C) to finish; the
+ * output is closed normally.</li>
+ * <li>'-settle n': a VEO is only processed once its size and modification
+ * time have been seen unchanged n milliseconds (default 2000) apart, so that
+ * VEOs still being written are not processed.</li>
+ * </ul>
+ * <p>
+ * To avoid starting a JVM for each run, V2MetaAnalysis can run as a daemon
+ * that accepts jobs over a local socket (see Daemon):
+ * <ul>
+ * <li>'-daemon port [-jobs n]': (must be the first argument) listen for jobs
+ * on the given port of the loopback interface, running up to n jobs at once
+ * (default 2). Only the user running the daemon can submit jobs: each
+ * request must carry a random token that the daemon writes to
+ * '.v2metaanalysis/daemon-port.token' in that user's home directory.</li>
+ * <li>'-submit port ...': (must be the first argument) submit the rest of
+ * the command line as a job to the daemon listening on the given port, and
+ * wait for it to complete. '-submit port -stopdaemon' stops the daemon.</li>
+ * </ul>
  *
  * @author Andrew Waugh
  */
 public class V2MetaAnalysis {
 
     String classname = "V2MetaAnalysis";
-    Path controlFile;   // file that controls processing of the VEOs
+    ArrayList<Report> reports; // the output to produce from each control file
     boolean chatty;     // true if report when starting a new VEO
     boolean error;      // true if produce a summary error report
     boolean debug;      // true if debugging information is to be generated
@@ -104,10 +286,11 @@ public class V2MetaAnalysis {
     boolean norec;      // true if asked to not complain about missing recommended metadata elements
     boolean hasErrors;  // true if VEO had errors
     ArrayList<String> fileOrDirectories; // The fileOrDirectories to process
-    Target targets;     // the metadata elements to pick from a VEO
+    Target targets;     // the metadata elements to pick from a VEO (for all the reports)
     V2Parser pv;        // parser and processor for VEOs
+    Harvest harvest;    // values harvested from the current VEO (reused)
+    Harvest[] views;    // the harvest as seen by each report
     Information info;   // results of processing VEO
-    boolean firstVEO;   // true if this is the first VEO to be processed
     private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
 
     // where the output is to go
@@ -120,10 +303,34 @@ public class V2MetaAnalysis {
         TSV, // output will be a text file with tab separated values
         CSV             // output will be a text file with comma separared values
     }
-    OutputType outputType; // how the output is to be expressed
-    boolean groupOutput;// true if all output is to go to one file
-    boolean stdout;     // write output to standard out
-    Path outputFile;    // file in which the output is to go
+    int flushBytes;     // size of each group output buffer
+    int outBuffers;     // number of buffers for each group output
+    long flushMillis;   // maximum time group output waits before being written
+    boolean durable;    // true if group output is to be forced to disk
+    PerFileOutput perFile; // creates the output files when not producing group output
+    ConcurrentHashMap<Path, Boolean> inputIsOutputDir; // true if a VEO directory is the output directory
+    int prefetchDepth;  // number of VEOs to read ahead of the parser
+    long prefetchMem;   // memory to use for VEOs read ahead
+    int threads;        // number of threads parsing VEOs (0 if not specified)
+    boolean virtual;    // true if each VEO is processed in its own virtual thread
+    static final int STARTED = 16; // virtual threads that may be started for each VEO being parsed
+    volatile AppFatal fatal; // fatal error that stopped a parsing thread
+    Path baseDir;       // directory relative file names are resolved against (null for the current directory)
+    static ConcurrentHashMap<Path, CompiledControlFile> compiled = new ConcurrentHashMap<>(); // control files already read (daemon mode)
+    ControlFileCache cfCache; // binary copies of control files already read (null if not used)
+    RegionIndex regionIndex; // offsets of the large elements in the VEOs (null if not used)
+    Limits limits;      // limits on the resources used on each VEO
+    Path dedupDir;      // directory holding the contents of the VEOs already processed (null if not detecting duplicates)
+    DuplicateSet dupSet; // contents of the VEOs already processed (null if not detecting duplicates)
+    boolean watch;      // true if watching the directories for VEOs as they arrive
+    long settleMillis;  // how long a VEO must be unchanged before it is processed (watch mode)
+    String dbURL;       // JDBC URL of the database to load the VEOs into (null if none)
+    int dbCommit;       // number of VEOs loaded into the database between commits
+    DatabaseSink db;    // loads the VEOs into the database (null if not loading)
+    Path indexDir;      // directory to build an index of the values in (null if none)
+    ArrayList<String> indexTags; // tags of the targets to index (null for all)
+    IndexBuilder index; // builds the index (null if not indexing)
+    RunStats stats;     // statistics about this run
     Writer commentary;  // where to place errors and diagnostics
 
     /**
@@ -158,6 +365,9 @@ public class V2MetaAnalysis {
         // add LOG handler from calling program
         LOG.addHandler(hndlr);
 
+        // default settings
+        initialise();
+
         // default logging
         LOG.getParent().setLevel(Level.WARNING);
         LOG.setLevel(null);
@@ -165,11 +375,11 @@ public class V2MetaAnalysis {
         if (controlFile == null || !Files.isRegularFile(controlFile)) {
             throw new AppFatal("Specified control file is null or is not a file");
         }
-        this.controlFile = controlFile;
+        reports.get(0).controlFile = controlFile;
         if (outputDir == null || !Files.isDirectory(outputDir)) {
             throw new AppFatal("Specified output directory is null or is not a directory");
         }
-        this.outputFile = outputDir;
+        reports.get(0).outputFile = outputDir;
         this.chatty = chatty;
         this.error = error;
         this.verbose = verbose;
@@ -184,8 +394,8 @@ public class V2MetaAnalysis {
         fileOrDirectories = null;
         targets = null;
         hasErrors = false;
-        readTargets(controlFile);
-        pv = new V2Parser(targets);
+        reports.get(0).targets = readTargets(controlFile);
+        setupParser();
         info = null;
     }
 
@@ -201,29 +411,164 @@ public class V2MetaAnalysis {
         LOG.setLevel(null);
         initialise();
         configure(args);
-        readTargets(controlFile);
-        pv = new V2Parser(targets);
+        setupParser();
+        info = null;
+    }
+
+    /**
+     * Initialise a job run by the daemon. The job is described by the same
+     * arguments as the command line. Relative file names are resolved against
+     * the directory the job was submitted from, and control files are read
+     * once and reused by later jobs (as long as they have not changed).
+     *
+     * @param args the arguments describing the job
+     * @param baseDir the directory the job was submitted from
+     * @throws VERSCommon.AppFatal if the job is invalid
+     */
+    V2MetaAnalysis(String args[], Path baseDir) throws AppFatal {
+        int i;
+
+        initialise();
+        this.baseDir = baseDir;
+        outputDir = baseDir;
+        configure(args);
+        for (i = 0; i < reports.size(); i++) {
+            if (reports.get(i).stdout) {
+                throw new AppFatal(classname, 10, "A job run by the daemon cannot write to standard out (-stdout)");
+            }
+        }
+        if (watch) {
+            throw new AppFatal(classname, 10, "A job run by the daemon cannot watch for VEOs (-watch)");
+        }
+        setupParser();
         info = null;
     }
 
+    /**
+     * Load the targets of each report (if not already loaded), merge them
+     * into the list of targets to harvest, and create the parser.
+     *
+     * @throws AppFatal if a control file could not be read
+     */
+    private void setupParser() throws AppFatal {
+        Report r;
+        int i;
+
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            if (r.targets == null) {
+                r.targets = loadTargets(r.controlFile);
+            }
+        }
+        targets = Report.share(reports);
+        pv = new V2Parser(targets, reports.size());
+        pv.setRegionIndex(regionIndex);
+        pv.setLimits(limits);
+        harvest = new Harvest(targets);
+        views = new Harvest[reports.size()];
+        for (i = 0; i < reports.size(); i++) {
+            views[i] = reports.get(i).view(harvest);
+        }
+    }
+
+    /**
+     * A control file that has been read, and the size and modification time
+     * of the file when it was read.
+     */
+    private static class CompiledControlFile {
+
+        String stamp;       // size and modification time
+        Target targets;     // the targets read from the control file
+    }
+
+    /**
+     * Get the targets from a control file, reusing the targets from an
+     * earlier read of the control file if it has not changed since. If a
+     * control file cache is in use, the targets are loaded from the cache if
+     * the control file has been read before (by this or an earlier run), and
+     * saved in the cache if not.
+     *
+     * @param controlFile the file containing the list of elements to harvest
+     * @return the targets
+     * @throws AppFatal if the file could not be read
+     */
+    private Target loadTargets(Path controlFile) throws AppFatal {
+        BasicFileAttributes attrs;
+        CompiledControlFile ccf;
+        Target targets;
+        Path key;
+        String stamp;
+
+        key = controlFile.toAbsolutePath().normalize();
+        try {
+            attrs = Files.readAttributes(key, BasicFileAttributes.class);
+        } catch (IOException ioe) {
+            throw new AppFatal(classname, "loadTargets", 1, "Failed to read control file '" + key.toString() + "': " + ioe.getMessage());
+        }
+        stamp = attrs.size() + "/" + attrs.lastModifiedTime().toMillis();
+        ccf = compiled.get(key);
+        if (ccf != null && ccf.stamp.equals(stamp)) {
+            LOG.log(Level.INFO, "Reusing control file ''{0}''", key.toString());
+            return ccf.targets;
+        }
+        targets = null;
+        if (cfCache != null) {
+            targets = cfCache.load(key);
+        }
+        if (targets == null) {
+            targets = readTargets(controlFile);
+            if (cfCache != null) {
+                cfCache.save(key, targets);
+            }
+        }
+        ccf = new CompiledControlFile();
+        ccf.stamp = stamp;
+        ccf.targets = targets;
+        compiled.put(key, ccf);
+        return targets;
+    }
+
     /**
      * Initialise the global variables
      */
     private void initialise() {
         targets = null;
-        controlFile = null;
+        reports = new ArrayList<>();
+        reports.add(new Report());
+        views = null;
         outputDir = Paths.get(".");
-        outputType = OutputType.UNDEFINED;
-        stdout = false;
-        groupOutput = false;
-        outputFile = null;
+        flushBytes = 1024 * 1024;
+        outBuffers = 2;
+        flushMillis = 1000;
+        durable = false;
+        perFile = null;
+        inputIsOutputDir = new ConcurrentHashMap<>();
+        prefetchDepth = 4;
+        prefetchMem = 64L * 1024 * 1024;
+        threads = 0;
+        virtual = false;
+        cfCache = null;
+        regionIndex = null;
+        limits = new Limits();
+        dedupDir = null;
+        dupSet = null;
+        watch = false;
+        settleMillis = 2000;
+        dbURL = null;
+        dbCommit = 1000;
+        db = null;
+        indexDir = null;
+        indexTags = null;
+        index = null;
+        fatal = null;
+        baseDir = null;
+        stats = null;
         commentary = null;
         chatty = false;
         error = false;
         debug = false;
         verbose = false;
         norec = false;
-        firstVEO = true;
         fileOrDirectories = new ArrayList<>();
     }
 
@@ -236,10 +581,13 @@ public class V2MetaAnalysis {
      * @throws AppFatal if any errors are found in the command line arguments
      */
     private void configure(String args[]) throws AppFatal {
-        int i;
-        String usage = "V2MetaAnalysis [-e] [-r] [-u] [-v] [-d] [-c] -cf controlFile [-od outputDir] [-xml|-json|-csv|-tsv] [-o outputFile|-stdout] [files*]";
+        int i, j;
+        Report r;
+        String usage = "V2MetaAnalysis [-e] [-r] [-u] [-v] [-d] [-c] -cf controlFile [-xml|-json|-csv|-tsv] [-o outputFile|-stdout] [-cf controlFile [-xml|-json|-csv|-tsv] [-o outputFile|-stdout]]* [-od outputDir] [-flushbytes n] [-outbuffers n] [-flushms n] [-sync] [-prefetch n] [-prefetchmem n] [-threads n] [-virtual] [-cfcache dir] [-regions dir] [-dedup dir] [-maxtime n] [-maxdepth n] [-maxelements n] [-maxbytes n] [-maxvalue n] [-watch] [-settle n] [-db url [-dbcommit n]] [-index dir [-indexon tag,...]] [files*]";
 
-        // process command line arguments
+        // process command line arguments. Output options apply to the report
+        // of the last control file named (or the first, if none named yet)
+        r = reports.get(0);
         i = 0;
         try {
             while (i < args.length) {
@@ -285,53 +633,267 @@ public class V2MetaAnalysis {
                     // output type is XML
                     case "-xml":
                         i++;
-                        outputType = OutputType.XML;
+                        r.outputType = OutputType.XML;
                         LOG.log(Level.INFO, "Output type is XML");
                         break;
 
                     // output type is JSON
                     case "-json":
                         i++;
-                        outputType = OutputType.JSON;
+                        r.outputType = OutputType.JSON;
                         LOG.log(Level.INFO, "Output type is JSON");
                         break;
 
                     // output type is JSON
                     case "-tsv":
                         i++;
-                        outputType = OutputType.TSV;
+                        r.outputType = OutputType.TSV;
                         LOG.log(Level.INFO, "Output type is text with tab separated valuses (TSV)");
                         break;
 
                     // output type is JSON
                     case "-csv":
                         i++;
-                        outputType = OutputType.CSV;
+                        r.outputType = OutputType.CSV;
                         LOG.log(Level.INFO, "Output type is text with comma separated valuses (CSV)");
                         break;
 
-                    // get output file
+                    // get output file; a second output for the same control
+                    // file starts another report
                     case "-stdout":
                         i++;
-                        stdout = true;
-                        groupOutput = true;
+                        r = anotherOutput(r);
+                        r.stdout = true;
+                        r.groupOutput = true;
                         LOG.log(Level.INFO, "Write output to standard out");
                         break;
 
-                    // get output file
+                    // get output file; a second output for the same control
+                    // file starts another report
                     case "-o":
                         i++;
-                        outputFile = Paths.get(args[i].replaceAll("\\\\", "/"));
-                        groupOutput = true;
-                        LOG.log(Level.INFO, "Output file is ''{0}''", outputFile.toString());
+                        r = anotherOutput(r);
+                        r.outputFile = Paths.get(args[i].replaceAll("\\\\", "/"));
+                        r.groupOutput = true;
+                        LOG.log(Level.INFO, "Output file is ''{0}''", r.outputFile.toString());
+                        i++;
+                        break;
+
+                    // size of the group output buffers
+                    case "-flushbytes":
+                        i++;
+                        flushBytes = Integer.parseInt(args[i]);
+                        if (flushBytes < 1024) {
+                            throw new AppFatal(classname, 9, "Output buffer size (-flushbytes) must be at least 1024. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Output buffer size is {0} bytes", flushBytes);
+                        i++;
+                        break;
+
+                    // number of buffers for each group output
+                    case "-outbuffers":
+                        i++;
+                        outBuffers = Integer.parseInt(args[i]);
+                        if (outBuffers < 2) {
+                            throw new AppFatal(classname, 9, "Number of output buffers (-outbuffers) must be at least 2. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Each output has {0} buffers", outBuffers);
+                        i++;
+                        break;
+
+                    // maximum time output waits before being written
+                    case "-flushms":
+                        i++;
+                        flushMillis = Long.parseLong(args[i]);
+                        if (flushMillis < 0) {
+                            throw new AppFatal(classname, 9, "Time output may wait (-flushms) cannot be negative. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Output is written at least every {0}ms", flushMillis);
+                        i++;
+                        break;
+
+                    // force output to disk
+                    case "-sync":
+                        i++;
+                        durable = true;
+                        LOG.log(Level.INFO, "Output is forced to disk after each write");
+                        break;
+
+                    // number of VEOs to read ahead
+                    case "-prefetch":
+                        i++;
+                        prefetchDepth = Integer.parseInt(args[i]);
+                        if (prefetchDepth < 0) {
+                            throw new AppFatal(classname, 9, "Number of VEOs to read ahead (-prefetch) cannot be negative. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Read ahead {0} VEOs", prefetchDepth);
+                        i++;
+                        break;
+
+                    // memory to use for reading ahead
+                    case "-prefetchmem":
+                        i++;
+                        prefetchMem = Long.parseLong(args[i]);
+                        if (prefetchMem < 0 || prefetchMem > Long.MAX_VALUE / (1024 * 1024)) {
+                            throw new AppFatal(classname, 9, "Memory for reading ahead (-prefetchmem) must be between 0 and " + (Long.MAX_VALUE / (1024 * 1024)) + "MB. Usage: " + usage);
+                        }
+                        prefetchMem = prefetchMem * 1024 * 1024;
+                        LOG.log(Level.INFO, "Use {0} bytes for VEOs read ahead", prefetchMem);
+                        i++;
+                        break;
+
+                    // number of threads parsing VEOs
+                    case "-threads":
+                        i++;
+                        threads = Integer.parseInt(args[i]);
+                        if (threads < 1) {
+                            throw new AppFatal(classname, 9, "Number of threads (-threads) must be at least 1. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Process VEOs with {0} threads", threads);
+                        i++;
+                        break;
+
+                    // process each VEO in its own virtual thread
+                    case "-virtual":
+                        i++;
+                        virtual = true;
+                        LOG.log(Level.INFO, "Process each VEO in a virtual thread");
+                        break;
+
+                    // keep watching the directories, processing VEOs as they arrive
+                    case "-watch":
+                        i++;
+                        watch = true;
+                        LOG.log(Level.INFO, "Watch for VEOs as they arrive");
+                        break;
+
+                    // how long a VEO must be unchanged before it is processed
+                    case "-settle":
+                        i++;
+                        settleMillis = Long.parseLong(args[i]);
+                        if (settleMillis < 0) {
+                            throw new AppFatal(classname, 9, "Settle time (-settle) cannot be negative. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "VEOs must be unchanged for {0}ms before they are processed", settleMillis);
+                        i++;
+                        break;
+
+                    // load the VEOs into a database
+                    case "-db":
+                        i++;
+                        dbURL = args[i];
+                        LOG.log(Level.INFO, "Load VEOs into database ''{0}''", dbURL);
+                        i++;
+                        break;
+
+                    // number of VEOs loaded into the database between commits
+                    case "-dbcommit":
+                        i++;
+                        dbCommit = Integer.parseInt(args[i]);
+                        if (dbCommit < 1) {
+                            throw new AppFatal(classname, 9, "Number of VEOs between commits (-dbcommit) must be at least 1. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Commit every {0} VEOs", dbCommit);
+                        i++;
+                        break;
+
+                    // build an index of the values harvested
+                    case "-index":
+                        i++;
+                        indexDir = (baseDir != null) ? baseDir.resolve(args[i]) : Paths.get(args[i]);
+                        LOG.log(Level.INFO, "Build an index in ''{0}''", indexDir.toString());
+                        i++;
+                        break;
+
+                    // the tags of the targets to index
+                    case "-indexon":
+                        i++;
+                        indexTags = new ArrayList<>(Arrays.asList(args[i].split(",")));
+                        LOG.log(Level.INFO, "Index the values of ''{0}''", args[i]);
+                        i++;
+                        break;
+
+                    // keep binary copies of the control files read
+                    case "-cfcache":
+                        i++;
+                        cfCache = new ControlFileCache(baseDir != null ? baseDir.resolve(args[i]) : Paths.get(args[i]));
+                        LOG.log(Level.INFO, "Control file cache is ''{0}''", args[i]);
+                        i++;
+                        break;
+
+                    // keep the offsets of the large elements in each VEO
+                    case "-regions":
+                        i++;
+                        regionIndex = new RegionIndex(baseDir != null ? baseDir.resolve(args[i]) : Paths.get(args[i]));
+                        LOG.log(Level.INFO, "Region index is ''{0}''", args[i]);
+                        i++;
+                        break;
+
+                    // skip VEOs with the same contents as one already processed
+                    case "-dedup":
+                        i++;
+                        dedupDir = (baseDir != null) ? baseDir.resolve(args[i]) : Paths.get(args[i]);
+                        LOG.log(Level.INFO, "Duplicate set is ''{0}''", args[i]);
+                        i++;
+                        break;
+
+                    // limits on the resources used on each VEO
+                    case "-maxtime":
+                        i++;
+                        limits.maxMillis = Long.parseLong(args[i]);
+                        if (limits.maxMillis < 1) {
+                            throw new AppFatal(classname, 9, "Time limit (-maxtime) must be at least 1ms. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Abandon VEOs that take more than {0}ms to parse", limits.maxMillis);
+                        i++;
+                        break;
+                    case "-maxdepth":
+                        i++;
+                        limits.maxDepth = Integer.parseInt(args[i]);
+                        if (limits.maxDepth < 1) {
+                            throw new AppFatal(classname, 9, "Depth limit (-maxdepth) must be at least 1. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Abandon VEOs with elements nested more than {0} deep", limits.maxDepth);
+                        i++;
+                        break;
+                    case "-maxelements":
+                        i++;
+                        limits.maxElements = Long.parseLong(args[i]);
+                        if (limits.maxElements < 1) {
+                            throw new AppFatal(classname, 9, "Element limit (-maxelements) must be at least 1. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Abandon VEOs with more than {0} elements", limits.maxElements);
+                        i++;
+                        break;
+                    case "-maxbytes":
+                        i++;
+                        limits.maxBytes = Long.parseLong(args[i]);
+                        if (limits.maxBytes < 1) {
+                            throw new AppFatal(classname, 9, "Size limit (-maxbytes) must be at least 1. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Abandon VEOs larger than {0} bytes", limits.maxBytes);
+                        i++;
+                        break;
+                    case "-maxvalue":
+                        i++;
+                        limits.maxValue = Integer.parseInt(args[i]);
+                        if (limits.maxValue < 1) {
+                            throw new AppFatal(classname, 9, "Value size limit (-maxvalue) must be at least 1. Usage: " + usage);
+                        }
+                        LOG.log(Level.INFO, "Abandon VEOs with values longer than {0} characters", limits.maxValue);
                         i++;
                         break;
 
-                    // get control file
+                    // get control file; each control file after the first
+                    // starts another report
                     case "-cf":
                         i++;
-                        controlFile = checkFile("control file", args[i], false);
-                        LOG.log(Level.INFO, "Control File is ''{0}''", controlFile.toString());
+                        if (r.controlFile != null) {
+                            r = new Report();
+                            reports.add(r);
+                        }
+                        r.controlFile = checkFile("control file", args[i], false);
+                        LOG.log(Level.INFO, "Control File is ''{0}''", r.controlFile.toString());
                         i++;
                         break;
 
@@ -347,10 +909,22 @@ public class V2MetaAnalysis {
             }
         } catch (ArrayIndexOutOfBoundsException ae) {
             throw new AppFatal(classname, 3, "Missing argument. Usage: " + usage);
+        } catch (NumberFormatException nfe) {
+            throw new AppFatal(classname, 3, "Invalid number: " + nfe.getMessage() + ". Usage: " + usage);
+        }
+
+        // by default, parse as many VEOs at once as there are processors when
+        // using virtual threads, otherwise parse one at a time
+        if (threads == 0) {
+            if (virtual) {
+                threads = Runtime.getRuntime().availableProcessors();
+            } else {
+                threads = 1;
+            }
         }
 
         // check to see that user specified a control file
-        if (controlFile == null) {
+        if (reports.get(0).controlFile == null) {
             throw new AppFatal(classname, 4, "No control file specified. Usage: " + usage);
         }
 
@@ -360,45 +934,117 @@ public class V2MetaAnalysis {
         }
 
         // if stdOut and an output file named, complain
-        if (stdout && outputFile != null) {
-            throw new AppFatal(classname, 5, "Requested output to standard output and a specific file. Usage: " + usage);
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            if (r.stdout && r.outputFile != null) {
+                throw new AppFatal(classname, 5, "Requested output to standard output and a specific file. Usage: " + usage);
+            }
+        }
+
+        // loading into a database, or building an index, replaces the output files
+        if (dbURL != null && indexDir != null) {
+            throw new AppFatal(classname, 5, "Requested output to a database and to an index. Usage: " + usage);
+        }
+        if (indexDir != null && watch) {
+            throw new AppFatal(classname, 5, "Cannot build an index (-index) while watching for VEOs (-watch), as the index is written at the end of the run. Usage: " + usage);
+        }
+        if (dbURL != null || indexDir != null) {
+            if (reports.size() > 1) {
+                throw new AppFatal(classname, 5, "Only one control file can be used when loading a database or building an index. Usage: " + usage);
+            }
+            r = reports.get(0);
+            if (r.stdout || r.outputFile != null) {
+                throw new AppFatal(classname, 5, "Requested output to a database or index and to standard output or a specific file. Usage: " + usage);
+            }
+            return;
+        }
+
+        // work out the output type of each report; only one report can go to
+        // standard out, and no two to the same output file. If there are
+        // several reports, the output files per VEO are distinguished by the
+        // name of the control file
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            checkOutputType(r, usage);
+            for (j = 0; j < i; j++) {
+                if (r.stdout && reports.get(j).stdout) {
+                    throw new AppFatal(classname, 5, "Only one control file can write to standard output. Usage: " + usage);
+                }
+                if (r.outputFile != null && r.outputFile.equals(reports.get(j).outputFile)) {
+                    throw new AppFatal(classname, 5, "Two control files write to the same output file '" + r.outputFile.toString() + "'. Usage: " + usage);
+                }
+            }
+            if (reports.size() > 1 && !r.groupOutput) {
+                r.suffix = "-" + r.controlFile.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+            }
+        }
+    }
+
+    /**
+     * An output file (or standard out) has been given for a report. If the
+     * report already has an output, start another report for the same
+     * control file.
+     *
+     * @param r the report
+     * @return the report the output is for
+     */
+    private Report anotherOutput(Report r) {
+        Report another;
+
+        if (!r.groupOutput) {
+            return r;
         }
+        another = new Report();
+        another.controlFile = r.controlFile;
+        reports.add(another);
+        return another;
+    }
+
+    /**
+     * If no output format was specified for a report, see if it can be
+     * inferred from the file extension of the specified output file.
+     *
+     * @param r the report
+     * @param usage the command line usage
+     * @throws AppFatal if the output type is not known, or conflicts with the
+     * file extension
+     */
+    private void checkOutputType(Report r, String usage) throws AppFatal {
+        int i;
 
-        // if no output format specified, see if you can infer it from the file
-        // extension of the specified output file
-        if (outputFile != null) {
-            String s = outputFile.getFileName().toString();
+        if (r.outputFile != null) {
+            String s = r.outputFile.getFileName().toString();
             i = s.lastIndexOf(".");
             if (i != -1) {
                 s = s.substring(i + 1).toLowerCase();
                 switch (s) {
                     case "xml":
-                        if (outputType == OutputType.UNDEFINED || outputType == OutputType.XML) {
-                            outputType = OutputType.XML;
+                        if (r.outputType == OutputType.UNDEFINED || r.outputType == OutputType.XML) {
+                            r.outputType = OutputType.XML;
                         } else {
                             throw new AppFatal(classname, 6, "Output file name specified with a file extension (.xml) that conflicts with requested output format");
                         }
                         LOG.log(Level.INFO, "Output type is XML (set from output file name)");
                         break;
                     case "json":
-                        if (outputType == OutputType.UNDEFINED || outputType == OutputType.JSON) {
-                            outputType = OutputType.JSON;
+                        if (r.outputType == OutputType.UNDEFINED || r.outputType == OutputType.JSON) {
+                            r.outputType = OutputType.JSON;
                         } else {
                             throw new AppFatal(classname, 6, "Output file name specified with a file extension (.json) that conflicts with requested output format");
                         }
                         LOG.log(Level.INFO, "Output type is JSON (set from output file name)");
                         break;
                     case "tsv":
-                        if (outputType == OutputType.UNDEFINED || outputType == OutputType.TSV) {
-                            outputType = OutputType.TSV;
+                        if (r.outputType == OutputType.UNDEFINED || r.outputType == OutputType.TSV) {
+                            r.outputType = OutputType.TSV;
                         } else {
                             throw new AppFatal(classname, 6, "Output file name specified with a file extension (.tsv) that conflicts with requested output format");
                         }
                         LOG.log(Level.INFO, "Output type is text with tab separated valuses (TSV) (set from output file name)");
                         break;
                     case "csv":
-                        if (outputType == OutputType.UNDEFINED || outputType == OutputType.CSV) {
-                            outputType = OutputType.CSV;
+                        if (r.outputType == OutputType.UNDEFINED || r.outputType == OutputType.CSV) {
+                            r.outputType = OutputType.CSV;
                         } else {
                             throw new AppFatal(classname, 6, "Output file name specified with a file extension (.csv) that conflicts with requested output format");
                         }
@@ -409,7 +1055,7 @@ public class V2MetaAnalysis {
                 }
             }
         }
-        if (outputType == OutputType.UNDEFINED) {
+        if (r.outputType == OutputType.UNDEFINED) {
             throw new AppFatal(classname, 5, "No output type (XML, JSON, CSV or TSV) defined and cannot be inferred from output file. Usage: " + usage);
         }
     }
@@ -429,6 +1075,9 @@ public class V2MetaAnalysis {
 
         String safe = name.replaceAll("\\\\", "/");
         p = Paths.get(safe);
+        if (baseDir != null) {
+            p = baseDir.resolve(p);
+        }
 
         if (!Files.exists(p)) {
             throw new AppFatal(classname, 6, type + " '" + p.toAbsolutePath().normalize().toString() + "' does not exist");
@@ -450,36 +1099,127 @@ public class V2MetaAnalysis {
      * processing was pointless
      */
     public void processVEOs() throws AppFatal {
-        Writer output;
+        try {
+            processRun();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Release whatever a run left open because it failed part way through:
+     * the group outputs (and their writer threads), the database connection
+     * (discarding the VEOs not committed), the unfinished index, the thread
+     * creating the output files, and the duplicate set. Errors are ignored as
+     * the run has already failed. A run that succeeded has closed all of
+     * these, and only the parser is left to be released.
+     */
+    private void release() {
+        Report r;
+        int i;
+
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            if (r.output != null) {
+                try {
+                    r.output.close();
+                } catch (IOException ioe) {
+                    /* ignore */ }
+                r.output = null;
+            }
+        }
+        if (db != null) {
+            db.abort();
+            db = null;
+        }
+        if (index != null) {
+            index.abort();
+            index = null;
+        }
+        if (perFile != null) {
+            perFile.finish();
+            perFile = null;
+        }
+        if (dupSet != null) {
+            dupSet.close();
+            dupSet = null;
+        }
+        if (pv != null) {
+            pv.close();
+        }
+    }
+
+    /**
+     * Process the VEOs (see processVEOs()). Each output, sink, and set is
+     * closed when it is finished with, and set to null, so that release()
+     * can tell what is left open if the run fails.
+     *
+     * @throws AppFatal if an error occurred that meant further processing was
+     * pointless
+     */
+    private void processRun() throws AppFatal {
         int i;
         String name, safe;
         Path file;
+        Report r;
+        ArrayList<Path> roots;
+
+        // if loading into a database or building an index, there is only one
+        // report
+        if (dbURL != null) {
+            r = reports.get(0);
+            db = new DatabaseSink(dbURL, r.controlFile, r.targets, dbCommit);
+        } else if (indexDir != null) {
+            r = reports.get(0);
+            index = new IndexBuilder(indexDir, r.targets, indexTags, 64L * 1024 * 1024);
+        }
 
-        // if producing one output file (i.e. user specified stdout or a specific output file), open it...
-        if (groupOutput) {
+        // open the set of the contents of the VEOs already processed
+        if (dedupDir != null) {
+            dupSet = new DuplicateSet(dedupDir);
+        }
 
-            // if a specific output file has been specified, open it, otherwise use stdout
-            file = null;
-            if (outputFile != null) {
-                if (!outputFile.isAbsolute()) {
-                    file = outputDir.resolve(outputFile);
-                } else {
-                    file = outputFile;
-                }
+        // open the output of each report
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            r.output = null;
+            r.groupFile = null;
+            r.reorder = null;
+            r.firstVEO = true;
+            if (r.outputType == OutputType.JSON) {
+                r.separator = ByteSink.utf8(",\n");
+            } else {
+                r.separator = ByteSink.utf8("\n");
             }
-            try {
-                output = openOutput(file);
-            } catch (FileNotFoundException fnfe) {
-                throw new AppFatal("Couldn't create output file: " + fnfe.getMessage());
-            } catch (AppError ae) {
-                throw new AppFatal(ae.getMessage());
+
+            // if producing one output file (i.e. user specified stdout or a specific output file), open it...
+            if (r.groupOutput) {
+
+                // if a specific output file has been specified, open it, otherwise use stdout
+                file = null;
+                if (r.outputFile != null) {
+                    if (!r.outputFile.isAbsolute()) {
+                        file = outputDir.resolve(r.outputFile);
+                    } else {
+                        file = r.outputFile;
+                    }
+                }
+                r.groupFile = file;
+                try {
+                    r.output = openOutput(r, file);
+                } catch (FileNotFoundException fnfe) {
+                    throw new AppFatal("Couldn't create output file: " + fnfe.getMessage());
+                } catch (AppError ae) {
+                    throw new AppFatal(ae.getMessage());
+                }
+            } else if (db == null && index == null && perFile == null) {
+                perFile = new PerFileOutput();
+                inputIsOutputDir.clear();
             }
-        } else {
-            output = null;
         }
 
-        // go through the list of VEOs
-        firstVEO = true;
+        // go through the list of files and directories
+        roots = new ArrayList<>();
         for (i = 0; i < fileOrDirectories.size(); i++) {
             name = fileOrDirectories.get(i);
             if (name == null) {
@@ -488,295 +1228,1133 @@ public class V2MetaAnalysis {
             safe = name.replaceAll("\\\\", "/");
             try {
                 file = Paths.get(safe);
+                if (baseDir != null) {
+                    file = baseDir.resolve(file);
+                }
             } catch (InvalidPathException ipe) {
                 LOG.log(Level.WARNING, "File or directory name ''{0}'' is invalid: {1} Ignored.", new Object[]{safe, ipe.getMessage()});
                 continue;
             }
-            processFileOrDirectory(file, output);
+            roots.add(file);
+        }
+
+        // process the VEOs
+        stats = new RunStats();
+        if (watch) {
+            processWatched(roots);
+        } else if (virtual) {
+            processOnVirtualThreads(roots);
+        } else if (threads > 1) {
+            processInParallel(roots);
+        } else {
+            processInOrder(roots);
         }
 
         // producing one output file, close it...
-        if (groupOutput) {
-            try {
-                closeOutput(output);
-            } catch (AppError ae) {
-                throw new AppFatal(ae.getMessage());
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            if (r.output != null) {
+                try {
+                    closeOutput(r);
+                } catch (AppError ae) {
+                    throw new AppFatal(ae.getMessage());
+                }
+            }
+        }
+
+        // loading into a database, commit the last VEOs
+        if (db != null) {
+            db.close();
+            db = null;
+
+            // building an index, merge the runs into the finished index
+        } else if (index != null) {
+            index.finish();
+            index = null;
+
+            // otherwise wait until all the output files have been created
+        } else if (perFile != null) {
+            i = perFile.finish();
+            perFile = null;
+            if (i > 0) {
+                LOG.log(Level.WARNING, "{0} output files could not be created", i);
             }
         }
+        if (dupSet != null) {
+            dupSet.close();
+            dupSet = null;
+        }
+        LOG.log(Level.INFO, stats.toString());
     }
 
     /**
-     * Recurse through any directory structure
+     * Process the VEOs one at a time, in the order they are found, as they
+     * are read ahead.
      *
-     * @param file file to be processed (could be a directory)
-     * @param output where the output is to go (null if individual output files
-     * are to be generated)
-     * @throws VEOError if a fatal error occurred
+     * @param roots the files and directories to process
+     * @throws AppFatal if an error occurred that meant further processing was
+     * pointless
      */
-    private void processFileOrDirectory(Path file, Writer output) throws AppFatal {
-        Information i;
-        String s;
+    private void processInOrder(ArrayList<Path> roots) throws AppFatal {
+        Prefetcher prefetcher;
+        VEOFile vf;
 
-        if (Files.isDirectory(file)) {
-            try (DirectoryStream<Path> ds = Files.newDirectoryStream(file)) {
-                for (Path p : ds) {
-                    processFileOrDirectory(p, output);
-                }
-            } catch (IOException e) {
-                LOG.log(Level.INFO, ("Failed to process directory '" + file.toString() + "': " + e.getMessage()));
-            }
-        } else {
-            s = file.toString().toLowerCase();
-            if (Files.isRegularFile(file) && (s.endsWith(".veo") || s.endsWith(".xml"))) {
-                i = null;
+        prefetcher = new Prefetcher(roots, prefetchDepth, prefetchMem, stats);
+        if (dupSet != null) {
+            prefetcher.hashContents();
+        }
+        prefetcher.start();
+        try {
+            while ((vf = prefetcher.next()) != null) {
                 try {
-                    processVEO(file, output);
+                    if (processVEO(vf)) {
+                        stats.processed(vf.size);
+                    }
                 } catch (AppError ae) {
-                    LOG.log(Level.INFO, ("Failed processing file '" + file.toString() + "': " + ae.toString()));
-                    return;
-                }
-                if (info == null) {
-                    info = i;
-                } else {
-                    // info.append(i);
+                    stats.failed();
+                    LOG.log(Level.INFO, ("Failed processing file '" + vf.file.toString() + "': " + ae.toString()));
+                } finally {
+                    prefetcher.release(vf);
                 }
-            } else {
-                LOG.log(Level.INFO, ("Did not process file '" + file.toString() + "' as it was not a V2 VEO or an XML"));
             }
+        } catch (InterruptedException ie) {
+            throw new AppFatal("Interrupted while waiting for VEOs to be read");
+        } finally {
+            prefetcher.stop();
         }
     }
 
     /**
-     * We've got a VEO to process...
+     * Watch the directories, processing the VEOs already in them and then
+     * each VEO as it arrives, one at a time, in the order they settle. The
+     * group output is written out whenever no VEO is waiting, so a VEO's
+     * record is in the output within (about) the settle time of the VEO
+     * arriving. Watching continues until the program is stopped (e.g. by
+     * control-C), when the VEO being processed is finished and the output is
+     * closed normally.
      *
-     * @param file VEO file
-     * @param output place where output is to be placed
-     * @throws AppFatal if the error is so bad the program has to exit
-     * @throws AppError if the error means this VEO needs to be abandoned
+     * @param roots the files and directories to watch
+     * @throws AppFatal if an error occurred that meant further processing was
+     * pointless
      */
-    private void processVEO(Path file, Writer output) throws AppFatal, AppError {
-        Writer w;
-        String filename, ext;
+    private void processWatched(ArrayList<Path> roots) throws AppFatal {
+        VEOFile vf;
+        Thread hook;
+        final Thread main;
+        final Watcher watcher;
+        Report r;
+        boolean unwritten;
         int i;
 
-        LOG.log(Level.INFO, ("Processing " + file.toString()));
+        try {
+            watcher = new Watcher(settleMillis);
+        } catch (IOException ioe) {
+            throw new AppFatal("Cannot watch for VEOs: " + ioe.getMessage());
+        }
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            if (db != null) {
+                continue; // database output writes no files to ignore
+            }
+            if (r.output == null) {
+                watcher.ignore(outputDir, "." + r.extension(), null);
+            } else {
+                watcher.ignore(null, null, r.groupFile);
+            }
+        }
+        for (i = 0; i < roots.size(); i++) {
+            watcher.watch(roots.get(i));
+        }
 
-        // no output file specified, create one for just this VEO in the output
-        // directory. The output file is based on the VEO file name, but we
-        // test to make sure that we are not overwriting the original VEO
-        if (output == null) {
-            if (outputDir == null) {
-                throw new AppFatal("Attempting to produce a directory of output without specifying output directory");
+        // when the program is stopped, finish the current VEO and close the output
+        main = Thread.currentThread();
+        hook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watcher.stop();
+                try {
+                    main.join(60000);
+                } catch (InterruptedException ie) {
+                    /* ignore */
+                }
             }
+        }, "V2MetaAnalysis stop watching");
+        Runtime.getRuntime().addShutdownHook(hook);
 
-            filename = file.getFileName().toString();
-            i = filename.lastIndexOf(".");
-            if (i != -1) {
-                filename = filename.substring(0, i);
-            }
-            switch (outputType) {
-                case XML:
-                    ext = "xml";
-                    break;
-                case JSON:
-                    ext = "json";
-                    break;
-                case TSV:
-                    ext = "tsv";
-                    break;
-                case CSV:
-                    ext = "csv";
-                    break;
-                default:
-                    throw new AppFatal("An output type must be specified.");
-            }
-            Path p = outputDir.resolve(filename + "." + ext);
-            try {
-                if (Files.exists(p) && Files.isSameFile(p, file)) {
-                    throw new AppError("The input file (" + file.toString() + ") is the same as the output file (" + p.toString() + ")");
+        unwritten = false;
+        try {
+            while (true) {
+                vf = watcher.poll();
+                if (vf == null) {
+                    if (unwritten) {
+                        if (db != null) {
+                            db.commit();
+                        }
+                        for (i = 0; i < reports.size(); i++) {
+                            r = reports.get(i);
+                            if (r.output != null) {
+                                r.output.flush();
+                            }
+                        }
+                        unwritten = false;
+                    }
+                    vf = watcher.take();
+                    if (vf == null) {
+                        break;
+                    }
                 }
-            } catch (IOException ioe) {
-                throw new AppFatal("Fatal error when comparing input and output file names: " + ioe.toString());
+                try {
+                    if (processVEO(vf)) {
+                        stats.processed(vf.size);
+                    }
+                } catch (AppError ae) {
+                    stats.failed();
+                    LOG.log(Level.INFO, ("Failed processing file '" + vf.file.toString() + "': " + ae.toString()));
+                }
+                unwritten = true;
             }
+        } catch (IOException ioe) {
+            throw new AppFatal("Failed writing output: " + ioe.getMessage());
+        } catch (InterruptedException ie) {
+            throw new AppFatal("Interrupted while watching for VEOs");
+        } finally {
+            watcher.close();
             try {
-                w = openOutput(p);
-            } catch (FileNotFoundException fnfe) {
-                throw new AppError("Couldn't create output file: " + fnfe.getMessage());
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException ise) {
+                /* already shutting down */
             }
+        }
+    }
+
+    /**
+     * The parser and harvest belonging to one parsing thread.
+     */
+    private static class Worker {
+
+        V2Parser pv;        // parser for VEOs
+        Harvest harvest;    // values harvested from the current VEO
+        Harvest[] views;    // the harvest as seen by each report
+        MemorySink[] records; // group output of each report for the current VEO
+
+        /**
+         * Construct a new Worker.
+         *
+         * @param targets the targets to harvest
+         * @param reports the reports being produced
+         * @param regionIndex offsets of the large elements in the VEOs (null
+         * if not used)
+         * @param limits limits on the resources used on each VEO
+         * @throws AppFatal if the parser could not be created
+         */
+        Worker(Target targets, ArrayList<Report> reports, RegionIndex regionIndex, Limits limits) throws AppFatal {
+            int i;
+
+            pv = new V2Parser(targets, reports.size());
+            pv.setRegionIndex(regionIndex);
+            pv.setLimits(limits);
+            harvest = new Harvest(targets);
+            views = new Harvest[reports.size()];
+            records = new MemorySink[reports.size()];
+            for (i = 0; i < reports.size(); i++) {
+                views[i] = reports.get(i).view(harvest);
+                records[i] = new MemorySink(4096);
+            }
+        }
+
+        /**
+         * Release the resources held by the parser.
+         */
+        void close() {
+            pv.close();
+        }
+    }
+
+    /**
+     * Release the resources held by the parsers used by the threads. Only
+     * called once no thread is using them.
+     *
+     * @param workers the parsers
+     */
+    private static void closeWorkers(ConcurrentLinkedQueue<Worker> workers) {
+        Worker w;
+
+        while ((w = workers.poll()) != null) {
+            w.close();
+        }
+    }
+
+    /**
+     * Process the VEOs with several threads. All the VEOs are found first, and
+     * then processed largest first (longest processing time first) on a work
+     * stealing pool (see discover()). This stops a large VEO that
+     * happens to be found late from being processed on its own after all the
+     * other threads have finished. VEOs are handed to the pool as they are
+     * read ahead, so a task never blocks waiting for input. The output of each
+     * VEO is passed through a reorder buffer so that each group output is in
+     * the order the VEOs were found; a VEO is not handed to the pool until the
+     * reorder buffers have room for it. Output files for each VEO need no
+     * ordering.
+     *
+     * @param roots the files and directories to process
+     * @throws AppFatal if an error occurred that meant further processing was
+     * pointless
+     */
+    private void processInParallel(ArrayList<Path> roots) throws AppFatal {
+        ArrayList<VEOFile> schedule;
+        final Prefetcher prefetcher;
+        final ThreadLocal<Worker> workers;
+        final ConcurrentLinkedQueue<Worker> made;
+        ForkJoinPool pool;
+        VEOFile vf;
+        int i;
+
+        openReorderBuffers();
+        schedule = discover(roots);
+
+        // read the VEOs ahead in the order they will be processed. Enough
+        // VEOs may be outstanding to keep every thread busy, and (if reading
+        // ahead) each thread also needs a buffer for the VEO it is parsing
+        if (prefetchDepth > 0) {
+            i = prefetchDepth + threads;
         } else {
-            w = output;
+            i = 0;
+        }
+        prefetcher = Prefetcher.scheduled(schedule, i, prefetchMem, prefetchDepth + threads, stats);
+        prefetcher.start();
+        workers = new ThreadLocal<>();
+        made = new ConcurrentLinkedQueue<>();
+        fatal = null;
+
+        // hand each VEO to the pool as it becomes ready
+        pool = new ForkJoinPool(threads);
+        try {
+            while (fatal == null && (vf = prefetcher.next()) != null) {
+                awaitTurn(vf);
+                final VEOFile veo = vf;
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        processTask(veo, prefetcher, workers, made);
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException ie) {
+            pool.shutdownNow();
+            throw new AppFatal("Interrupted while processing VEOs");
+        } catch (AppFatal af) {
+            // let the tasks already running finish, so their parsers can be closed
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException ie) {
+                /* ignore */
+            }
+            throw af;
+        } finally {
+            prefetcher.stop();
+            if (pool.isTerminated()) {
+                closeWorkers(made);
+            }
         }
+        if (fatal != null) {
+            throw fatal;
+        }
+    }
 
-        // clear the targets
-        targets.clear();
+    /**
+     * Pass the group output of each report through a reorder buffer, so
+     * that it is in the order the VEOs were found.
+     */
+    private void openReorderBuffers() {
+        Report r;
+        int i;
 
-        // check to see if we are output the filepath or filename
-        targets.setFile(file.normalize().toAbsolutePath());
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            if (r.output != null) {
+                r.reorder = new ReorderBuffer(r.output, r.separator);
+            }
+        }
+    }
 
-        pv.parse(file);
+    /**
+     * Wait until a VEO may be started without the reorder buffers having to
+     * hold too much output (see ReorderBuffer). The large VEOs are scheduled
+     * first, so they never wait.
+     *
+     * @param vf the VEO
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitTurn(VEOFile vf) throws InterruptedException {
+        Report r;
+        int i;
+
+        if (vf.size >= ReorderBuffer.LARGE) {
+            return;
+        }
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            if (r.reorder != null) {
+                r.reorder.awaitTurn(vf.seq);
+            }
+        }
+    }
+
+    /**
+     * A parsing thread has hit a fatal error. Record it, so the other threads
+     * stop, and release anything waiting for a reorder buffer.
+     *
+     * @param af the error
+     */
+    private void stopParsing(AppFatal af) {
+        Report r;
+        int i;
+
+        fatal = af;
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            if (r.reorder != null) {
+                r.reorder.abort();
+            }
+        }
+    }
+
+    /**
+     * Find all the VEOs (and their sizes), numbering them in the order found,
+     * and sort them largest first. If the group output passes through reorder
+     * buffers (so they must be opened first), only the large VEOs are sorted
+     * ahead of all the others; the rest are sorted within each window of
+     * ReorderBuffer.WINDOW VEOs (see ReorderBuffer).
+     *
+     * @param roots the files and directories to process
+     * @return the VEOs in the order they are to be processed
+     * @throws AppFatal if interrupted
+     */
+    private ArrayList<VEOFile> discover(ArrayList<Path> roots) throws AppFatal {
+        final ArrayList<VEOFile> schedule;
+        ArrayList<VEOFile> large, rest;
+        Comparator<VEOFile> largestFirst;
+        boolean reordered;
+        VEOFile vf;
+        int i, j;
+
+        schedule = new ArrayList<>();
         try {
-            switch (outputType) {
-                case XML:
-                    if (!firstVEO) {
-                        w.append("\n");
+            for (i = 0; i < roots.size(); i++) {
+                Discovery.find(roots.get(i), new Discovery.Found() {
+                    @Override
+                    public void found(Path veo, long size) {
+                        VEOFile vf;
+
+                        vf = new VEOFile(veo, size);
+                        vf.seq = schedule.size();
+                        schedule.add(vf);
                     }
-                    targets.toXML(w);
-                    break;
-                case JSON:
-                    if (!firstVEO) {
-                        w.append(",\n");
+                });
+            }
+        } catch (InterruptedException ie) {
+            throw new AppFatal("Interrupted while finding VEOs");
+        }
+
+        // largest first (the sort is stable, so equal sizes stay in order)
+        largestFirst = new Comparator<VEOFile>() {
+            @Override
+            public int compare(VEOFile a, VEOFile b) {
+                return Long.compare(b.size, a.size);
+            }
+        };
+        reordered = false;
+        for (i = 0; i < reports.size(); i++) {
+            if (reports.get(i).reorder != null) {
+                reordered = true;
+            }
+        }
+        if (!reordered) {
+            Collections.sort(schedule, largestFirst);
+        } else {
+
+            // the large VEOs first, then the rest largest first within each
+            // window (by sequence number), so that the VEOs held by the
+            // reorder buffers are bounded
+            large = new ArrayList<>();
+            rest = new ArrayList<>();
+            for (i = 0; i < schedule.size(); i++) {
+                vf = schedule.get(i);
+                if (vf.size >= ReorderBuffer.LARGE) {
+                    large.add(vf);
+                } else {
+                    rest.add(vf);
+                }
+            }
+            Collections.sort(large, largestFirst);
+            for (i = 0; i < rest.size(); i = j) {
+                j = i + 1;
+                while (j < rest.size() && rest.get(j).seq / ReorderBuffer.WINDOW == rest.get(i).seq / ReorderBuffer.WINDOW) {
+                    j++;
+                }
+                Collections.sort(rest.subList(i, j), largestFirst);
+            }
+            schedule.clear();
+            schedule.addAll(large);
+            schedule.addAll(rest);
+        }
+        LOG.log(Level.INFO, "Found {0} VEOs to process with {1} threads", new Object[]{schedule.size(), threads});
+        return schedule;
+    }
+
+    /**
+     * Process each VEO in its own virtual thread (Java 21 or later). The VEOs
+     * are found first and their threads started largest first (as for
+     * processing in parallel). Each thread
+     * reads its VEO into memory (if the memory budget allows; otherwise the
+     * VEO is read as it is parsed) and then waits for a parser. The number of
+     * VEOs being parsed at once is limited by a semaphore, so only a few
+     * carrier threads are doing CPU work while hundreds of reads may be
+     * outstanding. The number of threads started but not finished is also
+     * limited (to STARTED times the number of parsers), so that a run of
+     * millions of VEOs does not hold a thread (and its VEOFile) for each. The
+     * parsers are pooled and reused. As with processing in parallel, the
+     * group output passes through a reorder buffer.
+     *
+     * @param roots the files and directories to process
+     * @throws AppFatal if an error occurred that meant further processing was
+     * pointless
+     */
+    private void processOnVirtualThreads(ArrayList<Path> roots) throws AppFatal {
+        ArrayList<VEOFile> schedule;
+        final Semaphore started, parsing, memory;
+        final ConcurrentLinkedQueue<Worker> idle;
+        final int budget;
+        ExecutorService executor;
+        int i;
+
+        openReorderBuffers();
+        schedule = discover(roots);
+        executor = ExecutorFactory.newVirtualThreadPerTaskExecutor();
+
+        // the semaphores are fair so that the VEOs are parsed largest first.
+        // The memory budget is counted in KB
+        started = new Semaphore(threads * STARTED);
+        parsing = new Semaphore(threads, true);
+        budget = (int) Math.min(prefetchMem / 1024, Integer.MAX_VALUE);
+        memory = new Semaphore(budget, true);
+        idle = new ConcurrentLinkedQueue<>();
+        fatal = null;
+        try {
+            for (i = 0; i < schedule.size() && fatal == null; i++) {
+                final VEOFile veo = schedule.get(i);
+                started.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            processVirtualTask(veo, parsing, memory, budget, idle);
+                        } finally {
+                            started.release();
+                        }
                     }
-                    targets.toJSON(w);
-                    break;
-                case TSV:
-                    if (!firstVEO) {
-                        w.append("\n");
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            throw new AppFatal("Interrupted while processing VEOs");
+        } finally {
+            if (executor.isTerminated()) {
+                closeWorkers(idle);
+            }
+        }
+        if (fatal != null) {
+            throw fatal;
+        }
+    }
+
+    /**
+     * Read and process one VEO in its own virtual thread.
+     *
+     * @param vf the VEO
+     * @param parsing limits the number of VEOs being parsed at once
+     * @param memory limits the memory (in KB) holding VEOs read but not parsed
+     * @param budget the total memory (in KB)
+     * @param idle parsers not in use
+     */
+    private void processVirtualTask(VEOFile vf, Semaphore parsing, Semaphore memory, int budget, ConcurrentLinkedQueue<Worker> idle) {
+        Worker w;
+        int kb;
+
+        if (fatal != null) {
+            return;
+        }
+        w = null;
+        kb = 0;
+        try {
+            awaitTurn(vf);
+
+            // read the VEO while waiting for a parser, if there is room
+            if (vf.size >= 0 && vf.size / 1024 + 1 <= budget) {
+                kb = (int) (vf.size / 1024 + 1);
+                memory.acquire(kb);
+                try {
+                    vf.data = Files.readAllBytes(vf.file);
+                    vf.length = vf.data.length;
+                } catch (IOException ioe) {
+                    /* ignore - the parser will read the file and report the error */
+                }
+            }
+            stats.waited(0, vf.data != null);
+
+            // parse the VEO
+            parsing.acquire();
+            try {
+                if (fatal != null) {
+                    return;
+                }
+                w = idle.poll();
+                if (w == null) {
+                    w = new Worker(targets, reports, regionIndex, limits);
+                }
+                if (processVEO(vf, w)) {
+                    stats.processed(vf.size);
+                }
+            } finally {
+                parsing.release();
+            }
+        } catch (AppError ae) {
+            stats.failed();
+            LOG.log(Level.INFO, ("Failed processing file '" + vf.file.toString() + "': " + ae.toString()));
+        } catch (AppFatal af) {
+            stopParsing(af);
+        } catch (InterruptedException ie) {
+            stopParsing(new AppFatal("Interrupted while processing VEOs"));
+        } finally {
+            if (w != null) {
+                idle.add(w);
+            }
+            vf.data = null;
+            if (kb > 0) {
+                memory.release(kb);
+            }
+        }
+    }
+
+    /**
+     * Process a VEO using the current thread's parser. Called by each task in
+     * the pool. If a fatal error occurs, it is recorded and the remaining
+     * tasks do nothing, and anything waiting for a reorder buffer is released.
+     *
+     * @param vf the VEO
+     * @param prefetcher source of the VEOs
+     * @param workers the parser and harvest for each thread
+     * @param made every parser and harvest created (so they can be closed)
+     */
+    private void processTask(VEOFile vf, Prefetcher prefetcher, ThreadLocal<Worker> workers, ConcurrentLinkedQueue<Worker> made) {
+        Worker w;
+
+        if (fatal != null) {
+            prefetcher.release(vf);
+            return;
+        }
+        try {
+            w = workers.get();
+            if (w == null) {
+                w = new Worker(targets, reports, regionIndex, limits);
+                workers.set(w);
+                made.add(w);
+            }
+            if (processVEO(vf, w)) {
+                stats.processed(vf.size);
+            }
+        } catch (AppError ae) {
+            stats.failed();
+            LOG.log(Level.INFO, ("Failed processing file '" + vf.file.toString() + "': " + ae.toString()));
+        } catch (AppFatal af) {
+            stopParsing(af);
+        } finally {
+            prefetcher.release(vf);
+        }
+    }
+
+    /**
+     * We've got a VEO to process...
+     *
+     * @param veo VEO file (and its contents, if they have been read ahead)
+     * @return true if the VEO was harvested, false if it was not (e.g. it
+     * failed a filter, is not a VEO, or duplicates a VEO already processed)
+     * @throws AppFatal if the error is so bad the program has to exit
+     * @throws AppError if the error means this VEO needs to be abandoned
+     */
+    private boolean processVEO(VEOFile veo) throws AppFatal, AppError {
+        Path[] files;
+        Report r;
+        Harvest h;
+        int i;
+
+        LOG.log(Level.INFO, ("Processing " + veo.file.toString()));
+        files = outputFilesFor(veo.file);
+        if (!harvestVEO(veo, pv, harvest)) {
+            return false;
+        }
+        try {
+            for (i = 0; i < reports.size(); i++) {
+                r = reports.get(i);
+                if (!pv.passed(r.group)) {
+                    continue;
+                }
+                h = views[i];
+                if (h.shared != null) {
+                    h.refresh();
+                }
+                if (db != null) {
+                    db.add(h);
+                } else if (index != null) {
+                    index.add(veo.file, h);
+                } else if (r.output == null) {
+                    writeOutputFile(r, files[i], h);
+                } else {
+                    if (!r.firstVEO) {
+                        r.output.write(r.separator);
                     }
-                    targets.toTSV(w);
-                    break;
-                case CSV:
-                    if (!firstVEO) {
-                        w.append("\n");
+                    r.writeRecord(r.output, h);
+                    r.firstVEO = false;
+                }
+            }
+        } catch (IOException ioe) {
+            throw new AppError("Failed writing output: " + ioe.getMessage());
+        } finally {
+            // tell the group outputs the VEO is complete (they decide when to write)
+            for (i = 0; i < reports.size(); i++) {
+                r = reports.get(i);
+                if (r.output != null) {
+                    try {
+                        r.output.endRecord();
+                    } catch (IOException iow) {
+                        /* ignore */ }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * We've got a VEO to process in one of the threads of the pool... Every
+     * report's reorder buffer is given either the VEO's output or notice that
+     * it has none, even if the VEO fails.
+     *
+     * @param veo VEO file (and its contents, if they have been read ahead)
+     * @param w the parser and harvest belonging to this thread
+     * @return true if the VEO was harvested, false if it was not (e.g. it
+     * failed a filter, is not a VEO, or duplicates a VEO already processed)
+     * @throws AppFatal if the error is so bad the program has to exit
+     * @throws AppError if the error means this VEO needs to be abandoned
+     */
+    private boolean processVEO(VEOFile veo, Worker w) throws AppFatal, AppError {
+        Path[] files;
+        Report r;
+        Harvest h;
+        int i;
+
+        LOG.log(Level.INFO, ("Processing " + veo.file.toString()));
+        i = 0;
+        try {
+            files = outputFilesFor(veo.file);
+            if (!harvestVEO(veo, w.pv, w.harvest)) {
+                return false;
+            }
+            for (; i < reports.size(); i++) {
+                r = reports.get(i);
+                if (!w.pv.passed(r.group)) {
+                    if (r.reorder != null) {
+                        r.reorder.failed(veo.seq);
                     }
-                    targets.toCSV(w);
-                    break;
-                default:
-                    throw new AppFatal("An output type must be specified.");
+                    continue;
+                }
+                h = w.views[i];
+                if (h.shared != null) {
+                    h.refresh();
+                }
+                if (db != null) {
+                    db.add(h);
+                } else if (index != null) {
+                    index.add(veo.file, h);
+                } else if (r.reorder == null) {
+                    writeOutputFile(r, files[i], h);
+                } else {
+                    w.records[i].reset();
+                    r.writeRecord(w.records[i], h);
+                    r.reorder.put(veo.seq, w.records[i]);
+                }
             }
-            firstVEO = false;
         } catch (IOException ioe) {
             throw new AppError("Failed writing output: " + ioe.getMessage());
-        } // however we exit (normally or via an AppFatal exception), manage
-        // the output stream. If using an output stream, flush it. Then, if
-        // NOT writing to standard out, close it.
-        finally {
+        } finally {
+            // the reports not reached have no output for this VEO
+            for (; i < reports.size(); i++) {
+                r = reports.get(i);
+                if (r.reorder != null) {
+                    try {
+                        r.reorder.failed(veo.seq);
+                    } catch (IOException ioe) {
+                        LOG.log(Level.WARNING, "Failed writing output: {0}", ioe.getMessage());
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Harvest the values of interest from a VEO.
+     *
+     * @param veo VEO file (and its contents, if they have been read ahead)
+     * @param pv the parser to use
+     * @param h where to put the values harvested
+     * @return false if the VEO failed a filter, the file is not a VEO, or it
+     * duplicates a VEO already processed (and is not to be output)
+     * @throws AppFatal if the error is so bad the program has to exit
+     * @throws AppError if the error means this VEO needs to be abandoned
+     * (including if it exceeded a limit)
+     */
+    private boolean harvestVEO(VEOFile veo, V2Parser pv, Harvest h) throws AppFatal, AppError {
+        String reason;
+        boolean passed;
+        Path original;
+        long deadline;
+
+        // don't parse a file that is clearly not a VEO at all
+        reason = Sniffer.sniff(veo);
+        if (reason != null) {
+            LOG.log(Level.INFO, "Did not process file ''{0}'' as it is not a V2 VEO ({1})", new Object[]{veo.file.toString(), reason});
+            if (stats != null) {
+                stats.skipped(reason);
+            }
+            return false;
+        }
+
+        // don't parse a VEO with the same contents as one already processed
+        if (dupSet != null && veo.hash == null) {
+
+            // a VEO that is too big is abandoned without being read, and one
+            // that takes too long to read is abandoned, as when parsing
+            if (limits.maxBytes > 0 && (veo.data != null ? veo.length : veo.size) > limits.maxBytes) {
+                throw abandon(Limits.BYTES);
+            }
+            if (limits.maxMillis > 0) {
+                deadline = System.nanoTime() + limits.maxMillis * 1000000L;
+            } else {
+                deadline = 0;
+            }
             try {
-                w.flush();
-            } catch (IOException iow) {
-                /* ignore */ }
-            if (output == null) {
-                closeOutput(w);
+                veo.hash = DuplicateSet.hash(veo, deadline);
+            } catch (IOException ioe) {
+                throw new AppError("Failed reading VEO: " + ioe.getMessage());
+            }
+            if (veo.hash == null) {
+                throw abandon(Limits.TIME);
+            }
+        }
+        if (dupSet != null) {
+            try {
+                original = dupSet.claim(veo.hash, veo.file);
+            } catch (InterruptedException ie) {
+                throw new AppError("Interrupted waiting for a copy of the VEO to be processed");
+            }
+            if (original != null) {
+                LOG.log(Level.INFO, "Did not process file ''{0}'' as it is a duplicate of ''{1}''", new Object[]{veo.file.toString(), original.toString()});
+                if (stats != null) {
+                    stats.duplicate();
+                }
+                return false;
+            }
+        }
+
+        // note which limit a VEO exceeded, if it was abandoned. If the VEO
+        // fails or is filtered out, release its claim so that a copy waiting
+        // for it is processed instead
+        passed = false;
+        try {
+            // clear the values harvested from the previous VEO
+            h.clear();
+
+            // check to see if we are output the filepath or filename
+            targets.setFile(h, veo.file.normalize().toAbsolutePath());
+
+            passed = pv.parse(veo, h);
+        } catch (AppError ae) {
+            if (pv.abandoned() != null && stats != null) {
+                stats.abandoned(pv.abandoned());
+            }
+            throw ae;
+        } finally {
+            if (dupSet != null && !passed) {
+                dupSet.release(veo.hash, veo.file);
+            }
+        }
+        if (!passed) {
+            LOG.log(Level.INFO, "{0} did not pass the filters", veo.file.toString());
+            if (stats != null) {
+                stats.filtered();
             }
+            return false;
         }
+
+        // only now is the VEO the copy later copies are duplicates of
+        if (dupSet != null) {
+            dupSet.add(veo.hash, veo.file);
+        }
+        return true;
+    }
+
+    /**
+     * Abandon a VEO before parsing it, as it has exceeded a limit.
+     *
+     * @param limit the limit exceeded (see Limits)
+     * @return the error to throw
+     */
+    private AppError abandon(String limit) {
+        if (stats != null) {
+            stats.abandoned(limit);
+        }
+        return new AppError("Abandoned VEO as it exceeded the limit on " + limit);
+    }
+
+    /**
+     * Work out the names of the output files for a VEO for each report that
+     * produces an output file per VEO. The output file is created in the
+     * output directory and is based on the VEO file name (followed by the
+     * report's suffix), but we test to make sure that we are not overwriting
+     * the original VEO.
+     *
+     * @param file the VEO file
+     * @return the output file for each report (null for a report producing
+     * group output), or null if no report produces an output file per VEO
+     * @throws AppFatal if the error is so bad the program has to exit
+     * @throws AppError if an output file would be the VEO
+     */
+    private Path[] outputFilesFor(Path file) throws AppFatal, AppError {
+        String filename;
+        Path[] files;
+        Report r;
+        int i;
+
+        if (perFile == null) {
+            return null;
+        }
+        if (outputDir == null) {
+            throw new AppFatal("Attempting to produce a directory of output without specifying output directory");
+        }
+        filename = file.getFileName().toString();
+        i = filename.lastIndexOf(".");
+        if (i != -1) {
+            filename = filename.substring(0, i);
+        }
+        files = new Path[reports.size()];
+        for (i = 0; i < reports.size(); i++) {
+            r = reports.get(i);
+            if (!r.groupOutput) {
+                files[i] = outputDir.resolve(filename + r.suffix + "." + r.extension());
+                checkNotInput(file, files[i]);
+            }
+        }
+        return files;
     }
 
     /**
-     * Open an output writer to write results of analysis
+     * Produce the output file for one VEO. The output is serialised into a
+     * pooled buffer, and the file is created in the background once the
+     * output is complete. If the output cannot be completed, it is thrown
+     * away.
      *
-     * @return the output writer
+     * @param r the report
+     * @param p the output file
+     * @param h the values harvested from the VEO (as seen by the report)
+     * @throws AppFatal if the error is so bad the program has to exit
+     * @throws AppError if the output could not be produced
+     * @throws IOException if the output could not be written
+     */
+    private void writeOutputFile(Report r, Path p, Harvest h) throws AppFatal, AppError, IOException {
+        ByteSink w;
+        boolean complete;
+
+        try {
+            w = perFile.open(p);
+        } catch (IOException ioe) {
+            throw new AppFatal("Couldn't get an output buffer: " + ioe.getMessage());
+        }
+        complete = false;
+        try {
+            r.writePreamble(w);
+            r.writeRecord(w, h);
+            r.writePostamble(w);
+            perFile.close(w);
+            complete = true;
+        } finally {
+            if (!complete) {
+                perFile.abandon(w);
+            }
+        }
+    }
+
+    /**
+     * Check that the output file for a VEO is not the VEO itself. This can
+     * only happen if the VEO is in the output directory, so whether the VEO's
+     * directory is the output directory is determined once per directory and
+     * remembered. Only if it is, and the names match, is the file system
+     * consulted again.
+     *
+     * @param veo the VEO file
+     * @param out the output file
+     * @throws AppFatal if the directories could not be compared
+     * @throws AppError if the output file is the VEO
+     */
+    private void checkNotInput(Path veo, Path out) throws AppFatal, AppError {
+        Path dir;
+        Boolean same;
+        String in, o;
+
+        dir = veo.toAbsolutePath().getParent();
+        same = inputIsOutputDir.get(dir);
+        if (same == null) {
+            try {
+                same = Files.isSameFile(dir, outputDir);
+            } catch (IOException ioe) {
+                throw new AppFatal("Fatal error when comparing input and output directories: " + ioe.toString());
+            }
+            inputIsOutputDir.put(dir, same);
+        }
+        if (!same) {
+            return;
+        }
+        in = veo.getFileName().toString();
+        o = out.getFileName().toString();
+        try {
+            if (in.equals(o) || (in.equalsIgnoreCase(o) && Files.exists(out) && Files.isSameFile(out, veo))) {
+                throw new AppError("The input file (" + veo.toString() + ") is the same as the output file (" + out.toString() + ")");
+            }
+        } catch (IOException ioe) {
+            throw new AppFatal("Fatal error when comparing input and output file names: " + ioe.toString());
+        }
+    }
+
+    /**
+     * Open the group output sink to write results of analysis. The output is
+     * written as UTF-8 bytes directly to the file's channel (or standard out).
+     * It is double buffered and written by a separate thread.
+     *
+     * @param r the report the output is for
+     * @param file the output file (null if writing to standard out)
+     * @return the output sink
      * @throws FileNotFoundException if the output file couldn't be created
      * @throws AppFatal shouldn't happen, but something really bad occurred
      */
-    private Writer openOutput(Path file) throws AppFatal, AppError, FileNotFoundException {
-        Writer output;
-        OutputStreamWriter osw;
-        OutputStream os;
-        Path p;
+    private ByteSink openOutput(Report r, Path file) throws AppFatal, AppError, FileNotFoundException {
+        ByteSink output;
+        WritableByteChannel ch;
+        boolean close;
 
         // if a specific output file has been specified, open it, otherwise use stdout
         if (file != null) {
-            os = new FileOutputStream(file.toFile());
+            ch = new FileOutputStream(file.toFile()).getChannel();
+            close = true;
             LOG.log(Level.INFO, ("New file " + file.toString()));
 
             // otherwise, if output to standard out requested, use that
-        } else if (stdout) {
-            os = System.out;
+        } else if (r.stdout) {
+            ch = Channels.newChannel(System.out);
+            close = false;
         } else {
             throw new AppFatal("Attempting to produce the group output without specifying an output file or using std out");
         }
-
-        // set output encoding and buffering
-        try {
-            osw = new OutputStreamWriter(os, "UTF-8");
-        } catch (UnsupportedEncodingException uee) {
-            throw new AppFatal("UTF-8 is an unsupported encoding exception!");
-        }
-        output = new BufferedWriter(osw);
-
-        // write preamble
-        switch (outputType) {
-            case XML:
-                Target.XMLpreamble(output);
-                break;
-            case JSON:
-                Target.JSONpreamble(output);
-                break;
-            case TSV:
-                Target.TSVpreamble(output, targets);
-                break;
-            case CSV:
-                Target.CSVpreamble(output, targets);
-                break;
-            default:
-                throw new AppFatal("An output type must be specified.");
-        }
+        output = new AsyncByteSink(ch, close, flushBytes, outBuffers, flushMillis, durable);
+        r.writePreamble(output);
         return output;
     }
 
     /**
-     * Flush and close the output writer
+     * Flush and close the group output sink of a report
      *
-     * @param output the output to close
+     * @param r the report whose output is to be closed
      */
-    private void closeOutput(Writer output) throws AppError {
+    private void closeOutput(Report r) throws AppError {
 
-        // write preamble
-        switch (outputType) {
-            case XML:
-                Information.XMLpostamble(output);
-                break;
-            case JSON:
-                Information.JSONpostamble(output);
-                break;
-            case TSV:
-                Information.TSVpostamble(output);
-                break;
-            case CSV:
-                Information.CSVpostamble(output);
-                break;
-            default:
-                throw new AppError("An output type must be specified.");
-        }
+        // write postamble
+        r.writePostamble(r.output);
 
         // flush and close
-        if (output != null) {
+        if (r.output != null) {
             try {
-                output.flush();
-                output.close();
+                r.output.close();
             } catch (IOException ioe) {
                 /* ignore */ }
         }
+        r.output = null;
     }
 
     /**
      * Read a file containing a list of metadata elements that are interesting.
      * Each line specifies one metadata element in a path format. The output
      * order reflects the order of the metadata elements. Lines that begin with
-     * an '!' are comments
+     * an '!' are comments. An element path may contain the wildcards '*' (any
+     * one element) and '//' (any number of elements); see PathMatcher. The
+     * prefixes 'fileVEO', 'recordVEO' and 'VEOMetadata' match the current
+     * version and the revision layers of a modified VEO, however deeply the
+     * revisions are nested. A line '@layers all|current|n' (tab separated)
+     * chooses the revision layers harvested by the targets on the lines that
+     * follow it: every layer (the default), only the current version (layer
+     * 0), or only layer n (1 is the version the current version revised, and
+     * so on). A line '@layers separate n' gives each following target n
+     * columns, one for each of layers 0 to n-1 (the column of layer 0 has the
+     * target's tag, and the column of each further layer k has the tag
+     * followed by '-k'). An element path of the form '$digest:elemPath'
+     * defines a virtual target: the SHA-256 (in hex) of the base64 decoded
+     * content of each element matching the path (e.g.
+     * '$digest:recordVEO/vers:Document/vers:Encoding/vers:DocumentData').
+     * Similarly '$format:elemPath' is the file format (e.g. 'PDF', 'TIFF',
+     * 'DOCX') of the decoded content, identified from its first bytes, and
+     * '$size:elemPath' is the size of the decoded content in bytes; neither
+     * decodes the rest of the content (see FormatIdentifier).
+     * The element path '$signatures' defines a virtual target whose values are
+     * the results of verifying each outer signature block of the VEO. A line
+     * '@filter tag test [value]' (tab separated) adds a Filter to the target
+     * with the given tag (defined on an earlier line); only the VEOs that
+     * satisfy every filter are output. The test is 'equals', 'prefix', 'regex'
+     * or 'exists'.
      *
      * @param controlFile the file containing the list of elements to harvest
+     * @return the targets read
      * @throws AppFatal if the file could not be read
      */
     static String[][] prefixes = {
         {"fileVEO", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:File"},
-        {"fileVEO", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:ModifiedVEO/vers:RevisedVEO/vers:SignedObject/vers:ObjectContent/vers:File"},
+        {"fileVEO", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent//vers:ModifiedVEO/vers:File"},
+        {"fileVEO", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:ModifiedVEO//vers:ObjectContent/vers:File"},
         {"recordVEO", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:Record"},
-        {"recordVEO", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:ModifiedVEO/vers:RevisedVEO/vers:SignedObject/vers:ObjectContent/vers:Record"},
+        {"recordVEO", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent//vers:ModifiedVEO/vers:Record"},
+        {"recordVEO", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:ModifiedVEO//vers:ObjectContent/vers:Record"},
         {"VEOMetadata", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:File/vers:FileMetadata"},
-        {"VEOMetadata", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:ModifiedVEO/vers:RevisedVEO/vers:SignedObject/vers:ObjectContent/vers:File/vers:FileMetadata"},
+        {"VEOMetadata", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent//vers:ModifiedVEO/vers:File/vers:FileMetadata"},
+        {"VEOMetadata", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:ModifiedVEO//vers:ObjectContent/vers:File/vers:FileMetadata"},
         {"VEOMetadata", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:Record/vers:RecordMetadata"},
-        {"VEOMetadata", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:ModifiedVEO/vers:RevisedVEO/vers:SignedObject/vers:ObjectContent/vers:Record/vers:RecordMetadata"}
+        {"VEOMetadata", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent//vers:ModifiedVEO/vers:Record/vers:RecordMetadata"},
+        {"VEOMetadata", "vers:VERSEncapsulatedObject/vers:SignedObject/vers:ObjectContent/vers:ModifiedVEO//vers:ObjectContent/vers:Record/vers:RecordMetadata"}
     };
 
-    private void readTargets(Path controlFile) throws AppFatal {
+    private Target readTargets(Path controlFile) throws AppFatal {
         String method = "readMetaElems";
-        String line, deflt, tag;
+        String line, deflt, tag, name;
         String tokens[];
-        int i;
+        int i, n, virtual, layer, columns;
         boolean rewritten;
-        Target t;
+        Target targets, t;
         ArrayList<String> elemPath;
 
+        targets = null;
+        layer = Target.ALL_LAYERS;
+        columns = 0;
+
         // open controlFile for reading
         try (
                 FileReader fr = new FileReader(controlFile.toString());
@@ -794,6 +2372,91 @@ public class V2MetaAnalysis {
                 // split line into tokens
                 tokens = line.split("\t");
 
+                // a filter on the values of a target already defined
+                if (tokens[0].startsWith("@")) {
+                    switch (tokens[0].toLowerCase()) {
+                        case "@filter":
+                            if (tokens.length < 3) {
+                                throw new AppFatal(classname, method, 6, "'@filter' must be followed by a tag and a test");
+                            }
+                            i = (targets != null) ? targets.findTag(tokens[1]) : -1;
+                            if (i == -1) {
+                                throw new AppFatal(classname, method, 7, "'@filter' on '" + tokens[1] + "', which is not the tag of a target defined earlier in the control file");
+                            }
+                            targets.get(i).addFilter(new Filter(tokens[2], tokens.length > 3 ? tokens[3] : null));
+                            break;
+                        case "@layers":
+                            if (tokens.length < 2) {
+                                throw new AppFatal(classname, method, 9, "'@layers' must be followed by 'all', 'current', a layer, or 'separate' and a number of layers");
+                            }
+                            columns = 0;
+                            try {
+                                switch (tokens[1].toLowerCase()) {
+                                    case "all":
+                                        layer = Target.ALL_LAYERS;
+                                        break;
+                                    case "current":
+                                        layer = 0;
+                                        break;
+                                    case "separate":
+                                        layer = Target.ALL_LAYERS;
+                                        columns = (tokens.length > 2) ? Integer.parseInt(tokens[2]) : 0;
+                                        if (columns < 1) {
+                                            throw new AppFatal(classname, method, 9, "'@layers separate' must be followed by a number of layers greater than 0");
+                                        }
+                                        break;
+                                    default:
+                                        layer = Integer.parseInt(tokens[1]);
+                                        if (layer < 0) {
+                                            throw new AppFatal(classname, method, 9, "'@layers' layer must not be negative");
+                                        }
+                                        break;
+                                }
+                            } catch (NumberFormatException nfe) {
+                                throw new AppFatal(classname, method, 9, "'@layers' must be followed by 'all', 'current', a layer, or 'separate' and a number of layers, not '" + line + "'");
+                            }
+                            break;
+                        default:
+                            throw new AppFatal(classname, method, 8, "Unknown directive '" + tokens[0] + "' in control file");
+                    }
+                    continue;
+                }
+
+                // virtual targets are computed from the element matched,
+                // rather than copied from it
+                virtual = Target.VIRTUAL_NONE;
+                if (tokens[0].startsWith("$")) {
+                    i = tokens[0].indexOf(':');
+                    if (i == -1) {
+                        name = tokens[0].substring(1);
+                        tokens[0] = "";
+                    } else {
+                        name = tokens[0].substring(1, i);
+                        tokens[0] = tokens[0].substring(i + 1);
+                    }
+                    switch (name.toLowerCase()) {
+                        case "digest":
+                            virtual = Target.VIRTUAL_DIGEST;
+                            break;
+                        case "format":
+                            virtual = Target.VIRTUAL_FORMAT;
+                            break;
+                        case "size":
+                            virtual = Target.VIRTUAL_SIZE;
+                            break;
+                        case "signatures":
+                            // matches no element
+                            virtual = Target.VIRTUAL_SIGNATURES;
+                            tokens[0] = "$signatures";
+                            break;
+                        default:
+                            throw new AppFatal(classname, method, 4, "Unknown virtual target '$" + name + "' in control file");
+                    }
+                    if (tokens[0].equals("")) {
+                        throw new AppFatal(classname, method, 5, "Virtual target '$" + name + "' must be followed by ':' and an element path");
+                    }
+                }
+
                 // to simplify the writing of the element to match, we define a
                 // set of prefixes that can be used. If a prefix has been used,
                 // expand it out. Note that there may be more than one matching
@@ -825,14 +2488,35 @@ public class V2MetaAnalysis {
                 } else {
                     tag = tokens[2];
                 }
+                if (tag == null && virtual == Target.VIRTUAL_SIGNATURES) {
+                    tag = "signatures";
+                }
 
-                // add new target
-                t = new Target(elemPath, deflt, tag);
+                // add new target (the signatures, filename and filepath are
+                // not in any revision layer)
+                t = new Target(elemPath, deflt, tag, virtual);
+                n = 1;
+                if (virtual != Target.VIRTUAL_SIGNATURES && t.fileTag == Target.FILE_NONE) {
+                    if (columns > 0) {
+                        t.layer = 0;
+                        n = columns;
+                    } else {
+                        t.layer = layer;
+                    }
+                }
                 if (targets == null) {
                     targets = t;
                 } else {
                     targets.add(t);
                 }
+
+                // add a column for each further layer wanted
+                tag = t.tag;
+                for (i = 1; i < n; i++) {
+                    t = new Target(elemPath, deflt, tag + "-" + i, virtual);
+                    t.layer = i;
+                    targets.add(t);
+                }
             }
         } catch (AppFatal ae) {
             throw new AppFatal(classname, method, 3, "Failed reading control file: " + ae.getMessage());
@@ -844,6 +2528,7 @@ public class V2MetaAnalysis {
         for (i = 0; i < targets.size(); i++) {
             LOG.log(Level.FINE, "Looking for {0}", targets.get(i).elemPath);
         }
+        return targets;
     }
 
     /**
@@ -856,8 +2541,23 @@ public class V2MetaAnalysis {
         V2MetaAnalysis v2ma;
 
         try {
+            if (args.length > 0 && args[0].equalsIgnoreCase("-daemon")) {
+                new Daemon(args).serve();
+                return;
+            }
+            if (args.length > 0 && args[0].equalsIgnoreCase("-submit")) {
+                Daemon.submit(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equalsIgnoreCase("-query")) {
+                IndexQuery.query(args);
+                return;
+            }
             v2ma = new V2MetaAnalysis(args);
             v2ma.processVEOs();
+            if (LOG.isLoggable(Level.INFO)) {
+                LOG.log(Level.INFO, "Time to first VEO: {0}ms after the JVM started", Long.toString(v2ma.stats.timeToFirstVEO(ManagementFactory.getRuntimeMXBean().getStartTime())));
+            }
         } catch (AppFatal e) {
             LOG.log(Level.SEVERE, e.getMessage());
         }
@@ -7,25 +7,150 @@ package V2MetaAnalysis;
 
 import VERSCommon.AppError;
 import VERSCommon.AppFatal;
-import VERSCommon.HandleElement;
-import VERSCommon.XMLConsumer;
-import VERSCommon.XMLParser;
-import java.nio.file.Path;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * This class parses V2 VEOs looking for elements that are of interest. It
  * copies those values into information structures.
  *
+ * The VEO is parsed with a SAX parser driven directly (rather than through
+ * VERSCommon.XMLParser) so that a VEO that has been read ahead into memory can
+ * be parsed from its buffer. As with XMLParser, the value of an element is the
+ * text it contains (null if it contains none). The name of each element is
+ * resolved once to a symbol (by its namespace and local name, see
+ * PathMatcher), and the path of the current element is kept as a stack of
+ * symbols. The path is matched against the element paths of all the targets
+ * by a PathMatcher, which keeps a state for each open element, so no string
+ * is built or compared per element. The parser itself is not namespace aware
+ * (so a VEO that uses the 'vers' prefix without declaring it can still be
+ * parsed); the namespace declarations are tracked by the parser, and the
+ * symbols of the qualified names are remembered for each set of bindings
+ * seen, so VEOs declaring the same namespaces share them.
+ *
+ * The content of an element matching a digest target is not harvested as
+ * text; instead it is passed (as it is parsed) to a Digester, and the digests
+ * are added to the harvest at the end of the VEO. Similarly, the content of an
+ * element matching a format or size target is passed to a FormatIdentifier,
+ * which decodes only its first bytes, and the format and size are added to
+ * the harvest at the end of the element. If the signatures are to be
+ * verified, the VEO is read through a SignatureCheck, which digests the signed
+ * object as the bytes pass and verifies the signatures at the end of the VEO.
+ *
+ * If a RegionIndex is in use, a VEO with an entry in the index is read with
+ * the large elements that no target needs spliced out; otherwise the VEO is
+ * read through a RegionScanner, and the large elements it finds are saved in
+ * the index once the VEO has been parsed. Nothing is spliced out when the
+ * signatures are to be verified, as they cover the whole signed object.
+ *
+ * The targets may be limited to a revision layer of a modified VEO (see
+ * Target). The parser counts the vers:RevisedVEO elements the current element
+ * is within (its layer), and a target only matches elements in its layer. If
+ * no target wants any element in a layer deeper than some depth, a
+ * vers:RevisedVEO element that starts such a layer is not matched against the
+ * targets at all, and (if a RegionIndex is in use) is spliced out unread. On a
+ * heavily revised VEO of which only the current version is wanted, this is
+ * most of the VEO.
+ *
+ * If the control file contains filters, parsing stops as soon as a filter is
+ * known to fail, and the VEO is not output. A filter on the filename or
+ * filepath is decided before the VEO is opened. Otherwise a VEO holds the
+ * metadata of its current version in one metadata section (vers:RecordMetadata
+ * or vers:FileMetadata) that follows the metadata of any revision layers, so a
+ * filter on a target in the metadata that has not been satisfied by the end of
+ * the current version's metadata section has failed. A filter on a target
+ * that is not within a metadata section (or on a virtual target) is decided
+ * at the end of the VEO.
+ *
+ * If Limits are set, the parser abandons a VEO as soon as it exceeds one (e.g.
+ * it is nested too deeply, or has taken too long to parse), remembering which
+ * (see abandoned()). The time is checked at each element and each piece of
+ * text, and as the bytes are read, so a VEO cannot run on unchecked; the
+ * text held for harvesting is checked before it is added to.
+ *
+ * The targets may be the targets of several control files merged together
+ * (see Report), each control file's filters forming a group. A VEO passes a
+ * group if it satisfies every filter in the group, and parsing only stops
+ * early once the VEO has failed every group.
+ *
  * @author Andrew
  */
-public class V2Parser implements XMLConsumer {
+public class V2Parser extends DefaultHandler {
 
-    XMLParser xmlp;             // the XML parser
+    XMLReader xmlr;             // the XML parser
     Target targets;  // elements of interest from VEOs
+    Target[] all;               // the targets, by index
+    PathMatcher matcher;        // matches element paths against the targets
+    int[] state;                // matcher state of each open element (state[0] is before the root)
+    int[] syms;                 // symbol of each open element
+    TreeMap<String, String> bindings; // namespace bound to each prefix ("" for the default namespace)
+    ArrayList<String> undo;     // prefix and previous namespace of each binding made by the open elements
+    int[] undoLen;              // length of undo before each open element
+    HashMap<String, HashMap<String, Integer>> resolvedBy; // resolved for each set of bindings seen
+    HashMap<String, Integer> resolved; // symbol of each qualified name under the current bindings
+    int revisedSym;             // symbols of the elements the parser looks for itself
+    int recordMetadataSym;
+    int fileMetadataSym;
+    Harvest harvest; // values harvested from the current VEO
+    boolean needPath;           // true if the path of each element is needed as a string
+    StringBuilder path;         // path of the current element (qualified names, if needPath)
+    int[] pathLen;              // length of the path at each depth
+    int[] textStart;            // start of the element's text (-1 if not harvested)
+    int depth;                  // depth of the current element
+    StringBuilder text;         // text of the elements being harvested
+    int harvesting;             // number of open elements being harvested
+    Digester digester;          // calculates digests (null if no digest targets)
+    int layer;                  // revision layer of the current element
+    boolean layered;            // true if any target wants only one revision layer
+    int maxLayer;               // deepest revision layer any target wants
+    int[] digestTargets;        // digest targets matching the element being digested
+    int digestCount;            // number of digest targets matching
+    int digestDepth;            // depth of the element being digested (-1 if none)
+    FormatIdentifier identifier; // identifies formats and sizes (null if no format or size targets)
+    int[] formatTargets;        // format and size targets matching the element being identified
+    int formatCount;            // number of format and size targets matching
+    int formatDepth;            // depth of the element being identified (-1 if none)
+    SignatureCheck sigCheck;    // verifies the signatures (null if not required)
+    int sigTarget;              // index of the signatures target
+    RegionIndex regionIndex;    // offsets of the large elements in VEOs (null if not used)
+    RegionScanner scanner;      // finds the large elements in VEOs not in the index
+    HashMap<String, Boolean> skippable; // true if no target needs an element with this path
+    long[] skip;                // regions of the current VEO to splice out
+    Filter[] filters;           // the filters in the control file (null if none)
+    int[] filterTarget;         // the target tested by each filter
+    int[][] targetFilters;      // the filters on each target (null if none)
+    int[][] decidePath;         // symbols of the path of each metadata section at which filters are decided (null if none)
+    int[][] decideFilters;      // the filters decided at the end of each such section
+    boolean[] satisfied;        // true if a filter has been satisfied by the current VEO
+    int unsatisfied;            // number of filters not yet satisfied
+    boolean rejected;           // true if the current VEO has failed a filter
+    Limits limits;              // limits on the resources used by a VEO (null if none)
+    long deadline;              // time (System.nanoTime()) the current VEO must be parsed by (0 if none)
+    long elements;              // number of elements in the current VEO
+    String abandoned;           // the limit the current VEO exceeded (null if none)
+    int groups;                 // number of groups of filters
+    boolean[] failed;           // true if the current VEO has failed a group (null if no filters)
+    int failedGroups;           // number of groups the current VEO has failed
     private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
 
     /**
@@ -35,76 +160,1046 @@ public class V2Parser implements XMLConsumer {
      * @throws AppFatal if a permanent error occurred
      */
     public V2Parser(Target targets) throws AppFatal {
-        xmlp = new XMLParser(this);
+        this(targets, 1);
+    }
+
+    /**
+     * Construct a new V2 VEO parser for the targets of several control files.
+     *
+     * @param targets list of elements to be harvested
+     * @param groups the number of groups the filters on the targets belong to
+     * @throws AppFatal if a permanent error occurred
+     */
+    public V2Parser(Target targets, int groups) throws AppFatal {
+        SAXParserFactory spf;
+        SAXParser sp;
+        Target t;
+
         this.targets = targets;
+        this.groups = groups;
+        try {
+            spf = SAXParserFactory.newInstance();
+            spf.setValidating(false);
+            spf.setNamespaceAware(false);
+
+            // VEOs are untrusted, so never read external entities (XXE)
+            spf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            spf.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            spf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            sp = spf.newSAXParser();
+            xmlr = sp.getXMLReader();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new AppFatal("Failed to create XML parser: " + e.getMessage());
+        }
+
+        // don't go looking for the DTD referenced by the VEO
+        try {
+            xmlr.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        } catch (SAXException e) {
+            /* ignore - not supported by this parser */
+        }
+        xmlr.setContentHandler(this);
+        xmlr.setErrorHandler(this);
+        path = new StringBuilder();
+        pathLen = new int[32];
+        textStart = new int[32];
+        state = new int[33];
+        syms = new int[32];
+        undoLen = new int[32];
+        bindings = new TreeMap<>();
+        undo = new ArrayList<>();
+        resolvedBy = new HashMap<>();
+        resolved = null;
+        all = new Target[targets.size()];
+        for (t = targets; t != null; t = t.next) {
+            all[t.index] = t;
+        }
+        matcher = new PathMatcher(targets, new String[]{"vers:RevisedVEO", "vers:RecordMetadata", "vers:FileMetadata"});
+        revisedSym = matcher.symbol("vers:RevisedVEO");
+        recordMetadataSym = matcher.symbol("vers:RecordMetadata");
+        fileMetadataSym = matcher.symbol("vers:FileMetadata");
+        text = new StringBuilder();
+        if (targets.hasVirtual(Target.VIRTUAL_DIGEST)) {
+            digester = new Digester("SHA-256");
+        } else {
+            digester = null;
+        }
+        if (targets.hasVirtual(Target.VIRTUAL_FORMAT) || targets.hasVirtual(Target.VIRTUAL_SIZE)) {
+            identifier = new FormatIdentifier();
+        } else {
+            identifier = null;
+        }
+        sigTarget = targets.findVirtual(Target.VIRTUAL_SIGNATURES);
+        if (sigTarget != -1) {
+            sigCheck = new SignatureCheck();
+        } else {
+            sigCheck = null;
+        }
+        setupLayers();
+        digestTargets = new int[targets.size()];
+        digestCount = 0;
+        digestDepth = -1;
+        formatTargets = new int[targets.size()];
+        formatCount = 0;
+        formatDepth = -1;
+        regionIndex = null;
+        scanner = null;
+        skippable = null;
+        skip = null;
+        limits = null;
+        abandoned = null;
+        setupFilters();
+    }
+
+    /**
+     * Work out the deepest revision layer wanted by any target. The signatures,
+     * filename and filepath targets are in no layer.
+     */
+    private void setupLayers() {
+        Target t;
+
+        layered = false;
+        maxLayer = 0;
+        for (t = targets; t != null; t = t.next) {
+            if (t.virtual == Target.VIRTUAL_SIGNATURES || t.fileTag != Target.FILE_NONE) {
+                continue;
+            }
+            if (t.layer == Target.ALL_LAYERS) {
+                maxLayer = Integer.MAX_VALUE;
+            } else {
+                layered = true;
+                if (t.layer > maxLayer) {
+                    maxLayer = t.layer;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the revision layers an element is within.
+     *
+     * @param p the path of the element (names separated by '/')
+     * @return the number of vers:RevisedVEO elements in the path
+     */
+    private static int layerOf(String p) {
+        String[] names;
+        int i, n;
+
+        names = p.split("/");
+        n = 0;
+        for (i = 0; i < names.length; i++) {
+            if (names[i].equals("vers:RevisedVEO")) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Collect the filters on the targets, and work out the metadata sections
+     * at the end of which each filter is decided.
+     */
+    private void setupFilters() {
+        ArrayList<Filter> fl;
+        ArrayList<String> at;
+        HashMap<String, int[]> decideAt;
+        String[] names;
+        Target t;
+        Filter f;
+        int[] a;
+        int i, j, k;
+
+        filters = null;
+        targetFilters = null;
+        decidePath = null;
+        decideFilters = null;
+        failed = null;
+        if (!targets.hasFilters()) {
+            return;
+        }
+        fl = new ArrayList<>();
+        targetFilters = new int[targets.size()][];
+        decideAt = new HashMap<>();
+        for (i = 0; i < targets.size(); i++) {
+            t = targets.get(i);
+            if (t.filter == null) {
+                continue;
+            }
+            j = 0;
+            for (f = t.filter; f != null; f = f.next) {
+                j++;
+            }
+            targetFilters[i] = new int[j];
+            at = (t.virtual == Target.VIRTUAL_NONE && t.fileTag == Target.FILE_NONE) ? decisionPoints(t) : new ArrayList<String>();
+            j = 0;
+            for (f = t.filter; f != null; f = f.next) {
+                targetFilters[i][j++] = fl.size();
+                for (k = 0; k < at.size(); k++) {
+                    a = decideAt.get(at.get(k));
+                    a = (a == null) ? new int[1] : Arrays.copyOf(a, a.length + 1);
+                    a[a.length - 1] = fl.size();
+                    decideAt.put(at.get(k), a);
+                }
+                fl.add(f);
+            }
+        }
+        filters = fl.toArray(new Filter[fl.size()]);
+        filterTarget = new int[filters.length];
+        for (i = 0; i < targetFilters.length; i++) {
+            if (targetFilters[i] != null) {
+                for (j = 0; j < targetFilters[i].length; j++) {
+                    filterTarget[targetFilters[i][j]] = i;
+                }
+            }
+        }
+        satisfied = new boolean[filters.length];
+        failed = new boolean[groups];
+
+        // the metadata sections as paths of symbols
+        if (!decideAt.isEmpty()) {
+            decidePath = new int[decideAt.size()][];
+            decideFilters = new int[decideAt.size()][];
+            i = 0;
+            for (String p : decideAt.keySet()) {
+                names = p.split("/");
+                decidePath[i] = new int[names.length];
+                for (j = 0; j < names.length; j++) {
+                    decidePath[i][j] = matcher.symbol(names[j]);
+                }
+                decideFilters[i] = decideAt.get(p);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Work out the metadata sections at the end of which a filter on a target
+     * is decided. These are the shallowest metadata sections containing the
+     * target's element paths (revision layers are nested deeper, and come
+     * first), as long as no other element path of the target could follow the
+     * section in the same parent. If any element path (outside a revision
+     * layer) is not within a metadata section, or contains a wildcard, the
+     * filter is only decided at the end of the VEO.
+     *
+     * @param t the target
+     * @return the paths of the metadata sections (empty if none)
+     */
+    private static ArrayList<String> decisionPoints(Target t) {
+        ArrayList<String> paths, sections, at;
+        String e, s, parent;
+        int i, j, d, min;
+        boolean ok;
+
+        paths = new ArrayList<>();
+        sections = new ArrayList<>();
+        at = new ArrayList<>();
+        min = Integer.MAX_VALUE;
+        for (i = 0; i < t.elemPath.size(); i++) {
+            e = t.elemPath.get(i);
+            if (e.contains("/vers:ModifiedVEO/")) {
+                continue;
+            }
+            if (PathMatcher.isPattern(e)) {
+                return at;
+            }
+            s = section(e);
+            if (s == null) {
+                return at;
+            }
+            paths.add(e);
+            sections.add(s);
+            d = s.split("/").length;
+            if (d < min) {
+                min = d;
+            }
+        }
+        for (i = 0; i < sections.size(); i++) {
+            s = sections.get(i);
+            if (s.split("/").length != min || at.contains(s)) {
+                continue;
+            }
+            parent = s.substring(0, s.lastIndexOf('/') + 1);
+            ok = true;
+            for (j = 0; j < paths.size(); j++) {
+                e = paths.get(j);
+                if (e.startsWith(parent) && !e.equals(s) && !e.startsWith(s + "/")) {
+                    ok = false;
+                }
+            }
+            if (ok) {
+                at.add(s);
+            }
+        }
+        return at;
+    }
+
+    /**
+     * Find the metadata section (the innermost vers:RecordMetadata or
+     * vers:FileMetadata element) containing an element path.
+     *
+     * @param e the element path
+     * @return the path of the metadata section (null if none)
+     */
+    private static String section(String e) {
+        String[] names;
+        int i, end;
+
+        names = e.split("/");
+        end = -1;
+        for (i = names.length - 1; i > 0 && end == -1; i--) {
+            if (names[i].equals("vers:RecordMetadata") || names[i].equals("vers:FileMetadata")) {
+                end = i;
+            }
+        }
+        if (end == -1) {
+            return null;
+        }
+        return String.join("/", Arrays.asList(names).subList(0, end + 1));
+    }
+
+    /**
+     * A value has been harvested for a target; note any filters it satisfies.
+     *
+     * @param target the index of the target
+     * @param value the value (null if the element was empty)
+     */
+    private void testFilters(int target, String value) {
+        int i, f;
+
+        for (i = 0; i < targetFilters[target].length; i++) {
+            f = targetFilters[target][i];
+            if (!satisfied[f] && filters[f].test(value)) {
+                satisfied[f] = true;
+                unsatisfied--;
+            }
+        }
+    }
+
+    /**
+     * A filter has failed; the VEO fails the filter's group.
+     *
+     * @param f the index of the filter
+     * @return true if the VEO has now failed every group
+     */
+    private boolean fail(int f) {
+        int g;
+
+        g = filters[f].group;
+        if (!failed[g]) {
+            failed[g] = true;
+            failedGroups++;
+        }
+        return failedGroups == groups;
+    }
+
+    /**
+     * Did the VEO just parsed pass every filter in a group?
+     *
+     * @param group the group
+     * @return true if it passed
+     */
+    public boolean passed(int group) {
+        return failed == null || !failed[group];
+    }
+
+    /**
+     * Test the filters not yet satisfied against all the values harvested for
+     * their targets (e.g. the filename before parsing, or digests at the end).
+     *
+     * @return true if every filter is satisfied
+     */
+    private boolean testHarvest() {
+        int i, j;
+
+        for (i = 0; i < filters.length; i++) {
+            if (satisfied[i]) {
+                continue;
+            }
+            for (j = 0; j < harvest.valueCount[filterTarget[i]]; j++) {
+                if (filters[i].test(harvest.value(filterTarget[i], j))) {
+                    satisfied[i] = true;
+                    unsatisfied--;
+                    break;
+                }
+            }
+        }
+        return unsatisfied == 0;
+    }
+
+    /**
+     * Bind a prefix to a namespace for the current element and the elements
+     * within it.
+     *
+     * @param prefix the prefix ("" for the default namespace)
+     * @param uri the namespace
+     */
+    private void bind(String prefix, String uri) {
+        undo.add(prefix);
+        undo.add(bindings.put(prefix, uri));
+    }
+
+    /**
+     * Undo the bindings made since undo was a given length.
+     *
+     * @param to the length
+     */
+    private void unbind(int to) {
+        int i;
+
+        for (i = undo.size() - 2; i >= to; i -= 2) {
+            if (undo.get(i + 1) == null) {
+                bindings.remove(undo.get(i));
+            } else {
+                bindings.put(undo.get(i), undo.get(i + 1));
+            }
+            undo.remove(i + 1);
+            undo.remove(i);
+        }
+        rebound();
+    }
+
+    /**
+     * The bindings have changed; find the symbols remembered for the new set
+     * of bindings. (The number of sets remembered is limited, in case every
+     * VEO declares different namespaces.)
+     */
+    private void rebound() {
+        String k;
+
+        k = bindings.isEmpty() ? "" : bindings.toString();
+        resolved = resolvedBy.get(k);
+        if (resolved == null) {
+            if (resolvedBy.size() == 64) {
+                resolvedBy.clear();
+            }
+            resolved = new HashMap<>();
+            resolvedBy.put(k, resolved);
+        }
+    }
+
+    /**
+     * Find the symbol of an element's qualified name under the current
+     * bindings. A prefix that has not been declared is taken to be as used in
+     * the element paths (e.g. 'vers').
+     *
+     * @param qName the qualified name
+     * @return the symbol
+     */
+    private int resolve(String qName) {
+        Integer sym;
+        String uri;
+        int i;
+
+        sym = resolved.get(qName);
+        if (sym == null) {
+            i = qName.indexOf(':');
+            uri = bindings.get(i == -1 ? "" : qName.substring(0, i));
+            if (uri == null) {
+                sym = matcher.symbol(qName);
+            } else {
+                sym = matcher.symbol(uri, qName.substring(i + 1), qName);
+            }
+            resolved.put(qName, sym);
+        }
+        return sym;
+    }
+
+    /**
+     * Use a RegionIndex to skip the parts of the VEOs that no target needs.
+     *
+     * @param regionIndex the index (null if not to be used)
+     */
+    public void setRegionIndex(RegionIndex regionIndex) {
+        this.regionIndex = regionIndex;
+        if (regionIndex != null) {
+            scanner = new RegionScanner();
+            skippable = new HashMap<>();
+            skip = new long[32];
+        }
+    }
+
+    /**
+     * Limit the resources the parser may use on each VEO.
+     *
+     * @param limits the limits (null if none)
+     */
+    public void setLimits(Limits limits) {
+        if (limits != null && limits.any()) {
+            this.limits = limits;
+        } else {
+            this.limits = null;
+        }
+    }
+
+    /**
+     * The limit the last VEO parsed exceeded, if it was abandoned.
+     *
+     * @return the limit (see Limits), or null if it was not abandoned
+     */
+    public String abandoned() {
+        return abandoned;
+    }
+
+    /**
+     * Abandon the current VEO as it has exceeded a limit.
+     *
+     * @param limit the limit exceeded
+     * @return an exception to stop the parse
+     */
+    private SAXException abandon(String limit) {
+        abandoned = limit;
+        return new SAXException("Exceeded the limit on " + limit);
+    }
+
+    /**
+     * Check that the current VEO has not run out of time.
+     *
+     * @throws SAXException if it has
+     */
+    private void checkTime() throws SAXException {
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw abandon(Limits.TIME);
+        }
     }
 
     /**
-     * Parse a VEO file, building a collection of information from it
+     * Work out which of the large elements in a VEO can be spliced out: those
+     * that do not match, contain, or lie within an element matching a target
+     * (as far as the PathMatcher can tell from the element's path), and those
+     * in a revision layer deeper than any target wants.
+     * The root element is always needed, as are elements within an element
+     * already spliced out (the outer element covers them).
      *
-     * @param veoFile the VEO file to harvest
+     * @param r the large elements in the VEO
+     * @return the number of regions to splice out (put in skip)
+     */
+    private int toSkip(RegionIndex.Regions r) {
+        Boolean b;
+        String p;
+        long covered;
+        int i, n;
+
+        n = 0;
+        covered = -1;
+        for (i = 0; i < r.count; i++) {
+            p = r.paths[i];
+            if (r.start[i] < covered || p.indexOf('/') == -1) {
+                continue;
+            }
+            b = skippable.get(p);
+            if (b == null) {
+                b = (layered && layerOf(p) > maxLayer) || !matcher.mayMatch(p);
+                skippable.put(p, b);
+            }
+            if (b) {
+                if (n * 2 == skip.length) {
+                    skip = Arrays.copyOf(skip, n * 4);
+                }
+                skip[n * 2] = r.start[i];
+                skip[n * 2 + 1] = r.end[i];
+                n++;
+                covered = r.end[i];
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Parse a VEO file, building a collection of information from it. If the
+     * VEO has been read ahead, it is parsed from memory, otherwise it is read
+     * from the file.
+     *
+     * @param veo the VEO to harvest
+     * @param harvest where to put the values harvested
+     * @return false if the VEO failed a filter in every group (and is not to
+     * be output)
      * @throws VERSCommon.AppFatal if a fatal error occurred (no sense in going
      * on)
-     * @throws VERSCommon.AppError if a VEO error occurred (can repeat with new
-     * VEO)
+     * @throws VERSCommon.AppError if a VEO error occurred, or the VEO exceeded
+     * a limit (can repeat with new VEO)
+     */
+    public boolean parse(VEOFile veo, Harvest harvest) throws AppFatal, AppError {
+        InputStream is;
+        InputSource src;
+        BasicFileAttributes attrs;
+        RegionIndex.Regions regions;
+        boolean complete;
+        int i, n;
+
+        this.harvest = harvest;
+        needPath = sigCheck != null || LOG.isLoggable(Level.FINE);
+        path.setLength(0);
+        bindings.clear();
+        undo.clear();
+        rebound();
+        text.setLength(0);
+        depth = 0;
+        state[0] = matcher.start();
+        layer = 0;
+        harvesting = 0;
+        digestCount = 0;
+        digestDepth = -1;
+        formatCount = 0;
+        formatDepth = -1;
+        is = null;
+        complete = false;
+        attrs = null;
+        regions = null;
+        n = 0;
+        rejected = false;
+        abandoned = null;
+        elements = 0;
+        deadline = 0;
+
+        // a filter on the filename or filepath is decided before parsing
+        if (filters != null) {
+            Arrays.fill(satisfied, false);
+            Arrays.fill(failed, false);
+            unsatisfied = filters.length;
+            failedGroups = 0;
+            testHarvest();
+            for (i = 0; i < filters.length; i++) {
+                if (!satisfied[i] && targets.get(filterTarget[i]).fileTag != Target.FILE_NONE && fail(i)) {
+                    return false;
+                }
+            }
+        }
+
+        // a VEO that is too big is abandoned without being read
+        if (limits != null) {
+            if (limits.maxMillis > 0) {
+                deadline = System.nanoTime() + limits.maxMillis * 1000000L;
+            }
+            if (limits.maxBytes > 0 && (veo.data != null ? veo.length : veo.size) > limits.maxBytes) {
+                abandoned = Limits.BYTES;
+                throw new AppError("Abandoned VEO as it exceeded the limit on " + abandoned);
+            }
+        }
+        try {
+
+            // look up the VEO in the region index (unless it has changed
+            // since it was read ahead)
+            if (regionIndex != null) {
+                attrs = Files.readAttributes(veo.file, BasicFileAttributes.class);
+                if (veo.data != null && veo.length != attrs.size()) {
+                    attrs = null;
+                } else {
+                    regions = regionIndex.load(veo.file, attrs);
+                }
+                if (regions != null && sigCheck == null) {
+                    n = toSkip(regions);
+                }
+            }
+            if (n > 0) {
+                is = RegionIndex.open(veo, skip, n);
+            } else if (veo.data != null) {
+                is = new ByteArrayInputStream(veo.data, 0, veo.length);
+            } else {
+                is = new BufferedInputStream(Files.newInputStream(veo.file), 65536);
+            }
+            if (attrs != null && regions == null) {
+                scanner.reset();
+                is = scanner.wrap(is);
+            }
+            if (sigCheck != null) {
+                sigCheck.reset();
+                is = sigCheck.wrap(is);
+            }
+            if (limits != null) {
+                is = new Metered(is);
+            }
+            src = new InputSource(is);
+            src.setSystemId(veo.file.toUri().toString());
+            xmlr.parse(src);
+            if (digester != null) {
+                digester.collect(harvest);
+            }
+            if (sigCheck != null) {
+                sigCheck.verify(harvest, sigTarget);
+            }
+            if (attrs != null && regions == null) {
+                regionIndex.save(veo.file, attrs, scanner);
+            }
+            complete = true;
+        } catch (SAXException e) {
+            if (rejected) {
+                LOG.log(Level.FINE, "{0} failed a filter; stopped parsing", veo.file.toString());
+                return false;
+            }
+            if (abandoned != null) {
+                throw new AppError("Abandoned VEO as it exceeded the limit on " + abandoned);
+            }
+            throw new AppError("Failed parsing VEO: " + e.getMessage());
+        } catch (IOException e) {
+            if (abandoned != null) {
+                throw new AppError("Abandoned VEO as it exceeded the limit on " + abandoned);
+            }
+            throw new AppError("Failed reading VEO: " + e.getMessage());
+        } catch (InterruptedException e) {
+            throw new AppError("Interrupted calculating digests");
+        } finally {
+            if (digester != null && !complete) {
+                digester.abort();
+            }
+
+            // don't hang on to the memory an abandoned VEO used
+            if (abandoned != null) {
+                text.setLength(0);
+                text.trimToSize();
+                path.setLength(0);
+                path.trimToSize();
+            }
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    /* ignore */
+                }
+            }
+        }
+        if (filters == null || testHarvest()) {
+            return true;
+        }
+        for (i = 0; i < filters.length; i++) {
+            if (!satisfied[i]) {
+                fail(i);
+            }
+        }
+        return failedGroups < groups;
+    }
+
+    /**
+     * Release the resources held by the parser (i.e. stop the digester's
+     * thread). The parser cannot be used afterwards.
      */
-    public void parse(Path veoFile) throws AppFatal, AppError {
-        xmlp.parse(veoFile);
+    public void close() {
+        if (digester != null) {
+            digester.close();
+            digester = null;
+        }
     }
 
     /**
-     * The XML parser has found the start of an element. Check to see if this
-     * element is of interest, if so, remember that we want the values
+     * The XML parser has found the start of an element. Extend the element
+     * path, and check to see if this element is of interest. If so, remember
+     * that we want the values
      *
-     * @param elementPath
-     * @param attributes
-     * @return
+     * @param uri namespace URI (not used)
+     * @param localName local name (not used)
+     * @param qName qualified name of the element
+     * @param attributes attributes of the element
      * @throws SAXException
      */
     @Override
-    public HandleElement startElement(String elementPath, Attributes attributes) throws SAXException {
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
         int i;
-        HandleElement he;
+        int[] m;
+        boolean harvest;
+        String a;
+        Target t;
 
-        he = null;
-        for (i = 0; i < targets.size(); i++) {
-            // System.out.println("Look for "+targets.get(i));
-            // System.out.println("Given    "+elementPath);
-            if (targets.get(i).matchElemPath(elementPath)) {
-                he = new HandleElement(HandleElement.VALUE_TO_STRING);
-                targets.get(i).addAttributes(attributes);
-                // System.out.println("Harvest! " + elementPath);
+        if (limits != null) {
+            elements++;
+            if (limits.maxDepth > 0 && depth >= limits.maxDepth) {
+                throw abandon(Limits.DEPTH);
+            }
+            if (limits.maxElements > 0 && elements > limits.maxElements) {
+                throw abandon(Limits.ELEMENTS);
             }
+            checkTime();
+        }
+        if (depth == pathLen.length) {
+            pathLen = Arrays.copyOf(pathLen, depth * 2);
+            textStart = Arrays.copyOf(textStart, depth * 2);
+            state = Arrays.copyOf(state, depth * 2 + 1);
+            syms = Arrays.copyOf(syms, depth * 2);
+            undoLen = Arrays.copyOf(undoLen, depth * 2);
+        }
+
+        // note any namespaces declared by this element
+        undoLen[depth] = undo.size();
+        for (i = 0; i < attributes.getLength(); i++) {
+            a = attributes.getQName(i);
+            if (a.startsWith("xmlns")) {
+                if (a.length() == 5) {
+                    bind("", attributes.getValue(i));
+                } else if (a.charAt(5) == ':') {
+                    bind(a.substring(6), attributes.getValue(i));
+                }
+            }
+        }
+        if (undo.size() > undoLen[depth]) {
+            rebound();
+        }
+        if (needPath) {
+            pathLen[depth] = path.length();
+            if (depth > 0) {
+                path.append('/');
+            }
+            path.append(qName);
+            if (sigCheck != null) {
+                sigCheck.startElement(path.toString());
+            }
+        }
+
+        // find the targets matching this element; nothing matches within a
+        // revision layer deeper than any target wants
+        syms[depth] = resolve(qName);
+        state[depth + 1] = matcher.step(state[depth], syms[depth]);
+        if (layered && syms[depth] == revisedSym && ++layer > maxLayer) {
+            state[depth + 1] = PathMatcher.DEAD;
+        }
+        m = matcher.matches(state[depth + 1]);
+        harvest = false;
+        for (i = 0; i < m.length; i++) {
+            t = all[m[i]];
+            if (t.layer != Target.ALL_LAYERS && t.layer != layer) {
+                continue;
+            }
+            if (t.virtual == Target.VIRTUAL_DIGEST) {
+                if (digestDepth == -1) {
+                    digestTargets[digestCount++] = m[i];
+                }
+            } else if (t.virtual == Target.VIRTUAL_FORMAT || t.virtual == Target.VIRTUAL_SIZE) {
+                if (formatDepth == -1) {
+                    formatTargets[formatCount++] = m[i];
+                }
+            } else {
+                harvest = true;
+                t.addAttributes(this.harvest, attributes);
+            }
+        }
+
+        // start digesting the content of this element
+        if (digestCount > 0 && digestDepth == -1) {
+            digestDepth = depth;
+            try {
+                digester.start();
+            } catch (InterruptedException ie) {
+                throw new SAXException("Interrupted calculating digest");
+            }
+        }
+
+        // start identifying the format of the content of this element
+        if (formatCount > 0 && formatDepth == -1) {
+            formatDepth = depth;
+            identifier.start();
+        }
+        if (harvest) {
+            textStart[depth] = text.length();
+            harvesting++;
+        } else {
+            textStart[depth] = -1;
+        }
+        depth++;
+    }
+
+    /**
+     * The XML parser has found some text. Remember it if it is within an
+     * element being harvested, and digest (or identify) it if it is within an
+     * element being digested (or identified).
+     *
+     * @param ch the characters
+     * @param start start of the text
+     * @param length length of the text
+     * @throws SAXException if interrupted while digesting, or the VEO exceeded
+     * a limit
+     */
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (limits != null) {
+            if (limits.maxValue > 0 && harvesting > 0 && text.length() + length > limits.maxValue) {
+                throw abandon(Limits.VALUE);
+            }
+            checkTime();
+        }
+        if (harvesting > 0) {
+            text.append(ch, start, length);
+        }
+        if (sigCheck != null) {
+            sigCheck.characters(ch, start, length);
+        }
+        if (digestDepth != -1) {
+            try {
+                digester.decode(ch, start, length);
+            } catch (InterruptedException ie) {
+                throw new SAXException("Interrupted calculating digest");
+            }
+        }
+        if (formatDepth != -1) {
+            identifier.decode(ch, start, length);
         }
-        return he;
     }
 
     /**
-     * The XML parser has found the end of an element - the start should be on
-     * the top of the Stack.
+     * The XML parser has found the end of an element.
      *
-     * @param elementPath
-     * @param value
-     * @param element
+     * @param uri namespace URI (not used)
+     * @param localName local name (not used)
+     * @param qName qualified name of the element
      * @throws SAXException
      */
     @Override
-    public void endElement(String elementPath, String value, String element) throws SAXException {
-        int i;
-        String s;
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        int i, j, k, start, end;
+        int[] at, m;
+        String value;
 
-        // remember the value harvested (null if none)
-        for (i = 0; i < targets.size(); i++) {
-            if (targets.get(i).matchElemPath(elementPath)) {
-                if (value != null) {
-                    LOG.log(Level.FINE, "Harvesting {0} ''{1}''", new Object[]{elementPath, value});
+        depth--;
+        if (sigCheck != null) {
+            sigCheck.endElement();
+        }
+        if (depth == digestDepth) {
+            try {
+                digester.end(digestTargets, digestCount);
+            } catch (InterruptedException ie) {
+                throw new SAXException("Interrupted calculating digest");
+            }
+            digestCount = 0;
+            digestDepth = -1;
+        }
+        if (depth == formatDepth) {
+            for (k = 0; k < formatCount; k++) {
+                i = formatTargets[k];
+                if (all[i].virtual == Target.VIRTUAL_FORMAT) {
+                    harvest.addValue(i, identifier.format());
                 } else {
-                    LOG.log(Level.FINE, "Harvesting {0} <Null>", elementPath);
+                    harvest.addValue(i, Long.toString(identifier.size()));
                 }
-                if (value != null) {
-                    targets.get(i).value.add(value);
+            }
+            formatCount = 0;
+            formatDepth = -1;
+        }
+        if (textStart[depth] != -1) {
+            start = textStart[depth];
+            end = text.length();
+            value = null;
+            harvesting--;
+
+            // remember the value harvested (if any), copying it straight from
+            // the text buffer; a String is only made for a filter
+            m = matcher.matches(state[depth + 1]);
+            for (j = 0; j < m.length; j++) {
+                i = m[j];
+                if (all[i].virtual == Target.VIRTUAL_NONE && (all[i].layer == Target.ALL_LAYERS || all[i].layer == layer)) {
+                    if (LOG.isLoggable(Level.FINE)) {
+                        if (end > start) {
+                            LOG.log(Level.FINE, "Harvesting {0} ''{1}''", new Object[]{path.toString(), text.substring(start, end)});
+                        } else {
+                            LOG.log(Level.FINE, "Harvesting {0} <Null>", path.toString());
+                        }
+                    }
+                    if (end > start) {
+                        harvest.addValue(i, text, start, end);
+                    }
+                    if (targetFilters != null && targetFilters[i] != null) {
+                        if (value == null && end > start) {
+                            value = text.substring(start, end);
+                        }
+                        testFilters(i, value);
+                    }
+                }
+            }
+            text.setLength(start);
+        }
+
+        // at the end of a metadata section, stop if a filter has failed
+        if (decidePath != null && unsatisfied > 0 && (syms[depth] == recordMetadataSym || syms[depth] == fileMetadataSym)) {
+            for (k = 0; k < decidePath.length; k++) {
+                if (!onPath(decidePath[k])) {
+                    continue;
                 }
+                at = decideFilters[k];
+                for (i = 0; i < at.length; i++) {
+                    if (!satisfied[at[i]] && fail(at[i])) {
+                        rejected = true;
+                        throw new SAXException("VEO failed filter on '" + targets.get(filterTarget[at[i]]).tag + "'");
+                    }
+                }
+            }
+        }
+        if (layered && syms[depth] == revisedSym) {
+            layer--;
+        }
+        if (undo.size() > undoLen[depth]) {
+            unbind(undoLen[depth]);
+        }
+        if (needPath) {
+            path.setLength(pathLen[depth]);
+        }
+    }
+
+    /**
+     * Is the current element at the end of a path?
+     *
+     * @param p the symbols of the path
+     * @return true if the symbols of the open elements are the same
+     */
+    private boolean onPath(int[] p) {
+        int i;
+
+        if (p.length != depth + 1) {
+            return false;
+        }
+        for (i = 0; i < p.length; i++) {
+            if (p[i] != syms[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A stream that counts the bytes read from the VEO, and abandons the VEO
+     * if there are too many, or it has run out of time.
+     */
+    private class Metered extends FilterInputStream {
+
+        long count;     // number of bytes read
+
+        Metered(InputStream is) {
+            super(is);
+            count = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c;
+
+            c = in.read();
+            if (c != -1) {
+                counted(1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+
+            n = in.read(b, off, len);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        /**
+         * Some bytes have been read; check they are within the limits.
+         *
+         * @param n the number of bytes
+         * @throws IOException if the VEO exceeded a limit
+         */
+        private void counted(int n) throws IOException {
+            count += n;
+            if (limits.maxBytes > 0 && count > limits.maxBytes) {
+                abandoned = Limits.BYTES;
+            } else if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                abandoned = Limits.TIME;
+            } else {
+                return;
             }
+            throw new IOException("Exceeded the limit on " + abandoned);
         }
     }
 }
@@ -0,0 +1,40 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.nio.file.Path;
+
+/**
+ * A VEOFile is a VEO found when looking through the files and directories to
+ * be processed. If the VEO has been read ahead, its contents are held in a
+ * buffer; otherwise the parser reads it from the file.
+ *
+ * @author Andrew
+ */
+public class VEOFile {
+
+    Path file;      // the VEO
+    long size;      // size of the VEO in bytes (-1 if not known)
+    byte[] data;    // contents of the VEO if it has been read ahead (otherwise null)
+    int length;     // number of bytes of data that are valid
+    int seq;        // position of the VEO in the order the VEOs were found
+    byte[] hash;    // SHA-256 of the contents, if worked out when read ahead (otherwise null)
+
+    /**
+     * Construct a new VEOFile that has not been read.
+     *
+     * @param file the VEO
+     * @param size size of the VEO in bytes (-1 if not known)
+     */
+    public VEOFile(Path file, long size) {
+        this.file = file;
+        this.size = size;
+        data = null;
+        length = 0;
+        seq = 0;
+        hash = null;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The Watcher finds VEOs as they arrive in a set of directories (e.g. a
+ * directory that transfers are dropped into), so that they can be processed
+ * as they arrive.
+ *
+ * Each directory (and its subdirectories) is registered with a WatchService,
+ * so the file system reports files as they are created and changed; the
+ * directories are never rescanned (unless the file system reports that it has
+ * lost events). A VEO reported may still be being written, so it is only
+ * returned once it has settled: it has been seen with the same size and
+ * modification time twice, at least the settle time apart. (The modification
+ * time alone cannot be trusted, as a copy may preserve the original's.) The
+ * VEOs already in the directories when watching starts are returned as well;
+ * these are returned immediately if they were last modified more than the
+ * settle time ago.
+ *
+ * Each VEO is returned once. If it is later rewritten (its size or
+ * modification time changes) it is returned again.
+ *
+ * @author Andrew
+ */
+public class Watcher {
+
+    WatchService ws;                // reports changes in the directories
+    HashMap<WatchKey, Path> dirs;   // the directories being watched
+    LinkedHashMap<Path, Candidate> pending; // VEOs waiting to settle
+    HashMap<Path, String> returned; // size and modification time of each VEO returned
+    ArrayDeque<VEOFile> ready;      // VEOs that have settled
+    long settleMillis;              // how long a VEO must be unchanged
+    long pollMillis;                // how often to look at VEOs waiting to settle
+    HashMap<Path, HashSet<String>> ignoreDirs; // directories containing output files, and the extensions of the files
+    HashSet<Path> ignoreFiles;      // the group output files
+    boolean initialScan;            // true while looking at the files there when watching started
+    volatile boolean stopped;       // true if stop() has been called
+    private final static Logger LOG = Logger.getLogger("V2MetaAnalysis.V2MetaAnalysis");
+
+    /**
+     * A VEO waiting to settle.
+     */
+    private static class Candidate {
+
+        boolean initial; // true if found when watching started
+        boolean seen;   // true once it has been looked at
+        long size;      // size when last looked at
+        long modified;  // modification time when last looked at
+        long changed;   // when it was last seen to change
+    }
+
+    /**
+     * Construct a new Watcher.
+     *
+     * @param settleMillis how long (in milliseconds) a VEO must be unchanged
+     * before it is returned
+     * @throws IOException if the file system cannot watch directories
+     */
+    public Watcher(long settleMillis) throws IOException {
+        ws = FileSystems.getDefault().newWatchService();
+        dirs = new HashMap<>();
+        pending = new LinkedHashMap<>();
+        returned = new HashMap<>();
+        ready = new ArrayDeque<>();
+        this.settleMillis = settleMillis;
+        pollMillis = Math.max(50, Math.min(settleMillis / 2, 500));
+        ignoreDirs = new HashMap<>();
+        ignoreFiles = new HashSet<>();
+        initialScan = false;
+        stopped = false;
+    }
+
+    /**
+     * Ignore the output of this run, so that output files written into a
+     * watched directory are not mistaken for VEOs. Called once for each
+     * report produced by the run; the outputs of all of them are ignored.
+     *
+     * @param outputDir directory in which output files are created (null if
+     * none)
+     * @param ext extension of the output files (e.g. ".xml")
+     * @param outputFile the group output file (null if none)
+     */
+    public void ignore(Path outputDir, String ext, Path outputFile) {
+        HashSet<String> exts;
+        Path dir;
+
+        if (outputDir != null) {
+            dir = outputDir.toAbsolutePath().normalize();
+            exts = ignoreDirs.get(dir);
+            if (exts == null) {
+                exts = new HashSet<>();
+                ignoreDirs.put(dir, exts);
+            }
+            exts.add(ext.toLowerCase());
+        }
+        if (outputFile != null) {
+            ignoreFiles.add(outputFile.toAbsolutePath().normalize());
+        }
+    }
+
+    /**
+     * Start watching a directory and its subdirectories. If given a file
+     * rather than a directory, the file is simply returned once it has
+     * settled.
+     *
+     * @param file the file or directory
+     */
+    public void watch(Path file) {
+        BasicFileAttributes attrs;
+
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot watch ''{0}'' as it could not be read: {1}", new Object[]{file.toString(), e.getMessage()});
+            return;
+        }
+        initialScan = true;
+        if (attrs.isDirectory()) {
+            register(file);
+        } else {
+            candidate(file);
+        }
+        initialScan = false;
+    }
+
+    /**
+     * Register a directory (and its subdirectories) with the WatchService, and
+     * look at the files already in it. The directory is registered before it
+     * is read, so that no file created in the meantime is missed.
+     *
+     * @param dir the directory
+     */
+    private void register(Path dir) {
+        WatchKey key;
+
+        try {
+            key = dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot watch directory ''{0}'': {1}", new Object[]{dir.toString(), e.getMessage()});
+            return;
+        }
+        if (dirs.put(key, dir) == null) {
+            LOG.log(Level.INFO, "Watching directory ''{0}''", dir.toString());
+        }
+        scan(dir);
+    }
+
+    /**
+     * Look at the files in a directory, registering any subdirectories.
+     *
+     * @param dir the directory
+     */
+    private void scan(Path dir) {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                if (Files.isDirectory(p)) {
+                    register(p);
+                } else {
+                    candidate(p);
+                }
+            }
+        } catch (IOException e) {
+            LOG.log(Level.INFO, ("Failed to process directory '" + dir.toString() + "': " + e.getMessage()));
+        }
+    }
+
+    /**
+     * A file has been created or changed. If it is a VEO, wait for it to
+     * settle.
+     *
+     * @param file the file
+     */
+    private void candidate(Path file) {
+        Candidate c;
+        String s;
+        Path p;
+
+        s = file.toString().toLowerCase();
+        if (!s.endsWith(".veo") && !s.endsWith(".xml")) {
+            return;
+        }
+        if (!ignoreDirs.isEmpty() || !ignoreFiles.isEmpty()) {
+            p = file.toAbsolutePath().normalize();
+            if (ignoreFiles.contains(p) || ignoredExt(ignoreDirs.get(p.getParent()), s)) {
+                return;
+            }
+        }
+        if (!pending.containsKey(file)) {
+            c = new Candidate();
+            c.initial = initialScan;
+            c.seen = false;
+            pending.put(file, c);
+        }
+    }
+
+    /**
+     * Does a file name end with the extension of the output files written
+     * into its directory?
+     *
+     * @param exts the extensions of the output files in the directory (null
+     * if no output files are written there)
+     * @param s the file name (in lower case)
+     * @return true if it does
+     */
+    private boolean ignoredExt(HashSet<String> exts, String s) {
+        if (exts == null) {
+            return false;
+        }
+        for (String ext : exts) {
+            if (s.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Look at the VEOs waiting to settle, moving those that have settled to
+     * the ready queue.
+     */
+    private void settle() {
+        Iterator<Map.Entry<Path, Candidate>> it;
+        Map.Entry<Path, Candidate> e;
+        BasicFileAttributes attrs;
+        Candidate c;
+        String stamp;
+        long now, modified;
+
+        now = System.currentTimeMillis();
+        it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            e = it.next();
+            try {
+                attrs = Files.readAttributes(e.getKey(), BasicFileAttributes.class);
+            } catch (IOException ioe) {
+                it.remove(); // gone (or not readable) before it settled
+                continue;
+            }
+            if (!attrs.isRegularFile()) {
+                it.remove();
+                continue;
+            }
+            modified = attrs.lastModifiedTime().toMillis();
+            c = e.getValue();
+
+            // first look; an unchanged VEO returned before is not returned
+            // again. A VEO there when watching started has settled if it was
+            // modified long enough ago; any other VEO must be seen again,
+            // unchanged, after the settle time
+            if (!c.seen) {
+                stamp = attrs.size() + "/" + modified;
+                if (stamp.equals(returned.get(e.getKey()))) {
+                    it.remove();
+                    continue;
+                }
+                c.seen = true;
+                c.size = attrs.size();
+                c.modified = modified;
+                c.changed = c.initial ? Math.min(modified, now) : now;
+            } else if (c.size != attrs.size() || c.modified != modified) {
+                c.size = attrs.size();
+                c.modified = modified;
+                c.changed = now;
+            }
+            if (now - c.changed >= settleMillis) {
+                it.remove();
+                returned.put(e.getKey(), c.size + "/" + c.modified);
+                ready.add(new VEOFile(e.getKey(), c.size));
+            }
+        }
+    }
+
+    /**
+     * Process the events the WatchService has reported for a directory.
+     *
+     * @param key the directory's key
+     */
+    private void events(WatchKey key) {
+        Path dir, p;
+        WatchEvent.Kind<?> kind;
+
+        dir = dirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            kind = event.kind();
+
+            // events were lost; look at the directory again
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                if (dir != null) {
+                    LOG.log(Level.INFO, "Events lost; rescanning ''{0}''", dir.toString());
+                    scan(dir);
+                }
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            p = dir.resolve((Path) event.context());
+            if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                pending.remove(p);
+                returned.remove(p);
+            } else if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(p)) {
+                register(p);
+            } else {
+                candidate(p);
+            }
+        }
+        if (!key.reset()) {
+            dirs.remove(key);
+        }
+    }
+
+    /**
+     * Get the next VEO that has settled, if there is one, without waiting.
+     *
+     * @return the VEO, or null if no VEO is ready
+     */
+    public VEOFile poll() {
+        WatchKey key;
+
+        if (ready.isEmpty()) {
+            try {
+                while ((key = ws.poll()) != null) {
+                    events(key);
+                }
+            } catch (ClosedWatchServiceException cwse) {
+                return null;
+            }
+            settle();
+        }
+        return ready.poll();
+    }
+
+    /**
+     * Get the next VEO that has settled, waiting until one has.
+     *
+     * @return the VEO, or null if the Watcher has been stopped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public VEOFile take() throws InterruptedException {
+        WatchKey key;
+
+        while (!stopped) {
+            if (!ready.isEmpty()) {
+                return ready.poll();
+            }
+            try {
+                key = ws.poll(pollMillis, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    events(key);
+                    key = ws.poll();
+                }
+            } catch (ClosedWatchServiceException cwse) {
+                return null;
+            }
+            settle();
+        }
+        return null;
+    }
+
+    /**
+     * Stop watching; take() returns null (within the poll interval). May be
+     * called from any thread.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Release the WatchService.
+     */
+    public void close() {
+        try {
+            ws.close();
+        } catch (IOException ioe) {
+            /* ignore */
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of saving the targets read from a control file in a ControlFileCache,
+ * and loading them again.
+ *
+ * @author Andrew
+ */
+public class ControlFileCacheTest {
+
+    Path dir;               // temporary directory
+    Path controlFile;       // the control file
+    ControlFileCache cache; // the cache being tested
+
+    @Before
+    public void setUp() throws IOException, AppFatal {
+        dir = TestFiles.create();
+        controlFile = dir.resolve("cf.txt");
+        Files.write(controlFile, "!the contents only name the cache entry\n".getBytes(StandardCharsets.UTF_8));
+        cache = new ControlFileCache(dir.resolve("cache"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.delete(dir);
+    }
+
+    /**
+     * A target list using everything a cache entry holds.
+     *
+     * @return the target list
+     * @throws AppFatal if a target could not be created
+     */
+    private static Target targets() throws AppFatal {
+        Target targets, t;
+        ArrayList<String> elemPath;
+
+        elemPath = new ArrayList<>();
+        elemPath.add("vers:VERSEncapsulatedObject/vers:SignedObject//vers:Title");
+        elemPath.add("vers:VERSEncapsulatedObject//naa:Title");
+        targets = new Target(elemPath, "Untitled", "title");
+        targets.addFilter(new Filter("prefix", "Annual"));
+        targets.addFilter(new Filter("exists", null));
+
+        elemPath = new ArrayList<>();
+        elemPath.add("vers:VERSEncapsulatedObject//vers:DocumentData");
+        t = new Target(elemPath, null, "digest", Target.VIRTUAL_DIGEST);
+        t.layer = 2;
+        targets.add(t);
+
+        elemPath = new ArrayList<>();
+        elemPath.add("vers:VERSEncapsulatedObject");
+        t = new Target(elemPath, null, "filepath");
+        t.addFilter(new Filter("regex", ".*\\.veo"));
+        targets.add(t);
+        return targets;
+    }
+
+    @Test
+    public void testRoundTrip() throws AppFatal {
+        Target saved, loaded, s, l;
+        Filter sf, lf;
+
+        saved = targets();
+        cache.save(controlFile, saved);
+        loaded = cache.load(controlFile);
+        assertNotNull(loaded);
+        assertEquals(saved.size(), loaded.size());
+        for (s = saved, l = loaded; s != null; s = s.next, l = l.next) {
+            assertEquals(s.elemPath, l.elemPath);
+            assertEquals(s.deflt, l.deflt);
+            assertEquals(s.tag, l.tag);
+            assertEquals(s.index, l.index);
+            assertEquals(s.virtual, l.virtual);
+            assertEquals(s.fileTag, l.fileTag);
+            assertEquals(s.layer, l.layer);
+            for (sf = s.filter, lf = l.filter; sf != null; sf = sf.next, lf = lf.next) {
+                assertNotNull(lf);
+                assertEquals(sf.op, lf.op);
+                assertEquals(sf.value, lf.value);
+            }
+            assertNull(lf);
+        }
+        assertTrue(loaded.get(2).filter.test("a/b.veo"));
+    }
+
+    @Test
+    public void testNotCached() throws IOException, AppFatal {
+        assertNull(cache.load(controlFile));
+
+        // an edited control file is a new entry
+        cache.save(controlFile, targets());
+        Files.write(controlFile, "!edited\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(cache.load(controlFile));
+    }
+
+    @Test
+    public void testDamagedEntry() throws IOException, AppFatal {
+        Path entry;
+
+        cache.save(controlFile, targets());
+        entry = cache.entry(controlFile);
+
+        // a truncated entry is ignored
+        Files.write(entry, new byte[]{0x56, 0x32, 0x4d});
+        assertNull(cache.load(controlFile));
+
+        // as is one written by another version
+        cache.save(controlFile, targets());
+        Files.write(entry, new byte[]{0x56, 0x32, 0x4d, 0x43, 0, 0, 0, 0}, StandardOpenOption.WRITE);
+        assertNull(cache.load(controlFile));
+    }
+}
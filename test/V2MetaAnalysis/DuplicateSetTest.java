@@ -0,0 +1,269 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of claiming VEOs in a DuplicateSet (including copies claimed at the
+ * same time by different threads), and of the set persisting from run to
+ * run.
+ *
+ * @author Andrew
+ */
+public class DuplicateSetTest {
+
+    Path dir;               // temporary directory holding the set
+    DuplicateSet ds;        // the set being tested (null if closed)
+
+    @Before
+    public void setUp() throws IOException, AppFatal {
+        dir = TestFiles.create();
+        ds = new DuplicateSet(dir.resolve("dups"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (ds != null) {
+            ds.close();
+        }
+        TestFiles.delete(dir);
+    }
+
+    /**
+     * The hash of some content.
+     *
+     * @param s the content
+     * @return its SHA-256
+     * @throws IOException if SHA-256 is not available
+     */
+    private static byte[] hash(String s) throws IOException {
+        return DuplicateSet.digest().digest(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Close the set and open it again.
+     *
+     * @throws AppFatal if it could not be opened
+     */
+    private void reopen() throws AppFatal {
+        ds.close();
+        ds = null;
+        ds = new DuplicateSet(dir.resolve("dups"));
+    }
+
+    @Test
+    public void testCopyWaitsForFirst() throws IOException, InterruptedException {
+        Path a, b;
+        Claimer c;
+
+        a = dir.resolve("a.veo");
+        b = dir.resolve("b.veo");
+        assertNull(ds.claim(hash("one"), a));
+
+        // a second copy waits while the first is being processed...
+        c = new Claimer(hash("one"), b);
+        c.start();
+        c.join(200);
+        assertTrue(c.isAlive());
+
+        // ...and is a duplicate once the first has been added
+        ds.add(hash("one"), a);
+        c.join(5000);
+        assertFalse(c.isAlive());
+        assertEquals(a.toAbsolutePath().normalize(), c.original);
+    }
+
+    @Test
+    public void testReleasedClaim() throws IOException, InterruptedException {
+        Path a, b;
+        Claimer c;
+
+        a = dir.resolve("a.veo");
+        b = dir.resolve("b.veo");
+        assertNull(ds.claim(hash("one"), a));
+        c = new Claimer(hash("one"), b);
+        c.start();
+        c.join(200);
+        assertTrue(c.isAlive());
+
+        // the first copy failed, so the second is processed instead
+        ds.release(hash("one"), a);
+        c.join(5000);
+        assertFalse(c.isAlive());
+        assertNull(c.original);
+        ds.add(hash("one"), b);
+        assertEquals(b.toAbsolutePath().normalize(), ds.claim(hash("one"), dir.resolve("c.veo")));
+    }
+
+    @Test
+    public void testConcurrentCopies() throws IOException, InterruptedException {
+        Claimer[] c;
+        CountDownLatch go;
+        int i, processed;
+
+        // many copies claimed at once: only one is processed, and every
+        // other copy is a duplicate of it
+        go = new CountDownLatch(1);
+        c = new Claimer[16];
+        for (i = 0; i < c.length; i++) {
+            c[i] = new Claimer(hash("one"), dir.resolve("copy" + i + ".veo"));
+            c[i].go = go;
+            c[i].addIfClaimed = true;
+            c[i].start();
+        }
+        go.countDown();
+        processed = -1;
+        for (i = 0; i < c.length; i++) {
+            c[i].join(5000);
+            assertFalse(c[i].isAlive());
+            if (c[i].original == null) {
+                assertEquals(-1, processed);
+                processed = i;
+            }
+        }
+        assertTrue(processed != -1);
+        for (i = 0; i < c.length; i++) {
+            if (i != processed) {
+                assertEquals(dir.resolve("copy" + processed + ".veo").toAbsolutePath().normalize(), c[i].original);
+            }
+        }
+    }
+
+    /**
+     * A thread that claims a VEO, as a parsing thread does.
+     */
+    private class Claimer extends Thread {
+
+        byte[] hash;            // the content of the VEO
+        Path file;              // the VEO
+        CountDownLatch go;      // wait for this before claiming (null if none)
+        boolean addIfClaimed;   // add the VEO if it was claimed
+        volatile Path original; // the result of the claim
+
+        Claimer(byte[] hash, Path file) {
+            this.hash = hash;
+            this.file = file;
+            go = null;
+            addIfClaimed = false;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (go != null) {
+                    go.await();
+                }
+                original = ds.claim(hash, file);
+                if (original == null && addIfClaimed) {
+                    ds.add(hash, file);
+                }
+            } catch (InterruptedException ie) {
+                /* ignore - the test will fail */
+            }
+        }
+    }
+
+    @Test
+    public void testAdd() throws IOException, InterruptedException {
+        Path a, b;
+
+        a = dir.resolve("a.veo");
+        b = dir.resolve("b.veo");
+        ds.add(hash("one"), a);
+        assertEquals(a.toAbsolutePath().normalize(), ds.claim(hash("one"), b));
+        assertNull(ds.claim(hash("two"), b));
+
+        // a file is not a duplicate of itself
+        assertNull(ds.claim(hash("one"), a));
+
+        // only the first copy added is remembered
+        ds.add(hash("one"), b);
+        assertEquals(a.toAbsolutePath().normalize(), ds.claim(hash("one"), dir.resolve("c.veo")));
+    }
+
+    @Test
+    public void testDuplicatesListed() throws IOException, InterruptedException {
+        Path a, b;
+        List<String> lines;
+
+        a = dir.resolve("a.veo");
+        b = dir.resolve("b.veo");
+        ds.add(hash("one"), a);
+        ds.claim(hash("one"), a);
+        ds.claim(hash("one"), b);
+        ds.close();
+        ds = null;
+        lines = Files.readAllLines(dir.resolve("dups").resolve("duplicates.tsv"), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertEquals(b.toAbsolutePath().normalize() + "\t" + a.toAbsolutePath().normalize(), lines.get(0));
+    }
+
+    @Test
+    public void testPersists() throws IOException, AppFatal, InterruptedException {
+        Path a;
+
+        a = dir.resolve("a.veo");
+        ds.add(hash("one"), a);
+        reopen();
+        assertEquals(a.toAbsolutePath().normalize(), ds.claim(hash("one"), dir.resolve("b.veo")));
+        assertNull(ds.claim(hash("two"), dir.resolve("b.veo")));
+    }
+
+    @Test
+    public void testManyVEOs() throws IOException, AppFatal, InterruptedException {
+        int i, n;
+
+        // enough VEOs to write several batches and grow the table
+        n = (int) DuplicateSet.MIN_SLOTS;
+        for (i = 0; i < n; i++) {
+            ds.add(hash("veo" + i), dir.resolve("veo" + i));
+        }
+        assertTrue(ds.slots > DuplicateSet.MIN_SLOTS);
+        reopen();
+        assertEquals(n, ds.count);
+        for (i = 0; i < n; i += 97) {
+            assertEquals(dir.resolve("veo" + i).toAbsolutePath().normalize(), ds.claim(hash("veo" + i), dir.resolve("copy")));
+        }
+        assertEquals(dir.resolve("veo" + (n - 1)).toAbsolutePath().normalize(), ds.claim(hash("veo" + (n - 1)), dir.resolve("copy")));
+        for (i = 0; i < 1000; i++) {
+            assertNull(ds.claim(hash("new" + i), dir.resolve("copy")));
+        }
+    }
+
+    @Test
+    public void testHashDeadline() throws IOException {
+        Path a;
+        VEOFile vf;
+
+        a = dir.resolve("a.veo");
+        Files.write(a, "one".getBytes(StandardCharsets.UTF_8));
+        vf = new VEOFile(a, Files.size(a));
+        assertArrayEquals(hash("one"), DuplicateSet.hash(vf, 0));
+
+        // reading the file stops once the deadline has passed...
+        assertNull(DuplicateSet.hash(vf, System.nanoTime() - 1));
+
+        // ...but a VEO read ahead is already in memory
+        vf.data = Files.readAllBytes(a);
+        vf.length = vf.data.length;
+        assertArrayEquals(hash("one"), DuplicateSet.hash(vf, System.nanoTime() - 1));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the Filter operators.
+ *
+ * @author Andrew
+ */
+public class FilterTest {
+
+    @Test
+    public void testEquals() throws AppFatal {
+        Filter f;
+
+        f = new Filter("equals", "VPRS 1234");
+        assertTrue(f.test("VPRS 1234"));
+        assertTrue(f.test("  VPRS 1234\n"));
+        assertFalse(f.test("VPRS 12345"));
+        assertFalse(f.test("vprs 1234"));
+        assertFalse(f.test(null));
+        assertEquals("equals", f.opName());
+    }
+
+    @Test
+    public void testPrefix() throws AppFatal {
+        Filter f;
+
+        f = new Filter("PREFIX", "VPRS");
+        assertTrue(f.test("VPRS 1234"));
+        assertTrue(f.test(" VPRS"));
+        assertFalse(f.test("VPR"));
+        assertFalse(f.test(null));
+        assertEquals("prefix", f.opName());
+    }
+
+    @Test
+    public void testRegex() throws AppFatal {
+        Filter f;
+
+        f = new Filter("regex", "[0-9]{4}-[0-9]{2}");
+        assertTrue(f.test("2019-06"));
+        assertTrue(f.test(" 2019-06 "));
+
+        // the whole value must match
+        assertFalse(f.test("2019-06-03"));
+        assertFalse(f.test("x2019-06"));
+        assertFalse(f.test(null));
+        assertEquals("regex", f.opName());
+    }
+
+    @Test
+    public void testExists() throws AppFatal {
+        Filter f;
+
+        f = new Filter("exists", "ignored");
+        assertNull(f.value);
+        assertTrue(f.test("anything"));
+        assertTrue(f.test(""));
+        assertTrue(f.test(null));
+        assertEquals("exists", f.opName());
+    }
+
+    @Test(expected = AppFatal.class)
+    public void testUnknownOp() throws AppFatal {
+        new Filter("contains", "x");
+    }
+
+    @Test(expected = AppFatal.class)
+    public void testMissingValue() throws AppFatal {
+        new Filter("equals", null);
+    }
+
+    @Test(expected = AppFatal.class)
+    public void testBadRegex() throws AppFatal {
+        new Filter("regex", "[0-9");
+    }
+
+    @Test
+    public void testCopyAndList() throws AppFatal {
+        Filter f, g, h;
+
+        f = new Filter("prefix", "a");
+        g = new Filter(f, 3);
+        assertEquals(Filter.PREFIX, g.op);
+        assertEquals("a", g.value);
+        assertEquals(3, g.group);
+        assertEquals(0, f.group);
+
+        h = new Filter("exists", null);
+        f.add(g);
+        f.add(h);
+        assertSame(g, f.next);
+        assertSame(h, f.next.next);
+        assertNull(h.next);
+    }
+}
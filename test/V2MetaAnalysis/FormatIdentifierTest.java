@@ -0,0 +1,133 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests of identifying the format (by magic number) and decoded size of
+ * base64 encoded content with a FormatIdentifier.
+ *
+ * @author Andrew
+ */
+public class FormatIdentifierTest {
+
+    /**
+     * Pass the base64 encoding of some content through a FormatIdentifier, a
+     * few characters at a time (as the parser would).
+     *
+     * @param fi the FormatIdentifier
+     * @param content the content
+     * @param mime true to encode as MIME (with line breaks)
+     */
+    private static void decode(FormatIdentifier fi, byte[] content, boolean mime) {
+        char[] ch;
+        int i, n;
+
+        ch = (mime ? Base64.getMimeEncoder() : Base64.getEncoder()).encodeToString(content).toCharArray();
+        fi.start();
+        for (i = 0; i < ch.length; i += n) {
+            n = Math.min(7, ch.length - i);
+            fi.decode(ch, i, n);
+        }
+    }
+
+    /**
+     * The format of some content.
+     *
+     * @param content the content (as ISO-8859-1 characters)
+     * @return the format
+     */
+    private static String format(String content) {
+        FormatIdentifier fi;
+
+        fi = new FormatIdentifier();
+        decode(fi, content.getBytes(StandardCharsets.ISO_8859_1), false);
+        return fi.format();
+    }
+
+    @Test
+    public void testMagic() {
+        assertEquals("PDF", format("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n"));
+        assertEquals("PNG", format("\u0089PNG\r\n\u001a\n\u0000\u0000\u0000\rIHDR"));
+        assertEquals("JPEG", format("\u00ff\u00d8\u00ff\u00e0\u0000\u0010JFIF"));
+        assertEquals("TIFF", format("II*\u0000\u0008\u0000\u0000\u0000"));
+        assertEquals("TIFF", format("MM\u0000*\u0000\u0000\u0000\u0008"));
+        assertEquals("GIF", format("GIF89a\u0001\u0000"));
+        assertEquals("OLE2", format("\u00d0\u00cf\u0011\u00e0\u00a1\u00b1\u001a\u00e1\u0000"));
+        assertEquals("RTF", format("{\\rtf1\\ansi"));
+        assertEquals("XML", format("<?xml version=\"1.0\"?><a/>"));
+        assertEquals("XML", format("\u00ef\u00bb\u00bf<?xml version=\"1.0\"?>"));
+    }
+
+    @Test
+    public void testMagicAtOffset() {
+        assertEquals("WAV", format("RIFF$\u0000\u0000\u0000WAVEfmt "));
+        assertEquals("AVI", format("RIFF$\u0000\u0000\u0000AVI LIST"));
+        assertEquals("QuickTime", format("\u0000\u0000\u0000\u0014ftypqt  "));
+        assertEquals("MP4", format("\u0000\u0000\u0000\u0018ftypmp42"));
+
+        // too short to hold the magic number at its offset
+        assertEquals("text", format("RIFF"));
+    }
+
+    @Test
+    public void testZipKinds() {
+        assertEquals("DOCX", format("PK\u0003\u0004\u0014\u0000\u0006\u0000[Content_Types].xmlPK\u0003\u0004word/document.xml"));
+        assertEquals("XLSX", format("PK\u0003\u0004\u0014\u0000xl/workbook.xml"));
+        assertEquals("ODT", format("PK\u0003\u0004\u0014\u0000mimetypeapplication/vnd.oasis.opendocument.text"));
+        assertEquals("OOXML", format("PK\u0003\u0004\u0014\u0000[Content_Types].xml"));
+        assertEquals("ZIP", format("PK\u0003\u0004\u0014\u0000readme.txt"));
+    }
+
+    @Test
+    public void testOther() {
+        assertEquals("HTML", format("  <!DOCTYPE html><html></html>"));
+        assertEquals("HTML", format("<HTML><BODY>"));
+        assertEquals("text", format("Minutes of the meeting\r\n\tItem 1\n"));
+        assertEquals("unknown", format("\u0001\u0002\u0003\u0004"));
+        assertEquals("empty", format(""));
+    }
+
+    @Test
+    public void testSize() {
+        FormatIdentifier fi;
+        byte[] b;
+        int n;
+
+        fi = new FormatIdentifier();
+        for (n = 0; n < 20; n++) {
+            b = new byte[n];
+            Arrays.fill(b, (byte) 'x');
+            decode(fi, b, false);
+            assertEquals("size of " + n + " bytes", n, fi.size());
+        }
+    }
+
+    @Test
+    public void testLargeContent() {
+        FormatIdentifier fi;
+        byte[] b;
+
+        // larger than the head, and MIME encoded (line breaks are ignored)
+        b = new byte[100003];
+        Arrays.fill(b, (byte) 0x55);
+        System.arraycopy("%PDF-".getBytes(StandardCharsets.ISO_8859_1), 0, b, 0, 5);
+        fi = new FormatIdentifier();
+        decode(fi, b, true);
+        assertEquals("PDF", fi.format());
+        assertEquals(b.length, fi.size());
+
+        // a FormatIdentifier is reused for the next stream
+        decode(fi, "GIF87a".getBytes(StandardCharsets.ISO_8859_1), false);
+        assertEquals("GIF", fi.format());
+        assertEquals(6, fi.size());
+    }
+}
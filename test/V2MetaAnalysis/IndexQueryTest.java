@@ -0,0 +1,233 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of building an index with IndexBuilder and querying it with
+ * IndexQuery.
+ *
+ * @author Andrew
+ */
+public class IndexQueryTest {
+
+    Path dir;               // temporary directory holding the index
+    Target targets;         // targets harvested: title, id and filename
+    IndexQuery iq;          // the index being queried (null if not open)
+
+    // the values of each VEO: title and id
+    static final String[][] VEOS = {
+        {"Annual Report 2019", "VPRS 1234/P1"},
+        {"Minutes of the Board", "VPRS 1234/P2"},
+        {"annual  REPORT   2020", "VPRS 99"},
+        {"Board papers", "VPRS 1234/P1"}
+    };
+
+    @Before
+    public void setUp() throws IOException, AppFatal {
+        dir = TestFiles.create();
+        targets = target("vers:a/vers:title", "title");
+        targets.add(target("vers:a/vers:id", "id"));
+        targets.add(target("vers:a", "filename"));
+        iq = null;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (iq != null) {
+            iq.close();
+        }
+        TestFiles.delete(dir);
+    }
+
+    /**
+     * Create a target.
+     *
+     * @param path the element path
+     * @param tag the tag
+     * @return the target
+     * @throws AppFatal if the target could not be created
+     */
+    private static Target target(String path, String tag) throws AppFatal {
+        ArrayList<String> elemPath;
+
+        elemPath = new ArrayList<>();
+        elemPath.add(path);
+        return new Target(elemPath, null, tag);
+    }
+
+    /**
+     * Build an index of VEOS, and open it.
+     *
+     * @param budget memory to use before writing a run
+     * @throws AppFatal if the index could not be built or opened
+     */
+    private void build(long budget) throws AppFatal {
+        IndexBuilder ib;
+        Harvest h;
+        int i;
+
+        ib = new IndexBuilder(dir.resolve("index"), targets, null, budget);
+        h = new Harvest(targets);
+        for (i = 0; i < VEOS.length; i++) {
+            h.clear();
+            h.addValue(0, VEOS[i][0]);
+            h.addValue(1, VEOS[i][1]);
+            h.addValue(2, "veo" + i + ".veo");
+            ib.add(dir.resolve("veo" + i + ".veo"), h);
+        }
+        ib.finish();
+        iq = new IndexQuery(dir.resolve("index"));
+    }
+
+    /**
+     * The VEOs matching a query.
+     *
+     * @param query the query
+     * @return the numbers of the VEOs matching
+     * @throws AppFatal if the index could not be read
+     */
+    private String lookup(String query) throws AppFatal {
+        return iq.lookup(query).toString();
+    }
+
+    @Test
+    public void testLookup() throws AppFatal {
+        build(1L << 20);
+        checkLookup();
+    }
+
+    @Test
+    public void testLookupManyRuns() throws AppFatal {
+
+        // a run is written after each VEO, so the runs must be merged
+        build(1);
+        checkLookup();
+    }
+
+    /**
+     * Check the answers to queries on the index of VEOS.
+     *
+     * @throws AppFatal if the index could not be read
+     */
+    private void checkLookup() throws AppFatal {
+        int i;
+
+        assertEquals(VEOS.length, iq.veoCount);
+
+        // whole values, ignoring case and runs of white space
+        assertEquals("{0}", lookup("annual report 2019"));
+        assertEquals("{2}", lookup("Annual Report 2020"));
+        assertEquals("{0, 3}", lookup("vprs 1234/p1"));
+
+        // words
+        assertEquals("{0, 2}", lookup("annual"));
+        assertEquals("{1, 3}", lookup("board"));
+        assertEquals("{0, 1, 2, 3}", lookup("vprs"));
+
+        // for one tag
+        assertEquals("{0, 1, 3}", lookup("id=1234"));
+        assertEquals("{}", lookup("title=1234"));
+        assertEquals("{1}", lookup("title=minutes of the board"));
+
+        // prefixes
+        assertEquals("{0, 2}", lookup("ann*"));
+        assertEquals("{0, 1, 3}", lookup("id=vprs 1234*"));
+        assertEquals("{}", lookup("title=vprs*"));
+
+        // not found, and the filename is not indexed
+        assertEquals("{}", lookup("missing"));
+        assertEquals("{}", lookup("veo0.veo"));
+
+        for (i = 0; i < VEOS.length; i++) {
+            assertEquals(dir.resolve("veo" + i + ".veo").toAbsolutePath().normalize().toString(), iq.path(i));
+        }
+    }
+
+    @Test
+    public void testIndexedTags() throws AppFatal {
+        IndexBuilder ib;
+        Harvest h;
+        ArrayList<String> tags;
+        BitSet b;
+
+        tags = new ArrayList<>();
+        tags.add("id");
+        ib = new IndexBuilder(dir.resolve("index"), targets, tags, 1L << 20);
+        h = new Harvest(targets);
+        h.addValue(0, "Annual Report");
+        h.addValue(1, "VPRS 1");
+        ib.add(dir.resolve("veo0.veo"), h);
+        ib.finish();
+        iq = new IndexQuery(dir.resolve("index"));
+        b = iq.lookup("vprs");
+        assertEquals("{0}", b.toString());
+        assertEquals("{}", lookup("annual"));
+    }
+
+    @Test(expected = AppFatal.class)
+    public void testUnknownTag() throws AppFatal {
+        ArrayList<String> tags;
+
+        tags = new ArrayList<>();
+        tags.add("nothing");
+        new IndexBuilder(dir.resolve("index"), targets, tags, 1L << 20);
+    }
+
+    @Test(expected = AppFatal.class)
+    public void testUnfinished() throws AppFatal {
+        IndexBuilder ib;
+
+        ib = new IndexBuilder(dir.resolve("index"), targets, null, 1L << 20);
+        ib.abort();
+        iq = new IndexQuery(dir.resolve("index"));
+    }
+
+    @Test
+    public void testNormalise() {
+        assertEquals("annual report 2019", IndexBuilder.normalise("  Annual\t REPORT\n2019 "));
+        assertEquals("", IndexBuilder.normalise(" \t\n"));
+    }
+
+    @Test
+    public void testMappedSegments() throws IOException {
+        IndexQuery.Mapped m;
+        Path p;
+        long i;
+
+        // a file of longs mapped in segments of 16 bytes, so most numbers
+        // are read from a segment other than the first, and some straddle
+        // the end of a segment
+        p = dir.resolve("longs");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(p)))) {
+            for (i = 0; i < 100; i++) {
+                dos.writeLong(i * 0x0101010101L);
+            }
+        }
+        m = new IndexQuery.Mapped(p, 4);
+        assertEquals(50, m.segments.length);
+        for (i = 0; i < 100; i++) {
+            assertEquals(i * 0x0101010101L, m.getLong(i * 8));
+            assertEquals((int) (i * 0x0101010101L), m.getInt(i * 8 + 4));
+            assertEquals((byte) i, m.get(i * 8 + 7));
+        }
+
+        // a long starting 12 bytes into a segment runs into the next
+        assertEquals((5 * 0x0101010101L << 32) | ((6 * 0x0101010101L) >>> 32), m.getLong(44));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import VERSCommon.AppFatal;
+import java.util.ArrayList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of matching element paths (with and without wildcards) by a
+ * PathMatcher.
+ *
+ * @author Andrew
+ */
+public class PathMatcherTest {
+
+    private static final int[] NONE = new int[0];
+
+    /**
+     * Build a target list with one target (tagged t0, t1...) for each element
+     * path.
+     *
+     * @param paths the element paths
+     * @return the target list
+     * @throws AppFatal if a target could not be created
+     */
+    private static Target targets(String... paths) throws AppFatal {
+        Target targets, t;
+        ArrayList<String> elemPath;
+        int i;
+
+        targets = null;
+        for (i = 0; i < paths.length; i++) {
+            elemPath = new ArrayList<>();
+            elemPath.add(paths[i]);
+            t = new Target(elemPath, null, "t" + i);
+            if (targets == null) {
+                targets = t;
+            } else {
+                targets.add(t);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * The targets matched by an element, found by stepping from the root
+     * element down the path.
+     *
+     * @param pm the PathMatcher
+     * @param path the path of the element (names separated by '/')
+     * @return the indexes of the targets matched
+     */
+    private static int[] match(PathMatcher pm, String path) {
+        String[] names;
+        int i, s;
+
+        names = path.split("/");
+        s = pm.start();
+        for (i = 0; i < names.length; i++) {
+            s = pm.step(s, pm.symbol(names[i]));
+        }
+        return pm.matches(s);
+    }
+
+    @Test
+    public void testExact() throws AppFatal {
+        PathMatcher pm;
+
+        pm = new PathMatcher(targets("a/b/c"));
+        assertArrayEquals(new int[]{0}, match(pm, "a/b/c"));
+        assertArrayEquals(NONE, match(pm, "a/b"));
+        assertArrayEquals(NONE, match(pm, "a/b/c/d"));
+        assertArrayEquals(NONE, match(pm, "x/a/b/c"));
+        assertArrayEquals(NONE, match(pm, "a/x/c"));
+    }
+
+    @Test
+    public void testStar() throws AppFatal {
+        PathMatcher pm;
+
+        pm = new PathMatcher(targets("a/*/c"));
+        assertArrayEquals(new int[]{0}, match(pm, "a/b/c"));
+        assertArrayEquals(new int[]{0}, match(pm, "a/x/c"));
+        assertArrayEquals(new int[]{0}, match(pm, "a/c/c"));
+
+        // '*' is exactly one element
+        assertArrayEquals(NONE, match(pm, "a/c"));
+        assertArrayEquals(NONE, match(pm, "a/b/b/c"));
+    }
+
+    @Test
+    public void testDeep() throws AppFatal {
+        PathMatcher pm;
+
+        pm = new PathMatcher(targets("a//c"));
+        assertArrayEquals(new int[]{0}, match(pm, "a/c"));
+        assertArrayEquals(new int[]{0}, match(pm, "a/b/c"));
+        assertArrayEquals(new int[]{0}, match(pm, "a/b/x/c"));
+        assertArrayEquals(new int[]{0}, match(pm, "a/c/c"));
+        assertArrayEquals(NONE, match(pm, "a/b"));
+        assertArrayEquals(NONE, match(pm, "b/c"));
+    }
+
+    @Test
+    public void testLeadingDeep() throws AppFatal {
+        PathMatcher pm;
+
+        pm = new PathMatcher(targets("//c"));
+        assertArrayEquals(new int[]{0}, match(pm, "c"));
+        assertArrayEquals(new int[]{0}, match(pm, "a/c"));
+        assertArrayEquals(new int[]{0}, match(pm, "a/b/c"));
+        assertArrayEquals(NONE, match(pm, "a/b"));
+        assertArrayEquals(NONE, match(pm, "a/c/d"));
+    }
+
+    @Test
+    public void testSeveralTargets() throws AppFatal {
+        PathMatcher pm;
+
+        pm = new PathMatcher(targets("a/b", "a/*", "//b", "a/c"));
+        assertArrayEquals(new int[]{0, 1, 2}, match(pm, "a/b"));
+        assertArrayEquals(new int[]{1, 3}, match(pm, "a/c"));
+        assertArrayEquals(new int[]{1}, match(pm, "a/d"));
+        assertArrayEquals(new int[]{2}, match(pm, "x/y/b"));
+        assertArrayEquals(NONE, match(pm, "a"));
+    }
+
+    @Test
+    public void testUnknownNameIsDead() throws AppFatal {
+        PathMatcher pm;
+        int s;
+
+        pm = new PathMatcher(targets("a/b"));
+        assertEquals(0, pm.symbol("x"));
+        s = pm.step(pm.start(), pm.symbol("x"));
+        assertEquals(PathMatcher.DEAD, s);
+        assertEquals(PathMatcher.DEAD, pm.step(s, pm.symbol("a")));
+    }
+
+    @Test
+    public void testNamespace() throws AppFatal {
+        PathMatcher pm;
+        int s;
+
+        pm = new PathMatcher(targets("vers:a/vers:b"));
+
+        // the VEO may use any prefix for the VERS namespace
+        s = pm.step(pm.start(), pm.symbol(PathMatcher.VERS_NS, "a", "v:a"));
+        s = pm.step(s, pm.symbol(PathMatcher.VERS_NS, "b", "b"));
+        assertArrayEquals(new int[]{0}, pm.matches(s));
+
+        // and a VEO binding 'vers' to another namespace still matches by name
+        s = pm.step(pm.start(), pm.symbol("urn:other", "a", "vers:a"));
+        s = pm.step(s, pm.symbol("urn:other", "b", "vers:b"));
+        assertArrayEquals(new int[]{0}, pm.matches(s));
+
+        // but not another prefix bound to another namespace
+        s = pm.step(pm.start(), pm.symbol("urn:other", "a", "x:a"));
+        assertEquals(PathMatcher.DEAD, s);
+    }
+
+    @Test
+    public void testOtherNames() throws AppFatal {
+        PathMatcher pm;
+
+        pm = new PathMatcher(targets("a/b"), new String[]{"z"});
+        assertTrue(pm.symbol("z") != 0);
+        assertArrayEquals(NONE, match(pm, "a/z"));
+    }
+
+    @Test
+    public void testMayMatch() throws AppFatal {
+        PathMatcher pm;
+
+        pm = new PathMatcher(targets("vers:a/vers:b"));
+        assertTrue(pm.mayMatch("vers:a"));
+        assertTrue(pm.mayMatch("vers:a/vers:b"));
+        assertTrue(pm.mayMatch("vers:a/vers:b/vers:c"));
+        assertFalse(pm.mayMatch("vers:b"));
+        assertFalse(pm.mayMatch("vers:a/vers:c"));
+
+        // without a known prefix the namespace is unknown, so anything may match
+        assertTrue(pm.mayMatch("x:b"));
+    }
+
+    @Test
+    public void testIsPattern() {
+        assertTrue(PathMatcher.isPattern("a/*/c"));
+        assertTrue(PathMatcher.isPattern("//c"));
+        assertFalse(PathMatcher.isPattern("a/b/c"));
+    }
+}
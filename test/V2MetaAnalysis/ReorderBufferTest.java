@@ -0,0 +1,205 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of writing the output of VEOs in order (whatever order they finish
+ * in) with a ReorderBuffer, including VEOs that fail and waiting for a turn.
+ *
+ * @author Andrew
+ */
+public class ReorderBufferTest {
+
+    MemorySink out;         // the group output
+    ReorderBuffer rb;       // the buffer being tested
+
+    @Before
+    public void setUp() {
+        out = new MemorySink(64);
+        rb = new ReorderBuffer(out, ByteSink.utf8(","));
+    }
+
+    /**
+     * The output of a VEO.
+     *
+     * @param s the output
+     * @return a sink holding the output
+     * @throws IOException if the output could not be written
+     */
+    private static MemorySink record(String s) throws IOException {
+        MemorySink m;
+
+        m = new MemorySink(16);
+        m.write(s);
+        return m;
+    }
+
+    /**
+     * The group output written so far.
+     *
+     * @return the output
+     */
+    private String written() {
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testInOrder() throws IOException {
+        rb.put(0, record("a"));
+        rb.put(1, record("b"));
+        rb.put(2, record("c"));
+        assertEquals("a,b,c", written());
+    }
+
+    @Test
+    public void testOutOfOrder() throws IOException {
+        rb.put(2, record("c"));
+        rb.put(1, record("b"));
+        assertEquals("", written());
+        rb.put(0, record("a"));
+        assertEquals("a,b,c", written());
+        rb.put(4, record("e"));
+        assertEquals("a,b,c", written());
+        rb.put(3, record("d"));
+        assertEquals("a,b,c,d,e", written());
+        assertTrue(rb.waiting.isEmpty());
+    }
+
+    @Test
+    public void testRecordReused() throws IOException {
+        MemorySink m;
+
+        // a VEO held back keeps a copy of its output
+        m = record("b");
+        rb.put(1, m);
+        m.reset();
+        m.write("x");
+        rb.put(0, record("a"));
+        assertEquals("a,b", written());
+    }
+
+    @Test
+    public void testFailed() throws IOException {
+        rb.put(0, record("a"));
+        rb.failed(1);
+        rb.put(2, record("c"));
+        assertEquals("a,c", written());
+
+        // failures out of order
+        rb.failed(4);
+        rb.put(5, record("f"));
+        rb.failed(3);
+        assertEquals("a,c,f", written());
+        assertTrue(rb.waiting.isEmpty());
+    }
+
+    @Test
+    public void testFirstFailed() throws IOException {
+        rb.failed(0);
+        rb.put(2, record("c"));
+        rb.failed(1);
+
+        // no separator before the first output
+        assertEquals("c", written());
+    }
+
+    @Test
+    public void testAllFailed() throws IOException {
+        rb.failed(1);
+        rb.failed(0);
+        assertEquals("", written());
+        assertEquals(2, rb.nextSeq);
+    }
+
+    @Test
+    public void testAwaitTurn() throws IOException, InterruptedException {
+        Thread t;
+        final boolean[] started = new boolean[1];
+
+        // a VEO less than AHEAD ahead of the next to be written starts at once
+        rb.awaitTurn(0);
+        rb.awaitTurn(ReorderBuffer.AHEAD - 1);
+
+        // one further ahead waits until the next VEO is written
+        t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    rb.awaitTurn(ReorderBuffer.AHEAD);
+                    started[0] = true;
+                } catch (InterruptedException ie) {
+                    /* fail below */
+                }
+            }
+        };
+        t.start();
+        t.join(200);
+        assertTrue(t.isAlive());
+        rb.put(0, record("a"));
+        t.join(10000);
+        assertFalse(t.isAlive());
+        assertTrue(started[0]);
+    }
+
+    @Test
+    public void testAwaitTurnAfterFailure() throws IOException, InterruptedException {
+        Thread t;
+
+        t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    rb.awaitTurn(ReorderBuffer.AHEAD + 1);
+                } catch (InterruptedException ie) {
+                    /* ignore */
+                }
+            }
+        };
+        t.start();
+
+        // failed VEOs also let later VEOs start
+        rb.failed(1);
+        t.join(200);
+        assertTrue(t.isAlive());
+        rb.failed(0);
+        t.join(10000);
+        assertFalse(t.isAlive());
+    }
+
+    @Test
+    public void testAbort() throws InterruptedException {
+        Thread t;
+
+        t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    rb.awaitTurn(10 * ReorderBuffer.AHEAD);
+                } catch (InterruptedException ie) {
+                    /* ignore */
+                }
+            }
+        };
+        t.start();
+        t.join(200);
+        assertTrue(t.isAlive());
+
+        // abandoning processing releases anything waiting, and later VEOs
+        // do not wait at all
+        rb.abort();
+        t.join(10000);
+        assertFalse(t.isAlive());
+        rb.awaitTurn(100 * ReorderBuffer.AHEAD);
+    }
+}
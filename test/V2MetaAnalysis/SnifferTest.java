@@ -0,0 +1,240 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of sniffing the start of a file with a Sniffer: each reason a file is
+ * certainly not a VEO, and each case where the sniffer cannot tell and so
+ * leaves the file to the parser.
+ *
+ * @author Andrew
+ */
+public class SnifferTest {
+
+    Path dir;               // temporary directory holding the files sniffed
+
+    static final String VEO = "<vers:VERSEncapsulatedObject xmlns:vers=\"" + PathMatcher.VERS_NS + "\">";
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.create();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.delete(dir);
+    }
+
+    /**
+     * Sniff the whole of a file.
+     *
+     * @param s the contents of the file
+     * @return null if it may be a VEO, otherwise why it is not
+     */
+    private static String sniff(String s) {
+        byte[] b;
+
+        b = s.getBytes(StandardCharsets.UTF_8);
+        return Sniffer.sniff(b, b.length, true);
+    }
+
+    /**
+     * Sniff the start of a longer file.
+     *
+     * @param s the start of the file
+     * @return null if it may be a VEO, otherwise why it is not
+     */
+    private static String sniffStart(String s) {
+        byte[] b;
+
+        b = s.getBytes(StandardCharsets.UTF_8);
+        return Sniffer.sniff(b, b.length, false);
+    }
+
+    /**
+     * Write a file and sniff it (as it would be if it had not been read
+     * ahead).
+     *
+     * @param name the name of the file
+     * @param b the contents of the file
+     * @return null if it may be a VEO, otherwise why it is not
+     * @throws IOException if the file could not be written
+     */
+    private String sniffFile(String name, byte[] b) throws IOException {
+        Path p;
+
+        p = dir.resolve(name);
+        Files.write(p, b);
+        return Sniffer.sniff(new VEOFile(p, b.length));
+    }
+
+    /**
+     * Sniff the contents of a file that has been read ahead.
+     *
+     * @param b the contents of the file
+     * @return null if it may be a VEO, otherwise why it is not
+     */
+    private String sniffReadAhead(byte[] b) {
+        VEOFile vf;
+
+        vf = new VEOFile(dir.resolve("ahead.veo"), b.length);
+        vf.data = b;
+        vf.length = b.length;
+        return Sniffer.sniff(vf);
+    }
+
+    @Test
+    public void testVEO() {
+        assertNull(sniff(VEO + "</vers:VERSEncapsulatedObject>"));
+
+        // the prefix 'vers' is accepted however it is bound (or if unbound)
+        assertNull(sniff("<vers:VERSEncapsulatedObject xmlns:vers=\"http://example.com\">"));
+        assertNull(sniff("<vers:VERSEncapsulatedObject>"));
+
+        // the default namespace, or any other prefix bound to the namespace
+        assertNull(sniff("<VERSEncapsulatedObject xmlns=\"" + PathMatcher.VERS_NS + "\">"));
+        assertNull(sniff("<VERSEncapsulatedObject\n\tid = 'a' xmlns='" + PathMatcher.VERS_NS + "'/>"));
+        assertNull(sniff("<v:VERSEncapsulatedObject a=\"x>y\" xmlns:v=\"" + PathMatcher.VERS_NS + "\">"));
+    }
+
+    @Test
+    public void testProlog() {
+        String prolog;
+
+        // byte order mark, XML declaration, processing instructions, comments
+        prolog = "\ufeff<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n"
+                + "<?xml-stylesheet href=\"a.xsl?b>c\"?>\n"
+                + "<!-- a comment with <tags> and -- in it -->\n  ";
+        assertNull(sniff(prolog + VEO));
+        assertEquals(Sniffer.ROOT, sniff(prolog + "<manifest/>"));
+    }
+
+    @Test
+    public void testDoctype() {
+        String doctype;
+
+        // quoted strings and comments in the internal subset may contain '>'
+        // and ']'
+        doctype = "<?xml version=\"1.0\"?>\n"
+                + "<!DOCTYPE vers:VERSEncapsulatedObject SYSTEM \"vers.dtd\" [\n"
+                + "  <!ENTITY a \"x > y ]\">\n"
+                + "  <!ENTITY b 'p ]> q'>\n"
+                + "  <!-- ]> -->\n"
+                + "  <!ELEMENT c (#PCDATA)>\n"
+                + "]>\n";
+        assertNull(sniff(doctype + VEO));
+        assertEquals(Sniffer.ROOT, sniff(doctype + "<manifest/>"));
+        assertEquals(Sniffer.ROOT, sniff("<!DOCTYPE manifest SYSTEM \"m.dtd\"><manifest/>"));
+    }
+
+    @Test
+    public void testNotVEO() {
+        assertEquals(Sniffer.EMPTY, sniff(""));
+
+        // not XML at all, or XML without a root element
+        assertEquals(Sniffer.NOT_XML, sniff("%PDF-1.4\n"));
+        assertEquals(Sniffer.NOT_XML, sniff("  \r\n"));
+        assertEquals(Sniffer.NOT_XML, sniff("Some text <with a tag>"));
+        assertEquals(Sniffer.NOT_XML, sniff("< VERSEncapsulatedObject>"));
+        assertEquals(Sniffer.NOT_XML, sniff("<?xml version=\"1.0\"?>"));
+        assertEquals(Sniffer.NOT_XML, sniff("<!-- never ends "));
+        assertEquals(Sniffer.NOT_XML, sniff("<!DOCTYPE a [ <!ENTITY b \"c\"> "));
+        assertEquals(Sniffer.NOT_XML, sniff("<VERSEncapsulatedObject"));
+
+        // some other root element
+        assertEquals(Sniffer.ROOT, sniff("<manifest xmlns=\"" + PathMatcher.VERS_NS + "\">"));
+        assertEquals(Sniffer.ROOT, sniff("<vers:VERSSignatureBlock>"));
+        assertEquals(Sniffer.ROOT, sniff("<VERSEncapsulatedObjects>"));
+
+        // the right name, but not in the VERS namespace
+        assertEquals(Sniffer.NAMESPACE, sniff("<VERSEncapsulatedObject>"));
+        assertEquals(Sniffer.NAMESPACE, sniff("<VERSEncapsulatedObject xmlns=\"http://example.com\">"));
+        assertEquals(Sniffer.NAMESPACE, sniff("<VERSEncapsulatedObject xmlns:vers=\"" + PathMatcher.VERS_NS + "\">"));
+        assertEquals(Sniffer.NAMESPACE, sniff("<v:VERSEncapsulatedObject xmlns=\"" + PathMatcher.VERS_NS + "\">"));
+        assertEquals(Sniffer.NAMESPACE, sniff("<v:VERSEncapsulatedObject xmlns:w=\"" + PathMatcher.VERS_NS + "\">"));
+    }
+
+    @Test
+    public void testCannotTell() {
+        byte[] b;
+
+        // the start of a longer file that ends before the sniffer can tell
+        assertNull(sniffStart(""));
+        assertNull(sniffStart("  \n"));
+        assertNull(sniffStart("<?xml version=\"1.0\""));
+        assertNull(sniffStart("<!-- a long comment"));
+        assertNull(sniffStart("<!DOCTYPE a [ <!ENTITY b \"c > d"));
+        assertNull(sniffStart("<manifest"));
+        assertNull(sniffStart("<VERSEncapsulatedObject "));
+        assertNull(sniffStart("<VERSEncapsulatedObject id=\"a\" xmlns=\"http://www.pr"));
+        assertEquals(Sniffer.ROOT, sniffStart("<manifest "));
+
+        // attributes the sniffer cannot read are left to the parser
+        assertNull(sniff("<VERSEncapsulatedObject id>"));
+        assertNull(sniff("<VERSEncapsulatedObject id=a>"));
+
+        // a byte order mark other than UTF-8
+        b = utf16(new byte[]{(byte) 0xfe, (byte) 0xff}, "<manifest/>", true);
+        assertNull(Sniffer.sniff(b, b.length, true));
+        b = utf16(new byte[]{(byte) 0xff, (byte) 0xfe}, "<manifest/>", false);
+        assertNull(Sniffer.sniff(b, b.length, true));
+    }
+
+    /**
+     * Encode a string as UTF-16 after a byte order mark.
+     *
+     * @param bom the byte order mark
+     * @param s the string
+     * @param bigEndian true if big endian
+     * @return the bytes
+     */
+    private static byte[] utf16(byte[] bom, String s, boolean bigEndian) {
+        byte[] b, e;
+
+        e = s.getBytes(bigEndian ? StandardCharsets.UTF_16BE : StandardCharsets.UTF_16LE);
+        b = new byte[bom.length + e.length];
+        System.arraycopy(bom, 0, b, 0, bom.length);
+        System.arraycopy(e, 0, b, bom.length, e.length);
+        return b;
+    }
+
+    @Test
+    public void testFiles() throws IOException {
+        StringBuilder sb;
+        byte[] b;
+
+        assertNull(sniffFile("a.veo", VEO.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(Sniffer.ROOT, sniffFile("b.xml", "<manifest/>".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(Sniffer.EMPTY, sniffFile("c.veo", new byte[0]));
+        assertEquals(Sniffer.ROOT, sniffReadAhead("<manifest/>".getBytes(StandardCharsets.UTF_8)));
+
+        // a file that cannot be read is left to the parser
+        assertNull(Sniffer.sniff(new VEOFile(dir.resolve("missing.veo"), 0)));
+
+        // a root element that starts after the bytes looked at cannot be
+        // seen, whether the file is read or has been read ahead
+        sb = new StringBuilder();
+        sb.append("<!-- ");
+        while (sb.length() < Sniffer.SNIFF_BYTES) {
+            sb.append("padding ");
+        }
+        sb.append("-->\n<manifest/>");
+        b = sb.toString().getBytes(StandardCharsets.UTF_8);
+        assertNull(sniffFile("d.veo", b));
+        assertNull(sniffReadAhead(b));
+        assertEquals(Sniffer.ROOT, sniff(sb.toString()));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package V2MetaAnalysis;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Temporary directories for the tests that read and write files.
+ *
+ * @author Andrew
+ */
+final class TestFiles {
+
+    private TestFiles() {
+    }
+
+    /**
+     * Create a new, empty, temporary directory.
+     *
+     * @return the directory
+     * @throws IOException if it could not be created
+     */
+    static Path create() throws IOException {
+        return Files.createTempDirectory("V2MetaAnalysisTest");
+    }
+
+    /**
+     * Delete a directory and everything in it.
+     *
+     * @param dir the directory (nothing is done if null)
+     * @throws IOException if it could not be deleted
+     */
+    static void delete(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException ioe) throws IOException {
+                if (ioe != null) {
+                    throw ioe;
+                }
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}